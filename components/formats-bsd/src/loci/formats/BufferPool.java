@@ -0,0 +1,238 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of byte arrays, used to avoid allocating short-lived plane and tile
+ * buffers on hot read paths.
+ *
+ * Arrays are grouped into classes by their exact length, since most callers
+ * rely on an array's length (for example, when passing it to a codec or to
+ * {@link IFormatReader#openBytes(int, byte[])}).  A borrowed array has
+ * undefined contents.  It must be released at most once, and must not be
+ * used or handed out after it has been released.  Arrays that are never
+ * released are simply garbage collected.
+ *
+ * The pool retains at most {@link #getMaxBytes()} bytes in total; arrays
+ * released beyond that limit are discarded.  Arrays smaller than
+ * {@link #MIN_POOLED_SIZE} bytes are cheap to allocate and bypass the pool
+ * entirely.
+ *
+ * The pool used by the readers and wrappers in this package is
+ * {@link #getDefault()}; it can be replaced, e.g. with a subclass or a pool
+ * with a different limit, using {@link #setDefault(BufferPool)}.  All methods
+ * are thread-safe.
+ */
+public class BufferPool {
+
+  // -- Constants --
+
+  /** Arrays smaller than this are never pooled. */
+  public static final int MIN_POOLED_SIZE = 4096;
+
+  /** Default limit on the number of bytes retained by the default pool. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** Maximum number of arrays retained for any one length. */
+  private static final int MAX_PER_CLASS = 16;
+
+  // -- Static fields --
+
+  private static volatile BufferPool defaultPool =
+    new BufferPool(DEFAULT_MAX_BYTES);
+
+  // -- Fields --
+
+  private final long maxBytes;
+
+  private final Map<Integer, ArrayDeque<byte[]>> classes =
+    new HashMap<Integer, ArrayDeque<byte[]>>();
+
+  private long retainedBytes;
+
+  private long borrowCount;
+  private long hitCount;
+  private long releaseCount;
+  private long discardCount;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a pool that retains at most the given number of bytes;
+   * a pool with a limit of 0 never retains anything.
+   */
+  public BufferPool(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  // -- Static BufferPool API methods --
+
+  /** Gets the pool used by default in this package. */
+  public static BufferPool getDefault() {
+    return defaultPool;
+  }
+
+  /** Sets the pool used by default in this package. */
+  public static void setDefault(BufferPool pool) {
+    if (pool == null) {
+      throw new IllegalArgumentException("Pool cannot be null");
+    }
+    defaultPool = pool;
+  }
+
+  // -- BufferPool API methods --
+
+  /**
+   * Borrows an array of exactly the given length.  The contents of the
+   * array are undefined.
+   */
+  public byte[] borrow(int size) {
+    if (size >= MIN_POOLED_SIZE) {
+      byte[] buf = null;
+      synchronized (this) {
+        borrowCount++;
+        ArrayDeque<byte[]> arrays = classes.get(size);
+        if (arrays != null && !arrays.isEmpty()) {
+          hitCount++;
+          retainedBytes -= size;
+          buf = arrays.pop();
+        }
+      }
+      if (buf != null) {
+        Metrics.increment(Metrics.POOL_HITS, 1);
+        return buf;
+      }
+    }
+    Metrics.increment(Metrics.POOL_ALLOCATED_BYTES, size);
+    return new byte[size];
+  }
+
+  /**
+   * Returns a borrowed array to the pool.  Releasing null is a no-op.
+   */
+  public void release(byte[] buf) {
+    if (buf == null || buf.length < MIN_POOLED_SIZE) {
+      return;
+    }
+    synchronized (this) {
+      releaseCount++;
+      ArrayDeque<byte[]> arrays = classes.get(buf.length);
+      if (arrays == null) {
+        arrays = new ArrayDeque<byte[]>();
+        classes.put(buf.length, arrays);
+      }
+      if (retainedBytes + buf.length > maxBytes ||
+        arrays.size() >= MAX_PER_CLASS)
+      {
+        discardCount++;
+        return;
+      }
+      arrays.push(buf);
+      retainedBytes += buf.length;
+    }
+  }
+
+  /** Discards all retained arrays. Statistics are not reset. */
+  public synchronized void clear() {
+    classes.clear();
+    retainedBytes = 0;
+  }
+
+  /** Gets the maximum number of bytes that this pool will retain. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Gets the number of bytes currently retained by this pool. */
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /** Gets the number of pooled borrows. */
+  public synchronized long getBorrowCount() {
+    return borrowCount;
+  }
+
+  /** Gets the number of borrows that were satisfied by a retained array. */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /** Gets the number of borrows that had to allocate a new array. */
+  public synchronized long getMissCount() {
+    return borrowCount - hitCount;
+  }
+
+  /** Gets the number of pooled releases. */
+  public synchronized long getReleaseCount() {
+    return releaseCount;
+  }
+
+  /** Gets the number of releases that were discarded, as the pool was full. */
+  public synchronized long getDiscardCount() {
+    return discardCount;
+  }
+
+  /**
+   * Gets the fraction of borrows that were satisfied by a retained array,
+   * or 0 if nothing has been borrowed.
+   */
+  public synchronized double getHitRate() {
+    return borrowCount == 0 ? 0 : (double) hitCount / borrowCount;
+  }
+
+  /** Resets all statistics. */
+  public synchronized void resetStatistics() {
+    borrowCount = 0;
+    hitCount = 0;
+    releaseCount = 0;
+    discardCount = 0;
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public synchronized String toString() {
+    return "BufferPool[retained=" + retainedBytes + "/" + maxBytes +
+      ", borrows=" + borrowCount + ", hits=" + hitCount + ", releases=" +
+      releaseCount + ", discards=" + discardCount + "]";
+  }
+
+}
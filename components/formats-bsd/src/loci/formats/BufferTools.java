@@ -0,0 +1,206 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A utility class for reading and writing pixels through
+ * {@link java.nio.ByteBuffer}s, including direct (off-heap) buffers, with
+ * any {@link IFormatReader} or {@link IFormatWriter}.
+ *
+ * Pixels are read into and written from the buffer's remaining bytes,
+ * starting at its current position; the position is advanced past the
+ * bytes that were transferred.  Readers, writers and codecs work on byte
+ * arrays, so this is not a zero-copy path: if the buffer is backed by an
+ * array of exactly the right size, that array is used in place, and
+ * otherwise the pixels are copied through an array borrowed from
+ * {@link BufferPool#getDefault()}.  Regions of different sizes therefore
+ * do not cause the intermediate array to be reallocated.  The pooled array
+ * is released even if the reader or writer throws an exception.
+ *
+ * Uncompressed TIFF data can be read into a direct buffer without the
+ * intermediate copy through
+ * {@link loci.formats.tiff.TiffParser#getSamples(loci.formats.tiff.IFD,
+ * ByteBuffer, int, int, long, long)}, given a file channel.
+ */
+public final class BufferTools {
+
+  // -- Constructor --
+
+  private BufferTools() { }
+
+  // -- Reading --
+
+  /**
+   * Reads the given plane into the given buffer.
+   *
+   * @see IFormatReader#openBytes(int, byte[])
+   */
+  public static ByteBuffer openBytes(IFormatReader reader, int no,
+    ByteBuffer buf) throws FormatException, IOException
+  {
+    return openBytes(reader, no, buf, 0, 0,
+      reader.getSizeX(), reader.getSizeY());
+  }
+
+  /**
+   * Reads the given region of the given plane into the given buffer.
+   *
+   * @see IFormatReader#openBytes(int, byte[], int, int, int, int)
+   */
+  public static ByteBuffer openBytes(IFormatReader reader, int no,
+    ByteBuffer buf, int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    int size = (int) FormatTools.getPlaneSize(reader, w, h);
+    byte[] bytes = getArray(buf, size);
+    boolean read = false;
+    try {
+      reader.openBytes(no, bytes, x, y, w, h);
+      read = true;
+    }
+    finally {
+      if (!read) {
+        release(buf, bytes);
+      }
+    }
+    return put(buf, bytes, size);
+  }
+
+  // -- Writing --
+
+  /**
+   * Writes the remaining bytes of the given buffer as the given region of
+   * the given plane.
+   *
+   * @see IFormatWriter#saveBytes(int, byte[], int, int, int, int)
+   */
+  public static void saveBytes(IFormatWriter writer, int no, ByteBuffer buf,
+    int x, int y, int w, int h) throws FormatException, IOException
+  {
+    byte[] bytes = get(buf);
+    try {
+      writer.saveBytes(no, bytes, x, y, w, h);
+    }
+    finally {
+      release(buf, bytes);
+    }
+  }
+
+  // -- Array access --
+
+  /**
+   * Gets an array of exactly the given size into which the buffer's
+   * contents can be read.  This is the buffer's backing array if it can be
+   * used in place, or a pooled array otherwise; in either case
+   * {@link #put(ByteBuffer, byte[], int)} must then be called with the
+   * returned array, or {@link #release(ByteBuffer, byte[])} if the array
+   * could not be filled.
+   *
+   * @throws FormatException if the buffer has fewer than size bytes remaining
+   */
+  public static byte[] getArray(ByteBuffer buf, int size)
+    throws FormatException
+  {
+    if (buf.remaining() < size) {
+      throw new FormatException("Buffer too small (got " + buf.remaining() +
+        ", expected " + size + ")");
+    }
+    if (isBacked(buf, size)) {
+      return buf.array();
+    }
+    return BufferPool.getDefault().borrow(size);
+  }
+
+  /**
+   * Copies size bytes from the given array, which must have been obtained
+   * from {@link #getArray(ByteBuffer, int)}, into the buffer and advances
+   * the buffer's position.  A pooled array is released and must not be
+   * used afterwards.
+   */
+  public static ByteBuffer put(ByteBuffer buf, byte[] bytes, int size) {
+    if (isBacked(buf, size) && bytes == buf.array()) {
+      buf.position(buf.position() + size);
+    }
+    else {
+      buf.put(bytes, 0, size);
+      BufferPool.getDefault().release(bytes);
+    }
+    return buf;
+  }
+
+  /**
+   * Gets an array containing the buffer's remaining bytes and advances the
+   * buffer's position.  This is the buffer's backing array if it can be
+   * used in place, or a pooled array otherwise; the array must be passed to
+   * {@link #release(ByteBuffer, byte[])} once it is no longer needed.
+   */
+  public static byte[] get(ByteBuffer buf) {
+    int size = buf.remaining();
+    byte[] bytes;
+    if (isBacked(buf, size)) {
+      bytes = buf.array();
+      buf.position(buf.position() + size);
+    }
+    else {
+      bytes = BufferPool.getDefault().borrow(size);
+      buf.get(bytes, 0, size);
+    }
+    return bytes;
+  }
+
+  /**
+   * Releases an array obtained from {@link #get(ByteBuffer)} or
+   * {@link #getArray(ByteBuffer, int)} for the given buffer.  The buffer's
+   * own backing array is not released.
+   */
+  public static void release(ByteBuffer buf, byte[] bytes) {
+    if (!buf.hasArray() || bytes != buf.array()) {
+      BufferPool.getDefault().release(bytes);
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Returns true if the buffer's backing array holds exactly the given
+   * number of bytes starting at the buffer's position.
+   */
+  private static boolean isBacked(ByteBuffer buf, int size) {
+    return buf.hasArray() && buf.arrayOffset() + buf.position() == 0 &&
+      buf.array().length == size;
+  }
+
+}
@@ -33,6 +33,7 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import loci.common.DataTools;
 import loci.formats.meta.MetadataStore;
@@ -54,6 +55,11 @@ public class ChannelFiller extends ReaderWrapper {
     return new ChannelFiller(r);
   }
 
+  // -- Constants --
+
+  private static final String PROCESS_TIME =
+    Metrics.processTime(ChannelFiller.class);
+
   // -- Fields --
 
   /**
@@ -161,50 +167,29 @@ public class ChannelFiller extends ReaderWrapper {
     // uint16 but we are filling with an 8-bit color table, the pixel type
     // should change to uint8.
 
-    // TODO: This logic below is opaque and could use some comments.
-
-    byte[] pix = reader.openBytes(no, x, y, w, h);
-    if (getPixelType() == FormatTools.UINT8) {
-      byte[][] b = ImageTools.indexedToRGB(reader.get8BitLookupTable(), pix);
-      if (isInterleaved()) {
-        int pt = 0;
-        for (int i=0; i<b[0].length; i++) {
-          for (int j=0; j<b.length; j++) {
-            buf[pt++] = b[j][i];
-          }
-        }
+    // the indices are read into a pooled scratch buffer and expanded
+    // straight into the output buffer in a single pass; the buffer is
+    // cleared first, as readers do not always fill it
+    int bpp = FormatTools.getBytesPerPixel(getPixelType());
+    int pixels = w * h;
+    BufferPool pool = BufferPool.getDefault();
+    byte[] indices = pool.borrow(pixels * bpp);
+    try {
+      Arrays.fill(indices, (byte) 0);
+      reader.openBytes(no, indices, x, y, w, h);
+      long start = Metrics.startTimer();
+      if (getPixelType() == FormatTools.UINT8) {
+        expand(reader.get8BitLookupTable(), indices, pixels, buf,
+          isInterleaved());
       }
       else {
-        for (int i=0; i<b.length; i++) {
-          System.arraycopy(b[i], 0, buf, i*b[i].length, b[i].length);
-        }
+        expand(reader.get16BitLookupTable(), indices, pixels, buf,
+          isInterleaved(), isLittleEndian());
       }
-      return buf;
+      Metrics.stopTimer(PROCESS_TIME, start);
     }
-    short[][] s = ImageTools.indexedToRGB(reader.get16BitLookupTable(),
-      pix, isLittleEndian());
-
-    if (isInterleaved()) {
-      int pt = 0;
-      for (int i=0; i<s[0].length; i++) {
-        for (int j=0; j<s.length; j++) {
-          buf[pt++] = (byte) (isLittleEndian() ?
-            (s[j][i] & 0xff) : (s[j][i] >> 8));
-          buf[pt++] = (byte) (isLittleEndian() ?
-            (s[j][i] >> 8) : (s[j][i] & 0xff));
-        }
-      }
-    }
-    else {
-      int pt = 0;
-      for (int i=0; i<s.length; i++) {
-        for (int j=0; j<s[i].length; j++) {
-          buf[pt++] = (byte) (isLittleEndian() ?
-            (s[i][j] & 0xff) : (s[i][j] >> 8));
-          buf[pt++] = (byte) (isLittleEndian() ?
-            (s[i][j] >> 8) : (s[i][j] & 0xff));
-        }
-      }
+    finally {
+      pool.release(indices);
     }
     return buf;
   }
@@ -229,6 +214,83 @@ public class ChannelFiller extends ReaderWrapper {
 
   // -- Helper methods --
 
+  /**
+   * Replaces each 8-bit index with the corresponding entry from each
+   * component of the lookup table.
+   */
+  private static void expand(byte[][] lut, byte[] indices, int pixels,
+    byte[] buf, boolean interleaved)
+  {
+    int c = lut.length;
+    if (interleaved) {
+      if (c == 3) {
+        byte[] r = lut[0], g = lut[1], b = lut[2];
+        for (int i=0, pt=0; i<pixels; i++) {
+          int index = indices[i] & 0xff;
+          buf[pt++] = r[index];
+          buf[pt++] = g[index];
+          buf[pt++] = b[index];
+        }
+      }
+      else {
+        for (int i=0, pt=0; i<pixels; i++) {
+          int index = indices[i] & 0xff;
+          for (int j=0; j<c; j++) {
+            buf[pt++] = lut[j][index];
+          }
+        }
+      }
+    }
+    else {
+      for (int j=0; j<c; j++) {
+        byte[] component = lut[j];
+        int pt = j * pixels;
+        for (int i=0; i<pixels; i++) {
+          buf[pt++] = component[indices[i] & 0xff];
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces each 16-bit index with the corresponding entry from each
+   * component of the lookup table.  Indices and output values have the
+   * same byte order.
+   */
+  private static void expand(short[][] lut, byte[] indices, int pixels,
+    byte[] buf, boolean interleaved, boolean little)
+  {
+    int c = lut.length;
+    // byte order is resolved once into shift amounts, so that the inner
+    // loops do not branch on endianness
+    int first = little ? 0 : 8;
+    int second = little ? 8 : 0;
+    if (interleaved) {
+      for (int i=0, pt=0; i<pixels; i++) {
+        int index = ((indices[2 * i] & 0xff) << first) |
+          ((indices[2 * i + 1] & 0xff) << second);
+        for (int j=0; j<c; j++) {
+          short value = lut[j][index];
+          buf[pt++] = (byte) (value >> first);
+          buf[pt++] = (byte) (value >> second);
+        }
+      }
+    }
+    else {
+      for (int j=0; j<c; j++) {
+        short[] component = lut[j];
+        int pt = 2 * j * pixels;
+        for (int i=0; i<pixels; i++) {
+          int index = ((indices[2 * i] & 0xff) << first) |
+            ((indices[2 * i + 1] & 0xff) << second);
+          short value = component[index];
+          buf[pt++] = (byte) (value >> first);
+          buf[pt++] = (byte) (value >> second);
+        }
+      }
+    }
+  }
+
   /** Gets the number of color components in the lookup table. */
   private int getLookupTableComponentCount()
     throws FormatException, IOException
@@ -33,6 +33,7 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import loci.common.DataTools;
 import loci.formats.meta.MetadataRetrieve;
@@ -51,10 +52,30 @@ public class ChannelSeparator extends ReaderWrapper {
     return new ChannelSeparator(r);
   }
 
+  // -- Constants --
+
+  /** Default memory budget for a single source plane, in bytes. */
+  public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+  private static final String PROCESS_TIME =
+    Metrics.processTime(ChannelSeparator.class);
+
   // -- Fields --
 
-  /** Last image opened. */
-  private byte[] lastImage;
+  /** Maximum number of bytes of source pixels to read at once. */
+  private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+  /** Whether all channels of a source plane are split at once. */
+  private boolean splitCache;
+
+  /** Last image opened; not shared with reader clones. */
+  private transient byte[] lastImage;
+
+  /**
+   * Channels of the last image opened, if split all at once; in that case
+   * lastImage is null.
+   */
+  private transient byte[][] channelCache;
 
   /** Index of last image opened. */
   private int lastImageIndex = -1;
@@ -84,6 +105,51 @@ public class ChannelSeparator extends ReaderWrapper {
 
   // -- ChannelSeparator API methods --
 
+  /**
+   * Sets the maximum number of bytes of source pixels to read at once.
+   * Regions of the source plane larger than this are read and separated in
+   * strips of rows, and are not cached.  The default is
+   * {@link #DEFAULT_MEMORY_BUDGET}.
+   * @param bytes See above.
+   */
+  public void setMemoryBudget(long bytes) {
+    if (bytes < 1) {
+      throw new IllegalArgumentException("Invalid memory budget: " + bytes);
+    }
+    memoryBudget = bytes;
+  }
+
+  /**
+   * Retrieves the maximum number of bytes of source pixels to read at once.
+   * @return See above.
+   */
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets whether all channels of a source plane are separated in a single
+   * pass and cached, so that reading every channel of an interleaved RGB
+   * plane costs one read and one pass instead of one pass per channel.
+   * The cache holds one region of one source plane, so it uses about as
+   * much memory as the source plane itself.  Disabled by default.
+   * @param split See above.
+   */
+  public void setSplitCache(boolean split) {
+    if (split != splitCache) {
+      clearCache();
+    }
+    splitCache = split;
+  }
+
+  /**
+   * Retrieves whether all channels of a source plane are separated at once.
+   * @return See above.
+   */
+  public boolean isSplitCache() {
+    return splitCache;
+  }
+
   /**
    * Returns the image number in the original dataset that corresponds to the
    * given image number.  For instance, if the original dataset was a single
@@ -174,53 +240,79 @@ public class ChannelSeparator extends ReaderWrapper {
       int series = getCoreIndex();
       int bpp = FormatTools.getBytesPerPixel(getPixelType());
 
-      if (source != lastImageIndex || series != lastImageSeries ||
+      boolean interleaved = isInterleaved();
+      int channelLength = w * h * bpp;
+
+      // regions larger than the budget are read in strips of rows
+      long rowSize = DataTools.safeMultiply64(w, bpp, c);
+      long budget = Math.min(memoryBudget, Integer.MAX_VALUE);
+      if (rowSize * h > budget) {
+        int stripHeight = (int) Math.max(1, Math.min(h, budget / rowSize));
+        clearCache();
+        for (int row=0; row<h; row+=stripHeight) {
+          int height = Math.min(stripHeight, h - row);
+          byte[] strip = readSource(source, x, y + row, w, height,
+            (int) (rowSize * height));
+          long start = Metrics.startTimer();
+          extractChannel(strip, channel, c, bpp, interleaved, w * height * bpp,
+            buf, row * w * bpp);
+          Metrics.stopTimer(PROCESS_TIME, start);
+        }
+        // strips are not cached
+        clearCache();
+        return buf;
+      }
+
+      if ((lastImage == null && channelCache == null) ||
+        source != lastImageIndex || series != lastImageSeries ||
         x != lastImageX || y != lastImageY || w != lastImageWidth ||
         h != lastImageHeight)
       {
-        int strips = 1;
-
-        // check how big the original image is; if it's larger than the
-        // available memory, we will need to split it into strips
-
-        Runtime rt = Runtime.getRuntime();
-        long availableMemory = rt.freeMemory();
-        long planeSize = DataTools.safeMultiply64(w, h, bpp, c);
-
-        if (availableMemory < planeSize || planeSize > Integer.MAX_VALUE) {
-          strips = (int) Math.sqrt(h);
-        }
-
-        int stripHeight = h / strips;
-        int lastStripHeight = stripHeight + (h - (stripHeight * strips));
-        byte[] strip = strips == 1 ? buf : new byte[stripHeight * w * bpp];
-        for (int i=0; i<strips; i++) {
-          lastImage = reader.openBytes(source, x, y + i * stripHeight, w,
-            i == strips - 1 ? lastStripHeight : stripHeight);
-          lastImageIndex = source;
-          lastImageSeries = series;
-          lastImageX = x;
-          lastImageY = y + i * stripHeight;
-          lastImageWidth = w;
-          lastImageHeight = i == strips - 1 ? lastStripHeight : stripHeight;
-
-          if (strips != 1 && lastStripHeight != stripHeight && i == strips - 1)
+        byte[] image = readSource(source, x, y, w, h, (int) (rowSize * h));
+        lastImageIndex = source;
+        lastImageSeries = series;
+        lastImageX = x;
+        lastImageY = y;
+        lastImageWidth = w;
+        lastImageHeight = h;
+
+        if (splitCache && interleaved) {
+          // separate every channel now, so that reading the others is a copy
+          BufferPool pool = BufferPool.getDefault();
+          if (channelCache == null || channelCache.length != c ||
+            channelCache[0].length != channelLength)
           {
-            strip = new byte[lastStripHeight * w * bpp];
-          }
-
-          ImageTools.splitChannels(lastImage, strip, channel, c, bpp,
-            false, isInterleaved(), strips == 1 ? w * h * bpp : strip.length);
-          if (strips != 1) {
-            System.arraycopy(strip, 0, buf, i * stripHeight * w * bpp,
-              strip.length);
+            releaseChannelCache();
+            channelCache = new byte[c][];
+            for (int i=0; i<c; i++) {
+              channelCache[i] = pool.borrow(channelLength);
+            }
           }
+          long start = Metrics.startTimer();
+          ImageTools.splitChannels(image, channelCache, c, bpp, true,
+            channelLength);
+          Metrics.stopTimer(PROCESS_TIME, start);
+          pool.release(lastImage);
+          lastImage = null;
+        }
+        else {
+          releaseChannelCache();
         }
       }
       else {
-        ImageTools.splitChannels(lastImage, buf, channel, c, bpp,
-          false, isInterleaved(), w * h * bpp);
+        Metrics.increment(Metrics.SEPARATOR_CACHE_HITS, 1);
+      }
+
+      long start = Metrics.startTimer();
+      if (channelCache != null) {
+        System.arraycopy(channelCache[channel], 0, buf, 0, channelLength);
+      }
+      else {
+        // planar channels are copied straight out of the source plane
+        extractChannel(lastImage, channel, c, bpp, interleaved, channelLength,
+          buf, 0);
       }
+      Metrics.stopTimer(PROCESS_TIME, start);
 
       return buf;
     }
@@ -247,13 +339,7 @@ public class ChannelSeparator extends ReaderWrapper {
   public void close(boolean fileOnly) throws IOException {
     super.close(fileOnly);
     if (!fileOnly) {
-      lastImage = null;
-      lastImageIndex = -1;
-      lastImageSeries = -1;
-      lastImageX = -1;
-      lastImageY = -1;
-      lastImageWidth = -1;
-      lastImageHeight = -1;
+      clearCache();
     }
   }
 
@@ -291,13 +377,7 @@ public class ChannelSeparator extends ReaderWrapper {
     super.setId(id);
 
     // clear last image cache
-    lastImage = null;
-    lastImageIndex = -1;
-    lastImageSeries = -1;
-    lastImageX = -1;
-    lastImageY = -1;
-    lastImageWidth = -1;
-    lastImageHeight = -1;
+    clearCache();
 
     MetadataStore store = getMetadataStore();
     boolean pixelsPopulated = false;
@@ -330,4 +410,74 @@ public class ChannelSeparator extends ReaderWrapper {
     }
   }
 
+  // -- Helper methods --
+
+  /**
+   * Reads the given region of the given source plane into lastImage,
+   * which is reallocated if it is not the right size.  The cached region
+   * is invalid until the caller updates it.  lastImage is cleared first, as
+   * pooled arrays hold stale data and readers do not always fill the
+   * whole buffer.
+   */
+  private byte[] readSource(int source, int x, int y, int w, int h,
+    int imageSize)
+    throws FormatException, IOException
+  {
+    BufferPool pool = BufferPool.getDefault();
+    if (lastImage == null || lastImage.length != imageSize) {
+      pool.release(lastImage);
+      lastImage = pool.borrow(imageSize);
+    }
+    // the cached image is overwritten in place
+    lastImageIndex = -1;
+    Arrays.fill(lastImage, (byte) 0);
+    reader.openBytes(source, lastImage, x, y, w, h);
+    return lastImage;
+  }
+
+  /**
+   * Copies the given channel of a multi-channel image into the given
+   * buffer, starting at the given offset.
+   */
+  private static void extractChannel(byte[] image, int channel, int c,
+    int bpp, boolean interleaved, int channelLength, byte[] buf, int offset)
+  {
+    if (!interleaved) {
+      System.arraycopy(image, channelLength * channel, buf, offset,
+        channelLength);
+      return;
+    }
+    int pt = channel * bpp;
+    int step = (c - 1) * bpp;
+    for (int i=0; i<channelLength; i+=bpp) {
+      for (int b=0; b<bpp; b++) {
+        buf[offset + i + b] = image[pt++];
+      }
+      pt += step;
+    }
+  }
+
+  /** Releases any cached pixels. */
+  private void clearCache() {
+    BufferPool.getDefault().release(lastImage);
+    lastImage = null;
+    releaseChannelCache();
+    lastImageIndex = -1;
+    lastImageSeries = -1;
+    lastImageX = -1;
+    lastImageY = -1;
+    lastImageWidth = -1;
+    lastImageHeight = -1;
+  }
+
+  private void releaseChannelCache() {
+    if (channelCache != null) {
+      BufferPool pool = BufferPool.getDefault();
+      for (byte[] channel : channelCache) {
+        pool.release(channel);
+      }
+      channelCache = null;
+    }
+  }
+
 }
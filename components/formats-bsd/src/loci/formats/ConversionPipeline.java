@@ -0,0 +1,536 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import loci.common.RandomAccessOutputStream;
+import loci.formats.codec.CodecOptions;
+import loci.formats.tiff.IFD;
+import loci.formats.tiff.PhotoInterp;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffRational;
+import loci.formats.tiff.TiffSaver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts every plane of a dataset to a single TIFF file, overlapping
+ * reading, compression and writing.
+ *
+ * Tiles are read by one thread per supplied reader, compressed by a pool of
+ * compression threads, and written in order by the thread that calls
+ * {@link #convert(String)}.  Each reader thread hands its tiles to the writer
+ * through a bounded queue, so the number of tiles held in memory is limited
+ * by {@link #getQueueDepth()} regardless of the size of the dataset.
+ *
+ * Planes are written in series order, with one IFD per plane.  To create an
+ * OME-TIFF file, pass OME-XML whose TiffData elements follow that order to
+ * {@link #setImageDescription(String)}.
+ */
+public class ConversionPipeline {
+
+  // -- Constants --
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(ConversionPipeline.class);
+
+  /**
+   * Number of bytes at which to automatically switch to BigTIFF, allowing
+   * space for the IFDs.
+   */
+  private static final long BIG_TIFF_CUTOFF = (long) 1024 * 1024 * 3990;
+
+  /** Target size in bytes of each strip, if the output is not tiled. */
+  private static final int STRIP_SIZE = 64 * 1024;
+
+  // -- Fields --
+
+  /** Readers from which tiles are read; one thread is used per reader. */
+  private final IFormatReader[] readers;
+
+  private TiffCompression compression = TiffCompression.UNCOMPRESSED;
+  private int tileWidth, tileHeight;
+  private Boolean bigTiff;
+  private int compressionThreads = Runtime.getRuntime().availableProcessors();
+  private int queueDepth;
+  private String description;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a pipeline that reads from the given readers, which must all
+   * be initialized with the same dataset.  Readers are not thread-safe, so
+   * each reader is used by exactly one reading thread.
+   */
+  public ConversionPipeline(IFormatReader... readers) {
+    if (readers == null || readers.length == 0) {
+      throw new IllegalArgumentException("At least one reader is required");
+    }
+    for (IFormatReader reader : readers) {
+      if (reader == null || reader.getCurrentFile() == null) {
+        throw new IllegalArgumentException("Readers must be initialized");
+      }
+    }
+    this.readers = readers.clone();
+  }
+
+  // -- ConversionPipeline API methods --
+
+  /** Sets the compression applied to each tile or strip. */
+  public void setCompression(TiffCompression compression) {
+    this.compression = compression;
+  }
+
+  /** Gets the compression applied to each tile or strip. */
+  public TiffCompression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Sets the size of the tiles to write.  If either dimension is 0, the
+   * planes are written as full-width strips instead.  Tile dimensions must
+   * be multiples of 16.
+   */
+  public void setTileSize(int width, int height) {
+    if (width < 0 || height < 0 || width % 16 != 0 || height % 16 != 0) {
+      throw new IllegalArgumentException(
+        "Tile dimensions must be non-negative multiples of 16");
+    }
+    tileWidth = width;
+    tileHeight = height;
+  }
+
+  /**
+   * Sets whether or not to write BigTIFF.  By default, BigTIFF is written
+   * only if the uncompressed pixel data would not fit in a standard TIFF.
+   */
+  public void setBigTiff(boolean bigTiff) {
+    this.bigTiff = bigTiff;
+  }
+
+  /** Sets the number of threads used to compress tiles. */
+  public void setCompressionThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    compressionThreads = threads;
+  }
+
+  /** Gets the number of threads used to compress tiles. */
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  /**
+   * Sets the maximum number of tiles that may be read but not yet written.
+   * The default is four tiles per compression thread.
+   */
+  public void setQueueDepth(int depth) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Queue depth must be positive");
+    }
+    queueDepth = depth;
+  }
+
+  /**
+   * Gets the maximum number of tiles that may be read but not yet written.
+   */
+  public int getQueueDepth() {
+    return queueDepth > 0 ? queueDepth : 4 * compressionThreads;
+  }
+
+  /** Sets the ImageDescription of the first IFD, e.g. to OME-XML. */
+  public void setImageDescription(String description) {
+    this.description = description;
+  }
+
+  /**
+   * Writes all planes of all series to the given TIFF file, replacing any
+   * existing file.
+   */
+  public void convert(String id) throws FormatException, IOException {
+    IFormatReader first = readers[0];
+    int seriesCount = first.getSeriesCount();
+    Layout[] layouts = new Layout[seriesCount];
+    long[] firstTile = new long[seriesCount + 1];
+    long pixelBytes = 0;
+    first.setSeries(0);
+    boolean littleEndian = first.isLittleEndian();
+    for (int s=0; s<seriesCount; s++) {
+      first.setSeries(s);
+      layouts[s] = new Layout(first, littleEndian);
+      firstTile[s + 1] = firstTile[s] +
+        (long) layouts[s].planeCount * layouts[s].tilesPerPlane;
+      pixelBytes += (long) layouts[s].planeCount * layouts[s].planeSize;
+    }
+    long totalTiles = firstTile[seriesCount];
+    if (totalTiles == 0) {
+      throw new FormatException("No planes to convert");
+    }
+
+    new File(id).delete();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(id);
+    TiffSaver saver = new TiffSaver(out, id);
+    saver.setLittleEndian(littleEndian);
+    saver.setBigTiff(bigTiff != null ? bigTiff : pixelBytes > BIG_TIFF_CUTOFF);
+    saver.writeHeader();
+
+    ExecutorService compressPool =
+      Executors.newFixedThreadPool(compressionThreads);
+    ExecutorService readerPool = Executors.newFixedThreadPool(readers.length);
+    int capacity = Math.max(1, getQueueDepth() / readers.length);
+    @SuppressWarnings("unchecked")
+    BlockingQueue<Future<byte[]>>[] queues = new BlockingQueue[readers.length];
+    for (int r=0; r<readers.length; r++) {
+      queues[r] = new ArrayBlockingQueue<Future<byte[]>>(capacity);
+      readerPool.submit(new TileReader(readers[r], r, readers.length,
+        layouts, firstTile, queues[r], compressPool));
+    }
+
+    try {
+      PlaneWriter writer = null;
+      int series = 0;
+      for (long tile=0; tile<totalTiles; tile++) {
+        while (tile >= firstTile[series + 1]) series++;
+        Layout layout = layouts[series];
+        long index = tile - firstTile[series];
+        int tileIndex = (int) (index % layout.tilesPerPlane);
+
+        byte[] data = queues[(int) (tile % readers.length)].take().get();
+
+        if (tileIndex == 0) {
+          boolean firstIFD = tile == 0;
+          writer = new PlaneWriter(saver, layout.createIFD(
+            firstIFD && description != null ? description : ""),
+            layout.tilesPerPlane);
+        }
+        writer.writeTile(tileIndex, data);
+        if (tileIndex == layout.tilesPerPlane - 1) {
+          writer.finish(tile == totalTiles - 1);
+          LOGGER.debug("Wrote plane {} of series {}",
+            index / layout.tilesPerPlane, series);
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted during conversion", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof FormatException) throw (FormatException) cause;
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new FormatException("Conversion failed", cause);
+    }
+    finally {
+      readerPool.shutdownNow();
+      compressPool.shutdownNow();
+      saver.close();
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Describes how the planes of one series are split into tiles. */
+  private class Layout {
+    final int series;
+    final int sizeX, sizeY, planeCount;
+    final int pixelType, bytesPerPixel, channels;
+    final boolean interleaved, swap;
+    final int tileWidth, tileHeight, tilesPerRow, tilesPerPlane;
+    final long planeSize;
+    final boolean tiled;
+
+    /** IFD used to compress the tiles of this series; never modified. */
+    final IFD template;
+
+    Layout(IFormatReader reader, boolean littleEndian) {
+      series = reader.getSeries();
+      sizeX = reader.getSizeX();
+      sizeY = reader.getSizeY();
+      planeCount = reader.getImageCount();
+      pixelType = reader.getPixelType();
+      bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+      channels = reader.getRGBChannelCount();
+      interleaved = reader.isInterleaved();
+      swap = bytesPerPixel > 1 && reader.isLittleEndian() != littleEndian;
+      planeSize = (long) sizeX * sizeY * bytesPerPixel * channels;
+
+      tiled = ConversionPipeline.this.tileWidth > 0 &&
+        ConversionPipeline.this.tileHeight > 0;
+      if (tiled) {
+        tileWidth = ConversionPipeline.this.tileWidth;
+        tileHeight = ConversionPipeline.this.tileHeight;
+      }
+      else {
+        tileWidth = sizeX;
+        tileHeight = Math.max(1, Math.min(sizeY,
+          STRIP_SIZE / (sizeX * bytesPerPixel * channels)));
+      }
+      tilesPerRow = (sizeX + tileWidth - 1) / tileWidth;
+      tilesPerPlane = tilesPerRow * ((sizeY + tileHeight - 1) / tileHeight);
+
+      template = new IFD();
+      template.put(IFD.LITTLE_ENDIAN, littleEndian);
+      template.putIFDValue(IFD.IMAGE_WIDTH, (long) sizeX);
+      template.putIFDValue(IFD.IMAGE_LENGTH, (long) sizeY);
+      if (tiled) {
+        template.putIFDValue(IFD.TILE_WIDTH, (long) tileWidth);
+        template.putIFDValue(IFD.TILE_LENGTH, (long) tileHeight);
+      }
+      else {
+        template.putIFDValue(IFD.ROWS_PER_STRIP, new long[] {tileHeight});
+      }
+      int[] bps = new int[channels];
+      Arrays.fill(bps, 8 * bytesPerPixel);
+      template.putIFDValue(IFD.BITS_PER_SAMPLE, bps);
+      int sampleFormat = 1;
+      if (FormatTools.isSigned(pixelType)) sampleFormat = 2;
+      if (FormatTools.isFloatingPoint(pixelType)) sampleFormat = 3;
+      template.putIFDValue(IFD.SAMPLE_FORMAT, sampleFormat);
+      template.putIFDValue(IFD.SAMPLES_PER_PIXEL, channels);
+      template.putIFDValue(IFD.PLANAR_CONFIGURATION, 1);
+      template.putIFDValue(IFD.PHOTOMETRIC_INTERPRETATION, channels == 1 ?
+        PhotoInterp.BLACK_IS_ZERO.getCode() : PhotoInterp.RGB.getCode());
+      template.putIFDValue(IFD.COMPRESSION, compression.getCode());
+      template.putIFDValue(IFD.X_RESOLUTION, new TiffRational(1, 1));
+      template.putIFDValue(IFD.Y_RESOLUTION, new TiffRational(1, 1));
+      template.putIFDValue(IFD.SOFTWARE, FormatTools.CREATOR);
+    }
+
+    /** Creates the IFD of a plane, with empty offsets and byte counts. */
+    IFD createIFD(String imageDescription) {
+      IFD ifd = new IFD(template);
+      ifd.putIFDValue(IFD.IMAGE_DESCRIPTION, imageDescription);
+      ifd.putIFDValue(tiled ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS,
+        new long[tilesPerPlane]);
+      ifd.putIFDValue(tiled ? IFD.TILE_BYTE_COUNTS : IFD.STRIP_BYTE_COUNTS,
+        new long[tilesPerPlane]);
+      return ifd;
+    }
+
+    /**
+     * Reads one tile as chunky pixels in the output byte order, padded to
+     * the full tile size unless the output is stripped.
+     */
+    byte[] readTile(IFormatReader reader, int plane, int tile)
+      throws FormatException, IOException
+    {
+      int x = (tile % tilesPerRow) * tileWidth;
+      int y = (tile / tilesPerRow) * tileHeight;
+      int w = Math.min(tileWidth, sizeX - x);
+      int h = Math.min(tileHeight, sizeY - y);
+      byte[] buf = reader.openBytes(plane, x, y, w, h);
+
+      int pixel = bytesPerPixel * channels;
+      int outWidth = tiled ? tileWidth : w;
+      int outHeight = tiled ? tileHeight : h;
+      byte[] tileData = buf;
+      if (channels > 1 && !interleaved) {
+        tileData = new byte[outWidth * outHeight * pixel];
+        int planeBytes = w * h * bytesPerPixel;
+        for (int row=0; row<h; row++) {
+          for (int c=0; c<channels; c++) {
+            int src = c * planeBytes + row * w * bytesPerPixel;
+            int dest = row * outWidth * pixel + c * bytesPerPixel;
+            for (int col=0; col<w; col++) {
+              System.arraycopy(buf, src, tileData, dest, bytesPerPixel);
+              src += bytesPerPixel;
+              dest += pixel;
+            }
+          }
+        }
+      }
+      else if (w != outWidth || h != outHeight) {
+        tileData = new byte[outWidth * outHeight * pixel];
+        for (int row=0; row<h; row++) {
+          System.arraycopy(buf, row * w * pixel,
+            tileData, row * outWidth * pixel, w * pixel);
+        }
+      }
+
+      if (swap) {
+        for (int i=0; i<tileData.length; i+=bytesPerPixel) {
+          for (int j=0; j<bytesPerPixel/2; j++) {
+            byte b = tileData[i + j];
+            tileData[i + j] = tileData[i + bytesPerPixel - j - 1];
+            tileData[i + bytesPerPixel - j - 1] = b;
+          }
+        }
+      }
+      return tileData;
+    }
+
+    /** Applies differencing and compression to one tile. */
+    byte[] compressTile(byte[] tile) throws FormatException, IOException {
+      TiffCompression.difference(tile, template);
+      CodecOptions codecOptions =
+        compression.getCompressionCodecOptions(template);
+      codecOptions.width = tiled ? tileWidth : sizeX;
+      codecOptions.height = tile.length / (codecOptions.width *
+        bytesPerPixel * channels);
+      codecOptions.channels = channels;
+      return compression.compress(tile, codecOptions);
+    }
+  }
+
+  /**
+   * Reads every n-th tile with a single reader, where n is the number of
+   * readers, and submits each tile for compression.  The pending results
+   * are queued in tile order.
+   */
+  private static class TileReader implements Runnable {
+    private final IFormatReader reader;
+    private final int first;
+    private final int step;
+    private final Layout[] layouts;
+    private final long[] firstTile;
+    private final BlockingQueue<Future<byte[]>> queue;
+    private final ExecutorService compressPool;
+
+    TileReader(IFormatReader reader, int first, int step, Layout[] layouts,
+      long[] firstTile, BlockingQueue<Future<byte[]>> queue,
+      ExecutorService compressPool)
+    {
+      this.reader = reader;
+      this.first = first;
+      this.step = step;
+      this.layouts = layouts;
+      this.firstTile = firstTile;
+      this.queue = queue;
+      this.compressPool = compressPool;
+    }
+
+    @Override
+    public void run() {
+      try {
+        int series = 0;
+        long total = firstTile[layouts.length];
+        for (long tile=first; tile<total; tile+=step) {
+          while (tile >= firstTile[series + 1]) series++;
+          final Layout layout = layouts[series];
+          long index = tile - firstTile[series];
+          int plane = (int) (index / layout.tilesPerPlane);
+          int tileIndex = (int) (index % layout.tilesPerPlane);
+
+          Future<byte[]> result;
+          try {
+            reader.setSeries(layout.series);
+            final byte[] data = layout.readTile(reader, plane, tileIndex);
+            result = compressPool.submit(new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws FormatException, IOException {
+                return layout.compressTile(data);
+              }
+            });
+          }
+          catch (final Exception e) {
+            // hand the failure to the writer, which stops the conversion
+            FutureTask<byte[]> failed = new FutureTask<byte[]>(
+              new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                  throw e;
+                }
+              });
+            failed.run();
+            queue.put(failed);
+            return;
+          }
+          queue.put(result);
+        }
+      }
+      catch (InterruptedException e) {
+        // the conversion has been stopped
+      }
+    }
+  }
+
+  /** Writes the tiles and IFD of a single plane. */
+  private static class PlaneWriter {
+    private final TiffSaver saver;
+    private final RandomAccessOutputStream out;
+    private final IFD ifd;
+    private final long ifdOffset;
+    private final long[] offsets;
+    private final long[] byteCounts;
+
+    /**
+     * Writes a placeholder IFD at the end of the file; it is rewritten in
+     * place once all tiles have been written, without changing size.
+     */
+    PlaneWriter(TiffSaver saver, IFD ifd, int tileCount)
+      throws FormatException, IOException
+    {
+      this.saver = saver;
+      this.out = saver.getStream();
+      this.ifd = ifd;
+      offsets = new long[tileCount];
+      byteCounts = new long[tileCount];
+      ifdOffset = out.length();
+      out.seek(ifdOffset);
+      saver.writeIFD(ifd, 0);
+    }
+
+    void writeTile(int tile, byte[] data) throws IOException {
+      out.seek(out.length());
+      offsets[tile] = out.getFilePointer();
+      byteCounts[tile] = data.length;
+      out.write(data);
+    }
+
+    void finish(boolean last) throws FormatException, IOException {
+      boolean tiled = ifd.containsKey(IFD.TILE_OFFSETS);
+      ifd.putIFDValue(tiled ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS, offsets);
+      ifd.putIFDValue(tiled ? IFD.TILE_BYTE_COUNTS : IFD.STRIP_BYTE_COUNTS,
+        byteCounts);
+      long end = out.length();
+      out.seek(ifdOffset);
+      saver.writeIFD(ifd, last ? 0 : end);
+      out.seek(end);
+    }
+  }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Interpolates the missing color components of Bayer (color filter array)
+ * data.  Used by
+ * {@link ImageTools#interpolate(short[], byte[], int[], int, int, boolean,
+ * int, ExecutorService)}.
+ *
+ * The interpolation used for each component only depends on the position
+ * of the pixel within the 2x2 Bayer tile, so it is looked up once per row
+ * parity.  Pixels near the edges of the image, which lack some neighbors,
+ * are computed separately from the interior, which uses a fixed kernel per
+ * row and column parity with no bounds checks.  Large images are split into
+ * bands of rows that are processed in parallel.
+ */
+final class Demosaic {
+
+  // -- Constants --
+
+  /**
+   * Minimum number of pixels per band before an image is split into row
+   * bands across the thread pool.
+   */
+  static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+  /** The pixel has the component. */
+  private static final int SELF = 0;
+
+  /** Average of the four horizontal and vertical neighbors. */
+  private static final int CROSS = 1;
+
+  /** Average of the left and right neighbors. */
+  private static final int HORIZONTAL = 2;
+
+  /** Average of the upper and lower neighbors. */
+  private static final int VERTICAL = 3;
+
+  /** Average of the four diagonal neighbors. */
+  private static final int DIAGONAL = 4;
+
+  // -- Fields --
+
+  /** Red, green and blue planes, each holding samples at its own sites. */
+  private final short[] s;
+  private final byte[] buf;
+  private final int width;
+  private final int height;
+  private final int plane;
+  private final int method;
+
+  /** Shifts of the first and second output bytes of each sample. */
+  private final int first;
+  private final int second;
+
+  /** Interpolation of each component, indexed by position in the tile. */
+  private final int[][] modes = new int[4][3];
+
+  /** Mosaic samples, used for gradient-corrected interpolation. */
+  private short[] raw;
+
+  /** Largest possible value of an interpolated sample. */
+  private int maxValue;
+
+  // -- Constructor --
+
+  Demosaic(short[] s, byte[] buf, int[] bayerPattern, int width,
+    int height, boolean littleEndian, int method)
+  {
+    if (method != ImageTools.BILINEAR && method != ImageTools.MALVAR_HE_CUTLER)
+    {
+      throw new IllegalArgumentException(
+        "Invalid interpolation method: " + method);
+    }
+    this.s = s;
+    this.buf = buf;
+    this.width = width;
+    this.height = height;
+    this.plane = width * height;
+    this.method = method;
+    first = littleEndian ? 0 : 8;
+    second = littleEndian ? 8 : 0;
+
+    for (int index=0; index<4; index++) {
+      boolean evenCol = (index % 2) == 0;
+      int neighbor = bayerPattern[evenCol ? index + 1 : index - 1];
+      int color = bayerPattern[index];
+      modes[index][1] = color == 1 ? SELF : CROSS;
+      modes[index][0] = color == 0 ? SELF : color == 2 ? DIAGONAL :
+        neighbor == 0 ? HORIZONTAL : VERTICAL;
+      modes[index][2] = color == 2 ? SELF : color == 0 ? DIAGONAL :
+        neighbor == 2 ? HORIZONTAL : VERTICAL;
+    }
+
+    if (method == ImageTools.MALVAR_HE_CUTLER) {
+      raw = new short[plane];
+      int max = 0;
+      for (int row=0; row<height; row++) {
+        for (int col=0; col<width; col++) {
+          int index = row * width + col;
+          short v = s[bayerPattern[(row % 2) * 2 + (col % 2)] * plane + index];
+          raw[index] = v;
+          max = Math.max(max, v & 0xffff);
+        }
+      }
+      // clamp to the bit depth implied by the data, so that 8-bit data
+      // stored as shorts does not overflow
+      maxValue = max == 0 ? 0 : (Integer.highestOneBit(max) << 1) - 1;
+    }
+  }
+
+  // -- Demosaic API methods --
+
+  /**
+   * Interpolates all pixels, splitting the rows into bands across the given
+   * thread pool if the image is large enough.
+   *
+   * @param threadPool used to process bands of rows in parallel;
+   *   if null, all work is done on the calling thread
+   */
+  void run(ExecutorService threadPool) throws FormatException {
+    int bands = threadPool == null ? 1 :
+      (int) Math.min(height, (long) plane / PARALLEL_THRESHOLD);
+    if (bands <= 1) {
+      interpolate(0, height);
+      return;
+    }
+
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    int bandRows = (height + bands - 1) / bands;
+    for (int row=0; row<height; row+=bandRows) {
+      final int start = row;
+      final int end = Math.min(row + bandRows, height);
+      results.add(threadPool.submit(new Callable<Object>() {
+        @Override
+        public Object call() {
+          interpolate(start, end);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Object> result : results) {
+        result.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while interpolating", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not interpolate", e.getCause());
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Interpolates rows [firstRow, lastRow). */
+  private void interpolate(int firstRow, int lastRow) {
+    // pixels closer to the edge than this lack neighbors for the kernel
+    int margin = method == ImageTools.MALVAR_HE_CUTLER ? 2 : 1;
+    for (int row=firstRow; row<lastRow; row++) {
+      if (row < margin || row >= height - margin || width <= 2 * margin) {
+        for (int col=0; col<width; col++) {
+          interpolateEdge(row, col);
+        }
+        continue;
+      }
+      for (int col=0; col<margin; col++) {
+        interpolateEdge(row, col);
+        interpolateEdge(row, width - 1 - col);
+      }
+      for (int ch=0; ch<3; ch++) {
+        for (int parity=0; parity<2; parity++) {
+          int start = margin + ((margin + parity) % 2);
+          int mode = modes[(row % 2) * 2 + parity][ch];
+          if (method == ImageTools.MALVAR_HE_CUTLER && mode != SELF) {
+            gradientCorrected(row, ch, mode, start, width - margin);
+          }
+          else {
+            bilinear(row, ch, mode, start, width - margin);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Averages the neighbors of every other pixel in [start, end) of the
+   * given row, none of which may be on the edge of the image.
+   */
+  private void bilinear(int row, int ch, int mode, int start, int end) {
+    int in = ch * plane + row * width;
+    int out = row * width * 6 + ch * 2;
+    int up = in - width;
+    int down = in + width;
+    switch (mode) {
+      case SELF:
+        for (int col=start; col<end; col+=2) {
+          put(out + col * 6, s[in + col]);
+        }
+        break;
+      case CROSS:
+        for (int col=start; col<end; col+=2) {
+          int sum = s[up + col] + s[down + col] + s[in + col - 1] +
+            s[in + col + 1];
+          put(out + col * 6, (short) (sum / 4));
+        }
+        break;
+      case HORIZONTAL:
+        for (int col=start; col<end; col+=2) {
+          int sum = s[in + col - 1] + s[in + col + 1];
+          put(out + col * 6, (short) (sum / 2));
+        }
+        break;
+      case VERTICAL:
+        for (int col=start; col<end; col+=2) {
+          int sum = s[up + col] + s[down + col];
+          put(out + col * 6, (short) (sum / 2));
+        }
+        break;
+      case DIAGONAL:
+        for (int col=start; col<end; col+=2) {
+          int sum = s[up + col - 1] + s[up + col + 1] + s[down + col - 1] +
+            s[down + col + 1];
+          put(out + col * 6, (short) (sum / 4));
+        }
+        break;
+    }
+  }
+
+  /**
+   * Applies the Malvar-He-Cutler gradient-corrected linear filter to every
+   * other pixel in [start, end) of the given row, none of which may be
+   * within two pixels of the edge of the image.
+   *
+   * See H. S. Malvar, L. He and R. Cutler, "High-quality linear
+   * interpolation for demosaicing of Bayer-patterned color images",
+   * ICASSP 2004.  The coefficients below are twice those of the paper,
+   * so the sums are divided by 16.
+   */
+  private void gradientCorrected(int row, int ch, int mode, int start,
+    int end)
+  {
+    short[] r = raw;
+    int w = width;
+    int out = row * width * 6 + ch * 2;
+    for (int col=start; col<end; col+=2) {
+      int i = row * w + col;
+      int center = r[i] & 0xffff;
+      int n = r[i - w] & 0xffff, s1 = r[i + w] & 0xffff;
+      int west = r[i - 1] & 0xffff, east = r[i + 1] & 0xffff;
+      int n2 = r[i - 2 * w] & 0xffff, s2 = r[i + 2 * w] & 0xffff;
+      int w2 = r[i - 2] & 0xffff, e2 = r[i + 2] & 0xffff;
+      int diagonals = (r[i - w - 1] & 0xffff) + (r[i - w + 1] & 0xffff) +
+        (r[i + w - 1] & 0xffff) + (r[i + w + 1] & 0xffff);
+
+      int sum;
+      switch (mode) {
+        case CROSS:
+          sum = 8 * center + 4 * (n + s1 + west + east) -
+            2 * (n2 + s2 + w2 + e2);
+          break;
+        case HORIZONTAL:
+          sum = 10 * center + 8 * (west + east) - 2 * (w2 + e2) -
+            2 * diagonals + n2 + s2;
+          break;
+        case VERTICAL:
+          sum = 10 * center + 8 * (n + s1) - 2 * (n2 + s2) -
+            2 * diagonals + w2 + e2;
+          break;
+        default:
+          sum = 12 * center + 4 * diagonals - 3 * (n2 + s2 + w2 + e2);
+          break;
+      }
+      int v = (sum + 8) >> 4;
+      put(out + col * 6, (short) Math.max(0, Math.min(v, maxValue)));
+    }
+  }
+
+  /** Interpolates a single pixel that may be on the edge of the image. */
+  private void interpolateEdge(int row, int col) {
+    int[] mode = modes[(row % 2) * 2 + (col % 2)];
+    int out = (row * width + col) * 6;
+    for (int ch=0; ch<3; ch++) {
+      put(out + ch * 2, average(ch, mode[ch], row, col));
+    }
+  }
+
+  /** Averages whichever of the given pixel's neighbors exist. */
+  private short average(int ch, int mode, int row, int col) {
+    int base = ch * plane;
+    if (mode == SELF) {
+      return s[base + row * width + col];
+    }
+    boolean up = row > 0, down = row < height - 1;
+    boolean left = col > 0, right = col < width - 1;
+    int sum = 0;
+    int ncomps = 0;
+    if (mode == CROSS || mode == VERTICAL) {
+      if (up) {
+        sum += s[base + (row - 1) * width + col];
+        ncomps++;
+      }
+      if (down) {
+        sum += s[base + (row + 1) * width + col];
+        ncomps++;
+      }
+    }
+    if (mode == CROSS || mode == HORIZONTAL) {
+      if (left) {
+        sum += s[base + row * width + col - 1];
+        ncomps++;
+      }
+      if (right) {
+        sum += s[base + row * width + col + 1];
+        ncomps++;
+      }
+    }
+    if (mode == DIAGONAL) {
+      if (up && left) {
+        sum += s[base + (row - 1) * width + col - 1];
+        ncomps++;
+      }
+      if (up && right) {
+        sum += s[base + (row - 1) * width + col + 1];
+        ncomps++;
+      }
+      if (down && left) {
+        sum += s[base + (row + 1) * width + col - 1];
+        ncomps++;
+      }
+      if (down && right) {
+        sum += s[base + (row + 1) * width + col + 1];
+        ncomps++;
+      }
+    }
+    return (short) (sum / ncomps);
+  }
+
+  /** Stores a 16-bit sample at the given offset. */
+  private void put(int offset, short v) {
+    buf[offset] = (byte) (v >> first);
+    buf[offset + 1] = (byte) (v >> second);
+  }
+
+}
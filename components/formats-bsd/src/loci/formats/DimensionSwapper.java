@@ -59,6 +59,12 @@ public class DimensionSwapper extends ReaderWrapper {
   /** Core metadata associated with this dimension swapper. */
   private List<CoreMetadata> core;
 
+  /**
+   * Input plane index for each output plane index, per series;
+   * null entries are computed on first use. Not shared with reader clones.
+   */
+  private transient int[][] reorderTables;
+
   // -- Constructors --
 
   /** Constructs a DimensionSwapper around a new image reader. */
@@ -150,6 +156,9 @@ public class DimensionSwapper extends ReaderWrapper {
     ms.moduloT = moduli[newT - 2];
 
     ms.inputOrder = order;
+    if (reorderTables != null) {
+      reorderTables[getCoreIndex()] = null;
+    }
 
     MetadataStore store = getMetadataStore();
     MetadataTools.populatePixels(store, this);
@@ -167,7 +176,13 @@ public class DimensionSwapper extends ReaderWrapper {
    */
   public void setOutputOrder(String outputOrder) {
     FormatTools.assertId(getCurrentFile(), true, 2);
-    core.get(getCoreIndex()).dimensionOrder = outputOrder;
+    CoreMetadata ms = core.get(getCoreIndex());
+    if (outputOrder == null || !outputOrder.equals(ms.dimensionOrder)) {
+      ms.dimensionOrder = outputOrder;
+      if (reorderTables != null) {
+        reorderTables[getCoreIndex()] = null;
+      }
+    }
   }
 
   public String getInputOrder() {
@@ -303,15 +318,32 @@ public class DimensionSwapper extends ReaderWrapper {
         swappable.resolutionCount = oldcore.get(s).resolutionCount;
         core.add(swappable);
       }
+      reorderTables = new int[core.size()][];
     }
   }
 
   // -- Helper methods --
-  
+
   protected int reorder(int no) {
     if (getInputOrder() == null) return no;
-    return FormatTools.getReorderedIndex(getInputOrder(), getDimensionOrder(),
-      getSizeZ(), getEffectiveSizeC(), getSizeT(), getImageCount(), no);
+    if (reorderTables == null) {
+      reorderTables = new int[core.size()][];
+    }
+    int[] table = reorderTables[getCoreIndex()];
+    if (table == null) {
+      int imageCount = getImageCount();
+      table = new int[imageCount];
+      for (int i=0; i<imageCount; i++) {
+        table[i] = FormatTools.getReorderedIndex(getInputOrder(),
+          getDimensionOrder(), getSizeZ(), getEffectiveSizeC(), getSizeT(),
+          imageCount, i);
+      }
+      reorderTables[getCoreIndex()] = table;
+    }
+    if (no < 0 || no >= table.length) {
+      throw new IllegalArgumentException("Invalid image index: " + no);
+    }
+    return table[no];
   }
 
 }
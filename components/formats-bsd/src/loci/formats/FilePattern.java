@@ -36,7 +36,11 @@ import java.io.File;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -441,6 +445,136 @@ public class FilePattern {
    */
   public static String findPattern(String name, String dir, String[] nameList,
     int[] excludeAxes)
+  {
+    return findPattern(name, dir, new FilePatternIndex(nameList), excludeAxes);
+  }
+
+  /**
+   * Generate a pattern from a list of file names.
+   * The pattern generated will be a regular expression.
+   *
+   * Currently assumes that all file names are in the same directory.
+   *
+   * @param names the list of filenames.
+   * @return the generated pattern.
+   */
+  public static String findPattern(String[] names) {
+    String dir =
+      names[0].substring(0, names[0].lastIndexOf(File.separator) + 1);
+
+    final StringBuilder pattern = new StringBuilder();
+    pattern.append(Pattern.quote(dir));
+
+    for (int i=0; i<names.length; i++) {
+      pattern.append("(?:");
+      String name =
+        names[i].substring(names[i].lastIndexOf(File.separator) + 1);
+      pattern.append(Pattern.quote(name));
+      pattern.append(")");
+      if (i < names.length - 1) {
+        pattern.append("|");
+      }
+    }
+    return pattern.toString();
+  }
+
+  /**
+   * Works like {@link #findSeriesPatterns(String, String, String[])},
+   * but dir and nameList are inferred from the given file's absolute
+   * path.
+   *
+   * @param base The file basename to use as a template for the match.
+   * @return an array containing all identified patterns.
+   */
+  public static String[] findSeriesPatterns(String base) {
+    Location file = new Location(base).getAbsoluteFile();
+    Location parent = file.getParentFile();
+    String[] list = parent.list(true);
+    return findSeriesPatterns(base, parent.getAbsolutePath(), list);
+  }
+
+  /**
+   * Similar to {@link #findPattern(String, String, String[])}, but
+   * this does not merge series indices into a pattern block. Instead,
+   * it returns a separate pattern for each series index. For
+   * instance, if the file names are:
+   *
+   *   "foo_s1_z1.ext", "foo_s1_z2.ext", "foo_s2_z1.ext", "foo_s2_z2.ext"
+   *
+   * Then {@link #findPattern(String, String, String[]) findPattern}
+   * will find a single "foo_s<1-2>_z<1-2>.ext" pattern, whereas this
+   * method will find "foo_s1_z<1-2>.ext" and "foo_s2_z<1-2>.ext".
+
+   * @param base The file basename to use as a template for the match.
+   * @param dir The directory prefix to use for matching files.
+   * @param nameList The names through which to search for matching files.
+   * @return an array containing all identified patterns.
+   */
+  public static String[] findSeriesPatterns(String base, String dir,
+    String[] nameList)
+  {
+    String baseSuffix = base.substring(base.lastIndexOf(File.separator) + 1);
+    int dot = baseSuffix.indexOf('.');
+    if (dot < 0) baseSuffix = "";
+    else baseSuffix = baseSuffix.substring(dot + 1);
+
+    String absoluteBase = new Location(base).getAbsolutePath();
+
+    // the index is shared by all names, so that matches found for one name
+    // are reused for the others
+    FilePatternIndex index = new FilePatternIndex(nameList);
+    Map<String, Set<String>> patternFiles = new HashMap<String, Set<String>>();
+    Set<String> checked = new HashSet<String>();
+
+    ArrayList<String> patterns = new ArrayList<String>();
+    int[] exclude = new int[] {AxisGuesser.S_AXIS};
+    for (String name : nameList) {
+      String pattern = findPattern(name, dir, index, exclude);
+      if (pattern == null || patterns.contains(pattern)) continue;
+      int start = pattern.lastIndexOf(File.separator) + 1;
+      if (start < 0) start = 0;
+      String patternSuffix = pattern.substring(start);
+      dot = patternSuffix.indexOf('.');
+      if (dot < 0) patternSuffix = "";
+      else patternSuffix = patternSuffix.substring(dot + 1);
+
+      String checkPattern = findPattern(name, dir, index, null);
+
+      // the outcome only depends on the two patterns
+      if (!checked.add(pattern + '\0' + checkPattern)) continue;
+
+      Set<String> checkFiles = patternFiles.get(checkPattern);
+      if (checkFiles == null) {
+        // ensure that escaping is consistent with the base file
+        // this is needed to make sure that file grouping works correctly
+        // on Windows
+        checkFiles = new HashSet<String>();
+        for (String file : new FilePattern(checkPattern).getFiles()) {
+          checkFiles.add(new Location(file).getAbsolutePath());
+        }
+        patternFiles.put(checkPattern, checkFiles);
+      }
+
+      if ((!new Location(pattern).exists() ||
+        absoluteBase.equals(pattern)) && patternSuffix.equals(baseSuffix) &&
+        checkFiles.contains(absoluteBase))
+      {
+        patterns.add(pattern);
+      }
+    }
+    String[] s = patterns.toArray(new String[patterns.size()]);
+    Arrays.sort(s);
+    return s;
+  }
+
+  // -- Utility helper methods --
+
+  /**
+   * Identifies the group pattern from a given filename, directory and
+   * index of candidate filenames.
+   */
+  private static String findPattern(String name, String dir,
+    FilePatternIndex index, int[] excludeAxes)
   {
     if (excludeAxes == null) excludeAxes = new int[0];
 
@@ -497,23 +631,16 @@ public class FilePattern {
       sb.append(prefix);
       String pre = name.substring(0, indexList[i]);
       String post = name.substring(endList[i]);
-      NumberFilter filter = new NumberFilter(pre, post);
-      String[] list = matchFiles(nameList, filter);
-      if (list == null || list.length == 0) return null;
-      if (list.length == 1) {
+      FilePatternIndex.Block block = index.getBlock(pre, post);
+      if (block.getCount() == 0) return null;
+      if (block.getCount() == 1) {
         // false alarm; this number block is constant
         sb.append(name.substring(indexList[i], endList[i]));
         continue;
       }
 
       // fixed width block iff all matching filenames are the same length
-      boolean fix = true;
-      for (String s : list) {
-        if (s.length() != len) {
-          fix = false;
-          break;
-        }
-      }
+      boolean fix = block.getLength() == len;
       if (fix) {
         // tricky; this fixed-width block could represent multiple numberings
         int width = endList[i] - indexList[i];
@@ -521,15 +648,7 @@ public class FilePattern {
         // for each character, determine if it varies between filenames
         boolean[] same = new boolean[width];
         for (int j=0; j<width; j++) {
-          same[j] = true;
-          int jx = indexList[i] + j;
-          char c = name.charAt(jx);
-          for (String s : list) {
-            if (s.charAt(jx) != c) {
-              same[j] = false;
-              break;
-            }
-          }
+          same[j] = block.isConstant(j, name.charAt(indexList[i] + j));
         }
         // break down each sub-block
         int j = 0;
@@ -543,7 +662,7 @@ public class FilePattern {
           else {
             // recursively split the block into variable prefix + const suffix
             while (j < width && !same[j]) j++;
-            String p = findPattern(name, nameList, jx, indexList[i] + j, "");
+            String p = findPattern(name, index, jx, indexList[i] + j, "");
             char c = indexList[i] > 0 ? name.charAt(indexList[i] - 1) : '.';
             // check if this block represents the series axis
             if (p == null && c != 'S' && c != 's' && c != 'E' && c != 'e') {
@@ -559,12 +678,7 @@ public class FilePattern {
       }
       else {
         // assume variable-width block represents only one numbering
-        BigInteger[] numbers = new BigInteger[list.length];
-        for (int j=0; j<list.length; j++) {
-          numbers[j] = filter.getNumber(list[j]);
-        }
-        Arrays.sort(numbers);
-        String bounds = getBounds(numbers, false);
+        String bounds = block.getBounds();
         if (bounds == null) return null;
         sb.append(bounds);
       }
@@ -573,129 +687,15 @@ public class FilePattern {
     return sb.toString();
   }
 
-  /**
-   * Generate a pattern from a list of file names.
-   * The pattern generated will be a regular expression.
-   *
-   * Currently assumes that all file names are in the same directory.
-   *
-   * @param names the list of filenames.
-   * @return the generated pattern.
-   */
-  public static String findPattern(String[] names) {
-    String dir =
-      names[0].substring(0, names[0].lastIndexOf(File.separator) + 1);
-
-    final StringBuilder pattern = new StringBuilder();
-    pattern.append(Pattern.quote(dir));
-
-    for (int i=0; i<names.length; i++) {
-      pattern.append("(?:");
-      String name =
-        names[i].substring(names[i].lastIndexOf(File.separator) + 1);
-      pattern.append(Pattern.quote(name));
-      pattern.append(")");
-      if (i < names.length - 1) {
-        pattern.append("|");
-      }
-    }
-    return pattern.toString();
-  }
-
-  /**
-   * Works like {@link #findSeriesPatterns(String, String, String[])},
-   * but dir and nameList are inferred from the given file's absolute
-   * path.
-   *
-   * @param base The file basename to use as a template for the match.
-   * @return an array containing all identified patterns.
-   */
-  public static String[] findSeriesPatterns(String base) {
-    Location file = new Location(base).getAbsoluteFile();
-    Location parent = file.getParentFile();
-    String[] list = parent.list(true);
-    return findSeriesPatterns(base, parent.getAbsolutePath(), list);
-  }
-
-  /**
-   * Similar to {@link #findPattern(String, String, String[])}, but
-   * this does not merge series indices into a pattern block. Instead,
-   * it returns a separate pattern for each series index. For
-   * instance, if the file names are:
-   *
-   *   "foo_s1_z1.ext", "foo_s1_z2.ext", "foo_s2_z1.ext", "foo_s2_z2.ext"
-   *
-   * Then {@link #findPattern(String, String, String[]) findPattern}
-   * will find a single "foo_s<1-2>_z<1-2>.ext" pattern, whereas this
-   * method will find "foo_s1_z<1-2>.ext" and "foo_s2_z<1-2>.ext".
-
-   * @param base The file basename to use as a template for the match.
-   * @param dir The directory prefix to use for matching files.
-   * @param nameList The names through which to search for matching files.
-   * @return an array containing all identified patterns.
-   */
-  public static String[] findSeriesPatterns(String base, String dir,
-    String[] nameList)
-  {
-    String baseSuffix = base.substring(base.lastIndexOf(File.separator) + 1);
-    int dot = baseSuffix.indexOf('.');
-    if (dot < 0) baseSuffix = "";
-    else baseSuffix = baseSuffix.substring(dot + 1);
-
-    String absoluteBase = new Location(base).getAbsolutePath();
-
-    ArrayList<String> patterns = new ArrayList<String>();
-    int[] exclude = new int[] {AxisGuesser.S_AXIS};
-    for (String name : nameList) {
-      String pattern = findPattern(name, dir, nameList, exclude);
-      if (pattern == null) continue;
-      int start = pattern.lastIndexOf(File.separator) + 1;
-      if (start < 0) start = 0;
-      String patternSuffix = pattern.substring(start);
-      dot = patternSuffix.indexOf('.');
-      if (dot < 0) patternSuffix = "";
-      else patternSuffix = patternSuffix.substring(dot + 1);
-
-      String checkPattern = findPattern(name, dir, nameList);
-      String[] checkFiles = new FilePattern(checkPattern).getFiles();
-
-      // ensure that escaping is consistent with the base file
-      // this is needed to make sure that file grouping works correctly
-      // on Windows
-      for (int q=0; q<checkFiles.length; q++) {
-        checkFiles[q] = new Location(checkFiles[q]).getAbsolutePath();
-      }
-
-      if (!patterns.contains(pattern) && (!new Location(pattern).exists() ||
-        absoluteBase.equals(pattern)) && patternSuffix.equals(baseSuffix) &&
-        DataTools.indexOf(checkFiles, absoluteBase) >= 0)
-      {
-        patterns.add(pattern);
-      }
-    }
-    String[] s = patterns.toArray(new String[patterns.size()]);
-    Arrays.sort(s);
-    return s;
-  }
-
-  // -- Utility helper methods --
-
   // recursive method for fixed-width numerical blocks
   private static String findPattern(String name,
-      String[] nameList, int ndx, int end, String p) {
+      FilePatternIndex index, int ndx, int end, String p) {
     if (ndx == end) return p;
     for (int i=end-ndx; i>=1; i--) {
-      NumberFilter filter = new NumberFilter(
-        name.substring(0, ndx), name.substring(ndx + i));
-      String[] list = matchFiles(nameList, filter);
-      BigInteger[] numbers = new BigInteger[list.length];
-      for (int j=0; j<list.length; j++) {
-        numbers[j] = new BigInteger(list[j].substring(ndx, ndx + i));
-      }
-      Arrays.sort(numbers);
-      String bounds = getBounds(numbers, true);
+      String bounds = index.getFixedBounds(
+        name.substring(0, ndx), name.substring(ndx + i), i);
       if (bounds == null) continue;
-      String pat = findPattern(name, nameList, ndx + i, end, p + bounds);
+      String pat = findPattern(name, index, ndx + i, end, p + bounds);
       if (pat != null) return pat;
     }
     // no combination worked; this parse path is infeasible
@@ -710,7 +710,7 @@ public class FilePattern {
    * @param fixed whether the numbers to a fixed width block
    * @return block bounds as a &lt;START-STOP:STEP&gt; expression
    */
-  private static String getBounds(BigInteger[] numbers, boolean fixed) {
+  static String getBounds(BigInteger[] numbers, boolean fixed) {
     if (numbers.length < 2) return null;
     BigInteger b = numbers[0];
     BigInteger e = numbers[numbers.length - 1];
@@ -743,15 +743,6 @@ public class FilePattern {
     return bounds.toString();
   }
 
-  // filters the given list of filenames according to the specified filter
-  private static String[] matchFiles(String[] inFiles, NumberFilter filter) {
-    List<String> list = new ArrayList<String>();
-    for (int i=0; i<inFiles.length; i++) {
-      if (filter.accept(inFiles[i])) list.add(inFiles[i]);
-    }
-    return list.toArray(new String[0]);
-  }
-
   // -- Helper methods --
 
   // recursive method for building the list of matching filenames
@@ -833,24 +824,23 @@ public class FilePattern {
 
   private String[] getAllFiles(String dir) {
     ArrayList<String> files = new ArrayList<String>();
+    getAllFiles(new Location(dir), files);
+    return files.toArray(new String[files.size()]);
+  }
 
-    Location root = new Location(dir);
+  // recursive method for listing all files below the given directory
+  private void getAllFiles(Location root, List<String> files) {
     String[] children = root.list();
 
     for (String child : children) {
       Location file = new Location(root, child);
       if (file.isDirectory()) {
-        String[] grandchildren = getAllFiles(file.getAbsolutePath());
-        for (String g : grandchildren) {
-          files.add(g);
-        }
+        getAllFiles(new Location(file.getAbsolutePath()), files);
       }
       else {
         files.add(file.getAbsolutePath());
       }
     }
-
-    return files.toArray(new String[files.size()]);
   }
 
   // -- Deprecated methods --
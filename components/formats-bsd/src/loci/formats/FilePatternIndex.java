@@ -0,0 +1,283 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FilePatternIndex is a helper for FilePattern.findPattern() that answers
+ * {@link NumberFilter} queries against a large list of file names without
+ * scanning the whole list for every query.
+ *
+ * The names are sorted once by prefix and once by suffix.  The names
+ * accepted by a filter must start with the filter's prefix and end with its
+ * suffix, so only the smaller of the two matching sorted ranges is checked
+ * against the filter.  The results of expensive queries are cached, so that
+ * finding the pattern for every name in a directory, as
+ * {@link FilePattern#findSeriesPatterns(String, String, String[])} does,
+ * costs roughly linear time rather than quadratic time.
+ *
+ * The names accepted by each query, and hence the patterns found, are
+ * exactly those of a linear scan with {@link NumberFilter}.
+ */
+class FilePatternIndex {
+
+  // -- Constants --
+
+  /**
+   * Queries that match fewer names than this are not cached.  A query is
+   * repeated for every matching name, so anything matching more than one
+   * name is worth caching.
+   */
+  private static final int CACHE_THRESHOLD = 2;
+
+  // -- Fields --
+
+  /** Names sorted in lexicographic order. */
+  private String[] byPrefix;
+
+  /** Reversed names sorted in lexicographic order. */
+  private String[] bySuffix;
+
+  /** Names in the same order as {@link #bySuffix}. */
+  private String[] suffixNames;
+
+  /** Cached numerical blocks, keyed by prefix and suffix. */
+  private Map<String, Block> blocks = new HashMap<String, Block>();
+
+  /** Cached fixed-width bounds, keyed by prefix, suffix and width. */
+  private Map<String, String> fixedBounds = new HashMap<String, String>();
+
+  // -- Constructor --
+
+  /** Creates an index of the given file names. */
+  FilePatternIndex(String[] names) {
+    byPrefix = names.clone();
+    Arrays.sort(byPrefix);
+    bySuffix = new String[names.length];
+    for (int i=0; i<names.length; i++) {
+      bySuffix[i] = reverse(names[i]);
+    }
+    Arrays.sort(bySuffix);
+    suffixNames = new String[names.length];
+    for (int i=0; i<names.length; i++) {
+      suffixNames[i] = reverse(bySuffix[i]);
+    }
+  }
+
+  // -- FilePatternIndex API methods --
+
+  /**
+   * Gets all names accepted by a {@link NumberFilter} with the given
+   * prefix and suffix, in no particular order.
+   */
+  String[] match(String pre, String post) {
+    NumberFilter filter = new NumberFilter(pre, post);
+    List<String> list = new ArrayList<String>();
+
+    int[] prefixRange = range(byPrefix, pre);
+    int[] suffixRange = range(bySuffix, reverse(post));
+    if (prefixRange[1] - prefixRange[0] <= suffixRange[1] - suffixRange[0]) {
+      for (int i=prefixRange[0]; i<prefixRange[1]; i++) {
+        if (filter.accept(byPrefix[i])) list.add(byPrefix[i]);
+      }
+    }
+    else {
+      for (int i=suffixRange[0]; i<suffixRange[1]; i++) {
+        if (filter.accept(suffixNames[i])) list.add(suffixNames[i]);
+      }
+    }
+    return list.toArray(new String[list.size()]);
+  }
+
+  /**
+   * Gets a summary of the names matching the numerical block between
+   * the given prefix and suffix.
+   */
+  Block getBlock(String pre, String post) {
+    String key = pre + '\0' + post;
+    Block block = blocks.get(key);
+    if (block == null) {
+      block = new Block(pre, post);
+      if (block.count >= CACHE_THRESHOLD) blocks.put(key, block);
+    }
+    return block;
+  }
+
+  /**
+   * Gets the bounds of the fixed-width numbers of the given width that
+   * follow the given prefix, among the names matching the given prefix
+   * and suffix.
+   *
+   * @return the bounds as a &lt;START-STOP:STEP&gt; expression, or null if
+   *   the numbers do not form a sequence
+   */
+  String getFixedBounds(String pre, String post, int width) {
+    String key = pre + '\0' + post + '\0' + width;
+    if (fixedBounds.containsKey(key)) return fixedBounds.get(key);
+
+    String[] list = match(pre, post);
+    int ndx = pre.length();
+    BigInteger[] numbers = new BigInteger[list.length];
+    for (int j=0; j<list.length; j++) {
+      numbers[j] = new BigInteger(list[j].substring(ndx, ndx + width));
+    }
+    Arrays.sort(numbers);
+    String bounds = FilePattern.getBounds(numbers, true);
+    if (list.length >= CACHE_THRESHOLD) fixedBounds.put(key, bounds);
+    return bounds;
+  }
+
+  // -- Helper methods --
+
+  /** Gets the range of sorted names that start with the given prefix. */
+  private static int[] range(String[] sorted, String prefix) {
+    int start = Arrays.binarySearch(sorted, prefix);
+    if (start < 0) start = -start - 1;
+
+    // names with the given prefix are contiguous
+    int low = start, high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid].startsWith(prefix)) low = mid + 1;
+      else high = mid;
+    }
+    return new int[] {start, low};
+  }
+
+  private static String reverse(String s) {
+    return new StringBuilder(s).reverse().toString();
+  }
+
+  // -- Helper classes --
+
+  /**
+   * Summary of the names matching a numerical block, i.e. the names
+   * accepted by a {@link NumberFilter} with a given prefix and suffix.
+   */
+  class Block {
+    private String pre;
+    private String post;
+
+    /** Number of matching names. */
+    private int count;
+
+    /** Length shared by all matching names, or -1. */
+    private int length = -1;
+
+    /**
+     * Characters of the numerical block that are the same in all
+     * matching names, if they have the same length; other characters
+     * are marked in {@link #varies}.
+     */
+    private char[] chars;
+    private boolean[] varies;
+
+    /** Lazily computed bounds for a variable-width block. */
+    private String bounds;
+    private boolean boundsComputed;
+
+    Block(String pre, String post) {
+      this.pre = pre;
+      this.post = post;
+
+      String[] list = match(pre, post);
+      count = list.length;
+      if (count == 0) return;
+
+      length = list[0].length();
+      for (String s : list) {
+        if (s.length() != length) {
+          length = -1;
+          return;
+        }
+      }
+      int start = pre.length();
+      int width = length - post.length() - start;
+      chars = list[0].substring(start, start + width).toCharArray();
+      varies = new boolean[width];
+      for (String s : list) {
+        for (int j=0; j<width; j++) {
+          if (s.charAt(start + j) != chars[j]) varies[j] = true;
+        }
+      }
+    }
+
+    /** Gets the number of matching names. */
+    int getCount() {
+      return count;
+    }
+
+    /** Gets the length shared by all matching names, or -1. */
+    int getLength() {
+      return length;
+    }
+
+    /**
+     * Returns true if every matching name has the given character at the
+     * given offset into the numerical block.  Only valid if all matching
+     * names have the same length.
+     */
+    boolean isConstant(int offset, char c) {
+      return !varies[offset] && chars[offset] == c;
+    }
+
+    /**
+     * Gets the bounds of the numbers in the matching names.
+     *
+     * @return the bounds as a &lt;START-STOP:STEP&gt; expression, or null if
+     *   the numbers do not form a sequence
+     */
+    String getBounds() {
+      if (!boundsComputed) {
+        NumberFilter filter = new NumberFilter(pre, post);
+        String[] list = match(pre, post);
+        BigInteger[] numbers = new BigInteger[list.length];
+        for (int j=0; j<list.length; j++) {
+          numbers[j] = filter.getNumber(list[j]);
+        }
+        Arrays.sort(numbers);
+        bounds = FilePattern.getBounds(numbers, false);
+        boundsComputed = true;
+      }
+      return bounds;
+    }
+  }
+
+}
@@ -63,6 +63,12 @@ public class FileStitcher extends ReaderWrapper {
 
   private static final int MAX_READERS = 1000;
 
+  /**
+   * Number of plane lookup table entries per plane: the file index,
+   * followed by the Z, C and T positions within that file.
+   */
+  private static final int PLANE_ENTRY = 4;
+
   // -- Fields --
 
   /**
@@ -79,6 +85,15 @@ public class FileStitcher extends ReaderWrapper {
   /** Component lengths for each axis type. */
   private int[][] lenZ, lenC, lenT;
 
+  /**
+   * Plane lookup table for each series, computed on first use.
+   * Not shared with reader clones.
+   */
+  private transient int[][] planeTables;
+
+  /** Dimension order used to compute each plane lookup table. */
+  private transient String[] planeTableOrders;
+
   /** Core metadata. */
   private ArrayList<CoreMetadata> core = new ArrayList<CoreMetadata>();
 
@@ -169,9 +184,8 @@ public class FileStitcher extends ReaderWrapper {
   /** Gets the reader appropriate for use with the given image plane. */
   public IFormatReader getReader(int no) throws FormatException, IOException {
     if (noStitch) return reader;
-    int[] q = computeIndices(no);
-    int fno = q[0];
-    return getReader(getCoreIndex(), fno);
+    int[] table = getPlaneTable(no);
+    return getReader(getCoreIndex(), table[no * PLANE_ENTRY]);
   }
 
   /**
@@ -187,9 +201,9 @@ public class FileStitcher extends ReaderWrapper {
   /** Gets the local reader index for use with the given image plane. */
   public int getAdjustedIndex(int no) throws FormatException, IOException {
     if (noStitch) return no;
-    int[] q = computeIndices(no);
-    int ino = q[1];
-    return ino;
+    int[] table = getPlaneTable(no);
+    return getInFileIndex(getReader(getCoreIndex(), table[no * PLANE_ENTRY]),
+      table, no);
   }
 
   /**
@@ -473,21 +487,28 @@ public class FileStitcher extends ReaderWrapper {
   {
     FormatTools.assertId(getCurrentFile(), true, 2);
 
-    int[] pos = computeIndices(no);
-    IFormatReader r = getReader(getCoreIndex(), pos[0]);
-    int ino = pos[1];
+    long start = Metrics.startTimer();
+    IFormatReader r = reader;
+    int ino = no;
+    if (!noStitch) {
+      int[] table = getPlaneTable(no);
+      r = getReader(getCoreIndex(), table[no * PLANE_ENTRY]);
+      ino = getInFileIndex(r, table, no);
+    }
 
     if (ino < r.getImageCount()) {
       byte[] b = r.openBytes(ino, buf, x, y, w, h);
       if (!noStitch && ino == r.getImageCount() - 1) {
         r.close();
       }
+      Metrics.stopTimer(Metrics.STITCHER_OPEN_BYTES_TIME, start);
       return b;
     }
 
     // return a blank image to cover for the fact that
     // this file does not contain enough image planes
     Arrays.fill(buf, (byte) 0);
+    Metrics.stopTimer(Metrics.STITCHER_OPEN_BYTES_TIME, start);
     return buf;
   }
 
@@ -498,8 +519,13 @@ public class FileStitcher extends ReaderWrapper {
   {
     FormatTools.assertId(getCurrentFile(), true, 2);
 
-    IFormatReader r = getReader(no);
-    int ino = getAdjustedIndex(no);
+    IFormatReader r = reader;
+    int ino = no;
+    if (!noStitch) {
+      int[] table = getPlaneTable(no);
+      r = getReader(getCoreIndex(), table[no * PLANE_ENTRY]);
+      ino = getInFileIndex(r, table, no);
+    }
     if (ino < r.getImageCount()) return r.openPlane(ino, x, y, w, h);
 
     return null;
@@ -510,8 +536,13 @@ public class FileStitcher extends ReaderWrapper {
   public byte[] openThumbBytes(int no) throws FormatException, IOException {
     FormatTools.assertId(getCurrentFile(), true, 2);
 
-    IFormatReader r = getReader(no);
-    int ino = getAdjustedIndex(no);
+    IFormatReader r = reader;
+    int ino = no;
+    if (!noStitch) {
+      int[] table = getPlaneTable(no);
+      r = getReader(getCoreIndex(), table[no * PLANE_ENTRY]);
+      ino = getInFileIndex(r, table, no);
+    }
     if (ino < r.getImageCount()) return r.openThumbBytes(ino);
 
     // return a blank image to cover for the fact that
@@ -543,6 +574,8 @@ public class FileStitcher extends ReaderWrapper {
       externals = null;
       sizeZ = sizeC = sizeT = null;
       lenZ = lenC = lenT = null;
+      planeTables = null;
+      planeTableOrders = null;
       core.clear();
       coreIndex = 0;
       series = 0;
@@ -1003,6 +1036,8 @@ public class FileStitcher extends ReaderWrapper {
     lenZ = new int[seriesCount][];
     lenC = new int[seriesCount][];
     lenT = new int[seriesCount][];
+    planeTables = new int[seriesCount][];
+    planeTableOrders = new String[seriesCount];
 
     // analyze first file; assume each file has the same parameters
     core.clear();
@@ -1109,6 +1144,9 @@ public class FileStitcher extends ReaderWrapper {
     lenZ[sno][0] = sizeZ[sno];
     lenC[sno][0] = sizeC[sno] / reader.getRGBChannelCount();
     lenT[sno][0] = sizeT[sno];
+    if (planeTables != null) {
+      planeTables[sno] = null;
+    }
 
     for (int i=0, z=1, c=1, t=1; i<count.length; i++) {
       switch (axes[i]) {
@@ -1163,61 +1201,10 @@ public class FileStitcher extends ReaderWrapper {
    */
   protected int[] computeIndices(int no) throws FormatException, IOException {
     if (noStitch) return new int[] {0, no};
-    int sno = getCoreIndex();
-    ExternalSeries s = externals[getExternalSeries()];
-
-    int[] axes = s.getAxisGuesser().getAxisTypes();
-    int[] count = s.getFilePattern().getCount();
-
-    if (axes.length == 0) {
-      axes = new int[] {AxisGuesser.T_AXIS};
-      count = new int[] {s.getFiles().length};
-    }
-
-    // get Z, C and T positions
-    int[] zct = getZCTCoords(no);
-    int[] posZ = FormatTools.rasterToPosition(lenZ[sno], zct[0]);
-    int[] posC = FormatTools.rasterToPosition(lenC[sno], zct[1]);
-    int[] posT = FormatTools.rasterToPosition(lenT[sno], zct[2]);
-
-    int[] tmpZ = new int[posZ.length];
-    System.arraycopy(posZ, 0, tmpZ, 0, tmpZ.length);
-    int[] tmpC = new int[posC.length];
-    System.arraycopy(posC, 0, tmpC, 0, tmpC.length);
-    int[] tmpT = new int[posT.length];
-    System.arraycopy(posT, 0, tmpT, 0, tmpT.length);
-
-    // convert Z, C and T position lists into file index and image index
-    int[] pos = new int[axes.length];
-    int z = 1, c = 1, t = 1;
-    for (int i=0; i<axes.length; i++) {
-      if (axes[i] == AxisGuesser.Z_AXIS) pos[i] = posZ[z++];
-      else if (axes[i] == AxisGuesser.C_AXIS) pos[i] = posC[c++];
-      else if (axes[i] == AxisGuesser.T_AXIS) pos[i] = posT[t++];
-      else if (axes[i] == AxisGuesser.S_AXIS) {
-        pos[i] = 0;
-      }
-      else {
-        throw new FormatException("Unknown axis type for axis #" +
-          i + ": " + axes[i]);
-      }
-    }
-
-    int fno = FormatTools.positionToRaster(count, pos);
-    DimensionSwapper r = getReader(sno, fno);
-
-    int ino;
-    if (posZ[0] < r.getSizeZ() && posC[0] < r.getSizeC() &&
-      posT[0] < r.getSizeT())
-    {
-      if (r.isRGB() && (posC[0] * r.getRGBChannelCount() >= lenC[sno][0])) {
-        posC[0] /= lenC[sno][0];
-      }
-      ino = FormatTools.getIndex(r, posZ[0], posC[0], posT[0]);
-    }
-    else ino = Integer.MAX_VALUE; // coordinates out of range
-
-    return new int[] {fno, ino};
+    int[] table = getPlaneTable(no);
+    int fno = table[no * PLANE_ENTRY];
+    DimensionSwapper r = getReader(getCoreIndex(), fno);
+    return new int[] {fno, getInFileIndex(r, table, no)};
   }
 
   protected void initReader(int sno, int fno) {
@@ -1246,6 +1233,100 @@ public class FileStitcher extends ReaderWrapper {
     }
   }
 
+  /**
+   * Gets the plane lookup table for the current series, computing it if
+   * it has not yet been computed for the current axis lengths and dimension
+   * order.
+   *
+   * @param no the global image index that will be looked up in the table
+   */
+  private int[] getPlaneTable(int no) throws FormatException {
+    int sno = getCoreIndex();
+    String order = core.get(sno).dimensionOrder;
+    if (planeTables == null) {
+      planeTables = new int[core.size()][];
+      planeTableOrders = new String[core.size()];
+    }
+    int[] table = planeTables[sno];
+    if (table == null || !order.equals(planeTableOrders[sno])) {
+      table = computePlaneTable(sno);
+      planeTables[sno] = table;
+      planeTableOrders[sno] = order;
+    }
+    if (no < 0 || no >= table.length / PLANE_ENTRY) {
+      throw new IllegalArgumentException("Invalid image index: " + no);
+    }
+    return table;
+  }
+
+  /**
+   * Maps every global image index of the given series to its file index
+   * and the Z, C and T positions within that file.
+   */
+  private int[] computePlaneTable(int sno) throws FormatException {
+    ExternalSeries s = externals[getExternalSeries()];
+
+    int[] axes = s.getAxisGuesser().getAxisTypes();
+    int[] count = s.getFilePattern().getCount();
+
+    if (axes.length == 0 && s.getFiles().length > 1) {
+      axes = new int[] {AxisGuesser.T_AXIS};
+      count = new int[] {s.getFiles().length};
+    }
+
+    int imageCount = getImageCount();
+    int[] table = new int[imageCount * PLANE_ENTRY];
+    int[] pos = new int[axes.length];
+    for (int no=0; no<imageCount; no++) {
+      // get Z, C and T positions
+      int[] zct = getZCTCoords(no);
+      int[] posZ = FormatTools.rasterToPosition(lenZ[sno], zct[0]);
+      int[] posC = FormatTools.rasterToPosition(lenC[sno], zct[1]);
+      int[] posT = FormatTools.rasterToPosition(lenT[sno], zct[2]);
+
+      // convert Z, C and T position lists into file index and image position
+      int z = 1, c = 1, t = 1;
+      for (int i=0; i<axes.length; i++) {
+        if (axes[i] == AxisGuesser.Z_AXIS) pos[i] = posZ[z++];
+        else if (axes[i] == AxisGuesser.C_AXIS) pos[i] = posC[c++];
+        else if (axes[i] == AxisGuesser.T_AXIS) pos[i] = posT[t++];
+        else if (axes[i] == AxisGuesser.S_AXIS) {
+          pos[i] = 0;
+        }
+        else {
+          throw new FormatException("Unknown axis type for axis #" +
+            i + ": " + axes[i]);
+        }
+      }
+
+      int offset = no * PLANE_ENTRY;
+      table[offset] = FormatTools.positionToRaster(count, pos);
+      table[offset + 1] = posZ[0];
+      table[offset + 2] = posC[0];
+      table[offset + 3] = posT[0];
+    }
+    return table;
+  }
+
+  /**
+   * Gets the image index within the given file reader of the given global
+   * image index, or Integer.MAX_VALUE if the file does not contain the plane.
+   */
+  private int getInFileIndex(IFormatReader r, int[] table, int no) {
+    int offset = no * PLANE_ENTRY;
+    int z = table[offset + 1];
+    int c = table[offset + 2];
+    int t = table[offset + 3];
+    if (z >= r.getSizeZ() || c >= r.getSizeC() || t >= r.getSizeT()) {
+      return Integer.MAX_VALUE; // coordinates out of range
+    }
+    int lenC0 = lenC[getCoreIndex()][0];
+    if (r.isRGB() && (c * r.getRGBChannelCount() >= lenC0)) {
+      c /= lenC0;
+    }
+    return FormatTools.getIndex(r, z, c, t);
+  }
+
   // -- Helper classes --
 
   class ExternalSeries {
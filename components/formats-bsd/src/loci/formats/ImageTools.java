@@ -32,6 +32,8 @@
 
 package loci.formats;
 
+import java.util.concurrent.ExecutorService;
+
 import loci.common.DataTools;
 
 /**
@@ -45,6 +47,18 @@ import loci.common.DataTools;
  */
 public final class ImageTools {
 
+  // -- Constants --
+
+  /** Bilinear interpolation of Bayer data. */
+  public static final int BILINEAR = 0;
+
+  /**
+   * Gradient-corrected linear interpolation of Bayer data, as described by
+   * Malvar, He and Cutler.  Sharper than {@link #BILINEAR}, with fewer color
+   * fringes along edges.
+   */
+  public static final int MALVAR_HE_CUTLER = 1;
+
   // -- Constructor --
 
   private ImageTools() { }
@@ -235,6 +249,39 @@ public final class ImageTools {
     return rtn;
   }
 
+  /**
+   * Splits the given multi-channel array into all of its channels in a
+   * single pass.  Channel k is copied into the first 'channelLength' bytes
+   * of channels[k].
+   */
+  public static void splitChannels(byte[] array, byte[][] channels, int c,
+    int bytes, boolean interleaved, int channelLength)
+  {
+    if (!interleaved) {
+      for (int k=0; k<c; k++) {
+        System.arraycopy(array, channelLength * k, channels[k], 0,
+          channelLength);
+      }
+    }
+    else if (bytes == 1) {
+      for (int i=0, pt=0; i<channelLength; i++) {
+        for (int k=0; k<c; k++) {
+          channels[k][i] = array[pt++];
+        }
+      }
+    }
+    else {
+      for (int i=0, pt=0; i<channelLength; i+=bytes) {
+        for (int k=0; k<c; k++) {
+          byte[] channel = channels[k];
+          for (int b=0; b<bytes; b++) {
+            channel[i + b] = array[pt++];
+          }
+        }
+      }
+    }
+  }
+
   /**
    * Pads (or crops) the byte array to the given width and height.
    * The image will be centered within the new bounds.
@@ -572,8 +619,48 @@ public final class ImageTools {
     return rtn;
   }
 
+  /**
+   * Interpolates the missing color components of Bayer data, using
+   * bilinear interpolation on the calling thread.
+   *
+   * @see #interpolate(short[], byte[], int[], int, int, boolean, int,
+   *   ExecutorService)
+   */
   public static byte[] interpolate(short[] s, byte[] buf, int[] bayerPattern,
     int width, int height, boolean littleEndian)
+  {
+    try {
+      return interpolate(s, buf, bayerPattern, width, height, littleEndian,
+        BILINEAR, null);
+    }
+    catch (FormatException e) {
+      // only thrown when a thread pool is used
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Interpolates the missing color components of Bayer data.
+   *
+   * @param s the red, green and blue planes, each width * height samples
+   *   long and holding samples only at the pixels of its own color
+   * @param buf the buffer in which to store interleaved 16-bit RGB samples
+   * @param bayerPattern the color (0 = red, 1 = green, 2 = blue) of each
+   *   pixel in the repeating 2x2 tile, in row-major order
+   * @param width the width of the image
+   * @param height the height of the image
+   * @param littleEndian true if the samples should be stored in
+   *   little-endian order
+   * @param method {@link #BILINEAR} or {@link #MALVAR_HE_CUTLER}; pixels
+   *   within two pixels of the edge are always interpolated bilinearly
+   * @param threadPool used to process bands of rows of large images in
+   *   parallel; if null, all work is done on the calling thread
+   * @return buf
+   */
+  public static byte[] interpolate(short[] s, byte[] buf, int[] bayerPattern,
+    int width, int height, boolean littleEndian, int method,
+    ExecutorService threadPool)
+    throws FormatException
   {
     if (width == 1 && height == 1) {
       for (int i=0; i<buf.length; i++) {
@@ -581,171 +668,8 @@ public final class ImageTools {
       }
       return buf;
     }
-    // use linear interpolation to fill in missing components
-
-    int plane = width * height;
-
-    for (int row=0; row<height; row++) {
-      for (int col=0; col<width; col++) {
-        //boolean evenRow = (row % 2) == 0;
-        boolean evenCol = (col % 2) == 0;
-
-        int index = (row % 2) * 2 + (col % 2);
-        boolean needGreen = bayerPattern[index] != 1;
-        boolean needRed = bayerPattern[index] != 0;
-        boolean needBlue = bayerPattern[index] != 2;
-
-        if (needGreen) {
-          int sum = 0;
-          int ncomps = 0;
-
-          if (row > 0) {
-            sum += s[plane + (row - 1) * width + col];
-            ncomps++;
-          }
-          if (row < height - 1) {
-            sum += s[plane + (row + 1) * width + col];
-            ncomps++;
-          }
-          if (col > 0) {
-            sum += s[plane + row * width + col - 1];
-            ncomps++;
-          }
-          if (col < width- 1) {
-            sum += s[plane + row*width + col + 1];
-            ncomps++;
-          }
-
-          short v = (short) (sum / ncomps);
-          DataTools.unpackBytes(v, buf,
-            row*width*6 + col*6 + 2, 2, littleEndian);
-        }
-        else {
-          DataTools.unpackBytes(s[plane + row*width + col],
-            buf, row*width*6 + col*6 + 2, 2, littleEndian);
-        }
-
-        if (needRed) {
-          int sum = 0;
-          int ncomps = 0;
-          if (!needBlue) {
-            // four corners
-            if (row > 0) {
-              if (col > 0) {
-                sum += s[(row-1)*width + col - 1];
-                ncomps++;
-              }
-              if (col < width - 1) {
-                sum += s[(row-1)*width + col + 1];
-                ncomps++;
-              }
-            }
-            if (row < height - 1) {
-              if (col > 0) {
-                sum += s[(row+1)*width + col - 1];
-                ncomps++;
-              }
-              if (col < width - 1) {
-                sum += s[(row+1)*width + col + 1];
-                ncomps++;
-              }
-            }
-          }
-          else if ((evenCol && bayerPattern[index + 1] == 0) ||
-            (!evenCol && bayerPattern[index - 1] == 0))
-          {
-            // horizontal
-            if (col > 0) {
-              sum += s[row*width + col - 1];
-              ncomps++;
-            }
-            if (col < width - 1) {
-              sum += s[row*width + col + 1];
-              ncomps++;
-            }
-          }
-          else {
-            // vertical
-            if (row > 0) {
-              sum += s[(row - 1)*width + col];
-              ncomps++;
-            }
-            if (row < height - 1) {
-              sum += s[(row+1)*width + col];
-              ncomps++;
-            }
-          }
-
-          short v = (short) (sum / ncomps);
-          DataTools.unpackBytes(v, buf, row*width*6 + col*6, 2, littleEndian);
-        }
-        else {
-          DataTools.unpackBytes(s[row*width + col],
-            buf, row*width*6 + col*6, 2, littleEndian);
-        }
-
-        if (needBlue) {
-          int sum = 0;
-          int ncomps = 0;
-          if (!needRed) {
-            // four corners
-            if (row > 0) {
-              if (col > 0) {
-                sum += s[(2*height + row - 1)*width + col - 1];
-                ncomps++;
-              }
-              if (col < width - 1) {
-                sum += s[(2*height + row-1)*width + col + 1];
-                ncomps++;
-              }
-            }
-            if (row < height - 1) {
-              if (col > 0) {
-                sum += s[(2*height + row+1)*width + col - 1];
-                ncomps++;
-              }
-              if (col < width - 1) {
-                sum += s[(2*height + row+1)*width + col + 1];
-                ncomps++;
-              }
-            }
-          }
-          else if ((evenCol && bayerPattern[index + 1] == 2) ||
-            (!evenCol && bayerPattern[index - 1] == 2))
-          {
-            // horizontal
-            if (col > 0) {
-              sum += s[(2*height + row)*width + col - 1];
-              ncomps++;
-            }
-            if (col < width - 1) {
-              sum += s[(2*height + row)*width + col + 1];
-              ncomps++;
-            }
-          }
-          else {
-            // vertical
-            if (row > 0) {
-              sum += s[(2*height + row - 1)*width + col];
-              ncomps++;
-            }
-            if (row < height - 1) {
-              sum += s[(2*height + row+1)*width + col];
-              ncomps++;
-            }
-          }
-
-          short v = (short) (sum / ncomps);
-          DataTools.unpackBytes(v, buf,
-            row*width*6 + col*6 + 4, 2, littleEndian);
-        }
-        else {
-          DataTools.unpackBytes(s[2*plane + row*width + col],
-            buf, row*width*6 + col*6 + 4, 2, littleEndian);
-        }
-      }
-    }
-
+    new Demosaic(s, buf, bayerPattern, width, height, littleEndian,
+      method).run(threadPool);
     return buf;
   }
 
@@ -32,12 +32,31 @@
 
 package loci.formats;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.lang.ArrayIndexOutOfBoundsException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import loci.common.Constants;
 import loci.common.Location;
@@ -58,9 +77,13 @@ import org.slf4j.LoggerFactory;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.DefaultArraySerializers;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 
+import org.objenesis.instantiator.ObjectInstantiator;
 import org.objenesis.strategy.StdInstantiatorStrategy;
 
 /**
@@ -128,6 +151,7 @@ public class Memoizer extends ReaderWrapper {
     FileOutputStream fos;
     Input input;
     Output output;
+    Deflater deflater;
 
     @Override
     public void close() {
@@ -142,9 +166,28 @@ public class Memoizer extends ReaderWrapper {
         input = new Input(fis);
     }
 
+    /**
+     * Starts loading from the contents of a memo file that has already
+     * been read into memory.
+     */
+    public void loadStart(byte[] memo) {
+        input = new Input(memo);
+    }
+
     @Override
     public Integer loadVersion() {
-        return kryo.readObject(input, Integer.class);
+        Integer version = kryo.readObject(input, Integer.class);
+        if (COMPRESSED_VERSION.equals(version)) {
+          // everything after the version is deflate-compressed
+          InputStream remaining = new ByteArrayInputStream(input.getBuffer(),
+            input.position(), input.limit() - input.position());
+          if (input.getInputStream() != null) {
+            remaining =
+              new SequenceInputStream(remaining, input.getInputStream());
+          }
+          input = new Input(new InflaterInputStream(remaining));
+        }
+        return version;
     }
 
     @Override
@@ -185,9 +228,24 @@ public class Memoizer extends ReaderWrapper {
       output = new Output(fos);
     }
 
+    /**
+     * Starts saving to the given stream, e.g. to take an in-memory
+     * snapshot of a reader.
+     */
+    public void saveStart(OutputStream stream) {
+      output = new Output(stream);
+    }
+
     @Override
     public void saveVersion(Integer version) {
       kryo.writeObject(output, version);
+      if (COMPRESSED_VERSION.equals(version)) {
+        // compress everything after the version
+        output.flush();
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        output = new Output(
+          new DeflaterOutputStream(output.getOutputStream(), deflater));
+      }
     }
 
     @Override
@@ -212,6 +270,10 @@ public class Memoizer extends ReaderWrapper {
         output.close();
         output = null;
       }
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
       if (fos != null) {
         try {
           fos.close();
@@ -326,6 +388,237 @@ public class Memoizer extends ReaderWrapper {
 
   }
 
+  /**
+   * Bounded in-memory cache of memo file contents, shared by any number of
+   * {@link Memoizer} instances via {@link #setMemoCache(MemoCache)}.
+   *
+   * Entries are keyed by the absolute path of the memo file and are only
+   * used if the last modification time and length of the memo file on disk
+   * still match, so repeated calls to {@link #setId(String)} for the same
+   * file skip reading the memo file from disk. The least recently used
+   * entries are evicted once the total size exceeds the configured limit.
+   */
+  public static class MemoCache {
+
+    /** Contents of a single memo file. */
+    private static class Entry {
+      final long lastModified;
+      final long length;
+      final byte[] data;
+
+      Entry(long lastModified, long length, byte[] data) {
+        this.lastModified = lastModified;
+        this.length = length;
+        this.data = data;
+      }
+    }
+
+    private final long maxBytes;
+
+    private long totalBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Constructs a cache holding at most {@code maxBytes} bytes of memo data.
+     *
+     * @param maxBytes the maximum total size of all cached memo files
+     */
+    public MemoCache(long maxBytes) {
+      if (maxBytes < 0) {
+        throw new IllegalArgumentException(
+          "Cache size must be non-negative: " + maxBytes);
+      }
+      this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached contents of the given memo file, or null if the
+     * file is not cached or has changed since it was cached.
+     */
+    public synchronized byte[] get(File memoFile) {
+      String key = memoFile.getAbsolutePath();
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        if (entry.lastModified == memoFile.lastModified() &&
+          entry.length == memoFile.length())
+        {
+          hits++;
+          return entry.data;
+        }
+        entries.remove(key);
+        totalBytes -= entry.data.length;
+      }
+      misses++;
+      return null;
+    }
+
+    /**
+     * Stores the contents of the given memo file, as read from disk.
+     * Memo files larger than the cache are not stored.
+     */
+    public synchronized void put(File memoFile, long lastModified,
+      byte[] data)
+    {
+      remove(memoFile);
+      if (data.length > maxBytes) {
+        return;
+      }
+      entries.put(memoFile.getAbsolutePath(),
+        new Entry(lastModified, data.length, data));
+      totalBytes += data.length;
+
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        totalBytes -= it.next().getValue().data.length;
+        it.remove();
+      }
+    }
+
+    /** Removes the given memo file from the cache. */
+    public synchronized void remove(File memoFile) {
+      Entry entry = entries.remove(memoFile.getAbsolutePath());
+      if (entry != null) {
+        totalBytes -= entry.data.length;
+      }
+    }
+
+    /** Removes all entries from the cache. */
+    public synchronized void clear() {
+      entries.clear();
+      totalBytes = 0;
+    }
+
+    /** Returns the number of memo files currently cached. */
+    public synchronized int size() {
+      return entries.size();
+    }
+
+    /** Returns the total number of bytes currently cached. */
+    public synchronized long getTotalBytes() {
+      return totalBytes;
+    }
+
+    /** Returns the number of lookups that were satisfied from memory. */
+    public synchronized long getHitCount() {
+      return hits;
+    }
+
+    /** Returns the number of lookups that required reading from disk. */
+    public synchronized long getMissCount() {
+      return misses;
+    }
+
+  }
+
+  /**
+   * {@link Kryo} instance used by {@link #openClone()}.
+   *
+   * A shallow copy creates new readers, and new instances of the objects
+   * and arrays that refer to readers (such as the series of a
+   * {@link FileStitcher}), without their transient fields; every other
+   * object (core metadata, IFDs, metadata stores and tables) is shared
+   * with the original.  A deep copy creates new instances of everything
+   * except the metadata store, as if the chain had been loaded from a
+   * memo file.
+   */
+  private static class CloneKryo extends Kryo {
+
+    /** Serializer whose copy is the original object. */
+    private final Serializer<Object> shared = new Serializer<Object>(false, true) {
+      @Override
+      public void write(Kryo kryo, Output output, Object object) {
+        throw new KryoException("Shared objects cannot be serialized");
+      }
+
+      @Override
+      public Object read(Kryo kryo, Input input, Class<Object> type) {
+        throw new KryoException("Shared objects cannot be deserialized");
+      }
+    };
+
+    private final StdInstantiatorStrategy std = new StdInstantiatorStrategy();
+
+    private final boolean deep;
+
+    CloneKryo(boolean deep) {
+      this.deep = deep;
+      ((Kryo.DefaultInstantiatorStrategy) getInstantiatorStrategy()).setFallbackInstantiatorStrategy(std);
+    }
+
+    @Override
+    public Serializer getDefaultSerializer(Class type) {
+      if (deep) {
+        if (MetadataStore.class.isAssignableFrom(type)) {
+          return shared;
+        }
+        Serializer serializer = super.getDefaultSerializer(type);
+        if (serializer instanceof FieldSerializer) {
+          ((FieldSerializer<?>) serializer).setCopyTransient(false);
+          ((FieldSerializer<?>) serializer).setIgnoreSyntheticFields(false);
+        }
+        return serializer;
+      }
+      if (!isCopied(type)) {
+        return shared;
+      }
+      if (type.isArray()) {
+        return new DefaultArraySerializers.ObjectArraySerializer(this, type);
+      }
+      FieldSerializer<?> serializer = new FieldSerializer(this, type);
+      serializer.setCopyTransient(false);
+      // copies of inner classes must refer to the copied outer reader
+      serializer.setIgnoreSyntheticFields(false);
+      return serializer;
+    }
+
+    @Override
+    protected ObjectInstantiator newInstantiator(Class type) {
+      if (FormatReader.class.isAssignableFrom(type)) {
+        // as when loading a memo file
+        return super.newInstantiator(type);
+      }
+      // the default constructors of wrappers create a new ImageReader,
+      // which would only be replaced by the copied delegate
+      return std.newInstantiatorOf(type);
+    }
+
+    /**
+     * Returns true if the given type is a reader, or declares a field
+     * that holds a reader or an array of readers.
+     */
+    private static boolean isCopied(Class<?> type) {
+      if (type.isArray()) {
+        return isCopied(type.getComponentType());
+      }
+      if (IFormatReader.class.isAssignableFrom(type)) {
+        return true;
+      }
+      for (Class<?> c=type; c != null; c=c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          int modifiers = field.getModifiers();
+          if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+            continue;
+          }
+          Class<?> fieldType = field.getType();
+          while (fieldType.isArray()) {
+            fieldType = fieldType.getComponentType();
+          }
+          if (IFormatReader.class.isAssignableFrom(fieldType)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+  }
+
   // -- Constants --
 
   /**
@@ -333,7 +626,15 @@ public class Memoizer extends ReaderWrapper {
    * cached items. This should happen when the order and type of objects stored
    * in the memo file changes.
    */
-  public static final Integer VERSION = 3;
+  public static final Integer VERSION = 4;
+
+  /**
+   * File version of memo files in which everything following the version
+   * is deflate-compressed. Derived from {@link #VERSION} so that bumping
+   * the default version also invalidates compressed memo files. Only
+   * supported by {@link KryoDeser}.
+   */
+  public static final Integer COMPRESSED_VERSION = -VERSION;
 
   /**
    * Default value for {@link #minimumElapsed} if none is provided in the
@@ -347,6 +648,46 @@ public class Memoizer extends ReaderWrapper {
   private static final Logger LOGGER =
     LoggerFactory.getLogger(Memoizer.class);
 
+  /**
+   * Readers whose state is not modified once the file has been initialized,
+   * other than through primitive or transient fields, so that
+   * {@link #openClone()} may share it between clones.  Every other reader
+   * is copied in full.
+   */
+  private static final Set<String> SHAREABLE_READERS =
+    new HashSet<String>(Arrays.asList(
+      "loci.formats.ImageReader",
+      "loci.formats.ChannelFiller",
+      "loci.formats.ChannelMerger",
+      "loci.formats.ChannelSeparator",
+      "loci.formats.MinMaxCalculator",
+      "loci.formats.in.FakeReader",
+      "loci.formats.in.MinimalTiffReader",
+      "loci.formats.in.TiffReader"));
+
+  /**
+   * {@link Kryo} instances used by {@link #openClone()} for shareable
+   * delegate chains, one per thread.
+   */
+  private static final ThreadLocal<Kryo> CLONE_KRYO = new ThreadLocal<Kryo>() {
+    @Override
+    protected Kryo initialValue() {
+      return new CloneKryo(false);
+    }
+  };
+
+  /**
+   * {@link Kryo} instances used by {@link #openClone()} for all other
+   * delegate chains, one per thread.
+   */
+  private static final ThreadLocal<Kryo> DEEP_CLONE_KRYO =
+    new ThreadLocal<Kryo>() {
+      @Override
+      protected Kryo initialValue() {
+        return new CloneKryo(true);
+      }
+    };
+
   // -- Fields --
 
   /**
@@ -373,6 +714,21 @@ public class Memoizer extends ReaderWrapper {
 
   private transient OMEXMLService service;
 
+  /**
+   * In-memory cache of memo file contents; null if memo files are always
+   * read from disk.
+   */
+  private transient MemoCache memoCache;
+
+  /**
+   * Executor used to write memo files in the background; null if memo
+   * files are written synchronously during {@link #setId(String)}.
+   */
+  private transient Executor saveExecutor;
+
+  /** Whether new memo files are written with {@link #COMPRESSED_VERSION}. */
+  private boolean memoCompression = false;
+
   private Location realFile;
 
   private File memoFile;
@@ -607,6 +963,148 @@ public class Memoizer extends ReaderWrapper {
     this.versionChecking = version;
   }
 
+  /**
+   * Set the in-memory cache used to avoid re-reading memo files from disk.
+   * The same {@link MemoCache} may be shared by many {@link Memoizer}
+   * instances. Only memo files read by a {@link KryoDeser} are cached.
+   *
+   * @param cache the cache to use, or {@code null} to always read memo
+   *        files from disk
+   */
+  public void setMemoCache(MemoCache cache) {
+    this.memoCache = cache;
+  }
+
+  /**
+   * Returns the in-memory cache of memo file contents, or {@code null} if
+   * none has been set.
+   */
+  public MemoCache getMemoCache() {
+    return memoCache;
+  }
+
+  /**
+   * Set the executor used to write memo files in the background.
+   *
+   * If non-null, {@link #setId(String)} takes an in-memory snapshot of the
+   * initialized reader and returns without waiting for the memo file to be
+   * written. The memo file will not be found by other {@link Memoizer}
+   * instances until the executor has run the write.
+   *
+   * @param executor the executor to use, or {@code null} to write memo
+   *        files synchronously (default)
+   */
+  public void setSaveExecutor(Executor executor) {
+    this.saveExecutor = executor;
+  }
+
+  /**
+   * Returns the executor used to write memo files in the background, or
+   * {@code null} if memo files are written synchronously.
+   */
+  public Executor getSaveExecutor() {
+    return saveExecutor;
+  }
+
+  /**
+   * Set whether new memo files are compressed.
+   *
+   * Compressed memo files are written with {@link #COMPRESSED_VERSION} and
+   * can be read regardless of this setting. Compression is only supported
+   * by {@link KryoDeser}; other {@link Deser} implementations always write
+   * uncompressed memo files.
+   *
+   * @param compress {@code true} to compress new memo files
+   */
+  public void setMemoCompression(boolean compress) {
+    this.memoCompression = compress;
+  }
+
+  /** Returns whether new memo files are compressed. */
+  public boolean isMemoCompression() {
+    return memoCompression;
+  }
+
+  /**
+   * Creates a lightweight copy of this reader for use by another thread.
+   *
+   * The copy does not initialize the file again or load its memo file.  If
+   * every reader in the delegate chain is known not to modify its parsed
+   * metadata after initialization, the copy shares that metadata (core
+   * metadata, original metadata and format-specific structures such as
+   * TIFF IFDs) with this reader, and only the readers themselves are
+   * copied, without their transient fields such as plane caches.
+   * Otherwise the whole chain is copied, as if it had been loaded from a
+   * memo file.  Either way the metadata store is shared, and the copy opens
+   * its own stream.
+   *
+   * Shared metadata must be treated as immutable: changing it through
+   * either reader (e.g. by calling {@link #setId(String)} on this reader
+   * while the copy is in use) affects both. Each copy must be closed
+   * independently.
+   *
+   * @return a new {@link Memoizer} that is open on the same file
+   * @throws FormatException if the delegate chain could not be copied
+   * @throws IOException if the copy could not reopen the file
+   */
+  public Memoizer openClone() throws FormatException, IOException {
+    FormatTools.assertId(getCurrentFile(), true, 1);
+    long timer = Metrics.startTimer();
+    IFormatReader copy;
+    try {
+      Kryo kryo =
+        isShareable(reader) ? CLONE_KRYO.get() : DEEP_CLONE_KRYO.get();
+      copy = kryo.copy(reader);
+    }
+    catch (KryoException e) {
+      throw new FormatException("Could not clone reader", e);
+    }
+
+    Memoizer clone = new Memoizer(copy, minimumElapsed, directory);
+    clone.doInPlaceCaching = doInPlaceCaching;
+    clone.memoCache = memoCache;
+    clone.saveExecutor = saveExecutor;
+    clone.memoCompression = memoCompression;
+    clone.versionChecking = versionChecking;
+    clone.realFile = realFile;
+    clone.memoFile = memoFile;
+    clone.loadedFromMemo = loadedFromMemo;
+    clone.userMetadataStore = userMetadataStore;
+    try {
+      copy.reopenFile();
+    }
+    catch (IOException e) {
+      copy.close();
+      throw e;
+    }
+    finally {
+      Metrics.stopTimer(Metrics.MEMO_CLONE_TIME, timer);
+    }
+    return clone;
+  }
+
+  /**
+   * Returns true if the given reader and all of its delegates are in
+   * {@link #SHAREABLE_READERS}.
+   */
+  private static boolean isShareable(IFormatReader r) {
+    while (r != null) {
+      if (!SHAREABLE_READERS.contains(r.getClass().getName())) {
+        return false;
+      }
+      if (r instanceof ReaderWrapper) {
+        r = ((ReaderWrapper) r).getReader();
+      }
+      else if (r instanceof ImageReader) {
+        r = ((ImageReader) r).getReader();
+      }
+      else {
+        r = null;
+      }
+    }
+    return true;
+  }
+
   protected void cleanup() {
     if (ser != null) {
       ser.close();
@@ -637,6 +1135,7 @@ public class Memoizer extends ReaderWrapper {
   @Override
   public void setId(String id) throws FormatException, IOException {
     StopWatch sw = stopWatch();
+    long timer = Metrics.startTimer();
     try {
       realFile = new Location(id);
       memoFile = getMemoFile(id);
@@ -670,6 +1169,9 @@ public class Memoizer extends ReaderWrapper {
         }
       }
 
+      Metrics.increment(loadedFromMemo ?
+        Metrics.MEMO_HITS : Metrics.MEMO_MISSES, 1);
+
       if (memo == null) {
         OMEXMLService service = getService();
         super.setMetadataStore(service.createOMEXMLMetadata());
@@ -681,12 +1183,18 @@ public class Memoizer extends ReaderWrapper {
           LOGGER.debug("skipping save memo. elapsed millis: {}", elapsed);
           return; // EARLY EXIT!
         }
-        savedToMemo = saveMemo(); // Should never throw.
+        if (saveExecutor != null) {
+          savedToMemo = saveMemoInBackground(); // Should never throw.
+        }
+        else {
+          savedToMemo = saveMemo(); // Should never throw.
+        }
       }
     } catch (ServiceException e) {
       LOGGER.error("Could not create OMEXMLMetadata", e);
     } finally {
       sw.stop("loci.formats.Memoizer.setId");
+      Metrics.stopTimer(Metrics.MEMO_SET_ID_TIME, timer);
     }
   }
 
@@ -714,6 +1222,9 @@ public class Memoizer extends ReaderWrapper {
    * an exception is thrown.
    */
   protected boolean deleteQuietly(File file) {
+    if (memoCache != null && file != null) {
+      memoCache.remove(file);
+    }
     try {
       if (file != null && file.exists()) {
         if (file.delete()) {
@@ -845,12 +1356,27 @@ public class Memoizer extends ReaderWrapper {
     final Deser ser = getDeser();
     final StopWatch sw = stopWatch();
     IFormatReader copy = null;
-    ser.loadStart(memoFile);
+    if (memoCache != null && ser instanceof KryoDeser) {
+      byte[] memo = memoCache.get(memoFile);
+      if (memo == null) {
+        memo = Files.readAllBytes(memoFile.toPath());
+        memoCache.put(memoFile, memoLast, memo);
+      }
+      else {
+        LOGGER.trace("Memo file found in memory: {}", memoFile);
+      }
+      ((KryoDeser) ser).loadStart(memo);
+    }
+    else {
+      ser.loadStart(memoFile);
+    }
     try {
 
       // VERSION
       Integer version = ser.loadVersion();
-      if (!VERSION.equals(version)) {
+      if (!VERSION.equals(version) && !(COMPRESSED_VERSION.equals(version) &&
+        ser instanceof KryoDeser))
+      {
         LOGGER.info("Old version of memo file: {} not {}", version, VERSION);
         return null;
       }
@@ -941,7 +1467,7 @@ public class Memoizer extends ReaderWrapper {
       ser.saveStart(tempFile);
 
       // Save to temporary location.
-      ser.saveVersion(VERSION);
+      ser.saveVersion(getSaveVersion(ser));
       ser.saveReleaseVersion(FormatTools.VERSION);
       ser.saveReader(reader);
       ser.saveStop();
@@ -968,6 +1494,9 @@ public class Memoizer extends ReaderWrapper {
       // Note: renaming the tempfile with open
       // resources can lead to segfaults
       if (rv) {
+        if (memoCache != null) {
+          memoCache.remove(memoFile);
+        }
         if (!tempFile.renameTo(memoFile)) {
           LOGGER.error("temp file rename returned false: {}", tempFile);
         } else {
@@ -982,6 +1511,110 @@ public class Memoizer extends ReaderWrapper {
   }
 
 
+  /**
+   * Save a reader including all reader wrappers inside a memo file, using
+   * {@link #getSaveExecutor()} to write the file.
+   *
+   * The reader is serialized into memory before this method returns, so
+   * it may be used as soon as this method returns. Only writing the memo
+   * file to disk happens in the background. If the current {@link Deser}
+   * is not a {@link KryoDeser}, or no executor has been set, this is
+   * equivalent to {@link #saveMemo()}.
+   *
+   * @return {@code true} if the snapshot was taken and handed to the
+   *         executor
+   */
+  public boolean saveMemoInBackground() {
+
+    if (skipSave) {
+      LOGGER.trace("skip memo");
+      return false;
+    }
+
+    final Deser ser = getDeser();
+    if (saveExecutor == null || !(ser instanceof KryoDeser)) {
+      return saveMemo();
+    }
+
+    final StopWatch sw = stopWatch();
+    ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+    try {
+      ((KryoDeser) ser).saveStart(snapshot);
+      ser.saveVersion(getSaveVersion(ser));
+      ser.saveReleaseVersion(FormatTools.VERSION);
+      ser.saveReader(reader);
+      ser.saveStop();
+    } catch (Throwable t) {
+      LOGGER.warn(String.format("failed to save memo file: %s", memoFile), t);
+      return false;
+    } finally {
+      try {
+        ser.saveStop();
+        sw.stop("loci.formats.Memoizer.saveMemoInBackground");
+      } catch (Throwable t) {
+        LOGGER.error("output close failed", t);
+      }
+    }
+
+    final File target = memoFile;
+    final byte[] memo = snapshot.toByteArray();
+    try {
+      saveExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          writeMemo(target, memo);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("failed to schedule save of memo file: {}", target, e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes a serialized reader to the given memo file via a temporary file.
+   */
+  private void writeMemo(File target, byte[] memo) {
+    final StopWatch sw = stopWatch();
+    File temp = null;
+    try {
+      temp = File.createTempFile(target.getName(), "", target.getParentFile());
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(memo);
+      } finally {
+        out.close();
+      }
+
+      MemoCache cache = memoCache;
+      if (cache != null) {
+        cache.remove(target);
+      }
+      if (!temp.renameTo(target)) {
+        LOGGER.error("temp file rename returned false: {}", temp);
+      } else {
+        LOGGER.debug("saved memo file: {} ({} bytes)", target, memo.length);
+        if (cache != null) {
+          cache.put(target, target.lastModified(), memo);
+        }
+      }
+    } catch (Throwable t) {
+      LOGGER.warn(String.format("failed to save memo file: %s", target), t);
+    } finally {
+      deleteQuietly(temp);
+      sw.stop("loci.formats.Memoizer.writeMemo");
+    }
+  }
+
+  /** Returns the file version to use when saving with the given Deser. */
+  private Integer getSaveVersion(Deser ser) {
+    if (memoCompression && ser instanceof KryoDeser) {
+      return COMPRESSED_VERSION;
+    }
+    return VERSION;
+  }
+
   /**
    * Return the {@link IFormatReader} instance that is passed in or null if
    * it has been invalidated, which will include the instance being closed.
@@ -0,0 +1,198 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats;
+
+/**
+ * Entry point for the counters and latency histograms published by the
+ * readers, writers and wrappers in this package.
+ *
+ * Metrics are disabled by default.  Installing a {@link MetricsRecorder}
+ * with {@link #setRecorder(MetricsRecorder)} enables them for the whole
+ * process; until then, each instrumented call site costs a single volatile
+ * read.  Timings are recorded in nanoseconds.  The processing times
+ * recorded by wrappers (see {@link #processTime(Class)}) exclude the time
+ * spent reading from the wrapped reader, so that I/O, decoding and copying
+ * can be told apart.
+ *
+ * Typical instrumentation looks like:
+ *
+ * <pre>
+ * long start = Metrics.startTimer();
+ * byte[] tile = compression.decompress(raw, options);
+ * Metrics.stopTimer(Metrics.TIFF_DECOMPRESS_TIME, start);
+ * Metrics.increment(Metrics.TIFF_TILES_DECODED, 1);
+ * </pre>
+ */
+public final class Metrics {
+
+  // -- Constants --
+
+  /** Counter: compressed tile and strip bytes read by TiffParser. */
+  public static final String TIFF_BYTES_READ = "TiffParser.bytesRead";
+
+  /** Histogram: time spent reading a compressed tile or strip. */
+  public static final String TIFF_READ_TIME = "TiffParser.readTime";
+
+  /** Counter: tiles and strips decoded by TiffParser. */
+  public static final String TIFF_TILES_DECODED = "TiffParser.tilesDecoded";
+
+  /** Histogram: time spent decompressing a tile or strip. */
+  public static final String TIFF_DECOMPRESS_TIME =
+    "TiffParser.decompressTime";
+
+  /** Histogram: time spent unpacking a decompressed tile or strip. */
+  public static final String TIFF_UNPACK_TIME = "TiffParser.unpackTime";
+
+  /** Counter: compressed tile and strip bytes written by TiffSaver. */
+  public static final String TIFF_BYTES_WRITTEN = "TiffSaver.bytesWritten";
+
+  /** Counter: tiles and strips compressed by TiffSaver. */
+  public static final String TIFF_TILES_ENCODED = "TiffSaver.tilesEncoded";
+
+  /** Histogram: time spent compressing a tile or strip. */
+  public static final String TIFF_COMPRESS_TIME = "TiffSaver.compressTime";
+
+  /** Counter: Memoizer initializations satisfied from a memo file. */
+  public static final String MEMO_HITS = "Memoizer.hits";
+
+  /** Counter: Memoizer initializations that had to parse the file. */
+  public static final String MEMO_MISSES = "Memoizer.misses";
+
+  /** Histogram: time spent in Memoizer.setId. */
+  public static final String MEMO_SET_ID_TIME = "Memoizer.setIdTime";
+
+  /** Histogram: time spent creating a reader clone in Memoizer.openClone. */
+  public static final String MEMO_CLONE_TIME = "Memoizer.cloneTime";
+
+  /** Counter: BufferPool borrows satisfied by a retained array. */
+  public static final String POOL_HITS = "BufferPool.hits";
+
+  /** Counter: bytes newly allocated by BufferPool borrows. */
+  public static final String POOL_ALLOCATED_BYTES =
+    "BufferPool.allocatedBytes";
+
+  /** Counter: ChannelSeparator requests served from its plane cache. */
+  public static final String SEPARATOR_CACHE_HITS =
+    "ChannelSeparator.cacheHits";
+
+  /**
+   * Histogram: time spent in FileStitcher.openBytes, including the time
+   * spent in the reader for the underlying file.
+   */
+  public static final String STITCHER_OPEN_BYTES_TIME =
+    "FileStitcher.openBytesTime";
+
+  /** Suffix of the histograms returned by {@link #processTime(Class)}. */
+  public static final String PROCESS_TIME = ".processTime";
+
+  // -- Static fields --
+
+  private static volatile MetricsRecorder recorder;
+
+  // -- Constructor --
+
+  private Metrics() { }
+
+  // -- Static Metrics API methods --
+
+  /**
+   * Sets the recorder to which all metrics are published, or null to
+   * disable metrics.
+   */
+  public static void setRecorder(MetricsRecorder r) {
+    recorder = r;
+  }
+
+  /** Gets the current recorder, or null if metrics are disabled. */
+  public static MetricsRecorder getRecorder() {
+    return recorder;
+  }
+
+  /** Returns true if a recorder is installed. */
+  public static boolean isEnabled() {
+    return recorder != null;
+  }
+
+  /**
+   * Gets the name of the histogram that records the time a wrapper spends
+   * processing pixels it has read from the wrapped reader, e.g.
+   * "ChannelFiller.processTime".
+   */
+  public static String processTime(Class<?> c) {
+    return c.getSimpleName() + PROCESS_TIME;
+  }
+
+  /** Adds the given amount to the named counter, if metrics are enabled. */
+  public static void increment(String name, long delta) {
+    MetricsRecorder r = recorder;
+    if (r != null) {
+      r.increment(name, delta);
+    }
+  }
+
+  /**
+   * Records a single observation in the named histogram, if metrics are
+   * enabled.
+   */
+  public static void record(String name, long value) {
+    MetricsRecorder r = recorder;
+    if (r != null) {
+      r.record(name, value);
+    }
+  }
+
+  /**
+   * Starts timing an operation.
+   *
+   * @return the current time in nanoseconds, or 0 if metrics are disabled
+   */
+  public static long startTimer() {
+    return recorder == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * Records the time elapsed since the given start time in the named
+   * histogram.  Nothing is recorded if the timer was started while metrics
+   * were disabled.
+   *
+   * @param start the value returned by {@link #startTimer()}
+   */
+  public static void stopTimer(String name, long start) {
+    MetricsRecorder r = recorder;
+    if (r != null && start != 0) {
+      r.record(name, System.nanoTime() - start);
+    }
+  }
+
+}
@@ -33,9 +33,22 @@
 package loci.formats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import loci.common.DataTools;
 import loci.formats.meta.IMinMaxStore;
 
 /**
@@ -43,6 +56,32 @@ import loci.formats.meta.IMinMaxStore;
  */
 public class MinMaxCalculator extends ReaderWrapper {
 
+  // -- Constants --
+
+  /**
+   * Minimum number of samples in a plane before the plane is split across
+   * multiple threads; see {@link #setThreadCount(int)}.
+   */
+  public static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
+  private static final String PROCESS_TIME =
+    Metrics.processTime(MinMaxCalculator.class);
+
+  /**
+   * Creates the threads used to scan large planes. They are daemon threads,
+   * so a calculator that is never closed does not keep the JVM alive.
+   */
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+    private final ThreadFactory factory = Executors.defaultThreadFactory();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = factory.newThread(r);
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
   // -- Utility methods --
 
   /** Converts the given reader into a MinMaxCalculator, wrapping if needed. */
@@ -53,24 +92,33 @@ public class MinMaxCalculator extends ReaderWrapper {
 
   // -- Fields --
 
+  // NB: the min/max values are computed as planes are read, so they are
+  // not shared with reader clones, which compute their own
+
   /** Min values for each channel. */
-  protected double[][] chanMin;
+  protected transient double[][] chanMin;
 
   /** Max values for each channel. */
-  protected double[][] chanMax;
+  protected transient double[][] chanMax;
 
   /** Min values for each plane. */
-  protected double[][] planeMin;
+  protected transient double[][] planeMin;
 
   /** Max values for each plane. */
-  protected double[][] planeMax;
+  protected transient double[][] planeMax;
 
   /** Number of planes for which min/max computations have been completed. */
-  protected int[] minMaxDone;
+  protected transient int[] minMaxDone;
 
   /** Consumer of channel global minima and maxima */
   protected IMinMaxStore minMaxStore;
 
+  /** Number of threads used to scan large planes. */
+  private int threadCount = 1;
+
+  /** Thread pool used to scan large planes; created on first use. */
+  private transient ExecutorService threadPool;
+
   // -- Constructors --
 
   /** Constructs a MinMaxCalculator around a new image reader. */
@@ -97,6 +145,31 @@ public class MinMaxCalculator extends ReaderWrapper {
     return minMaxStore;
   }
 
+  /**
+   * Sets the number of threads used to compute the minimum and maximum of
+   * planes with at least {@link #PARALLEL_THRESHOLD} samples.
+   * The default is 1, i.e. all planes are scanned on the calling thread.
+   * @param threads See above.
+   */
+  public void setThreadCount(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    if (threads != threadCount && threadPool != null) {
+      threadPool.shutdown();
+      threadPool = null;
+    }
+    threadCount = threads;
+  }
+
+  /**
+   * Retrieves the number of threads used to compute minima and maxima.
+   * @return See above.
+   */
+  public int getThreadCount() {
+    return threadCount;
+  }
+
   // -- MinMaxCalculator API methods --
 
   /**
@@ -267,8 +340,10 @@ public class MinMaxCalculator extends ReaderWrapper {
   {
     FormatTools.assertId(getCurrentFile(), true, 2);
     super.openBytes(no, buf, x, y, w, h);
-    
+
+    long start = Metrics.startTimer();
     updateMinMax(no, buf, FormatTools.getBytesPerPixel(getPixelType()) * w * h);
+    Metrics.stopTimer(PROCESS_TIME, start);
     return buf;
   }
 
@@ -277,6 +352,10 @@ public class MinMaxCalculator extends ReaderWrapper {
   public void close(boolean fileOnly) throws IOException {
     reader.close(fileOnly);
     if (!fileOnly) {
+      if (threadPool != null) {
+        threadPool.shutdown();
+        threadPool = null;
+      }
       chanMin = null;
       chanMax = null;
       planeMin = null;
@@ -331,30 +410,15 @@ public class MinMaxCalculator extends ReaderWrapper {
       planeMax[series][pBase + c] = Double.NEGATIVE_INFINITY;
     }
 
-    boolean signed = FormatTools.isSigned(pixelType);
+    double[][] minMax = scan(buf, pixelType, little, pixels, numRGB,
+      interleaved);
 
-    long threshold = (long) Math.pow(2, bpp * 8 - 1);
-    for (int i=0; i<pixels; i++) {
-      for (int c=0; c<numRGB; c++) {
-        int idx = bpp * (interleaved ? i * numRGB + c : c * pixels + i);
-        long bits = DataTools.bytesToLong(buf, idx, bpp, little);
-        if (signed) {
-          if (bits >= threshold) bits -= 2*threshold;
-        }
-        double v = bits;
-        if (pixelType == FormatTools.FLOAT) {
-          v = Float.intBitsToFloat((int) bits);
-        }
-        else if (pixelType == FormatTools.DOUBLE) {
-          v = Double.longBitsToDouble(bits);
-        }
-
-        if (v > chanMax[series][cBase + c]) {
-          chanMax[series][cBase + c] = v;
-        }
-        if (v < chanMin[series][cBase + c]) {
-          chanMin[series][cBase + c] = v;
-        }
+    for (int c=0; c<numRGB; c++) {
+      if (minMax[c][1] > chanMax[series][cBase + c]) {
+        chanMax[series][cBase + c] = minMax[c][1];
+      }
+      if (minMax[c][0] < chanMin[series][cBase + c]) {
+        chanMin[series][cBase + c] = minMax[c][0];
       }
     }
 
@@ -376,6 +440,209 @@ public class MinMaxCalculator extends ReaderWrapper {
     }
   }
 
+  /**
+   * Computes the minimum and maximum of each channel in the given buffer,
+   * splitting large planes across {@link #getThreadCount()} threads.
+   *
+   * @return an array of {minimum, maximum} pairs, one per channel
+   */
+  private double[][] scan(final byte[] buf, final int pixelType,
+    final boolean little, final int pixels, final int numRGB,
+    final boolean interleaved)
+    throws FormatException
+  {
+    if (threadCount == 1 || (long) pixels * numRGB < PARALLEL_THRESHOLD) {
+      return scan(buf, pixelType, little, 0, pixels, pixels, numRGB,
+        interleaved);
+    }
+
+    if (threadPool == null) {
+      threadPool = Executors.newFixedThreadPool(threadCount, THREAD_FACTORY);
+    }
+    List<Future<double[][]>> results = new ArrayList<Future<double[][]>>();
+    int chunk = (pixels + threadCount - 1) / threadCount;
+    for (int start=0; start<pixels; start+=chunk) {
+      final int first = start;
+      final int last = Math.min(start + chunk, pixels);
+      results.add(threadPool.submit(new Callable<double[][]>() {
+        @Override
+        public double[][] call() {
+          return scan(buf, pixelType, little, first, last, pixels, numRGB,
+            interleaved);
+        }
+      }));
+    }
+
+    double[][] minMax = newMinMax(numRGB);
+    try {
+      for (Future<double[][]> result : results) {
+        double[][] partial = result.get();
+        for (int c=0; c<numRGB; c++) {
+          if (partial[c][0] < minMax[c][0]) minMax[c][0] = partial[c][0];
+          if (partial[c][1] > minMax[c][1]) minMax[c][1] = partial[c][1];
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while computing min/max", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not compute min/max", e.getCause());
+    }
+    return minMax;
+  }
+
+  /**
+   * Computes the minimum and maximum of each channel over the pixels
+   * [first, last) of the given buffer.
+   *
+   * @param pixels the total number of pixels per channel in the buffer
+   * @return an array of {minimum, maximum} pairs, one per channel
+   */
+  private static double[][] scan(byte[] buf, int pixelType, boolean little,
+    int first, int last, int pixels, int numRGB, boolean interleaved)
+  {
+    double[][] minMax = newMinMax(numRGB);
+    if (last <= first) {
+      return minMax;
+    }
+    ByteBuffer bytes = ByteBuffer.wrap(buf);
+    bytes.order(little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+    int stride = interleaved ? numRGB : 1;
+    int count = last - first;
+    for (int c=0; c<numRGB; c++) {
+      int offset = interleaved ? first * numRGB + c : c * pixels + first;
+      switch (pixelType) {
+        case FormatTools.INT8:
+          scanInt8(buf, offset, stride, count, minMax[c]);
+          break;
+        case FormatTools.UINT8:
+        case FormatTools.BIT:
+          scanUint8(buf, offset, stride, count, minMax[c]);
+          break;
+        case FormatTools.INT16:
+        case FormatTools.UINT16:
+          scanShorts(bytes.asShortBuffer(), offset, stride, count,
+            pixelType == FormatTools.INT16, minMax[c]);
+          break;
+        case FormatTools.INT32:
+        case FormatTools.UINT32:
+          scanInts(bytes.asIntBuffer(), offset, stride, count,
+            pixelType == FormatTools.INT32, minMax[c]);
+          break;
+        case FormatTools.FLOAT:
+          scanFloats(bytes.asFloatBuffer(), offset, stride, count, minMax[c]);
+          break;
+        case FormatTools.DOUBLE:
+          scanDoubles(bytes.asDoubleBuffer(), offset, stride, count,
+            minMax[c]);
+          break;
+        default:
+          throw new IllegalArgumentException(
+            "Unsupported pixel type: " + pixelType);
+      }
+    }
+    return minMax;
+  }
+
+  private static double[][] newMinMax(int numRGB) {
+    double[][] minMax = new double[numRGB][2];
+    for (int c=0; c<numRGB; c++) {
+      minMax[c][0] = Double.POSITIVE_INFINITY;
+      minMax[c][1] = Double.NEGATIVE_INFINITY;
+    }
+    return minMax;
+  }
+
+  private static void scanInt8(byte[] buf, int offset, int stride, int count,
+    double[] minMax)
+  {
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      int v = buf[i];
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
+  private static void scanUint8(byte[] buf, int offset, int stride, int count,
+    double[] minMax)
+  {
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      int v = buf[i] & 0xff;
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
+  private static void scanShorts(ShortBuffer buf, int offset, int stride,
+    int count, boolean signed, double[] minMax)
+  {
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    int mask = signed ? 0xffffffff : 0xffff;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      int v = buf.get(i) & mask;
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
+  private static void scanInts(IntBuffer buf, int offset, int stride,
+    int count, boolean signed, double[] minMax)
+  {
+    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+    long mask = signed ? 0xffffffffffffffffL : 0xffffffffL;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      long v = buf.get(i) & mask;
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
+  private static void scanFloats(FloatBuffer buf, int offset, int stride,
+    int count, double[] minMax)
+  {
+    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      float v = buf.get(i);
+      // comparisons are false for NaN, which is therefore ignored
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
+  private static void scanDoubles(DoubleBuffer buf, int offset, int stride,
+    int count, double[] minMax)
+  {
+    double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    int end = offset + count * stride;
+    for (int i=offset; i<end; i+=stride) {
+      double v = buf.get(i);
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    minMax[0] = min;
+    minMax[1] = max;
+  }
+
   /**
    * Ensures internal min/max variables are initialized properly. 
    *
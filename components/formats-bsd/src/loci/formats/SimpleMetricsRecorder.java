@@ -0,0 +1,246 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link MetricsRecorder} that accumulates counters and histograms in
+ * memory, and can report them as text.
+ *
+ * Histograms keep the count, sum, minimum and maximum of their values, and
+ * count values in power-of-two buckets; percentiles are therefore
+ * approximate, and never more than twice the true value.
+ *
+ * <pre>
+ * SimpleMetricsRecorder metrics = new SimpleMetricsRecorder();
+ * Metrics.setRecorder(metrics);
+ * ...
+ * System.out.println(metrics.report());
+ * </pre>
+ */
+public class SimpleMetricsRecorder implements MetricsRecorder {
+
+  // -- Fields --
+
+  private final ConcurrentMap<String, AtomicLong> counters =
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  private final ConcurrentMap<String, Histogram> histograms =
+    new ConcurrentHashMap<String, Histogram>();
+
+  // -- MetricsRecorder API methods --
+
+  @Override
+  public void increment(String name, long delta) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  @Override
+  public void record(String name, long value) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    histogram.record(value);
+  }
+
+  // -- SimpleMetricsRecorder API methods --
+
+  /** Gets the value of the named counter, or 0 if it was never incremented. */
+  public long getCount(String name) {
+    AtomicLong counter = counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /** Gets the named histogram, or null if nothing was recorded in it. */
+  public Histogram getHistogram(String name) {
+    return histograms.get(name);
+  }
+
+  /** Gets the sorted names of all counters. */
+  public List<String> getCounterNames() {
+    List<String> names = new ArrayList<String>(counters.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  /** Gets the sorted names of all histograms. */
+  public List<String> getHistogramNames() {
+    List<String> names = new ArrayList<String>(histograms.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  /** Discards all counters and histograms. */
+  public void reset() {
+    counters.clear();
+    histograms.clear();
+  }
+
+  /**
+   * Gets a report of all counters and histograms, one per line, sorted by
+   * name.
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    for (String name : getCounterNames()) {
+      sb.append(name).append(": ").append(getCount(name)).append("\n");
+    }
+    for (String name : getHistogramNames()) {
+      sb.append(name).append(": ").append(histograms.get(name)).append("\n");
+    }
+    return sb.toString();
+  }
+
+  // -- Object API methods --
+
+  @Override
+  public String toString() {
+    return report();
+  }
+
+  // -- Helper classes --
+
+  /** Thread-safe summary of the values recorded under one name. */
+  public static class Histogram {
+
+    /** Number of buckets; bucket i counts values in [2^i, 2^(i+1)). */
+    private static final int BUCKETS = 64;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** Records a single value; negative values are counted as 0. */
+    public void record(long value) {
+      if (value < 0) value = 0;
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      buckets.incrementAndGet(bucket(value));
+
+      long current = min.get();
+      while (value < current && !min.compareAndSet(current, value)) {
+        current = min.get();
+      }
+      current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+
+    /** Gets the number of recorded values. */
+    public long getCount() {
+      return count.get();
+    }
+
+    /** Gets the sum of the recorded values. */
+    public long getSum() {
+      return sum.get();
+    }
+
+    /** Gets the smallest recorded value, or 0 if none were recorded. */
+    public long getMin() {
+      return getCount() == 0 ? 0 : min.get();
+    }
+
+    /** Gets the largest recorded value, or 0 if none were recorded. */
+    public long getMax() {
+      return getCount() == 0 ? 0 : max.get();
+    }
+
+    /** Gets the mean of the recorded values, or 0 if none were recorded. */
+    public double getMean() {
+      long n = getCount();
+      return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * Gets an upper bound on the given percentile of the recorded values.
+     *
+     * @param percentile a percentile between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+      if (percentile < 0 || percentile > 100) {
+        throw new IllegalArgumentException(
+          "Invalid percentile: " + percentile);
+      }
+      long n = getCount();
+      if (n == 0) return 0;
+      long rank = (long) Math.ceil(n * percentile / 100);
+      long seen = 0;
+      for (int i=0; i<BUCKETS; i++) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          long upper = i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1;
+          return Math.min(upper, getMax());
+        }
+      }
+      return getMax();
+    }
+
+    @Override
+    public String toString() {
+      return "count=" + getCount() + " min=" + getMin() + " mean=" +
+        Math.round(getMean()) + " p50=" + getPercentile(50) + " p99=" +
+        getPercentile(99) + " max=" + getMax();
+    }
+
+    private static int bucket(long value) {
+      return value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+    }
+
+  }
+
+}
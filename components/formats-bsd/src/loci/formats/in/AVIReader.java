@@ -63,6 +63,12 @@ public class AVIReader extends FormatReader {
 
   public static final String AVI_MAGIC_STRING = "RIFF";
 
+  /**
+   * Option key for the number of frames between decoded snapshots of
+   * delta-coded movies; 0 disables snapshots.
+   */
+  public static final String SNAPSHOT_INTERVAL_KEY = "avi.snapshot_interval";
+
   /** Supported compression types. */
   private static final int MSRLE = 1;
   private static final int MS_VIDEO = 1296126531;
@@ -70,6 +76,9 @@ public class AVIReader extends FormatReader {
   private static final int JPEG = 1196444237;
   private static final int Y8 = 538982489;
 
+  /** idx1 flag indicating that a chunk is a keyframe. */
+  private static final int AVIIF_KEYFRAME = 0x10;
+
   /** Huffman table for MJPEG data. */
   private static final byte[] MJPEG_HUFFMAN_TABLE = new byte[] {
     (byte) 0xff, (byte) 0xc4, 1, (byte) 0xa2, 0, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0,
@@ -149,6 +158,18 @@ public class AVIReader extends FormatReader {
   private byte[] lastImage;
   private int lastImageNo;
 
+  /**
+   * Indices of keyframes, as flagged in the idx1 chunk; only used while
+   * the file is being parsed.
+   */
+  private transient List<Integer> keyframes;
+
+  /** Indices of keyframes, in the order they appear in the file. */
+  private int[] keyframeIndex;
+
+  /** Decoded frame cache for delta-coded planes; see getFrameCache(). */
+  private transient VideoFrameCache frameCache;
+
   // -- Constructor --
 
   /** Constructs a new AVI reader. */
@@ -158,6 +179,21 @@ public class AVIReader extends FormatReader {
     domains = new String[] {FormatTools.GRAPHICS_DOMAIN};
   }
 
+  // -- AVIReader API methods --
+
+  /**
+   * Gets the number of frames between decoded snapshots, as used when
+   * seeking within delta-coded movies.
+   */
+  public int getSnapshotInterval() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+        SNAPSHOT_INTERVAL_KEY, VideoFrameCache.DEFAULT_SNAPSHOT_INTERVAL);
+    }
+    return VideoFrameCache.DEFAULT_SNAPSHOT_INTERVAL;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -295,6 +331,9 @@ public class AVIReader extends FormatReader {
       lut = null;
       lastImage = null;
       lastImageNo = -1;
+      keyframes = null;
+      keyframeIndex = null;
+      frameCache = null;
     }
   }
 
@@ -312,6 +351,7 @@ public class AVIReader extends FormatReader {
 
     offsets = new ArrayList<Long>();
     lengths = new ArrayList<Long>();
+    keyframes = new ArrayList<Integer>();
     lastImageNo = -1;
 
     while (in.getFilePointer() < in.length() - 8) {
@@ -325,6 +365,12 @@ public class AVIReader extends FormatReader {
     ms0.littleEndian = true;
     ms0.interleaved = bmpBitsPerPixel != 16;
 
+    keyframeIndex = new int[keyframes.size()];
+    for (int i=0; i<keyframeIndex.length; i++) {
+      keyframeIndex[i] = keyframes.get(i);
+    }
+    keyframes = null;
+
     addGlobalMeta("Compression", getCodecName(bmpCompression));
 
     if (bmpCompression == JPEG) {
@@ -394,24 +440,57 @@ public class AVIReader extends FormatReader {
 
   // -- Helper methods --
 
+  /**
+   * Returns the decoded frame cache, creating it on first use.  The cache is
+   * not stored in memo files or copied into clones, so it is rebuilt from
+   * the keyframe index after the reader has been reloaded.
+   */
+  private VideoFrameCache getFrameCache() {
+    if (frameCache == null) {
+      frameCache = new VideoFrameCache(keyframeIndex);
+      frameCache.setSnapshotInterval(getSnapshotInterval());
+    }
+    return frameCache;
+  }
+
   private byte[] uncompress(int no, byte[] buf)
     throws FormatException, IOException
   {
+    if (bmpCompression == MSRLE || bmpCompression == MS_VIDEO) {
+      // each plane is stored as the difference from the previous plane
+      return getFrameCache().getFrame(no, new VideoFrameCache.FrameDecoder() {
+        @Override
+        public byte[] decode(int frame, byte[] previous)
+          throws FormatException, IOException
+        {
+          return decodeFrame(frame, previous);
+        }
+      });
+    }
+
     if (lastImageNo == no) {
-      buf = lastImage;
-      return buf;
+      return lastImage;
     }
+    buf = decodeFrame(no, null);
+    lastImage = buf;
+    lastImageNo = no;
+    return buf;
+  }
+
+  /**
+   * Decodes a single compressed plane.
+   *
+   * @param previous the previous decoded plane, if the plane is stored
+   *   as a difference from the previous plane
+   */
+  private byte[] decodeFrame(int no, byte[] previous)
+    throws FormatException, IOException
+  {
+    byte[] buf = null;
     CodecOptions options = new CodecOptions();
     options.width = getSizeX();
     options.height = getSizeY();
-    options.previousImage = (lastImageNo == no - 1) ? lastImage : null;
-
-    if (options.previousImage == null && bmpCompression != JPEG) {
-      while (lastImageNo < no - 1) {
-        openBytes(lastImageNo + 1, buf);
-      }
-      options.previousImage = lastImage;
-    }
+    options.previousImage = previous;
 
     long fileOff = offsets.get(no).longValue();
     in.seek(fileOff);
@@ -520,8 +599,6 @@ public class AVIReader extends FormatReader {
       throw new UnsupportedCompressionException(
         bmpCompression + " not supported");
     }
-    lastImage = buf;
-    lastImageNo = no;
     return buf;
   }
 
@@ -841,6 +918,7 @@ public class AVIReader extends FormatReader {
 
                     offsets.clear();
                     lengths.clear();
+                    keyframes.clear();
 
                     long tableEnd = in.getFilePointer() + size;
                     if (tableEnd <= 0 || tableEnd > in.length()) {
@@ -869,6 +947,9 @@ public class AVIReader extends FormatReader {
                         }
                         else if (chunkSize > 0 || offsets.size() > 0) {
                           offsets.add(new Long(useSOM ? startOfMovi + offset : offset));
+                          if ((flags & AVIIF_KEYFRAME) != 0) {
+                            keyframes.add(offsets.size() - 1);
+                          }
                         }
                         lengths.add(new Long(chunkSize));
                       }
@@ -45,6 +45,7 @@ import java.util.zip.GZIPInputStream;
 import loci.common.DateTools;
 import loci.common.Location;
 import loci.common.RandomAccessInputStream;
+import loci.formats.BufferPool;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
 import loci.formats.FormatReader;
@@ -515,8 +516,8 @@ public class ICSReader extends FormatReader {
   /** Flag indicating whether current file is v2.0. */
   private boolean versionTwo;
 
-  /** Image data. */
-  private byte[] data;
+  /** Image data; not shared with reader clones. */
+  private transient byte[] data;
 
   /** Offset to pixel data. */
   private long offset;
@@ -524,7 +525,7 @@ public class ICSReader extends FormatReader {
   /** Whether or not the pixels are GZIP-compressed. */
   private boolean gzip;
 
-  private GZIPInputStream gzipStream;
+  private transient GZIPInputStream gzipStream;
 
   /** Whether or not the image is inverted along the Y axis. */
   private boolean invertY;
@@ -644,7 +645,13 @@ public class ICSReader extends FormatReader {
           toSkip -= gzipStream.skip(toSkip);
         }
 
-        data = new byte[len * (storedRGB ? getSizeC() : 1)];
+        // the whole plane is decompressed each time, so the previous
+        // buffer can be reused
+        int dataSize = len * (storedRGB ? getSizeC() : 1);
+        if (data == null || data.length != dataSize) {
+          BufferPool.getDefault().release(data);
+          data = BufferPool.getDefault().borrow(dataSize);
+        }
         int toRead = data.length;
         while (toRead > 0) {
           toRead -= gzipStream.read(data, data.length - toRead, toRead);
@@ -688,7 +695,7 @@ public class ICSReader extends FormatReader {
     }
 
     if (invertY) {
-      byte[] row = new byte[rowLen];
+      byte[] row = BufferPool.getDefault().borrow(rowLen);
       for (int r=0; r<h/2; r++) {
         int topOffset = r * rowLen;
         int bottomOffset = (h - r - 1) * rowLen;
@@ -696,6 +703,7 @@ public class ICSReader extends FormatReader {
         System.arraycopy(buf, bottomOffset, buf, topOffset, rowLen);
         System.arraycopy(row, 0, buf, bottomOffset, rowLen);
       }
+      BufferPool.getDefault().release(row);
     }
 
     prevImage = no;
@@ -721,6 +729,7 @@ public class ICSReader extends FormatReader {
     if (!fileOnly) {
       currentIcsId = null;
       currentIdsId = null;
+      BufferPool.getDefault().release(data);
       data = null;
       versionTwo = false;
       gzip = false;
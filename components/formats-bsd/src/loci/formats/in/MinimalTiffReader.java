@@ -32,7 +32,10 @@
 
 package loci.formats.in;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,6 +43,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import loci.common.DataTools;
+import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
@@ -50,6 +54,7 @@ import loci.formats.codec.JPEG2000CodecOptions;
 import loci.formats.meta.MetadataStore;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.IFDList;
+import loci.formats.tiff.OnDemandLongArray;
 import loci.formats.tiff.PhotoInterp;
 import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffParser;
@@ -98,7 +103,13 @@ public class MinimalTiffReader extends FormatReader {
   private Integer resolutionLevels;
 
   /** Codec options to use when decoding JPEG 2000 data. */
-  private JPEG2000CodecOptions j2kCodecOptions;
+  private transient JPEG2000CodecOptions j2kCodecOptions;
+
+  /** Whether or not the sub-resolutions are stored as SubIFDs. */
+  private boolean subIFDResolutions = false;
+
+  /** Local file backing the parser's file channel, or null. */
+  private transient RandomAccessFile channelFile;
 
   // -- Constructors --
 
@@ -131,6 +142,20 @@ public class MinimalTiffReader extends FormatReader {
     return thumbnailIFDs;
   }
 
+  /**
+   * Gets the reduced-resolution IFDs stored as SubIFDs of the given image
+   * plane's IFD, ordered from largest to smallest.  Returns null if the
+   * current TIFF does not store its resolution levels as SubIFDs.
+   *
+   * @param no the index of the IFD within {@link #getIFDs()}
+   */
+  public IFDList getSubResolutionIFDs(int no) {
+    if (!subIFDResolutions || no < 0 || no >= subResolutionIFDs.size()) {
+      return null;
+    }
+    return subResolutionIFDs.get(no);
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -295,6 +320,9 @@ public class MinimalTiffReader extends FormatReader {
       }
       setResolutionLevel(ifd);
     }
+    else if (subIFDResolutions && getCoreIndex() > 0) {
+      ifd = subResolutionIFDs.get(no).get(getCoreIndex() - 1);
+    }
 
     if (tiffParser == null) {
       initTiffParser();
@@ -362,17 +390,23 @@ public class MinimalTiffReader extends FormatReader {
   /* @see loci.formats.IFormatReader#close(boolean) */
   @Override
   public void close(boolean fileOnly) throws IOException {
+    RandomAccessInputStream stream = in;
     super.close(fileOnly);
+    if (channelFile != null) {
+      channelFile.close();
+      channelFile = null;
+    }
     if (!fileOnly) {
-      if (ifds != null) {
+      if (ifds != null && stream != null) {
+        // the IFDs may be shared with clones of this reader, which set
+        // their own stream before each use, so the on-demand arrays are
+        // only detached from this reader's (now closed) stream
         for (IFD ifd : ifds) {
-          try {
-            if (ifd.getOnDemandStripOffsets() != null) {
-              ifd.getOnDemandStripOffsets().close();
-            }
-          }
-          catch (FormatException e) {
-            LOGGER.debug("", e);
+          synchronized (ifd) {
+            detach(ifd.get(IFD.STRIP_OFFSETS), stream);
+            detach(ifd.get(IFD.STRIP_BYTE_COUNTS), stream);
+            detach(ifd.get(IFD.TILE_OFFSETS), stream);
+            detach(ifd.get(IFD.TILE_BYTE_COUNTS), stream);
           }
         }
       }
@@ -383,6 +417,7 @@ public class MinimalTiffReader extends FormatReader {
       tiffParser = null;
       resolutionLevels = null;
       j2kCodecOptions = null;
+      subIFDResolutions = false;
       seriesToIFD = false;
     }
   }
@@ -454,6 +489,12 @@ public class MinimalTiffReader extends FormatReader {
     ifds = new IFDList();
     thumbnailIFDs = new IFDList();
     subResolutionIFDs = new ArrayList<IFDList>();
+    if (!noSubresolutions) {
+      IFDList mainIFDs = readSubIFDPyramid(allIFDs);
+      if (mainIFDs != null) {
+        allIFDs = mainIFDs;
+      }
+    }
     for (IFD ifd : allIFDs) {
       Number subfile = (Number) ifd.getIFDValue(IFD.NEW_SUBFILE_TYPE);
       int subfileType = subfile == null ? 0 : subfile.intValue();
@@ -474,6 +515,7 @@ public class MinimalTiffReader extends FormatReader {
     tiffParser.setAssumeEqualStrips(equalStrips);
     for (IFD ifd : ifds) {
       tiffParser.fillInIFD(ifd);
+      if (subIFDResolutions) continue;
       if ((ifd.getCompression() == TiffCompression.JPEG_2000
           || ifd.getCompression() == TiffCompression.JPEG_2000_LOSSY) &&
           ifd.getImageWidth() == ifds.get(0).getImageWidth()) {
@@ -604,11 +646,107 @@ public class MinimalTiffReader extends FormatReader {
         ms.resolutionCount = 1;
       }
     }
+    else if (subIFDResolutions) {
+      IFDList levels = subResolutionIFDs.get(0);
+      if (!hasFlattenedResolutions()) {
+        ms0.resolutionCount = levels.size() + 1;
+      }
+      for (IFD ifd : levels) {
+        CoreMetadata ms = new CoreMetadata(this, 0);
+        core.add(ms);
+        ms.sizeX = (int) ifd.getImageWidth();
+        ms.sizeY = (int) ifd.getImageLength();
+        ms.thumbnail = true;
+        ms.resolutionCount = 1;
+      }
+    }
 
     MetadataStore store = makeFilterMetadata();
     MetadataTools.populatePixels(store, this);
   }
 
+  /**
+   * Checks whether the reduced resolutions of each image are stored as
+   * SubIFDs of its full-resolution IFD, as in pyramidal TIFF and OME-TIFF
+   * files.  This is the case if every full-resolution IFD has the same
+   * number of SubIFDs, each flagged as a reduced-resolution image and
+   * smaller than the one before it, with the same samples per pixel and
+   * bit depth.
+   *
+   * @param allIFDs every IFD in the file, as returned by
+   *   {@link TiffParser#getIFDs()}: each IFD in the main chain is followed
+   *   by its SubIFDs
+   * @return the IFDs in the main IFD chain if a SubIFD pyramid was found,
+   *   in which case {@link #subResolutionIFDs} is populated; null otherwise
+   */
+  private IFDList readSubIFDPyramid(IFDList allIFDs)
+    throws FormatException, IOException
+  {
+    if (!allIFDs.get(0).containsKey(IFD.SUB_IFD)) {
+      return null;
+    }
+    IFDList mainIFDs = new IFDList();
+    List<IFDList> levels = new ArrayList<IFDList>();
+    int levelCount = -1;
+    int index = 0;
+    while (index < allIFDs.size()) {
+      IFD ifd = allIFDs.get(index++);
+      mainIFDs.add(ifd);
+      long[] subOffsets = ifd.getIFDLongArray(IFD.SUB_IFD);
+      int subCount = subOffsets == null ? 0 : subOffsets.length;
+      if (index + subCount > allIFDs.size()) {
+        return null;
+      }
+      // a SubIFD that could not be read shifts the remaining IFDs, which
+      // is caught by the checks below as a main IFD is not flagged as a
+      // reduced resolution
+      IFDList subIFDs = new IFDList();
+      subIFDs.addAll(allIFDs.subList(index, index + subCount));
+      index += subCount;
+
+      Number subfile = (Number) ifd.getIFDValue(IFD.NEW_SUBFILE_TYPE);
+      if (subfile != null && subfile.intValue() == 1) continue;
+
+      if (levelCount < 0) {
+        levelCount = subIFDs.size();
+      }
+      if (subIFDs.size() != levelCount || levelCount == 0) {
+        return null;
+      }
+      IFD parent = ifd;
+      for (IFD sub : subIFDs) {
+        long width = sub.getImageWidth();
+        long length = sub.getImageLength();
+        if (!isReducedResolution(sub) ||
+          width > parent.getImageWidth() ||
+          length > parent.getImageLength() ||
+          (width == parent.getImageWidth() &&
+          length == parent.getImageLength()) ||
+          sub.getSamplesPerPixel() != parent.getSamplesPerPixel() ||
+          sub.getBitsPerSample()[0] != parent.getBitsPerSample()[0])
+        {
+          return null;
+        }
+        tiffParser.fillInIFD(sub);
+        parent = sub;
+      }
+      levels.add(subIFDs);
+    }
+    if (levels.size() == 0) {
+      return null;
+    }
+    LOGGER.debug("Found {} SubIFD resolution levels", levelCount);
+    subResolutionIFDs.addAll(levels);
+    subIFDResolutions = true;
+    return mainIFDs;
+  }
+
+  /** Returns true if the given IFD is flagged as a reduced resolution. */
+  private boolean isReducedResolution(IFD ifd) {
+    Number subfile = (Number) ifd.getIFDValue(IFD.NEW_SUBFILE_TYPE);
+    return subfile != null && (subfile.intValue() & 1) != 0;
+  }
+
   /**
    * Sets the resolution level when we have JPEG 2000 compressed data.
    * @param ifd The active IFD that is being used in our current
@@ -642,6 +780,49 @@ public class MinimalTiffReader extends FormatReader {
     tiffParser = new TiffParser(in);
     tiffParser.setDoCaching(false);
     tiffParser.setUse64BitOffsets(use64Bit);
+    tiffParser.setFileChannel(getFileChannel());
+  }
+
+  /**
+   * Returns a channel for the current file, opening it on first use, so that
+   * uncompressed pixel data can be read without going through the stream.
+   * Returns null if the current file is not a local file.
+   */
+  private FileChannel getFileChannel() {
+    if (channelFile != null) {
+      return channelFile.getChannel();
+    }
+    String id = getCurrentFile();
+    if (id == null || Location.getMappedFile(id) != null) {
+      return null;
+    }
+    File file = new File(Location.getMappedId(id));
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      channelFile = new RandomAccessFile(file, "r");
+      return channelFile.getChannel();
+    }
+    catch (IOException e) {
+      LOGGER.debug("Could not open file channel", e);
+      return null;
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Clears the stream of the given on-demand array, if it is the given
+   * stream.
+   */
+  private static void detach(Object value, RandomAccessInputStream stream) {
+    if (value instanceof OnDemandLongArray) {
+      OnDemandLongArray array = (OnDemandLongArray) value;
+      if (array.getStream() == stream) {
+        array.setStream(null);
+      }
+    }
   }
 
 }
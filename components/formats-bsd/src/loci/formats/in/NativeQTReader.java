@@ -34,6 +34,8 @@ package loci.formats.in;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 
 import loci.common.Location;
@@ -66,6 +68,13 @@ public class NativeQTReader extends FormatReader {
 
   // -- Constants --
 
+  /**
+   * Option key for the number of frames between decoded snapshots of
+   * delta-coded movies; 0 disables snapshots.
+   */
+  public static final String SNAPSHOT_INTERVAL_KEY =
+    "quicktime.snapshot_interval";
+
   /** List of identifiers for each container atom. */
   private static final String[] CONTAINER_TYPES = {
     "moov", "trak", "udta", "tref", "imap", "mdia", "minf", "stbl", "edts",
@@ -95,8 +104,17 @@ public class NativeQTReader extends FormatReader {
   /** Previous plane number. */
   private int prevPlane;
 
-  /** Flag indicating whether we can safely use prevPixels. */
-  private boolean canUsePrevious;
+  /** Decoded frame cache for delta-coded planes; see getFrameCache(). */
+  private transient VideoFrameCache frameCache;
+
+  /**
+   * Indices of sync samples (keyframes), as stored in the 'stss' atom; only
+   * used while the file is being parsed.
+   */
+  private transient List<Integer> keyframes;
+
+  /** Indices of sync samples (keyframes), in the order they are stored. */
+  private int[] syncSamples;
 
   /** Video codec used by this movie. */
   private String codec;
@@ -131,6 +149,21 @@ public class NativeQTReader extends FormatReader {
     domains = new String[] {FormatTools.GRAPHICS_DOMAIN};
   }
 
+  // -- NativeQTReader API methods --
+
+  /**
+   * Gets the number of frames between decoded snapshots, as used when
+   * seeking within delta-coded movies.
+   */
+  public int getSnapshotInterval() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return ((DynamicMetadataOptions) options).getInteger(
+        SNAPSHOT_INTERVAL_KEY, VideoFrameCache.DEFAULT_SNAPSHOT_INTERVAL);
+    }
+    return VideoFrameCache.DEFAULT_SNAPSHOT_INTERVAL;
+  }
+
   // -- IFormatReader API methods --
 
   /* @see loci.formats.IFormatReader#isThisType(RandomAccessInputStream) */
@@ -174,32 +207,39 @@ public class NativeQTReader extends FormatReader {
     String code = codec;
     if (no >= getImageCount() - altPlanes) code = altCodec;
 
-    int offset = offsets.get(no).intValue();
-    int nextOffset = (int) pixelBytes;
-
-    scale = offsets.get(0).intValue();
-    offset -= scale;
-
-    if (no < offsets.size() - 1) {
-      nextOffset = offsets.get(no + 1).intValue() - scale;
+    byte[] t;
+    if (isDeltaCoded(code)) {
+      final String deltaCode = code;
+      t = getFrameCache().getFrame(no, new VideoFrameCache.FrameDecoder() {
+        @Override
+        public byte[] decode(int frame, byte[] previous)
+          throws FormatException, IOException
+        {
+          byte[] decoded = uncompress(readPlane(frame), deltaCode, previous);
+          if (previous == null) {
+            return decoded;
+          }
+          // an empty frame is identical to the previous frame
+          if (decoded.length == 0) {
+            return previous;
+          }
+          // on rare occassions, we need to trim the data
+          if (previous.length < decoded.length) {
+            byte[] temp = decoded;
+            decoded = new byte[previous.length];
+            System.arraycopy(temp, 0, decoded, 0, decoded.length);
+          }
+          return decoded;
+        }
+      });
     }
-
-    if ((nextOffset - offset) < 0) {
-      int temp = offset;
-      offset = nextOffset;
-      nextOffset = temp;
+    else if (prevPlane == no && prevPixels != null && !code.equals(altCodec)) {
+      t = prevPixels;
+    }
+    else {
+      t = uncompress(readPlane(no), code, null);
     }
 
-    byte[] pixs = new byte[nextOffset - offset];
-
-    in.seek(pixelOffset + offset);
-    in.read(pixs);
-
-    canUsePrevious = (prevPixels != null) && (prevPlane == no - 1) &&
-      !code.equals(altCodec);
-
-    byte[] t = prevPlane == no && prevPixels != null && !code.equals(altCodec) ?
-      prevPixels : uncompress(pixs, code);
     if (code.equals("rpza")) {
       for (int i=0; i<t.length; i++) {
         t[i] = (byte) (255 - t[i]);
@@ -208,13 +248,6 @@ public class NativeQTReader extends FormatReader {
       return buf;
     }
 
-    // on rare occassions, we need to trim the data
-    if (canUsePrevious && (prevPixels.length < t.length)) {
-      byte[] temp = t;
-      t = new byte[prevPixels.length];
-      System.arraycopy(temp, 0, t, 0, t.length);
-    }
-
     if (t.length > 0) {
       prevPixels = t;
     }
@@ -284,7 +317,9 @@ public class NativeQTReader extends FormatReader {
       codec = altCodec = null;
       pixelOffset = pixelBytes = bitsPerPixel = rawSize = 0;
       prevPlane = altPlanes = 0;
-      canUsePrevious = false;
+      frameCache = null;
+      keyframes = null;
+      syncSamples = null;
       scale = 0;
       chunkSizes = null;
       interlaced = separatedFork = flip = false;
@@ -303,6 +338,7 @@ public class NativeQTReader extends FormatReader {
     separatedFork = true;
     offsets = new Vector<Integer>();
     chunkSizes = new Vector<Integer>();
+    keyframes = new ArrayList<Integer>();
     LOGGER.info("Parsing tags");
 
     parse(0, 0, in.length());
@@ -399,6 +435,12 @@ public class NativeQTReader extends FormatReader {
     m.interleaved = isRGB();
     m.sizeT = getImageCount();
 
+    syncSamples = new int[keyframes.size()];
+    for (int i=0; i<syncSamples.length; i++) {
+      syncSamples[i] = keyframes.get(i);
+    }
+    keyframes = null;
+
     // The metadata store we're working with.
     MetadataStore store = makeFilterMetadata();
     MetadataTools.populatePixels(store, this);
@@ -406,6 +448,19 @@ public class NativeQTReader extends FormatReader {
 
   // -- Helper methods --
 
+  /**
+   * Returns the decoded frame cache, building it from the sync sample table
+   * on first use, including after the reader has been restored from a memo
+   * file.
+   */
+  private VideoFrameCache getFrameCache() {
+    if (frameCache == null) {
+      frameCache = new VideoFrameCache(syncSamples);
+      frameCache.setSnapshotInterval(getSnapshotInterval());
+    }
+    return frameCache;
+  }
+
   /** Parse all of the atoms in the file. */
   private void parse(int depth, long offset, long length)
     throws FormatException, IOException
@@ -593,6 +648,18 @@ public class NativeQTReader extends FormatReader {
             }
           }
         }
+        else if (atomType.equals("stss")) {
+          // found the sync sample (keyframe) table
+
+          if (keyframes.size() == 0) {
+            in.skipBytes(4);
+            int numKeyframes = in.readInt();
+            for (int i=0; i<numKeyframes; i++) {
+              // sample numbers are 1-based
+              keyframes.add(in.readInt() - 1);
+            }
+          }
+        }
         else if (atomType.equals("stts")) {
           in.skipBytes(12);
           int fps = in.readInt();
@@ -629,8 +696,46 @@ public class NativeQTReader extends FormatReader {
     LOGGER.debug(sb.toString());
   }
 
-  /** Uncompresses an image plane according to the the codec identifier. */
-  private byte[] uncompress(byte[] pixs, String code)
+  /** Reads the compressed pixel data for the given plane. */
+  private byte[] readPlane(int no) throws IOException {
+    int offset = offsets.get(no).intValue();
+    int nextOffset = (int) pixelBytes;
+
+    scale = offsets.get(0).intValue();
+    offset -= scale;
+
+    if (no < offsets.size() - 1) {
+      nextOffset = offsets.get(no + 1).intValue() - scale;
+    }
+
+    if ((nextOffset - offset) < 0) {
+      int temp = offset;
+      offset = nextOffset;
+      nextOffset = temp;
+    }
+
+    byte[] pixs = new byte[nextOffset - offset];
+
+    in.seek(pixelOffset + offset);
+    in.read(pixs);
+    return pixs;
+  }
+
+  /**
+   * Returns true if planes compressed with the given codec are stored as
+   * differences from the previous plane.
+   */
+  private boolean isDeltaCoded(String code) {
+    return code.equals("rle ") && code.equals(codec);
+  }
+
+  /**
+   * Uncompresses an image plane according to the the codec identifier.
+   *
+   * @param previous the previous decoded plane, or null if the plane
+   *   is not stored as a difference from the previous plane
+   */
+  private byte[] uncompress(byte[] pixs, String code, byte[] previous)
     throws FormatException, IOException
   {
     CodecOptions options = new MJPBCodecOptions();
@@ -639,7 +744,7 @@ public class NativeQTReader extends FormatReader {
     options.bitsPerSample = bitsPerPixel;
     options.channels = bitsPerPixel < 40 ? bitsPerPixel / 8 :
       (bitsPerPixel - 32) / 8;
-    options.previousImage = canUsePrevious ? prevPixels : null;
+    options.previousImage = previous;
     options.littleEndian = isLittleEndian();
     options.interleaved = isRGB();
 
@@ -46,6 +46,7 @@ import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
 import loci.common.xml.XMLTools;
+import loci.formats.BufferPool;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
 import loci.formats.FormatReader;
@@ -97,7 +98,9 @@ public class OBFReader extends FormatReader {
     int series;
     int number;
   }
-  private Frame currentInflatedFrame = new Frame();
+  /** Last inflated frame; not shared with reader clones. */
+  private transient Frame currentInflatedFrame;
+  private transient byte[] inflaterInput;
 
   private transient Inflater inflater;
 
@@ -136,9 +139,6 @@ public class OBFReader extends FormatReader {
   protected void initFile(String id) throws FormatException, IOException {
     super.initFile(id);
 
-    currentInflatedFrame.series = -1;
-    currentInflatedFrame.number = -1;
-
     in = new RandomAccessInputStream(id);
 
     file_version = getFileVersion(in);
@@ -553,8 +553,19 @@ public class OBFReader extends FormatReader {
     final int series = getSeries();
     final Stack stack = stacks.get(series);
     if (stack.compression) {
+      if (currentInflatedFrame == null) {
+        currentInflatedFrame = new Frame();
+        currentInflatedFrame.series = -1;
+        currentInflatedFrame.number = -1;
+      }
       if (series != currentInflatedFrame.series) {
-        currentInflatedFrame.bytes = new byte[rows * columns * bytesPerPixel];
+        int frameSize = rows * columns * bytesPerPixel;
+        if (currentInflatedFrame.bytes == null ||
+          currentInflatedFrame.bytes.length != frameSize)
+        {
+          BufferPool.getDefault().release(currentInflatedFrame.bytes);
+          currentInflatedFrame.bytes = BufferPool.getDefault().borrow(frameSize);
+        }
         currentInflatedFrame.series = series;
         currentInflatedFrame.number = - 1;
       }
@@ -573,7 +584,10 @@ public class OBFReader extends FormatReader {
           inflater.reset();
         }
 
-        byte[] input = new byte[8192];
+        if (inflaterInput == null) {
+          inflaterInput = new byte[8192];
+        }
+        byte[] input = inflaterInput;
         while (no != currentInflatedFrame.number) {
           int offset = 0;
           while (offset != bytes.length) {
@@ -622,7 +636,10 @@ public class OBFReader extends FormatReader {
       file_version = - 1;
       ome_meta_data = null;
       stacks.clear();
-      currentInflatedFrame = new Frame();
+      if (currentInflatedFrame != null) {
+        BufferPool.getDefault().release(currentInflatedFrame.bytes);
+        currentInflatedFrame = null;
+      }
       inflater = null;
     }
 
@@ -349,6 +349,15 @@ public class OMETiffReader extends FormatReader {
       return buf;
     }
     IFD ifd = ifdList.get(i);
+    int resolution = getResolution();
+    if (resolution > 0) {
+      IFDList levels = r.getSubResolutionIFDs(i);
+      if (levels == null || resolution > levels.size()) {
+        throw new FormatException("Resolution " + resolution +
+          " is missing from " + info[series][no].id);
+      }
+      ifd = levels.get(resolution - 1);
+    }
     RandomAccessInputStream s =
       new RandomAccessInputStream(info[series][no].id, 16);
     TiffParser p = new TiffParser(s);
@@ -1178,6 +1187,12 @@ public class OMETiffReader extends FormatReader {
       }
     }
 
+    // reduced resolutions are not OME Images, so they are only exposed
+    // when resolutions are not flattened into separate series
+    if (!hasFlattenedResolutions()) {
+      addSubIFDResolutions();
+    }
+
     MetadataTools.populatePixels(metadataStore, this, false, false);
     for (int i=0; i<meta.getImageCount(); i++) {
       // make sure that TheZ, TheC, and TheT are all set on any
@@ -1251,6 +1266,40 @@ public class OMETiffReader extends FormatReader {
 
   // -- Helper methods --
 
+  /**
+   * Adds a CoreMetadata entry for each reduced resolution stored as a SubIFD
+   * of the first plane of each series.
+   */
+  private void addSubIFDResolutions() throws FormatException, IOException {
+    ArrayList<CoreMetadata> resolutions = new ArrayList<CoreMetadata>();
+    for (int s=0; s<core.size(); s++) {
+      CoreMetadata m = core.get(s);
+      resolutions.add(m);
+      OMETiffPlane plane = info[s][0];
+      if (!plane.exists || !(plane.reader instanceof MinimalTiffReader)) {
+        continue;
+      }
+      MinimalTiffReader r = (MinimalTiffReader) plane.reader;
+      if (r.getCurrentFile() == null) {
+        r.setId(plane.id);
+      }
+      IFDList levels = r.getSubResolutionIFDs(plane.ifd);
+      if (levels == null) {
+        continue;
+      }
+      m.resolutionCount = levels.size() + 1;
+      for (IFD ifd : levels) {
+        CoreMetadata level = new CoreMetadata(m);
+        level.sizeX = (int) ifd.getImageWidth();
+        level.sizeY = (int) ifd.getImageLength();
+        level.thumbnail = true;
+        level.resolutionCount = 1;
+        resolutions.add(level);
+      }
+    }
+    core = resolutions;
+  }
+
   private String normalizeFilename(String dir, String name) {
      File file = new File(dir, name);
      if (file.exists()) return file.getAbsolutePath();
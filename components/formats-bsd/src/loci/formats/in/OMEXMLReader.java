@@ -32,10 +32,16 @@
 
 package loci.formats.in;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import loci.common.CBZip2InputStream;
 import loci.common.RandomAccessInputStream;
@@ -60,9 +66,7 @@ import loci.formats.services.OMEXMLService;
 import loci.formats.services.OMEXMLServiceImpl;
 
 import org.xml.sax.Attributes;
-import org.xml.sax.Locator;
 import org.xml.sax.helpers.DefaultHandler;
-import com.google.common.io.BaseEncoding;
 
 
 /**
@@ -74,6 +78,9 @@ public class OMEXMLReader extends FormatReader {
 
   // -- Fields --
 
+  /** Size of the buffers used to decode pixel data. */
+  private static final int BUFFER_SIZE = 65536;
+
   // compression value and offset for each BinData element
   private List<BinData> binData;
   private List<Long> binDataOffsets;
@@ -146,61 +153,74 @@ public class OMEXMLReader extends FormatReader {
     int depth = FormatTools.getBytesPerPixel(getPixelType());
     int planeSize = getSizeX() * getSizeY() * depth;
 
-    CodecOptions options = new CodecOptions();
-    options.width = getSizeX();
-    options.height = getSizeY();
-    options.bitsPerSample = depth * 8;
-    options.channels = getRGBChannelCount();
-    options.maxBytes = planeSize;
-    options.littleEndian = isLittleEndian();
-    options.interleaved = isInterleaved();
-
-    String encoded = in.readString("<");
-    encoded = encoded.trim();
-    if (encoded.length() == 0 || encoded.equals("<")) {
-      LOGGER.debug("No pixel data for plane #{}", no);
-      return buf;
-    }
-    encoded = encoded.substring(0, encoded.length() - 1);
-    byte[] pixels =  BaseEncoding.base64().decode(encoded);
-    // return a blank plane if no pixel data was stored
-    if (pixels.length == 0) {
+    // the Base64 text is decoded and decompressed as it is read, and only
+    // the requested rows are copied into the buffer
+    PushbackInputStream base64 = new PushbackInputStream(
+      new Base64InputStream(in), 1);
+    int first = base64.read();
+    if (first < 0) {
+      // return a blank plane if no pixel data was stored
       LOGGER.debug("No pixel data for plane #{}", no);
       return buf;
     }
+    base64.unread(first);
+    InputStream pixels = base64;
 
     // TODO: Create a method uncompress to handle all compression methods
     if (compress.equals("bzip2")) {
-      byte[] tempPixels = pixels;
-      pixels = new byte[tempPixels.length - 2];
-      System.arraycopy(tempPixels, 2, pixels, 0, pixels.length);
-
-      ByteArrayInputStream bais = new ByteArrayInputStream(pixels);
-      CBZip2InputStream bzip = new CBZip2InputStream(bais);
-      pixels = new byte[planeSize];
-      bzip.read(pixels, 0, pixels.length);
-      tempPixels = null;
-      bais.close();
-      bzip.close();
-      bais = null;
-      bzip = null;
+      // skip the "BZ" signature, which CBZip2InputStream does not expect
+      skip(pixels, 2);
+      pixels = new CBZip2InputStream(pixels);
     }
     else if (compress.equals("zlib")) {
-      pixels = new ZlibCodec().decompress(pixels, options);
-    }
-    else if (compress.equals("J2K")) {
-      pixels = new JPEG2000Codec().decompress(pixels, options);
+      pixels = new InflaterInputStream(pixels, new Inflater(), BUFFER_SIZE);
     }
-    else if (compress.equals("JPEG")) {
-      pixels = new JPEGCodec().decompress(pixels, options);
+    else if (compress.equals("J2K") || compress.equals("JPEG")) {
+      CodecOptions options = new CodecOptions();
+      options.width = getSizeX();
+      options.height = getSizeY();
+      options.bitsPerSample = depth * 8;
+      options.channels = getRGBChannelCount();
+      options.maxBytes = planeSize;
+      options.littleEndian = isLittleEndian();
+      options.interleaved = isInterleaved();
+
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      byte[] chunk = new byte[BUFFER_SIZE];
+      int n = pixels.read(chunk);
+      while (n > 0) {
+        encoded.write(chunk, 0, n);
+        n = pixels.read(chunk);
+      }
+      byte[] decoded = compress.equals("J2K") ?
+        new JPEG2000Codec().decompress(encoded.toByteArray(), options) :
+        new JPEGCodec().decompress(encoded.toByteArray(), options);
+      for (int row=0; row<h; row++) {
+        int off = (row + y) * getSizeX() * depth + x * depth;
+        System.arraycopy(decoded, off, buf, row * w * depth, w * depth);
+      }
+      return buf;
     }
 
-    for (int row=0; row<h; row++) {
-      int off = (row + y) * getSizeX() * depth + x * depth;
-      System.arraycopy(pixels, off, buf, row * w * depth, w * depth);
+    int rowLen = getSizeX() * depth;
+    try {
+      skip(pixels, (long) y * rowLen + x * depth);
+      for (int row=0; row<h; row++) {
+        if (read(pixels, buf, row * w * depth, w * depth) < w * depth) {
+          LOGGER.debug("Pixel data for plane #{} is truncated", no);
+          break;
+        }
+        if (row < h - 1) {
+          skip(pixels, rowLen - w * depth);
+        }
+      }
+    }
+    finally {
+      if (pixels instanceof InflaterInputStream) {
+        // release the native inflater
+        pixels.close();
+      }
     }
-
-    pixels = null;
 
     return buf;
   }
@@ -231,26 +251,26 @@ public class OMEXMLReader extends FormatReader {
     binDataOffsets = new ArrayList<Long>();
     compression = new ArrayList<String>();
 
+    // the byte offset of each BinData element's content is recorded as the
+    // file is read by the SAX parser, so the file is only read once
     DefaultHandler handler = new OMEXMLHandler();
+    BinDataLocator locator = null;
     try {
       RandomAccessInputStream s = new RandomAccessInputStream(id);
-      XMLTools.parseXML(s, handler);
+      locator = new BinDataLocator(s);
+      XMLTools.parseXML(locator, handler);
       s.close();
     }
     catch (IOException e) {
       throw new FormatException("Malformed OME-XML", e);
     }
 
-    int lineNumber = 1;
     for (BinData bin : binData) {
-      int line = bin.getRow();
-      int col = bin.getColumn();
-
-      while (lineNumber < line) {
-        in.readLine();
-        lineNumber++;
+      long offset = locator.getOffset(bin.getIndex());
+      if (offset < 0) {
+        throw new FormatException("Could not locate BinData #" + bin.getIndex());
       }
-      binDataOffsets.add(in.getFilePointer() + col - 1);
+      binDataOffsets.add(offset);
     }
 
     LOGGER.info("Populating metadata");
@@ -337,8 +357,8 @@ public class OMEXMLReader extends FormatReader {
   class OMEXMLHandler extends BaseHandler {
     private final StringBuilder xmlBuffer;
     private String currentQName;
-    private Locator locator;
     private boolean inPixels;
+    private int binDataCount;
 
     public OMEXMLHandler() {
       xmlBuffer = new StringBuilder();
@@ -373,9 +393,12 @@ public class OMEXMLReader extends FormatReader {
         inPixels = true;
       }
 
+      if (qName.indexOf("BinData") != -1) {
+        binDataCount++;
+      }
+
       if (inPixels && qName.indexOf("BinData") != -1) {
-        binData.add(
-          new BinData(locator.getLineNumber(), locator.getColumnNumber()));
+        binData.add(new BinData(binDataCount - 1));
         String compress = attributes.getValue("Compression");
         compression.add(compress == null ? "" : compress);
 
@@ -422,24 +445,284 @@ public class OMEXMLReader extends FormatReader {
     public void endDocument() {
       omexml = xmlBuffer.toString();
     }
+  }
+
+  class BinData {
+    private int index;
+
+    /**
+     * @param index the index of this element among all BinData elements
+     *   in the document, including those outside of Pixels
+     */
+    public BinData(int index) {
+      this.index = index;
+    }
+
+    public int getIndex() { return index; }
+  }
+
+  // -- Helper methods --
+
+  /** Reads up to len bytes, stopping only at the end of the stream. */
+  private static int read(InputStream s, byte[] buf, int off, int len)
+    throws IOException
+  {
+    int total = 0;
+    while (total < len) {
+      int n = s.read(buf, off + total, len - total);
+      if (n <= 0) break;
+      total += n;
+    }
+    return total;
+  }
+
+  /** Skips up to n bytes, stopping only at the end of the stream. */
+  private static void skip(InputStream s, long n) throws IOException {
+    while (n > 0) {
+      long skipped = s.skip(n);
+      if (skipped <= 0) {
+        if (s.read() < 0) break;
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * Records the byte offset at which the content of each BinData element
+   * begins, as the XML is read by the parser.
+   *
+   * This is a minimal scanner that understands just enough XML to find
+   * start tags: comments, CDATA sections, processing instructions, end tags
+   * and quoted attribute values are skipped.  Element names are matched in
+   * the same way as in {@link OMEXMLHandler}, so the n-th recorded offset
+   * corresponds to the n-th BinData element seen by the handler.
+   */
+  private static class BinDataLocator extends FilterInputStream {
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int NAME = 2;
+    private static final int TAG = 3;
+    private static final int QUOTE = 4;
+    private static final int SKIP = 5;
+
+    private long position;
+    private int state = TEXT;
+    private final StringBuilder name = new StringBuilder();
+    private boolean isBinData;
+    private int quote;
+
+    /** Terminator of the construct being skipped, e.g. "-->". */
+    private String terminator;
+    private int matched;
+    private long skipStart;
+
+    private long[] offsets = new long[16];
+    private int count;
+
+    BinDataLocator(InputStream in) {
+      super(in);
+    }
+
+    /** Gets the offset of the given BinData element, or -1 if not found. */
+    long getOffset(int index) {
+      return index < count ? offsets[index] : -1;
+    }
 
     @Override
-    public void setDocumentLocator(Locator locator) {
-      this.locator = locator;
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) scan(b);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      for (int i=0; i<n; i++) {
+        scan(b[off + i] & 0xff);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // every byte must be scanned
+      byte[] buf = new byte[(int) Math.min(n, 8192)];
+      int read = read(buf, 0, buf.length);
+      return read < 0 ? 0 : read;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void scan(int b) {
+      position++;
+      switch (state) {
+        case TEXT:
+          if (b == '<') {
+            state = MARKUP;
+            name.setLength(0);
+          }
+          break;
+        case MARKUP:
+          if (b == '!') {
+            startSkip("-->");
+          }
+          else if (b == '?') {
+            startSkip("?>");
+          }
+          else if (b == '/') {
+            startSkip(">");
+          }
+          else {
+            state = NAME;
+            name.append((char) b);
+          }
+          break;
+        case NAME:
+          if (b == '>' || b == '/' || Character.isWhitespace(b)) {
+            isBinData = name.indexOf("BinData") != -1;
+            state = TAG;
+            if (b == '>') endTag();
+          }
+          else if (name.length() < 256) {
+            name.append((char) b);
+          }
+          break;
+        case TAG:
+          if (b == '"' || b == '\'') {
+            quote = b;
+            state = QUOTE;
+          }
+          else if (b == '>') {
+            endTag();
+          }
+          break;
+        case QUOTE:
+          if (b == quote) state = TAG;
+          break;
+        case SKIP:
+          if (position == skipStart + 1 && terminator.equals("-->") &&
+            b != '-')
+          {
+            // "<!" not followed by a comment: a CDATA section or declaration
+            terminator = b == '[' ? "]]>" : ">";
+          }
+          if (b == terminator.charAt(matched)) {
+            matched++;
+            if (matched == terminator.length()) state = TEXT;
+          }
+          else if (matched < 2 || b != terminator.charAt(1)) {
+            // both "-->" and "]]>" may be preceded by extra '-' or ']'
+            matched = b == terminator.charAt(0) ? 1 : 0;
+          }
+          break;
+      }
+    }
+
+    private void startSkip(String end) {
+      state = SKIP;
+      terminator = end;
+      matched = 0;
+      skipStart = position;
+    }
+
+    private void endTag() {
+      if (isBinData) {
+        if (count == offsets.length) {
+          offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count++] = position;
+      }
+      state = TEXT;
     }
   }
 
-  class BinData {
-    private int row;
-    private int column;
+  /**
+   * Decodes Base64 text read from a stream, ignoring whitespace and
+   * stopping at the first '<', '=' or the end of the stream.
+   */
+  private static class Base64InputStream extends InputStream {
+    private static final int[] DECODE = new int[128];
+    static {
+      Arrays.fill(DECODE, -1);
+      String alphabet =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+      for (int i=0; i<alphabet.length(); i++) {
+        DECODE[alphabet.charAt(i)] = i;
+      }
+    }
 
-    public BinData(int row, int column) {
-      this.row = row;
-      this.column = column;
+    private final RandomAccessInputStream in;
+    private final byte[] chunk = new byte[BUFFER_SIZE];
+    private int chunkPos, chunkLen;
+    private boolean done;
+    private final byte[] pending = new byte[3];
+    private int pendingPos, pendingLen;
+    private final byte[] single = new byte[1];
+
+    Base64InputStream(RandomAccessInputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return read(single, 0, 1) <= 0 ? -1 : single[0] & 0xff;
     }
 
-    public int getRow() { return row; }
-    public int getColumn() { return column; }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = 0;
+      while (n < len) {
+        if (pendingPos < pendingLen) {
+          b[off + n++] = pending[pendingPos++];
+        }
+        else if (!decodeQuantum()) {
+          break;
+        }
+      }
+      return n == 0 && len > 0 ? -1 : n;
+    }
+
+    /** Decodes up to 3 bytes into the pending buffer. */
+    private boolean decodeQuantum() throws IOException {
+      if (done) return false;
+      int bits = 0;
+      int count = 0;
+      while (count < 4) {
+        if (chunkPos == chunkLen) {
+          long remaining = in.length() - in.getFilePointer();
+          chunkLen = (int) Math.min(chunk.length, remaining);
+          chunkPos = 0;
+          if (chunkLen <= 0) {
+            chunkLen = 0;
+            done = true;
+            break;
+          }
+          in.readFully(chunk, 0, chunkLen);
+        }
+        int c = chunk[chunkPos++] & 0xff;
+        if (c == '<' || c == '=') {
+          done = true;
+          break;
+        }
+        int v = c < DECODE.length ? DECODE[c] : -1;
+        if (v >= 0) {
+          bits = (bits << 6) | v;
+          count++;
+        }
+      }
+      pendingPos = 0;
+      pendingLen = count == 4 ? 3 : count == 3 ? 2 : count == 2 ? 1 : 0;
+      bits <<= 6 * (4 - count);
+      for (int i=0; i<pendingLen; i++) {
+        pending[i] = (byte) (bits >> (16 - 8 * i));
+      }
+      return pendingLen > 0;
+    }
   }
 
 }
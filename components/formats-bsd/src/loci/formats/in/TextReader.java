@@ -32,18 +32,20 @@
 
 package loci.formats.in;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import loci.common.Constants;
-import loci.common.DataTools;
-import loci.common.IRandomAccess;
-import loci.common.Location;
 import loci.common.RandomAccessInputStream;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
@@ -60,6 +62,9 @@ import loci.formats.meta.MetadataStore;
  * Text format is flexible, but assumed to be in tabular form with a consistent
  * number of columns, and a labeled header line immediately preceding the data.
  *
+ * The table is read in blocks of lines, which are tokenized in parallel
+ * directly into columns of numbers; see {@link #setThreadCount(int)}.
+ *
  * @author Curtis Rueden ctrueden at wisc.edu
  */
 public class TextReader extends FormatReader {
@@ -73,6 +78,9 @@ public class TextReader extends FormatReader {
   /** How often to report progress during initialization, in milliseconds. */
   private static final long TIME_OFFSET = 2000;
 
+  /** Default number of bytes of table data tokenized by each task. */
+  private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
   // -- Fields --
 
   /**
@@ -102,6 +110,12 @@ public class TextReader extends FormatReader {
   /** Image height. */
   private int sizeY;
 
+  /** Number of threads used to tokenize the table. */
+  private int threadCount = Runtime.getRuntime().availableProcessors();
+
+  /** Number of bytes of table data tokenized by each task. */
+  private int blockSize = BLOCK_SIZE;
+
   // -- Constructor --
 
   /** Constructs a new text reader. */
@@ -118,6 +132,39 @@ public class TextReader extends FormatReader {
     return channels[c];
   }
 
+  /**
+   * Sets the number of threads used to tokenize the table during
+   * initialization. The default is the number of available processors.
+   */
+  public void setThreadCount(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    threadCount = threads;
+  }
+
+  /** Gets the number of threads used to tokenize the table. */
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Sets the number of bytes of table data tokenized by each task. Lines
+   * are never split between tasks, so a block may be extended to the end
+   * of a line. The default is 4 MB.
+   */
+  public void setBlockSize(int bytes) {
+    if (bytes < 1) {
+      throw new IllegalArgumentException("Invalid block size: " + bytes);
+    }
+    blockSize = bytes;
+  }
+
+  /** Gets the number of bytes of table data tokenized by each task. */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
   // -- IFormatReader methods --
 
   /* @see IFormatReader#isThisType(RandomAccessInputStream) */
@@ -127,15 +174,20 @@ public class TextReader extends FormatReader {
     if (!FormatTools.validStream(stream, blockLen, false)) return false;
     row = 0;
     String data = stream.readString(blockLen);
-    List<String> lines = Arrays.asList(data.split("\n"));
-    String[] line = getNextLine(lines);
-    if (line == null) return false;
-    int headerRows = 0;
+    RandomAccessInputStream lines =
+      new RandomAccessInputStream(data.getBytes(Constants.ENCODING));
     try {
-      headerRows = parseFileHeader(lines);
+      String[] line = getNextLine(lines);
+      if (line == null) return false;
+      findHeader(lines);
+      return true;
+    }
+    catch (FormatException e) {
+      return false;
+    }
+    finally {
+      lines.close();
     }
-    catch (FormatException e) { }
-    return headerRows > 0;
   }
 
   /* @see IFormatReader#openBytes(int, byte[], int, int, int, int) */
@@ -147,16 +199,10 @@ public class TextReader extends FormatReader {
 
     // copy floating point data into byte buffer
     final float[] plane = data[no];
-    int q = 0;
+    FloatBuffer floats = ByteBuffer.wrap(buf).order(LITTLE_ENDIAN ?
+      ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asFloatBuffer();
     for (int j=0; j<h; j++) {
-      final int yy = y + j;
-      for (int i=0; i<w; i++) {
-        final int xx = x + i;
-        final int index = yy * sizeX + xx;
-        final int bits = Float.floatToIntBits(plane[index]);
-        DataTools.unpackBytes(bits, buf, q, 4, LITTLE_ENDIAN);
-        q += 4;
-      }
+      floats.put(plane, (y + j) * sizeX + x, w);
     }
 
     return buf;
@@ -200,13 +246,38 @@ public class TextReader extends FormatReader {
   protected void initFile(String id) throws FormatException, IOException {
     super.initFile(id);
 
-    // read file into memory
-    LOGGER.info("Reading file");
-    List<String> lines = readFile(id);
+    RandomAccessInputStream s = new RandomAccessInputStream(id);
+    List<Block> blocks;
+    try {
+      // parse file header
+      LOGGER.info("Parsing file header");
+      row = 0;
+      long offset = findHeader(s);
+
+      // tokenize the table
+      LOGGER.info("Reading file");
+      blocks = readTableData(s, offset);
+    }
+    finally {
+      s.close();
+    }
 
-    // parse file header
-    LOGGER.info("Parsing file header");
-    final int headerRows = parseFileHeader(lines);
+    // determine image extents
+    int line = row;
+    for (Block block : blocks) {
+      if (block.invalidLine >= 0) {
+        throw new FormatException("Row #" + (line + block.invalidLine) +
+          ": invalid " + block.invalidMessage);
+      }
+      for (int i=0; i<block.ignoredCount; i++) {
+        int ignored = block.ignored[i];
+        if (ignored < 0) warnIgnoredRow(line - ignored, false);
+        else warnIgnoredRow(line + ignored, true);
+      }
+      if (sizeX <= block.maxX) sizeX = block.maxX + 1;
+      if (sizeY <= block.maxY) sizeY = block.maxY + 1;
+      line += block.lines;
+    }
 
     LOGGER.info("Creating images");
 
@@ -214,14 +285,13 @@ public class TextReader extends FormatReader {
     final int sizeZ = 1, sizeT = 1; // no Z or T for now
     final int sizeC = channels.length;
     final int imageCount = sizeZ * sizeC * sizeT;
-    final int planeSize = sizeX * sizeY;
-    data = new float[imageCount][planeSize];
-
-    // flag all values as missing by default
-    for (int i=0; i<imageCount; i++) Arrays.fill(data[i], Float.NaN);
+    if ((long) sizeX * sizeY > Integer.MAX_VALUE) {
+      throw new FormatException("Image is too large: " + sizeX + " x " + sizeY);
+    }
+    data = new float[imageCount][];
 
-    // read data into float array
-    parseTableData(lines, headerRows);
+    // copy the parsed columns into the image planes
+    assignValues(blocks);
 
     LOGGER.info("Populating metadata");
 
@@ -235,53 +305,35 @@ public class TextReader extends FormatReader {
 
   // -- Helper methods --
 
-  private List<String> readFile(String id) throws IOException {
-    List<String> lines = new ArrayList<String>();
-    long time = System.currentTimeMillis();
-    IRandomAccess handle = Location.getMappedFile(id);
-    if (handle == null) {
-      // HACK: Read using vanilla BufferedReader, since it's faster.
-      String mapId = Location.getMappedId(id);
-      BufferedReader in = new BufferedReader(
-        new InputStreamReader(new FileInputStream(mapId), Constants.ENCODING));
-      int no = 0;
-      while (true) {
-        no++;
-        time = checkTime(time, no, 0, 0);
-        String line = in.readLine();
-        if (line == null) break; // eof
-        lines.add(line);
-      }
-      in.close();
-    }
-    else {
-      // read data using RandomAccessInputStream (data may not be a file)
-      RandomAccessInputStream in = new RandomAccessInputStream(handle);
-      int no = 0;
-      while (true) {
-        no++;
-        time = checkTime(time, no, in.getFilePointer(), in.length());
-        String line = in.readLine();
-        if (line == null) break; // eof
-        lines.add(line);
-      }
-      in.close();
-    }
-    return lines;
+  /**
+   * Reports a row of the table that is ignored.
+   *
+   * @param row the 1-based line number of the row in the file
+   * @param deviant true if the row has the wrong number of tokens, false
+   *   if it has a token that is not a number
+   */
+  protected void warnIgnoredRow(int row, boolean deviant) {
+    if (deviant) LOGGER.warn("Ignoring deviant row #" + row);
+    else LOGGER.warn("Ignoring non-numeric row #" + row);
   }
 
   /**
-   * Parses the file looking for the file header.
-   * Determines image extents (sets sizeX and sizeY).
-   * Determines channel names (populates channels array).
+   * Parses the file looking for the file header, which is the line
+   * preceding the first row of at least 3 numbers with as many columns.
+   * Populates rowLength, xIndex, yIndex, and channels.
    *
-   * @return number of rows in the header
+   * @return the file offset of the first data row; {@link #row} is set to
+   *   the number of lines preceding that offset
    */
-  private int parseFileHeader(List<String> lines) throws FormatException {
+  private long findHeader(RandomAccessInputStream s)
+    throws FormatException, IOException
+  {
     String[] lastTokens = null;
     double[] rowData = null;
     while (true) {
-      String[] tokens = getNextLine(lines);
+      long offset = s.getFilePointer();
+      int offsetRow = row;
+      String[] tokens = getNextLine(s);
       if (tokens == null) throw new FormatException("No tabular data found");
       if (tokens.length >= 3 && // need at least 3 columns of data
         lastTokens != null && lastTokens.length == tokens.length)
@@ -298,64 +350,155 @@ public class TextReader extends FormatReader {
           LOGGER.info("Found header on line " + (row - 1));
           // looks like tabular data; assume previous line is the header
           parseHeaderRow(lastTokens);
-          break;
+          if (xIndex < 0) {
+            throw new FormatException("No X coordinate column found");
+          }
+          if (yIndex < 0) {
+            throw new FormatException("No Y coordinate column found");
+          }
+          row = offsetRow;
+          return offset;
         }
       }
       lastTokens = tokens;
     }
-    final int headerRows = row - 1;
-
-    if (xIndex < 0) throw new FormatException("No X coordinate column found");
-    if (yIndex < 0) throw new FormatException("No Y coordinate column found");
+  }
 
-    // search remainder of tabular data for X and Y extents
-    boolean checkRow = true;
-    while (true) {
-      if (checkRow) {
-        // expand dimensional extents as needed
-        int x = getX(rowData);
-        if (x < 0) {
-          throw new FormatException("Row #" + row + ": invalid X: " + x);
+  /**
+   * Reads the tabular data following the given offset in blocks of whole
+   * lines, and tokenizes the blocks on {@link #threadCount} threads.
+   *
+   * @return the parsed blocks, in file order
+   */
+  private List<Block> readTableData(RandomAccessInputStream s, long offset)
+    throws FormatException, IOException
+  {
+    final int channelCount = channels.length;
+    List<Block> blocks = new ArrayList<Block>();
+    List<Future<Block>> pending = new ArrayList<Future<Block>>();
+    ExecutorService threadPool =
+      threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+    try {
+      long length = s.length();
+      long time = System.currentTimeMillis();
+      s.seek(offset);
+      byte[] remainder = new byte[0];
+      while (true) {
+        long pos = s.getFilePointer();
+        int n = (int) Math.min(blockSize, length - pos);
+        if (n <= 0 && remainder.length == 0) break; // eof
+        time = checkTime(time, pos, length);
+
+        byte[] bytes = new byte[remainder.length + n];
+        System.arraycopy(remainder, 0, bytes, 0, remainder.length);
+        s.readFully(bytes, remainder.length, n);
+
+        // only whole lines are tokenized; the rest is read again with
+        // the next block
+        int end = pos + n < length ? getLineEnd(bytes) : bytes.length;
+        remainder = Arrays.copyOfRange(bytes, end, bytes.length);
+        if (end == 0) continue;
+
+        Tokenizer tokenizer = new Tokenizer(bytes, end, rowLength,
+          xIndex, yIndex, channelCount);
+        if (threadPool == null) {
+          blocks.add(tokenizer.call());
+          continue;
         }
-        if (sizeX <= x) sizeX = x + 1;
-        int y = getY(rowData);
-        if (y < 0) {
-          throw new FormatException("Row #" + row + ": invalid Y: " + x);
+        // bound the number of blocks held in memory as raw bytes
+        if (pending.size() >= 2 * threadCount) {
+          blocks.add(pending.remove(0).get());
         }
-        if (sizeY <= y) sizeY = y + 1;
+        pending.add(threadPool.submit(tokenizer));
       }
-
-      // parse next row
-      String[] tokens = getNextLine(lines);
-      if (tokens == null) break; // eof
-      checkRow = getRowData(tokens, rowData);
+      for (Future<Block> block : pending) {
+        blocks.add(block.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while reading table", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not read table", e.getCause());
     }
+    finally {
+      if (threadPool != null) threadPool.shutdownNow();
+    }
+    return blocks;
+  }
 
-    return headerRows;
+  /**
+   * Returns the index following the last line terminator in the given
+   * array, or 0 if there is none.
+   */
+  private static int getLineEnd(byte[] bytes) {
+    for (int i=bytes.length-1; i>=0; i--) {
+      // a trailing '\r' may be the first half of "\r\n"
+      if (bytes[i] == '\n' || (bytes[i] == '\r' && i < bytes.length - 1)) {
+        return i + 1;
+      }
+    }
+    return 0;
   }
 
-  /** Reads the tabular data into the data array. */
-  private void parseTableData(List<String> lines, int linesToSkip) {
-    row = linesToSkip; // skip header lines
+  /**
+   * Copies the parsed columns of each block into the data array, one
+   * channel per task. Rows are copied in file order, so the last row
+   * with given coordinates wins.
+   */
+  private void assignValues(final List<Block> blocks)
+    throws FormatException
+  {
+    final int planeSize = sizeX * sizeY;
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int c=0; c<data.length; c++) {
+      final int channel = c;
+      tasks.add(new Callable<Object>() {
+        @Override
+        public Object call() {
+          float[] plane = new float[planeSize];
+          // flag all values as missing by default
+          Arrays.fill(plane, Float.NaN);
+          for (Block block : blocks) {
+            float[] values = block.values[channel];
+            for (int r=0; r<block.rows; r++) {
+              plane[sizeX * block.y[r] + block.x[r]] = values[r];
+            }
+          }
+          data[channel] = plane;
+          return null;
+        }
+      });
+    }
 
-    double[] rowData = new double[rowLength];
-    while (true) {
-      String[] tokens = getNextLine(lines);
-      if (tokens == null) break; // eof
-      if (tokens.length != rowLength) {
-        LOGGER.warn("Ignoring deviant row #" + row);
-        continue;
+    int threads = Math.min(threadCount, tasks.size());
+    if (threads <= 1) {
+      for (Callable<Object> task : tasks) {
+        try {
+          task.call();
+        }
+        catch (Exception e) {
+          throw new FormatException("Could not assign values", e);
+        }
       }
-
-      // parse values from row
-      boolean success = getRowData(tokens, rowData);
-      if (!success) {
-        LOGGER.warn("Ignoring non-numeric row #" + row);
-        continue;
+      return;
+    }
+    ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Object> result : threadPool.invokeAll(tasks)) {
+        result.get();
       }
-
-      // copy values into array
-      assignValues(rowData);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while assigning values", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not assign values", e.getCause());
+    }
+    finally {
+      threadPool.shutdownNow();
     }
   }
 
@@ -415,43 +558,290 @@ public class TextReader extends FormatReader {
     channels = channelsList.toArray(new String[0]);
   }
 
-  /** Assigns values from the given row into the data array. */
-  private void assignValues(double[] rowData) {
-    int x = getX(rowData);
-    int y = getY(rowData);
-    int c = 0;
-    int index = sizeX * y + x;
-    for (int i=0; i<rowLength; i++) {
-      if (i == xIndex || i == yIndex) continue;
-      data[c++][index] = (float) rowData[i];
-    }
-  }
-
-  private long checkTime(long time, int no, long pos, long len) {
+  private long checkTime(long time, long pos, long len) {
     long t = System.currentTimeMillis();
     if (t - time > TIME_OFFSET) {
       // some time has passed; report progress
       if (len > 0) {
         int percent = (int) (100 * pos / len);
-        LOGGER.info("Reading line " + no + " (" + percent + "%)");
+        LOGGER.info("Reading file (" + percent + "%)");
       }
-      else LOGGER.info("Reading line " + no);
+      else LOGGER.info("Reading file");
       time = t;
     }
     return time;
   }
 
-  private int getX(double[] rowData) { return (int) rowData[xIndex]; }
-  private int getY(double[] rowData) { return (int) rowData[yIndex]; }
-
-  private String[] getNextLine(List<String> lines) {
+  private String[] getNextLine(RandomAccessInputStream s) throws IOException {
     while (true) {
-      if (row >= lines.size()) return null; // end of list
-      String line = lines.get(row++);
+      String line = s.readLine();
+      if (line == null) return null; // eof
+      row++;
       line = line.trim();
       if (line.equals("")) continue; // skip blank lines
       return line.split("[\\s,]");
     }
   }
 
+  // -- Helper classes --
+
+  /** Rows parsed from a block of lines, stored column by column. */
+  private static class Block {
+    /** Number of lines in the block, including blank and ignored lines. */
+    int lines;
+
+    /** Number of data rows. */
+    int rows;
+
+    /** X and Y coordinates of each data row. */
+    int[] x, y;
+
+    /** Values of each data row, indexed by channel. */
+    float[][] values;
+
+    /** Largest X and Y coordinates. */
+    int maxX = -1, maxY = -1;
+
+    /**
+     * 1-based line numbers of ignored rows within the block; negated for
+     * non-numeric rows, positive for rows with the wrong number of tokens.
+     */
+    int[] ignored = new int[0];
+    int ignoredCount;
+
+    /** 1-based line number of the first row with invalid coordinates. */
+    int invalidLine = -1;
+    String invalidMessage;
+  }
+
+  /**
+   * Splits a block of lines into tokens and parses them as numbers,
+   * without creating intermediate strings. Tokens are separated by single
+   * whitespace or comma characters, as in {@code line.trim().split("[\\s,]")}.
+   */
+  private static class Tokenizer implements Callable<Block> {
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+      1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] bytes;
+    private final int end;
+    private final int rowLength;
+    private final int xIndex;
+    private final int yIndex;
+    private final int channelCount;
+
+    /** Values of the current row. */
+    private final double[] rowData;
+
+    /** Value of the last token parsed by {@link #parseToken}. */
+    private double value;
+
+    Tokenizer(byte[] bytes, int end, int rowLength, int xIndex, int yIndex,
+      int channelCount)
+    {
+      this.bytes = bytes;
+      this.end = end;
+      this.rowLength = rowLength;
+      this.xIndex = xIndex;
+      this.yIndex = yIndex;
+      this.channelCount = channelCount;
+      rowData = new double[rowLength];
+    }
+
+    @Override
+    public Block call() throws IOException {
+      Block block = new Block();
+      int capacity = Math.max(16, end / (8 * rowLength));
+      block.x = new int[capacity];
+      block.y = new int[capacity];
+      block.values = new float[channelCount][capacity];
+
+      int lineStart = 0;
+      while (lineStart < end) {
+        // find the end of the line; "\r\n" is a single terminator
+        int lineEnd = lineStart;
+        while (lineEnd < end && bytes[lineEnd] != '\n' &&
+          bytes[lineEnd] != '\r')
+        {
+          lineEnd++;
+        }
+        int next = lineEnd + 1;
+        if (lineEnd < end && bytes[lineEnd] == '\r' && next < end &&
+          bytes[next] == '\n')
+        {
+          next++;
+        }
+        block.lines++;
+        parseLine(block, lineStart, lineEnd);
+        lineStart = next;
+      }
+      // blocks are kept until all of them have been parsed
+      if (block.rows < block.x.length) setCapacity(block, block.rows);
+      return block;
+    }
+
+    /** Parses the line [start, stop) and appends it to the given block. */
+    private void parseLine(Block block, int start, int stop)
+      throws IOException
+    {
+      // trim as String.trim does
+      while (start < stop && (bytes[start] & 0xff) <= ' ') start++;
+      while (stop > start && (bytes[stop - 1] & 0xff) <= ' ') stop--;
+      if (start == stop) return; // skip blank lines
+
+      // count the tokens, discarding trailing empty tokens as String.split
+      // does, and parse the first rowLength of them
+      int index = 0;
+      int count = 0;
+      int firstEmpty = -1;
+      boolean numeric = true;
+      int tokenStart = start;
+      for (int i=start; i<=stop; i++) {
+        if (i < stop && !isDelimiter(bytes[i])) continue;
+        if (i > tokenStart) {
+          count = index + 1;
+          if (numeric && index < rowLength) {
+            numeric = parseToken(tokenStart, i);
+            rowData[index] = value;
+          }
+        }
+        else if (firstEmpty < 0) firstEmpty = index;
+        index++;
+        tokenStart = i + 1;
+      }
+
+      int line = block.lines;
+      if (count != rowLength) {
+        addIgnored(block, line);
+        return;
+      }
+      if (!numeric || (firstEmpty >= 0 && firstEmpty < count)) {
+        addIgnored(block, -line);
+        return;
+      }
+
+      int x = (int) rowData[xIndex];
+      int y = (int) rowData[yIndex];
+      if (x < 0 || y < 0) {
+        if (block.invalidLine < 0) {
+          block.invalidLine = line;
+          block.invalidMessage = x < 0 ? "X: " + x : "Y: " + y;
+        }
+        return;
+      }
+
+      int r = block.rows++;
+      if (r == block.x.length) setCapacity(block, 2 * r);
+      block.x[r] = x;
+      block.y[r] = y;
+      int c = 0;
+      for (int i=0; i<rowLength; i++) {
+        if (i == xIndex || i == yIndex) continue;
+        block.values[c++][r] = (float) rowData[i];
+      }
+      if (block.maxX < x) block.maxX = x;
+      if (block.maxY < y) block.maxY = y;
+    }
+
+    /**
+     * Parses the token [start, stop) as Double.parseDouble would, and
+     * stores the result in {@link #value}. Decimal numbers whose digits
+     * and power of ten are exactly representable as doubles are converted
+     * with a single correctly rounded operation; anything else is decoded
+     * and passed to Double.parseDouble.
+     *
+     * @return true if the token is a number
+     */
+    private boolean parseToken(int start, int stop) throws IOException {
+      int i = start;
+      boolean negative = bytes[i] == '-';
+      if (negative || bytes[i] == '+') i++;
+
+      long mantissa = 0;
+      int digits = 0;
+      int scale = 0;
+      boolean any = false;
+      for (; i<stop && isDigit(bytes[i]); i++) {
+        any = true;
+        if (digits > 0 || bytes[i] != '0') {
+          if (digits++ < 18) mantissa = 10 * mantissa + (bytes[i] - '0');
+        }
+      }
+      if (i < stop && bytes[i] == '.') {
+        for (i++; i<stop && isDigit(bytes[i]); i++) {
+          any = true;
+          if (digits > 0 || bytes[i] != '0') {
+            if (digits++ < 18) mantissa = 10 * mantissa + (bytes[i] - '0');
+          }
+          scale--;
+        }
+      }
+      if (any && i < stop && (bytes[i] == 'e' || bytes[i] == 'E')) {
+        i++;
+        boolean negativeExponent = i < stop && bytes[i] == '-';
+        if (i < stop && (negativeExponent || bytes[i] == '+')) i++;
+        int exponent = 0;
+        int exponentStart = i;
+        for (; i<stop && isDigit(bytes[i]); i++) {
+          if (exponent < 100000) exponent = 10 * exponent + (bytes[i] - '0');
+        }
+        if (i == exponentStart) return parseSlow(start, stop);
+        scale += negativeExponent ? -exponent : exponent;
+      }
+      if (!any || i != stop || digits > 18 || mantissa > (1L << 53)) {
+        return parseSlow(start, stop);
+      }
+
+      double v = mantissa;
+      if (mantissa != 0 && scale != 0) {
+        if (scale < -22 || scale > 22) return parseSlow(start, stop);
+        if (scale < 0) v /= POWERS_OF_TEN[-scale];
+        else v *= POWERS_OF_TEN[scale];
+      }
+      value = negative ? -v : v;
+      return true;
+    }
+
+    private boolean parseSlow(int start, int stop) throws IOException {
+      try {
+        value = Double.parseDouble(
+          new String(bytes, start, stop - start, Constants.ENCODING));
+        return true;
+      }
+      catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    private static void addIgnored(Block block, int line) {
+      if (block.ignoredCount == block.ignored.length) {
+        block.ignored =
+          Arrays.copyOf(block.ignored, Math.max(16, 2 * block.ignoredCount));
+      }
+      block.ignored[block.ignoredCount++] = line;
+    }
+
+    private static void setCapacity(Block block, int capacity) {
+      block.x = Arrays.copyOf(block.x, capacity);
+      block.y = Arrays.copyOf(block.y, capacity);
+      for (int c=0; c<block.values.length; c++) {
+        block.values[c] = Arrays.copyOf(block.values[c], capacity);
+      }
+    }
+
+    private static boolean isDigit(byte b) {
+      return b >= '0' && b <= '9';
+    }
+
+    private static boolean isDelimiter(byte b) {
+      return b == ' ' || b == ',' || b == '\t' || b == '\n' ||
+        b == 0x0b || b == '\f' || b == '\r';
+    }
+
+  }
+
 }
@@ -0,0 +1,291 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.in;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import loci.formats.FormatException;
+
+/**
+ * Keyframe index and decoded frame cache for delta-coded video streams
+ * (e.g. QuickTime RLE, MS-RLE and MS Video 1).
+ *
+ * Delta-coded frames can only be decoded given the previous decoded frame.
+ * This class records which frames are sync samples (keyframes), keeps a
+ * decoded snapshot every {@link #getSnapshotInterval()} frames, and replays
+ * the deltas from the nearest snapshot or keyframe when a frame is
+ * requested out of order.  The cost of a random seek is therefore bounded by
+ * the snapshot interval rather than by the frame number.  Snapshots are
+ * limited to {@link #getMaxSnapshotBytes()} in total; once the limit is
+ * reached, the snapshots furthest from the most recently decoded frame are
+ * discarded first.
+ *
+ * Decoded frames handed to and returned from the cache are shared, and must
+ * not be modified by the caller or the {@link FrameDecoder}.
+ */
+public class VideoFrameCache {
+
+  // -- Constants --
+
+  /** Default number of frames between decoded snapshots. */
+  public static final int DEFAULT_SNAPSHOT_INTERVAL = 25;
+
+  /** Default limit on the total size of the decoded snapshots, in bytes. */
+  public static final long DEFAULT_MAX_SNAPSHOT_BYTES = 256L * 1024 * 1024;
+
+  // -- Fields --
+
+  /** Sorted indices of all keyframes; null if only frame 0 is a keyframe. */
+  private int[] keyframes;
+
+  /** Number of frames between decoded snapshots; 0 disables snapshots. */
+  private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+  /** Maximum total size of the decoded snapshots, in bytes. */
+  private long maxSnapshotBytes = DEFAULT_MAX_SNAPSHOT_BYTES;
+
+  /** Decoded snapshot frames, indexed by frame number. */
+  private TreeMap<Integer, byte[]> snapshots = new TreeMap<Integer, byte[]>();
+
+  /** Total size of the decoded snapshots, in bytes. */
+  private long snapshotBytes;
+
+  /** Most recently decoded frame. */
+  private byte[] lastFrame;
+
+  /** Index of the most recently decoded frame. */
+  private int lastFrameNo = -1;
+
+  // -- Constructors --
+
+  /** Constructs a cache in which only the first frame is a keyframe. */
+  public VideoFrameCache() {
+    this(null);
+  }
+
+  /**
+   * Constructs a cache with the given keyframe index.
+   *
+   * @param keyframes the 0-based indices of all sync frames, in any order;
+   *   if null or empty, only the first frame is treated as a keyframe
+   */
+  public VideoFrameCache(int[] keyframes) {
+    setKeyframes(keyframes);
+  }
+
+  // -- VideoFrameCache API methods --
+
+  /**
+   * Sets the keyframe index.
+   *
+   * @param keyframes the 0-based indices of all sync frames, in any order;
+   *   if null or empty, only the first frame is treated as a keyframe
+   */
+  public void setKeyframes(int[] keyframes) {
+    if (keyframes == null || keyframes.length == 0) {
+      this.keyframes = null;
+    }
+    else {
+      this.keyframes = keyframes.clone();
+      Arrays.sort(this.keyframes);
+    }
+    clear();
+  }
+
+  /** Returns true if the given frame can be decoded independently. */
+  public boolean isKeyframe(int no) {
+    if (keyframes == null) return no == 0;
+    return Arrays.binarySearch(keyframes, no) >= 0;
+  }
+
+  /**
+   * Returns the index of the last keyframe at or before the given frame.
+   * Frame 0 is always assumed to be decodable.
+   */
+  public int getKeyframe(int no) {
+    if (keyframes == null) return 0;
+    int index = Arrays.binarySearch(keyframes, no);
+    if (index >= 0) return keyframes[index];
+    index = -index - 2;
+    return index < 0 ? 0 : keyframes[index];
+  }
+
+  /** Sets the number of frames between decoded snapshots. */
+  public void setSnapshotInterval(int interval) {
+    if (interval < 0) {
+      throw new IllegalArgumentException(
+        "Snapshot interval must be non-negative: " + interval);
+    }
+    snapshotInterval = interval;
+    clearSnapshots();
+  }
+
+  /** Gets the number of frames between decoded snapshots. */
+  public int getSnapshotInterval() {
+    return snapshotInterval;
+  }
+
+  /**
+   * Sets the maximum total size of the decoded snapshots, in bytes,
+   * discarding snapshots if they no longer fit.
+   */
+  public void setMaxSnapshotBytes(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException(
+        "Snapshot size limit must be non-negative: " + maxBytes);
+    }
+    maxSnapshotBytes = maxBytes;
+    evictSnapshots(lastFrameNo);
+  }
+
+  /** Gets the maximum total size of the decoded snapshots, in bytes. */
+  public long getMaxSnapshotBytes() {
+    return maxSnapshotBytes;
+  }
+
+  /** Gets the number of snapshots currently held in memory. */
+  public int getSnapshotCount() {
+    return snapshots.size();
+  }
+
+  /** Discards all decoded frames. The keyframe index is retained. */
+  public void clear() {
+    clearSnapshots();
+    lastFrame = null;
+    lastFrameNo = -1;
+  }
+
+  /**
+   * Retrieves the decoded frame with the given index, decoding as few
+   * preceding frames as possible.
+   *
+   * @param no the index of the frame to retrieve
+   * @param decoder used to decode each frame that is not cached
+   * @return the decoded frame; this must not be modified by the caller
+   */
+  public byte[] getFrame(int no, FrameDecoder decoder)
+    throws FormatException, IOException
+  {
+    if (no == lastFrameNo && lastFrame != null) {
+      return lastFrame;
+    }
+
+    int keyframe = getKeyframe(no);
+    int start = keyframe;
+    byte[] previous = null;
+
+    Map.Entry<Integer, byte[]> snapshot = snapshots.floorEntry(no);
+    if (snapshot != null && snapshot.getKey() >= keyframe) {
+      start = snapshot.getKey() + 1;
+      previous = snapshot.getValue();
+    }
+    if (lastFrame != null && lastFrameNo < no && lastFrameNo >= start - 1 &&
+      lastFrameNo >= keyframe)
+    {
+      start = lastFrameNo + 1;
+      previous = lastFrame;
+    }
+    if (start > no) {
+      // the requested frame is itself a snapshot
+      lastFrame = previous;
+      lastFrameNo = no;
+      return previous;
+    }
+
+    for (int i=start; i<=no; i++) {
+      previous = decoder.decode(i, i == keyframe ? null : previous);
+      if (snapshotInterval > 0 && i % snapshotInterval == 0 && i != keyframe) {
+        addSnapshot(i, previous);
+      }
+    }
+
+    lastFrame = previous;
+    lastFrameNo = no;
+    return previous;
+  }
+
+  // -- Helper methods --
+
+  private void clearSnapshots() {
+    snapshots.clear();
+    snapshotBytes = 0;
+  }
+
+  /** Stores a snapshot, discarding others to stay within the size limit. */
+  private void addSnapshot(int no, byte[] frame) {
+    if (frame.length > maxSnapshotBytes) {
+      return;
+    }
+    byte[] replaced = snapshots.put(no, frame);
+    if (replaced != null) {
+      snapshotBytes -= replaced.length;
+    }
+    snapshotBytes += frame.length;
+    evictSnapshots(no);
+  }
+
+  /**
+   * Discards the snapshots furthest from the given frame until the
+   * snapshots fit within the size limit; seeks are usually close to the
+   * frame that was last read.
+   */
+  private void evictSnapshots(int no) {
+    while (snapshotBytes > maxSnapshotBytes) {
+      Map.Entry<Integer, byte[]> first = snapshots.firstEntry();
+      Map.Entry<Integer, byte[]> last = snapshots.lastEntry();
+      Map.Entry<Integer, byte[]> evicted =
+        no - first.getKey() > last.getKey() - no ? first : last;
+      snapshots.remove(evicted.getKey());
+      snapshotBytes -= evicted.getValue().length;
+    }
+  }
+
+  // -- Helper interfaces --
+
+  /** Decodes a single frame of a delta-coded stream. */
+  public interface FrameDecoder {
+    /**
+     * Decodes the given frame.
+     *
+     * @param no the index of the frame to decode
+     * @param previous the decoded frame at index (no - 1), or null if
+     *   the frame is a keyframe; must not be modified
+     * @return a newly allocated array containing the decoded frame
+     */
+    byte[] decode(int no, byte[] previous) throws FormatException, IOException;
+  }
+
+}
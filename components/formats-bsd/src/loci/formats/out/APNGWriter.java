@@ -35,8 +35,16 @@ package loci.formats.out;
 import java.awt.image.IndexColorModel;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
-import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
 
 import loci.common.Constants;
 import loci.common.DataTools;
@@ -44,6 +52,8 @@ import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.FormatWriter;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.MetadataOptions;
 import loci.formats.meta.MetadataRetrieve;
 
 /**
@@ -57,6 +67,28 @@ public class APNGWriter extends FormatWriter {
     (byte) 0x89, 0x50, 0x4e, 0x47, 0x0d, 0x0a, 0x1a, 0x0a
   };
 
+  /**
+   * Option key for the deflate compression level, from 0 (no compression)
+   * to 9 (best compression).
+   */
+  public static final String COMPRESSION_LEVEL_KEY = "png.compression_level";
+
+  /** Option key for the number of threads used to compress each frame. */
+  public static final String DEFLATE_THREADS_KEY = "png.deflate_threads";
+
+  // PNG filter types
+  private static final int FILTER_NONE = 0;
+  private static final int FILTER_SUB = 1;
+  private static final int FILTER_UP = 2;
+  private static final int FILTER_AVERAGE = 3;
+  private static final int FILTER_PAETH = 4;
+
+  /** Minimum number of bytes in each separately compressed block. */
+  private static final int DEFLATE_BLOCK_SIZE = 256 * 1024;
+
+  /** Maximum size of a deflate dictionary. */
+  private static final int DICTIONARY_SIZE = 32768;
+
   // -- Fields --
 
   private int numFrames = 0;
@@ -64,6 +96,7 @@ public class APNGWriter extends FormatWriter {
   private int nextSequenceNumber;
   private boolean littleEndian;
   private long footerPointer = 0;
+  private ExecutorService deflatePool;
 
   // -- Constructor --
 
@@ -71,6 +104,40 @@ public class APNGWriter extends FormatWriter {
     super("Animated PNG", "png");
   }
 
+  // -- APNGWriter API methods --
+
+  /**
+   * Gets the deflate compression level.  The default is
+   * {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public int getCompressionLevel() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      int level = ((DynamicMetadataOptions) options).getInteger(
+        COMPRESSION_LEVEL_KEY, Deflater.DEFAULT_COMPRESSION);
+      if (level >= Deflater.NO_COMPRESSION &&
+        level <= Deflater.BEST_COMPRESSION)
+      {
+        return level;
+      }
+    }
+    return Deflater.DEFAULT_COMPRESSION;
+  }
+
+  /**
+   * Gets the number of threads used to filter and compress each frame.
+   * The default is the number of available processors.
+   */
+  public int getDeflateThreadCount() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      threads = ((DynamicMetadataOptions) options).getInteger(
+        DEFLATE_THREADS_KEY, threads);
+    }
+    return Math.max(1, threads);
+  }
+
   // -- IFormatWriter API methods --
 
   /**
@@ -203,6 +270,10 @@ public class APNGWriter extends FormatWriter {
   /* @see loci.formats.FormatWriter#close() */
   @Override
   public void close() throws IOException {
+    if (deflatePool != null) {
+      deflatePool.shutdown();
+      deflatePool = null;
+    }
     super.close();
 
     numFrames = 0;
@@ -272,70 +343,309 @@ public class APNGWriter extends FormatWriter {
     out.writeInt(crc(b));
   }
 
-  private void writePixels(String chunk, byte[] stream, int x, int y,
-    int width, int height) throws FormatException, IOException
+  private void writePixels(String chunk, final byte[] stream, int x, int y,
+    final int width, int height) throws FormatException, IOException
   {
     MetadataRetrieve r = getMetadataRetrieve();
-    int sizeC = getSamplesPerPixel();
+    final int sizeC = getSamplesPerPixel();
     String type = r.getPixelsType(series).toString();
     int pixelType = FormatTools.pixelTypeFromString(type);
-    boolean signed = FormatTools.isSigned(pixelType);
+    final boolean signed = FormatTools.isSigned(pixelType);
 
     if (!isFullPlane(x, y, width, height)) {
       throw new FormatException("APNGWriter does not support writing tiles.");
     }
 
+    final int rowLen = stream.length / height;
+    final int bytesPerPixel = stream.length / (width * height * sizeC);
+    final boolean adaptive = !(getColorModel() instanceof IndexColorModel);
+    final byte[] filtered = new byte[height * (rowLen + 1)];
+
+    // split the rows into blocks that are filtered and compressed separately
+    int threads = getDeflateThreadCount();
+    if (threads > 1 && deflatePool == null) {
+      deflatePool = Executors.newFixedThreadPool(threads);
+    }
+    int rowsPerBlock = height;
+    if (threads > 1) {
+      rowsPerBlock = Math.max(1, DEFLATE_BLOCK_SIZE / (rowLen + 1));
+    }
+    int blockCount = (height + rowsPerBlock - 1) / rowsPerBlock;
+
+    List<Callable<byte[]>> filterTasks = new ArrayList<Callable<byte[]>>();
+    for (int block=0; block<blockCount; block++) {
+      final int start = block * rowsPerBlock;
+      final int end = Math.min(height, start + rowsPerBlock);
+      filterTasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          byte[] previous = null;
+          byte[] current = new byte[rowLen];
+          if (start > 0) {
+            previous = new byte[rowLen];
+            prepareRow(stream, start - 1, previous, width, sizeC,
+              bytesPerPixel, signed);
+          }
+          for (int row=start; row<end; row++) {
+            prepareRow(stream, row, current, width, sizeC, bytesPerPixel,
+              signed);
+            filterRow(current, previous, filtered, row * (rowLen + 1),
+              Math.max(1, bytesPerPixel * sizeC), adaptive);
+            byte[] tmp = previous == null ? new byte[rowLen] : previous;
+            previous = current;
+            current = tmp;
+          }
+          return null;
+        }
+      });
+    }
+    runTasks(filterTasks);
+
+    final int level = getCompressionLevel();
+    List<Callable<byte[]>> deflateTasks = new ArrayList<Callable<byte[]>>();
+    for (int block=0; block<blockCount; block++) {
+      final int offset = block * rowsPerBlock * (rowLen + 1);
+      final int length =
+        Math.min(filtered.length - offset, rowsPerBlock * (rowLen + 1));
+      final boolean last = block == blockCount - 1;
+      deflateTasks.add(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return deflate(filtered, offset, length, last, level);
+        }
+      });
+    }
+    List<byte[]> blocks = runTasks(deflateTasks);
+
     ByteArrayOutputStream s = new ByteArrayOutputStream();
     s.write(chunk.getBytes(Constants.ENCODING));
     if (chunk.equals("fdAT")) {
       s.write(DataTools.intToBytes(nextSequenceNumber++, false));
     }
-    DeflaterOutputStream deflater = new DeflaterOutputStream(s);
-    int planeSize = stream.length / sizeC;
-    int rowLen = stream.length / height;
-    int bytesPerPixel = stream.length / (width * height * sizeC);
-    byte[] rowBuf = new byte[rowLen];
-    for (int i=0; i<height; i++) {
-      deflater.write(0);
-      if (interleaved) {
-        if (littleEndian) {
-          for (int col=0; col<width*sizeC; col++) {
-            int offset = (i * sizeC * width + col) * bytesPerPixel;
-            int pixel = DataTools.bytesToInt(stream, offset,
-              bytesPerPixel, littleEndian);
-            DataTools.unpackBytes(pixel, rowBuf, col * bytesPerPixel,
-              bytesPerPixel, false);
-          }
+
+    // the blocks are raw deflate streams; wrap them in a single zlib stream
+    s.write(0x78);
+    s.write(getZlibFlags(level));
+    for (byte[] block : blocks) {
+      s.write(block);
+    }
+    Adler32 adler = new Adler32();
+    adler.update(filtered);
+    s.write(DataTools.intToBytes((int) adler.getValue(), false));
+    byte[] b = s.toByteArray();
+
+    // write chunk length
+    out.writeInt(b.length - 4);
+    out.write(b);
+
+    // write checksum
+    out.writeInt(crc(b));
+  }
+
+  /**
+   * Copies one row of the plane into the given buffer as interleaved,
+   * big-endian samples, as required by PNG.
+   */
+  private void prepareRow(byte[] stream, int row, byte[] rowBuf, int width,
+    int sizeC, int bytesPerPixel, boolean signed)
+  {
+    int rowLen = rowBuf.length;
+    if (interleaved) {
+      int src = row * rowLen;
+      if (!littleEndian || bytesPerPixel == 1) {
+        System.arraycopy(stream, src, rowBuf, 0, rowLen);
+      }
+      else if (bytesPerPixel == 2) {
+        for (int i=0; i<rowLen; i+=2) {
+          rowBuf[i] = stream[src + i + 1];
+          rowBuf[i + 1] = stream[src + i];
         }
-        else System.arraycopy(stream, i * rowLen, rowBuf, 0, rowLen);
       }
       else {
-        int max = (int) Math.pow(2, bytesPerPixel * 8 - 1);
+        for (int i=0; i<rowLen; i+=bytesPerPixel) {
+          for (int j=0; j<bytesPerPixel; j++) {
+            rowBuf[i + j] = stream[src + i + bytesPerPixel - j - 1];
+          }
+        }
+      }
+    }
+    else {
+      // signed values are shifted to the unsigned range by flipping the
+      // most significant bit
+      int planeSize = stream.length / sizeC;
+      int pixelLen = bytesPerPixel * sizeC;
+      for (int c=0; c<sizeC; c++) {
+        int src = c * planeSize + row * width * bytesPerPixel;
+        int dest = c * bytesPerPixel;
         for (int col=0; col<width; col++) {
-          for (int c=0; c<sizeC; c++) {
-            int offset = c * planeSize + (i * width + col) * bytesPerPixel;
-            int pixel = DataTools.bytesToInt(stream, offset, bytesPerPixel,
-              littleEndian);
-            if (signed) {
-              if (pixel < max) pixel += max;
-              else pixel -= max;
-            }
-            int output = (col * sizeC + c) * bytesPerPixel;
-            DataTools.unpackBytes(pixel, rowBuf, output, bytesPerPixel, false);
+          for (int j=0; j<bytesPerPixel; j++) {
+            rowBuf[dest + j] = stream[littleEndian ?
+              src + bytesPerPixel - j - 1 : src + j];
           }
+          if (signed) rowBuf[dest] ^= (byte) 0x80;
+          src += bytesPerPixel;
+          dest += pixelLen;
         }
       }
-      deflater.write(rowBuf);
     }
-    deflater.finish();
-    byte[] b = s.toByteArray();
+  }
 
-    // write chunk length
-    out.writeInt(b.length - 4);
-    out.write(b);
+  /**
+   * Filters one row and stores the filter type followed by the filtered
+   * bytes.  If adaptive filtering is enabled, the filter whose output has
+   * the smallest sum of absolute (signed) byte values is chosen, as
+   * recommended by the PNG specification.
+   *
+   * @param row the unfiltered row
+   * @param previous the unfiltered previous row, or null for the first row
+   * @param dest the buffer in which to store the filtered row
+   * @param offset the offset into dest of the filter type byte
+   * @param bpp the number of bytes per complete pixel
+   * @param adaptive true if a filter other than None may be used
+   */
+  private static void filterRow(byte[] row, byte[] previous, byte[] dest,
+    int offset, int bpp, boolean adaptive)
+  {
+    int filter = FILTER_NONE;
+    if (adaptive) {
+      long[] cost = new long[FILTER_PAETH + 1];
+      for (int i=0; i<row.length; i++) {
+        int x = row[i] & 0xff;
+        int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+        int b = previous == null ? 0 : previous[i] & 0xff;
+        int c = i >= bpp && previous != null ? previous[i - bpp] & 0xff : 0;
+        cost[FILTER_NONE] += Math.abs((byte) x);
+        cost[FILTER_SUB] += Math.abs((byte) (x - a));
+        cost[FILTER_UP] += Math.abs((byte) (x - b));
+        cost[FILTER_AVERAGE] += Math.abs((byte) (x - ((a + b) >> 1)));
+        cost[FILTER_PAETH] += Math.abs((byte) (x - paeth(a, b, c)));
+      }
+      for (int f=FILTER_SUB; f<=FILTER_PAETH; f++) {
+        if (cost[f] < cost[filter]) filter = f;
+      }
+    }
 
-    // write checksum
-    out.writeInt(crc(b));
+    dest[offset++] = (byte) filter;
+    if (filter == FILTER_NONE) {
+      System.arraycopy(row, 0, dest, offset, row.length);
+      return;
+    }
+    for (int i=0; i<row.length; i++) {
+      int x = row[i] & 0xff;
+      int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+      int b = previous == null ? 0 : previous[i] & 0xff;
+      int predictor;
+      switch (filter) {
+        case FILTER_SUB:
+          predictor = a;
+          break;
+        case FILTER_UP:
+          predictor = b;
+          break;
+        case FILTER_AVERAGE:
+          predictor = (a + b) >> 1;
+          break;
+        default:
+          int c = i >= bpp && previous != null ? previous[i - bpp] & 0xff : 0;
+          predictor = paeth(a, b, c);
+      }
+      dest[offset + i] = (byte) (x - predictor);
+    }
+  }
+
+  private static int paeth(int a, int b, int c) {
+    int p = a + b - c;
+    int pa = Math.abs(p - a);
+    int pb = Math.abs(p - b);
+    int pc = Math.abs(p - c);
+    if (pa <= pb && pa <= pc) return a;
+    if (pb <= pc) return b;
+    return c;
+  }
+
+  /**
+   * Compresses a block of filtered data as a raw deflate stream.  All blocks
+   * other than the last end with a sync flush, so that the compressed blocks
+   * can be concatenated; the preceding data is used as a dictionary.
+   */
+  private static byte[] deflate(byte[] data, int offset, int length,
+    boolean last, int level)
+  {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (offset > 0) {
+        int dictionary = Math.min(DICTIONARY_SIZE, offset);
+        deflater.setDictionary(data, offset - dictionary, dictionary);
+      }
+      deflater.setInput(data, offset, length);
+      ByteArrayOutputStream s = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buf = new byte[65536];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buf);
+          s.write(buf, 0, n);
+        }
+      }
+      else {
+        int n;
+        do {
+          n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+          s.write(buf, 0, n);
+        }
+        while (n == buf.length);
+      }
+      return s.toByteArray();
+    }
+    finally {
+      deflater.end();
+    }
+  }
+
+  /** Gets the second zlib header byte for the given compression level. */
+  private static int getZlibFlags(int level) {
+    if (level == 0 || level == 1) return 0x01;
+    if (level >= 2 && level <= 5) return 0x5e;
+    if (level >= 7) return 0xda;
+    return 0x9c;
+  }
+
+  /**
+   * Runs the given tasks on the deflate thread pool, or in the current
+   * thread if there is no pool, and returns the results in order.
+   */
+  private <T> List<T> runTasks(List<Callable<T>> tasks)
+    throws FormatException
+  {
+    List<T> results = new ArrayList<T>();
+    if (deflatePool == null || tasks.size() == 1) {
+      for (Callable<T> task : tasks) {
+        try {
+          results.add(task.call());
+        }
+        catch (Exception e) {
+          throw new FormatException("Could not compress PNG data", e);
+        }
+      }
+      return results;
+    }
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (Callable<T> task : tasks) {
+      futures.add(deflatePool.submit(task));
+    }
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while compressing PNG data", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not compress PNG data", e.getCause());
+    }
+    return results;
   }
 
   private void writeFooter() throws IOException {
@@ -34,13 +34,15 @@ package loci.formats.out;
 
 import java.awt.image.IndexColorModel;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import loci.common.DataTools;
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.FormatWriter;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.MetadataOptions;
 import loci.formats.meta.MetadataRetrieve;
 
 /**
@@ -80,6 +82,42 @@ public class AVIWriter extends FormatWriter {
   private static final long SAVE_LIST2_SIZE = 4088;
   private static final String DATA_SIGNATURE = "00db";
 
+  /**
+   * idx1 flag indicating that a chunk is a keyframe.  Frames are stored
+   * uncompressed, so every frame is a keyframe; standard index entries
+   * have no keyframe flag and are keyframes unless the delta bit is set.
+   */
+  private static final int AVIIF_KEYFRAME = 0x10;
+
+  /**
+   * Maximum number of RIFF segments in an OpenDML file.  The super index
+   * that points at each segment's standard index is stored in the space
+   * that is otherwise used for JUNK padding, which limits its size.
+   */
+  private static final int MAX_SEGMENTS = 128;
+
+  /** Size of the super index ('indx') chunk, including its header. */
+  private static final int SUPER_INDEX_SIZE = 32 + 16 * MAX_SEGMENTS;
+
+  /** Size of the OpenDML header ('odml') list, including its header. */
+  private static final int ODML_SIZE = 268;
+
+  /** Size of a standard index ('ix00') chunk header. */
+  private static final int STANDARD_INDEX_HEADER = 32;
+
+  /**
+   * Option key for the maximum size in bytes of each RIFF segment.
+   * Files whose frames would not fit in a single segment of this size are
+   * written as OpenDML (AVI 2.0) files.
+   */
+  public static final String RIFF_SIZE_KEY = "avi.riff_size";
+
+  /**
+   * Default maximum RIFF segment size (1 GB), as recommended by the OpenDML
+   * specification for compatibility with AVI 1.0 readers.
+   */
+  public static final int DEFAULT_RIFF_SIZE = 1024 * 1024 * 1024;
+
   // -- Fields --
 
   private int planesWritten = 0;
@@ -88,15 +126,46 @@ public class AVIWriter extends FormatWriter {
   private int xDim, yDim, zDim, tDim, xPad;
   private int microSecPerFrame;
 
-  private List<Long> savedbLength;
-  private long idx1Pos;
-  private long endPos;
-  private long saveidx1Length;
+  /** File offsets of the chunk headers of all frames written so far. */
+  private long[] chunkOffsets;
+
+  /** File offset at which the next frame chunk will be written. */
+  private long moviEnd;
+
+  /** Whether or not an OpenDML (AVI 2.0) file is being written. */
+  private boolean openDML;
+
+  /** Maximum number of frames in each RIFF segment of an OpenDML file. */
+  private int segmentFrames;
+
+  /** File offsets of the 'RIFF' signature of each segment. */
+  private long[] segmentOffsets;
+  private int segmentCount;
 
   // -- Constructor --
 
   public AVIWriter() { super("Audio Video Interleave", "avi"); }
 
+  // -- AVIWriter API methods --
+
+  /**
+   * Gets the maximum size in bytes of each RIFF segment.  The default is
+   * {@link #DEFAULT_RIFF_SIZE}.
+   */
+  public long getRIFFSize() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return Math.max(SAVE_LIST2_SIZE, ((DynamicMetadataOptions) options).
+        getInteger(RIFF_SIZE_KEY, DEFAULT_RIFF_SIZE));
+    }
+    return DEFAULT_RIFF_SIZE;
+  }
+
+  /** Returns true if the current file is an OpenDML (AVI 2.0) file. */
+  public boolean isOpenDML() {
+    return openDML;
+  }
+
   // -- IFormatWriter API methods --
 
   /**
@@ -117,96 +186,35 @@ public class AVIWriter extends FormatWriter {
       initialized[series][no] = true;
     }
 
-    // Write the data. Each 3-byte triplet in the bitmap array represents the
-    // relative intensities of blue, green, and red, respectively, for a pixel.
-    // The color bytes are in reverse order from the Windows convention.
-
     int width = xDim - xPad;
     int height = buf.length / (width * bytesPerPixel);
+    int frameSize = getFrameSize();
 
-    out.seek(idx1Pos);
-    out.writeBytes(DATA_SIGNATURE);
-    savedbLength.add(new Long(out.getFilePointer()));
-
-    // Write the data length
-    out.writeInt(bytesPerPixel * xDim * yDim);
+    if (openDML && planesWritten == segmentCount * segmentFrames) {
+      startSegment(finishSegment());
+    }
+    else if (!openDML && moviEnd + 8 + frameSize > Integer.MAX_VALUE) {
+      throw new FormatException("AVI file size limit exceeded; " +
+        "appending to an AVI 1.0 file cannot create an OpenDML file.");
+    }
 
-    int rowPad = xPad * bytesPerPixel;
+    // Write the data. Each 3-byte triplet in the bitmap array represents the
+    // relative intensities of blue, green, and red, respectively, for a pixel.
+    // The color bytes are in reverse order from the Windows convention.
 
-    byte[] rowBuffer = new byte[width * bytesPerPixel + rowPad];
+    byte[] chunk = new byte[8 + xDim * bytesPerPixel * height];
+    writeFourCC(chunk, 0, DATA_SIGNATURE);
+    DataTools.unpackBytes(frameSize, chunk, 4, 4, true);
+    packFrame(buf, chunk, 8, width, height, nChannels);
 
-    for (int row=height-1; row>=0; row--) {
-      for (int col=0; col<width; col++) {
-        int offset = row * width + col;
-        if (interleaved) offset *= nChannels;
-        byte r = buf[offset];
-        if (nChannels > 1) {
-          byte g = buf[offset + (interleaved ? 1 : width * height)];
-          byte b = 0;
-          if (nChannels > 2) {
-            b = buf[offset + (interleaved ? 2 : 2 * width * height)];
-          }
+    out.seek(moviEnd);
+    out.write(chunk);
 
-          rowBuffer[col * bytesPerPixel] = b;
-          rowBuffer[col * bytesPerPixel + 1] = g;
-        }
-        rowBuffer[col * bytesPerPixel + bytesPerPixel - 1] = r;
-      }
-      out.write(rowBuffer);
+    if (planesWritten == chunkOffsets.length) {
+      chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
     }
-
-    planesWritten++;
-
-    // Write the idx1 CHUNK
-    // Write the 'idx1' signature
-    idx1Pos = out.getFilePointer();
-    out.seek(SAVE_LIST2_SIZE);
-    out.writeInt((int) (idx1Pos - (SAVE_LIST2_SIZE + 4)));
-
-    out.seek(idx1Pos);
-    out.writeBytes("idx1");
-
-    saveidx1Length = out.getFilePointer();
-
-    // Write the length of the idx1 CHUNK not including the idx1 signature
-    out.writeInt(4 + (planesWritten*16));
-
-    for (int z=0; z<planesWritten; z++) {
-      // In the ckid field write the 4 character code to identify the chunk
-      // 00db or 00dc
-      out.writeBytes(DATA_SIGNATURE);
-      // Write the flags - select AVIIF_KEYFRAME
-      if (z == 0) out.writeInt(0x10);
-      else out.writeInt(0x00);
-
-      // AVIIF_KEYFRAME 0x00000010L
-      // The flag indicates key frames in the video sequence.
-      // Key frames do not need previous video information to be
-      // decompressed.
-      // AVIIF_NOTIME 0x00000100L The CHUNK does not influence video timing
-      // (for example a palette change CHUNK).
-      // AVIIF_LIST 0x00000001L Marks a LIST CHUNK.
-      // AVIIF_TWOCC 2L
-      // AVIIF_COMPUSE 0x0FFF0000L These bits are for compressor use.
-      out.writeInt((int) (savedbLength.get(z) - 4 - SAVE_MOVI));
-
-      // Write the offset (relative to the 'movi' field) to the relevant
-      // CHUNK. Write the length of the relevant CHUNK. Note that this length
-      // is also written at savedbLength
-      out.writeInt(bytesPerPixel*xDim*yDim);
-    }
-    endPos = out.getFilePointer();
-    out.seek(SAVE_FILE_SIZE);
-    out.writeInt((int) (endPos - (SAVE_FILE_SIZE + 4)));
-
-    out.seek(saveidx1Length);
-    out.writeInt((int) (endPos - (saveidx1Length + 4)));
-
-    // write the total number of planes
-    out.seek(FRAME_OFFSET);
-    out.writeInt(planesWritten);
-    out.seek(FRAME_OFFSET_2);
-    out.writeInt(planesWritten);
+    chunkOffsets[planesWritten++] = moviEnd;
+    moviEnd += chunk.length;
   }
 
   /* @see loci.formats.IFormatWriter#canDoStacks() */
@@ -224,45 +232,65 @@ public class AVIWriter extends FormatWriter {
   /* @see loci.formats.FormatWriter#close() */
   @Override
   public void close() throws IOException {
+    if (out != null && chunkOffsets != null) {
+      finishFile();
+    }
     super.close();
     planesWritten = 0;
     bytesPerPixel = 0;
     xDim = yDim = zDim = tDim = xPad = 0;
     microSecPerFrame = 0;
-    savedbLength = null;
-    idx1Pos = 0;
-    endPos = 0;
-    saveidx1Length = 0;
+    chunkOffsets = null;
+    moviEnd = 0;
+    openDML = false;
+    segmentFrames = 0;
+    segmentOffsets = null;
+    segmentCount = 0;
   }
 
   /* @see loci.formats.FormatWriter#setId(String) */
   @Override
   public void setId(String id) throws FormatException, IOException {
+    // a different file that is already open is finished by close(),
+    // which super.setId calls
+    if (chunkOffsets != null && id.equals(currentId)) return;
     super.setId(id);
 
-    savedbLength = new ArrayList<Long>();
+    chunkOffsets = new long[64];
+    segmentOffsets = new long[MAX_SEGMENTS];
+    segmentCount = 1;
+    openDML = false;
 
     if (out.length() > 0) {
       RandomAccessInputStream in = new RandomAccessInputStream(currentId);
-      in.order(true);
-      in.seek(FRAME_OFFSET);
-      planesWritten = in.readInt();
-
-      in.seek(SAVE_FILE_SIZE);
-      endPos = in.readInt() + SAVE_FILE_SIZE + 4;
-
-      in.seek(SAVE_LIST2_SIZE);
-      idx1Pos = in.readInt() + SAVE_LIST2_SIZE + 4;
-      saveidx1Length = idx1Pos + 4;
-
-      if (planesWritten > 0) in.seek(saveidx1Length + 4);
-      for (int z=0; z<planesWritten; z++) {
-        in.skipBytes(8);
-        savedbLength.add(in.readInt() + 4 + SAVE_MOVI);
-        in.skipBytes(4);
+      try {
+        in.order(true);
+        in.seek(SAVE_JUNK_SIG);
+        if (in.readString(4).equals("indx")) {
+          throw new FormatException(
+            "Appending to an OpenDML AVI file is not supported.");
+        }
+        in.seek(FRAME_OFFSET);
+        planesWritten = in.readInt();
+
+        in.seek(SAVE_LIST2_SIZE);
+        moviEnd = in.readInt() + SAVE_LIST2_SIZE + 4;
+
+        // read the existing idx1 entries; the index is rewritten on close
+        byte[] index = new byte[planesWritten * 16];
+        if (planesWritten > 0) {
+          in.seek(moviEnd + 8);
+          in.readFully(index);
+        }
+        chunkOffsets = new long[Math.max(64, planesWritten)];
+        for (int z=0; z<planesWritten; z++) {
+          chunkOffsets[z] =
+            DataTools.bytesToInt(index, z * 16 + 8, true) + SAVE_MOVI;
+        }
+      }
+      finally {
+        in.close();
       }
-      in.close();
-      out.seek(idx1Pos);
     }
     else {
       planesWritten = 0;
@@ -299,6 +327,17 @@ public class AVIWriter extends FormatWriter {
     }
 
     if (out.length() == 0) {
+      // switch to OpenDML if the frames and idx1 would not fit in one segment
+      long frameChunk = 8L + getFrameSize();
+      long riffSize = getRIFFSize();
+      long frameCount = (long) zDim * tDim;
+      openDML = SAVE_MOVI + 12 + frameCount * (frameChunk + 16) > riffSize;
+      if (openDML) {
+        segmentFrames = (int) Math.min(Integer.MAX_VALUE, Math.max(1,
+          (riffSize - SAVE_MOVI - 12 - STANDARD_INDEX_HEADER) /
+          (frameChunk + 24)));
+      }
+
       out.writeBytes("RIFF"); // signature
       // Bytes 4 thru 7 contain the length of the file. This length does
       // not include bytes 0 thru 7.
@@ -558,7 +597,225 @@ public class AVIWriter extends FormatWriter {
 
       out.writeInt(4);  // For now write 0
       out.writeBytes("movi"); // Write CHUNK type 'movi'
-      idx1Pos = out.getFilePointer();
+      moviEnd = out.getFilePointer();
+
+      if (openDML) {
+        writeODMLHeader();
+        out.seek(moviEnd);
+        out.write(createStandardIndex(0, 0, 0));
+        moviEnd = out.getFilePointer();
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Gets the size in bytes of a single frame, including row padding. */
+  private int getFrameSize() {
+    return bytesPerPixel * xDim * yDim;
+  }
+
+  /**
+   * Converts a plane to bottom-up rows of BGR pixels, each padded to
+   * {@link #xDim} pixels, and stores the rows in the given frame buffer.
+   */
+  private void packFrame(byte[] buf, byte[] frame, int offset, int width,
+    int height, int nChannels)
+  {
+    int rowLength = xDim * bytesPerPixel;
+    int planeSize = width * height;
+    int step = interleaved ? nChannels : 1;
+    int last = bytesPerPixel - 1;
+    for (int row=0; row<height; row++) {
+      int dest = offset + (height - row - 1) * rowLength;
+      if (nChannels == 1) {
+        System.arraycopy(buf, row * width, frame, dest, width);
+        continue;
+      }
+      int r = row * width * step;
+      int g = r + (interleaved ? 1 : planeSize);
+      int b = r + (interleaved ? 2 : 2 * planeSize);
+      for (int col=0; col<width; col++, dest+=bytesPerPixel) {
+        frame[dest] = nChannels > 2 ? buf[b] : 0;
+        frame[dest + 1] = buf[g];
+        frame[dest + last] = buf[r];
+        r += step;
+        g += step;
+        b += step;
+      }
+    }
+  }
+
+  /**
+   * Writes the index of the last RIFF segment and updates the headers.
+   * This is called once, when the file is closed.
+   */
+  private void finishFile() throws IOException {
+    finishSegment();
+
+    if (openDML) {
+      writeODMLHeader();
+    }
+
+    // write the total number of planes; in an OpenDML file the main header
+    // only counts the frames in the first segment
+    out.seek(FRAME_OFFSET);
+    out.writeInt(openDML ? Math.min(planesWritten, segmentFrames) :
+      planesWritten);
+    out.seek(FRAME_OFFSET_2);
+    out.writeInt(planesWritten);
+  }
+
+  /**
+   * Writes the indexes of the current RIFF segment and updates the segment's
+   * RIFF and 'movi' LIST sizes.
+   *
+   * @return the file offset of the end of the segment
+   */
+  private long finishSegment() throws IOException {
+    int segment = segmentCount - 1;
+    long riffStart = segmentOffsets[segment];
+    long moviList = segment == 0 ? SAVE_LIST2_SIZE - 4 : riffStart + 12;
+    int first = segment * segmentFrames;
+    int count = planesWritten - first;
+
+    if (openDML) {
+      out.seek(moviList + 12);
+      out.write(createStandardIndex(riffStart, first, count));
+    }
+
+    out.seek(moviList + 4);
+    out.writeInt((int) (moviEnd - (moviList + 8)));
+
+    long end = moviEnd;
+    if (segment == 0) {
+      // the idx1 CHUNK only covers the first segment
+      byte[] idx1 = new byte[8 + count * 16];
+      writeFourCC(idx1, 0, "idx1");
+      DataTools.unpackBytes(idx1.length - 8, idx1, 4, 4, true);
+      for (int z=0; z<count; z++) {
+        int offset = 8 + z * 16;
+        // In the ckid field write the 4 character code to identify the chunk
+        writeFourCC(idx1, offset, DATA_SIGNATURE);
+        // Write the flags - every frame is a key frame
+        DataTools.unpackBytes(AVIIF_KEYFRAME, idx1, offset + 4, 4, true);
+        // Write the offset (relative to the 'movi' field) to the relevant
+        // CHUNK, and the length of the relevant CHUNK
+        DataTools.unpackBytes(chunkOffsets[z] - SAVE_MOVI,
+          idx1, offset + 8, 4, true);
+        DataTools.unpackBytes(getFrameSize(), idx1, offset + 12, 4, true);
+      }
+      out.seek(moviEnd);
+      out.write(idx1);
+      end += idx1.length;
+    }
+
+    out.seek(riffStart + SAVE_FILE_SIZE);
+    out.writeInt((int) (end - (riffStart + SAVE_FILE_SIZE + 4)));
+    return end;
+  }
+
+  /**
+   * Starts a new 'AVIX' RIFF segment at the given file offset, reserving
+   * space for the segment's standard index at the start of its 'movi' LIST.
+   */
+  private void startSegment(long offset) throws FormatException, IOException {
+    if (segmentCount == MAX_SEGMENTS) {
+      throw new FormatException("Too many frames for an OpenDML AVI file; " +
+        "increase the RIFF segment size with " + RIFF_SIZE_KEY);
+    }
+    segmentOffsets[segmentCount++] = offset;
+
+    byte[] header = new byte[24];
+    writeFourCC(header, 0, "RIFF");
+    writeFourCC(header, 8, "AVIX");
+    writeFourCC(header, 12, "LIST");
+    writeFourCC(header, 20, "movi");
+    out.seek(offset);
+    out.write(header);
+    out.write(createStandardIndex(offset, 0, 0));
+    moviEnd = out.getFilePointer();
+  }
+
+  /**
+   * Creates a standard index ('ix00') chunk for a segment, with space for
+   * {@link #segmentFrames} entries.
+   *
+   * @param base the base offset to which the entries are relative
+   * @param first the index of the first frame in the segment
+   * @param count the number of frames in the segment
+   */
+  private byte[] createStandardIndex(long base, int first, int count) {
+    byte[] index = new byte[STANDARD_INDEX_HEADER + 8 * segmentFrames];
+    writeFourCC(index, 0, "ix00");
+    DataTools.unpackBytes(index.length - 8, index, 4, 4, true);
+    // wLongsPerEntry, bIndexSubType, bIndexType (AVI_INDEX_OF_CHUNKS)
+    DataTools.unpackBytes(2, index, 8, 2, true);
+    index[11] = 1;
+    DataTools.unpackBytes(count, index, 12, 4, true);
+    writeFourCC(index, 16, DATA_SIGNATURE);
+    DataTools.unpackBytes(base, index, 20, 8, true);
+    for (int i=0; i<count; i++) {
+      int offset = STANDARD_INDEX_HEADER + i * 8;
+      int frame = first + i;
+      // entries point at the chunk data, not the chunk header
+      DataTools.unpackBytes(chunkOffsets[frame] + 8 - base,
+        index, offset, 4, true);
+      DataTools.unpackBytes(getFrameSize(), index, offset + 4, 4, true);
+    }
+    return index;
+  }
+
+  /**
+   * Writes the super index ('indx') and the OpenDML header list in place of
+   * the JUNK padding between the 'hdrl' and 'movi' LISTs.  The super index
+   * ends the 'strl' LIST and the OpenDML header ends the 'hdrl' LIST.
+   */
+  private void writeODMLHeader() throws IOException {
+    byte[] header = new byte[(int) (SAVE_LIST2_SIZE - 4 - SAVE_JUNK_SIG)];
+
+    writeFourCC(header, 0, "indx");
+    DataTools.unpackBytes(SUPER_INDEX_SIZE - 8, header, 4, 4, true);
+    // wLongsPerEntry, bIndexSubType, bIndexType (AVI_INDEX_OF_INDEXES)
+    DataTools.unpackBytes(4, header, 8, 2, true);
+    DataTools.unpackBytes(segmentCount, header, 12, 4, true);
+    writeFourCC(header, 16, DATA_SIGNATURE);
+    int standardIndexSize = STANDARD_INDEX_HEADER + 8 * segmentFrames;
+    for (int s=0; s<segmentCount; s++) {
+      int offset = 32 + s * 16;
+      long moviList = s == 0 ? SAVE_LIST2_SIZE - 4 : segmentOffsets[s] + 12;
+      int frames = Math.max(0,
+        Math.min(segmentFrames, planesWritten - s * segmentFrames));
+      DataTools.unpackBytes(moviList + 12, header, offset, 8, true);
+      DataTools.unpackBytes(standardIndexSize, header, offset + 8, 4, true);
+      DataTools.unpackBytes(frames, header, offset + 12, 4, true);
+    }
+
+    int odml = SUPER_INDEX_SIZE;
+    writeFourCC(header, odml, "LIST");
+    DataTools.unpackBytes(ODML_SIZE - 8, header, odml + 4, 4, true);
+    writeFourCC(header, odml + 8, "odml");
+    writeFourCC(header, odml + 12, "dmlh");
+    DataTools.unpackBytes(ODML_SIZE - 20, header, odml + 16, 4, true);
+    // dwTotalFrames - the number of frames in all segments
+    DataTools.unpackBytes(planesWritten, header, odml + 20, 4, true);
+
+    int junk = odml + ODML_SIZE;
+    writeFourCC(header, junk, "JUNK");
+    DataTools.unpackBytes(header.length - junk - 8, header, junk + 4, 4, true);
+
+    out.seek(SAVE_JUNK_SIG);
+    out.write(header);
+
+    out.seek(SAVE_LIST1_SIZE);
+    out.writeInt((int) (SAVE_JUNK_SIG + junk - (SAVE_LIST1_SIZE + 4)));
+    out.seek(SAVE_LIST1_SUBSIZE);
+    out.writeInt((int) (SAVE_JUNK_SIG + odml - (SAVE_LIST1_SUBSIZE + 4)));
+  }
+
+  private static void writeFourCC(byte[] buf, int offset, String fourCC) {
+    for (int i=0; i<4; i++) {
+      buf[offset + i] = (byte) fourCC.charAt(i);
     }
   }
 
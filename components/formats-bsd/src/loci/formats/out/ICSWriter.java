@@ -32,10 +32,10 @@
 
 package loci.formats.out;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
@@ -43,6 +43,7 @@ import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.FormatWriter;
 import loci.formats.MetadataTools;
+import loci.formats.codec.CompressionType;
 import loci.formats.meta.MetadataRetrieve;
 
 import ome.units.quantity.Time;
@@ -54,6 +55,14 @@ import ome.units.UNITS;
  */
 public class ICSWriter extends FormatWriter {
 
+  // -- Constants --
+
+  /** Compression type for gzip-compressed pixel data. */
+  public static final String COMPRESSION_GZIP = "gzip";
+
+  /** Size in bytes of the buffer used when compressing pixel data. */
+  private static final int GZIP_BUFFER_SIZE = 65536;
+
   // -- Fields --
 
   private long dimensionOffset;
@@ -62,6 +71,12 @@ public class ICSWriter extends FormatWriter {
   private int lastPlane = -1;
   private RandomAccessOutputStream pixels;
 
+  /** Stream used to compress pixel data; null if not compressing. */
+  private GZIPOutputStream gzipStream;
+
+  /** Number of planes written to {@link #gzipStream}. */
+  private int gzipPlanes;
+
   private List<String> uniqueFiles = new ArrayList<String>();
 
   // NB: write in ZTC order by default.  Certain software (e.g. Volocity)
@@ -74,6 +89,9 @@ public class ICSWriter extends FormatWriter {
 
   public ICSWriter() {
     super("Image Cytometry Standard", new String[] {"ids", "ics"});
+    compressionTypes = new String[] {
+      CompressionType.UNCOMPRESSED.getCompression(), COMPRESSION_GZIP};
+    compression = compressionTypes[0];
   }
 
   // -- ICSWriter API methods --
@@ -100,10 +118,6 @@ public class ICSWriter extends FormatWriter {
   {
     checkParams(no, buf, x, y, w, h);
 
-    if (pixels == null) {
-      pixels = new RandomAccessOutputStream(currentId);
-    }
-
     MetadataRetrieve meta = getMetadataRetrieve();
 
     int rgbChannels = getSamplesPerPixel();
@@ -132,42 +146,77 @@ public class ICSWriter extends FormatWriter {
     int pixelType =
       FormatTools.pixelTypeFromString(meta.getPixelsType(series).toString());
     int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
-    long planeSize = sizeX * sizeY * rgbChannels * bytesPerPixel;
+    int pixelSize = bytesPerPixel * rgbChannels;
+    long planeSize = (long) sizeX * sizeY * pixelSize;
 
-    if (!initialized[series][realIndex]) {
-      initialized[series][realIndex] = true;
+    if (pixels == null) {
+      pixels = new RandomAccessOutputStream(currentId);
+      if (COMPRESSION_GZIP.equals(compression)) {
+        pixels.seek(pixelOffset);
+        gzipStream = new GZIPOutputStream(pixels, GZIP_BUFFER_SIZE);
+        gzipPlanes = 0;
+      }
+    }
 
+    if (gzipStream != null) {
+      if (realIndex != gzipPlanes || !isFullPlane(x, y, w, h)) {
+        throw new FormatException("Compressed ICS files must be written " +
+          "one full plane at a time, in " + outputOrder + " order.");
+      }
+      gzipPlanes++;
+    }
+    else if (!initialized[series][realIndex]) {
       if (!isFullPlane(x, y, w, h)) {
         // write a dummy plane that will be overwritten in sections
         pixels.seek(pixelOffset + (realIndex + 1) * planeSize);
       }
     }
+    initialized[series][realIndex] = true;
+
+    long planeOffset = pixelOffset + realIndex * planeSize;
+    int rowLength = w * pixelSize;
+    boolean contiguous = interleaved || rgbChannels == 1;
 
-    pixels.seek(pixelOffset + realIndex * planeSize);
-    if (isFullPlane(x, y, w, h) && (interleaved || rgbChannels == 1)) {
-      pixels.write(buf);
+    if (contiguous && (w == sizeX || gzipStream != null)) {
+      // the tile's rows are stored contiguously in the file
+      if (gzipStream != null) {
+        gzipStream.write(buf, 0, h * rowLength);
+      }
+      else {
+        pixels.seek(planeOffset + (long) y * sizeX * pixelSize);
+        pixels.write(buf, 0, h * rowLength);
+      }
     }
     else {
-      pixels.skipBytes(bytesPerPixel * rgbChannels * sizeX * y);
-      for (int row=0; row<h; row++) {
-        ByteArrayOutputStream strip = new ByteArrayOutputStream();
-        for (int col=0; col<w; col++) {
+      byte[] row = contiguous ? buf : new byte[rowLength];
+      for (int r=0; r<h; r++) {
+        int offset = 0;
+        if (contiguous) {
+          offset = r * rowLength;
+        }
+        else {
+          // interleave the channels of one row
           for (int c=0; c<rgbChannels; c++) {
-            int index = interleaved ? rgbChannels * (row * w + col) + c :
-              w * (c * h + row) + col;
-            strip.write(buf, index * bytesPerPixel, bytesPerPixel);
+            int src = (c * h + r) * w * bytesPerPixel;
+            int dest = c * bytesPerPixel;
+            for (int col=0; col<w; col++) {
+              System.arraycopy(buf, src, row, dest, bytesPerPixel);
+              src += bytesPerPixel;
+              dest += pixelSize;
+            }
           }
         }
-        pixels.skipBytes(bytesPerPixel * rgbChannels * x);
-        pixels.write(strip.toByteArray());
-        pixels.skipBytes(bytesPerPixel * rgbChannels * (sizeX - w - x));
+
+        if (gzipStream != null) {
+          gzipStream.write(row, offset, rowLength);
+        }
+        else {
+          pixels.seek(planeOffset + ((long) (y + r) * sizeX + x) * pixelSize);
+          pixels.write(row, offset, rowLength);
+        }
       }
     }
     lastPlane = realIndex;
-    overwriteDimensions(getMetadataRetrieve());
-
-    pixels.close();
-    pixels = null;
   }
 
   /* @see loci.formats.IFormatWriter#canDoStacks() */
@@ -187,6 +236,9 @@ public class ICSWriter extends FormatWriter {
   /* @see loci.formats.FormatWriter#setId(String) */
   @Override
   public void setId(String id) throws FormatException, IOException {
+    if (pixels != null && !id.equals(currentId)) {
+      finishFile();
+    }
     super.setId(id);
 
     if (!uniqueFiles.contains(id)) {
@@ -238,7 +290,8 @@ public class ICSWriter extends FormatWriter {
         (pixelType == FormatTools.FLOAT ? "real\n" : "integer\n"));
       out.writeBytes("representation\tsign\t" +
         (signed ? "signed\n" : "unsigned\n"));
-      out.writeBytes("representation\tcompression\tuncompressed\n");
+      out.writeBytes("representation\tcompression\t" +
+        (COMPRESSION_GZIP.equals(compression) ? "gzip\n" : "uncompressed\n"));
       out.writeBytes("representation\tbyte_order\t");
       for (int i=0; i<sizes[0]/8; i++) {
         if ((littleEndian &&
@@ -305,6 +358,9 @@ public class ICSWriter extends FormatWriter {
   /* @see loci.formats.IFormatHandler#close() */
   @Override
   public void close() throws IOException {
+    if (out != null) {
+      finishFile();
+    }
     super.close();
     pixelOffset = 0;
     lastPlane = -1;
@@ -314,11 +370,30 @@ public class ICSWriter extends FormatWriter {
       pixels.close();
     }
     pixels = null;
+    gzipStream = null;
+    gzipPlanes = 0;
     uniqueFiles.clear();
   }
 
   // -- Helper methods --
 
+  /**
+   * Closes the pixel stream of the current file and updates the dimensions
+   * in the header to reflect the planes that were written.
+   */
+  private void finishFile() throws IOException {
+    if (pixels == null) {
+      return;
+    }
+    if (gzipStream != null) {
+      gzipStream.finish();
+      gzipStream = null;
+    }
+    pixels.close();
+    pixels = null;
+    overwriteDimensions(getMetadataRetrieve());
+  }
+
   private int[] overwriteDimensions(MetadataRetrieve meta) throws IOException {
     out.seek(dimensionOffset);
     int sizeX = meta.getPixelsSizeX(series).getValue().intValue();
@@ -36,9 +36,16 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ome.xml.meta.OMEXMLMetadataRoot;
 import ome.xml.model.primitives.NonNegativeInteger;
@@ -78,6 +85,12 @@ public class OMETiffWriter extends TiffWriter {
 
   public static final String COMPANION_KEY = "ometiff.companion";
 
+  /**
+   * Option key for the number of threads used to write the OME-XML comment
+   * into each file when closing.
+   */
+  public static final String COMMENT_THREADS_KEY = "ometiff.comment_threads";
+
   // -- Fields --
 
   private String[][] imageLocations;
@@ -87,6 +100,12 @@ public class OMETiffWriter extends TiffWriter {
 
   private Map<String, String> uuids = new HashMap<String, String>();
 
+  /** Offset of the IFD for the last plane written to each file. */
+  private Map<String, Long> lastIFDs = new HashMap<String, Long>();
+
+  /** Index of the last plane written to each file. */
+  private Map<String, Integer> lastPlanes = new HashMap<String, Integer>();
+
   // -- Constructor --
 
   public OMETiffWriter() {
@@ -101,6 +120,7 @@ public class OMETiffWriter extends TiffWriter {
   public void close() throws IOException {
     try {
       if (currentId != null) {
+        writePendingPyramids();
         setupServiceAndMetadata();
 
         // remove any BinData and old TiffData elements from the OME-XML
@@ -123,28 +143,38 @@ public class OMETiffWriter extends TiffWriter {
               new Location(companion).getName());
         }
 
-        List<String> files = new ArrayList<String>();
+        Set<String> files = new LinkedHashSet<String>();
         for (String[] s : imageLocations) {
           for (String f : s) {
-            if (!files.contains(f) && f != null) {
+            if (f != null) {
               files.add(f);
-
-              String xml = null;
-              if (null != companion) {
-                xml = getBinaryOnlyOMEXML(f, companion, companionUUID);
-              } else {
-                xml = getOMEXML(f);
-              }
-              xml = insertWarningComment(xml);
-              if (getMetadataOptions().isValidate()) {
-                service.validateOMEXML(xml);
-              }
-
-              // write OME-XML to the first IFD's comment
-              saveComment(f, xml);
             }
           }
         }
+
+        if (!files.isEmpty()) {
+          // the XML is identical for every file apart from the OME UUID, so
+          // it is serialized and validated once with a placeholder UUID
+          String placeholder = "urn:uuid:" + UUID.randomUUID().toString();
+          String xml = null;
+          if (null != companion) {
+            xml = getBinaryOnlyOMEXML(placeholder, companion, companionUUID);
+          } else {
+            xml = serializeOMEXML(placeholder);
+          }
+          xml = insertWarningComment(xml);
+          if (getMetadataOptions().isValidate()) {
+            service.validateOMEXML(xml);
+          }
+          int split = xml.indexOf(placeholder);
+          if (split < 0) {
+            throw new FormatException("Could not find OME UUID in OME-XML");
+          }
+
+          // write OME-XML to the first IFD's comment
+          saveComments(files, xml.substring(0, split),
+            xml.substring(split + placeholder.length()));
+        }
       }
     }
     catch (DependencyException de) {
@@ -188,6 +218,8 @@ public class OMETiffWriter extends TiffWriter {
         omeMeta = null;
         service = null;
         ifdCounts.clear();
+        lastIFDs.clear();
+        lastPlanes.clear();
       }
       else {
         for(String k : ifdCounts.keySet())
@@ -215,8 +247,27 @@ public class OMETiffWriter extends TiffWriter {
   public void saveBytes(int no, byte[] buf, IFD ifd, int x, int y, int w, int h)
     throws FormatException, IOException
   {
+    if (ifd == null) ifd = new IFD();
     super.saveBytes(no, buf, ifd, x, y, w, h);
 
+    // reduced resolutions are appended after the planes they belong to, so
+    // the IFD chain ends at the plane with the highest index rather than at
+    // the IFD with the largest offset
+    Object offset = ifd.get(IFD.REUSE);
+    if (offset != null) {
+      int plane = no;
+      for (int i=0; i<getSeries(); i++) {
+        plane += getPlaneCount(i);
+      }
+      synchronized (lastIFDs) {
+        Integer lastPlane = lastPlanes.get(currentId);
+        if (lastPlane == null || lastPlane <= plane) {
+          lastPlanes.put(currentId, plane);
+          lastIFDs.put(currentId, (Long) offset);
+        }
+      }
+    }
+
     int index = no;
     while (imageLocations[series][index] != null) {
       if (index < imageLocations[series].length - 1) {
@@ -256,6 +307,17 @@ public class OMETiffWriter extends TiffWriter {
     return null;
   }
 
+  /** Gets the number of threads used to write OME-XML comments on close. */
+  public int getCommentThreadCount() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      threads = ((DynamicMetadataOptions) options).getInteger(
+        COMMENT_THREADS_KEY, threads);
+    }
+    return Math.max(1, threads);
+  }
+
   // -- Helper methods --
 
   /** Gets the UUID corresponding to the given filename. */
@@ -291,7 +353,14 @@ public class OMETiffWriter extends TiffWriter {
 
   private String getOMEXML(String file) throws FormatException, IOException {
     // generate UUID and add to OME element
-    String uuid = "urn:uuid:" + getUUID(new Location(file).getName());
+    return serializeOMEXML(
+      "urn:uuid:" + getUUID(new Location(file).getName()));
+  }
+
+  /** Serializes the OME-XML, using the given UUID for the OME element. */
+  private String serializeOMEXML(String uuid)
+    throws FormatException, IOException
+  {
     omeMeta.setUUID(uuid);
 
     OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) omeMeta.getRoot();
@@ -308,12 +377,11 @@ public class OMETiffWriter extends TiffWriter {
   }
 
   private String getBinaryOnlyOMEXML(
-      String file, String companion, String companionUUID) throws
+      String uuid, String companion, String companionUUID) throws
         FormatException, IOException, DependencyException, ServiceException {
     ServiceFactory factory = new ServiceFactory();
     OMEXMLService service = factory.getInstance(OMEXMLService.class);
     OMEXMLMetadata meta = service.createOMEXMLMetadata();
-    String uuid = "urn:uuid:" + getUUID(new Location(file).getName());
     meta.setUUID(uuid);
     meta.setBinaryOnlyMetadataFile(new Location(companion).getName());
     meta.setBinaryOnlyUUID(companionUUID);
@@ -322,15 +390,77 @@ public class OMETiffWriter extends TiffWriter {
     return service.getOMEXML(meta);
   }
 
-  private void saveComment(String file, String xml) throws IOException {
+  /**
+   * Writes the OME-XML comment into each of the given files, in parallel.
+   * Each file's comment consists of the given prefix, the file's UUID and
+   * the given suffix.
+   */
+  private void saveComments(Set<String> files, final String prefix,
+    final String suffix) throws FormatException, IOException
+  {
     if (out != null) out.close();
-    out = new RandomAccessOutputStream(file);
+
+    int threads = Math.min(getCommentThreadCount(), files.size());
+    if (threads <= 1) {
+      for (String f : files) {
+        saveComment(f, prefix + "urn:uuid:" +
+          getUUID(new Location(f).getName()) + suffix, lastIFDs.get(f));
+      }
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (final String f : files) {
+        final String uuid = getUUID(new Location(f).getName());
+        final Long lastIFD = lastIFDs.get(f);
+        results.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            saveComment(f, prefix + "urn:uuid:" + uuid + suffix, lastIFD);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while writing OME-XML", e);
+    }
+    catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new FormatException("Could not write OME-XML", cause);
+    }
+    finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Writes the given OME-XML comment into the given file, and terminates
+   * the file's IFD chain at the given IFD.  If the offset of the last IFD
+   * is not known, the IFD chain is traversed to find it.
+   */
+  private void saveComment(String file, String xml, Long lastIFD)
+    throws IOException
+  {
+    RandomAccessOutputStream out = new RandomAccessOutputStream(file);
     RandomAccessInputStream in = null;
     try {
       TiffSaver saver = new TiffSaver(out, file);
       saver.setBigTiff(isBigTiff);
       in = new RandomAccessInputStream(file);
-      saver.overwriteLastIFDOffset(in);
+      if (lastIFD == null) {
+        saver.overwriteLastIFDOffset(in);
+      }
+      else {
+        saver.overwriteLastIFDOffset(in, lastIFD);
+      }
       saver.overwriteComment(in, xml);
     }
     catch (FormatException exc) {
@@ -339,7 +469,7 @@ public class OMETiffWriter extends TiffWriter {
       throw io;
     }
     finally {
-      if (out != null) out.close();
+      out.close();
       if (in != null) in.close();
     }
   }
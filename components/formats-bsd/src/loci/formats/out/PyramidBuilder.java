@@ -0,0 +1,589 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.out;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+/**
+ * Builds the reduced-resolution levels of a single image plane from
+ * full-resolution regions as they are written.
+ *
+ * Level 0 is the full-resolution plane, which is not stored.  Level 1 is
+ * built incrementally by box-averaging each region passed to
+ * {@link #addRegion(byte[], int, int, int, int)}; each subsequent level is
+ * box-averaged from the level above it once the plane is complete.  Blocks
+ * that straddle two or more regions (e.g. strips whose height is not a
+ * multiple of the downsampling factor) keep running sums until every pixel
+ * in the block has been written, so the result does not depend on how the
+ * plane was split into regions.
+ *
+ * Region and level buffers use the same layout as the buffers handed to
+ * {@link loci.formats.tiff.TiffSaver}: interleaved or channel-sequential
+ * samples in the given byte order.  Each reduced level must fit in a single
+ * byte array.  Only the pixel types accepted by
+ * {@link #isSupported(int)} can be downsampled.
+ *
+ * The plane is complete once every full-resolution pixel has been covered
+ * by at least one region; regions may overlap or be written more than once,
+ * in which case the blocks they touch are averaged over the latest write.
+ */
+public class PyramidBuilder {
+
+  // -- Constants --
+
+  /**
+   * Minimum number of output samples in a downsampling step before the step
+   * is split into row bands across the thread pool.
+   */
+  public static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+  // -- Fields --
+
+  private final int pixelType;
+  private final int bpp;
+  private final int channels;
+  private final boolean little;
+  private final boolean interleaved;
+  private final int factor;
+
+  /** Width and height of each level, including the full-resolution level. */
+  private final int[] widths;
+  private final int[] heights;
+
+  /** Pixel data for each reduced level; index 0 is unused. */
+  private final byte[][] levels;
+
+  /** Thread pool used to downsample large regions; may be null. */
+  private final ExecutorService threadPool;
+
+  /**
+   * Full-resolution columns covered so far in each row, as sorted,
+   * disjoint [start, end) pairs; rows that have not been written are null.
+   */
+  private final int[][] coverage;
+
+  /**
+   * Running sums for level 1 blocks that have only been partly written,
+   * keyed by block index.  Each array holds one sum per channel followed by
+   * the number of full-resolution pixels summed so far.
+   */
+  private final Map<Integer, double[]> partialBlocks =
+    new HashMap<Integer, double[]>();
+
+  /** Number of distinct full-resolution pixels covered so far. */
+  private long pixelsCovered;
+
+  /** Whether or not levels 2 and below are up to date. */
+  private boolean finished;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a builder for a single plane.
+   *
+   * @param width the width of the full-resolution plane
+   * @param height the height of the full-resolution plane
+   * @param channels the number of samples per pixel
+   * @param pixelType the pixel type, as defined in {@link FormatTools}
+   * @param little true if samples are stored in little-endian order
+   * @param interleaved true if samples are interleaved
+   * @param levelCount the total number of levels, including the full
+   *   resolution; must be at least 1
+   * @param factor the downsampling factor between consecutive levels;
+   *   must be at least 2
+   * @param threadPool used to downsample large regions in parallel;
+   *   if null, all work is done on the calling thread
+   */
+  public PyramidBuilder(int width, int height, int channels, int pixelType,
+    boolean little, boolean interleaved, int levelCount, int factor,
+    ExecutorService threadPool)
+    throws FormatException
+  {
+    if (levelCount < 1) {
+      throw new IllegalArgumentException(
+        "Invalid pyramid level count: " + levelCount);
+    }
+    if (factor < 2) {
+      throw new IllegalArgumentException(
+        "Invalid pyramid downsampling factor: " + factor);
+    }
+    if (!isSupported(pixelType)) {
+      throw new FormatException("Unsupported pyramid pixel type: " +
+        FormatTools.getPixelTypeString(pixelType));
+    }
+    this.pixelType = pixelType;
+    this.bpp = FormatTools.getBytesPerPixel(pixelType);
+    this.channels = channels;
+    this.little = little;
+    this.interleaved = interleaved;
+    this.factor = factor;
+    this.threadPool = threadPool;
+
+    widths = new int[levelCount];
+    heights = new int[levelCount];
+    levels = new byte[levelCount][];
+    coverage = new int[height][];
+    widths[0] = width;
+    heights[0] = height;
+    for (int level=1; level<levelCount; level++) {
+      widths[level] = (widths[level - 1] + factor - 1) / factor;
+      heights[level] = (heights[level - 1] + factor - 1) / factor;
+      long size = (long) widths[level] * heights[level] * channels * bpp;
+      if (size > Integer.MAX_VALUE) {
+        throw new FormatException("Pyramid level " + level + " (" +
+          widths[level] + "x" + heights[level] + ") is too large");
+      }
+      levels[level] = new byte[(int) size];
+    }
+  }
+
+  // -- PyramidBuilder API methods --
+
+  /** Returns true if planes of the given pixel type can be downsampled. */
+  public static boolean isSupported(int pixelType) {
+    switch (pixelType) {
+      case FormatTools.INT8:
+      case FormatTools.UINT8:
+      case FormatTools.INT16:
+      case FormatTools.UINT16:
+      case FormatTools.INT32:
+      case FormatTools.UINT32:
+      case FormatTools.FLOAT:
+      case FormatTools.DOUBLE:
+        return true;
+    }
+    return false;
+  }
+
+  /** Returns the total number of levels, including the full resolution. */
+  public int getLevelCount() {
+    return levels.length;
+  }
+
+  /** Returns the downsampling factor between consecutive levels. */
+  public int getFactor() {
+    return factor;
+  }
+
+  /** Returns the width in pixels of the given level. */
+  public int getWidth(int level) {
+    return widths[level];
+  }
+
+  /** Returns the height in pixels of the given level. */
+  public int getHeight(int level) {
+    return heights[level];
+  }
+
+  /**
+   * Returns true if every pixel of the full-resolution plane has been
+   * passed to {@link #addRegion(byte[], int, int, int, int)}.
+   */
+  public synchronized boolean isComplete() {
+    return pixelsCovered == (long) widths[0] * heights[0];
+  }
+
+  /**
+   * Downsamples the given full-resolution region into level 1.
+   *
+   * @param buf the region's pixels
+   * @param x the X coordinate of the region's upper-left corner
+   * @param y the Y coordinate of the region's upper-left corner
+   * @param w the width of the region
+   * @param h the height of the region
+   * @return true if the full-resolution plane is now complete
+   */
+  public boolean addRegion(byte[] buf, int x, int y, int w, int h)
+    throws FormatException
+  {
+    if (x < 0 || y < 0 || w <= 0 || h <= 0 ||
+      x + w > widths[0] || y + h > heights[0])
+    {
+      throw new FormatException("Invalid region: x=" + x + ", y=" + y +
+        ", w=" + w + ", h=" + h);
+    }
+    if (buf.length < (long) w * h * channels * bpp) {
+      throw new FormatException("Buffer too small for " + w + "x" + h +
+        " region: " + buf.length);
+    }
+    if (levels.length > 1) {
+      downsample(buf, x, y, w, h, levels[1], widths[1], heights[1], true);
+    }
+    synchronized (this) {
+      finished = false;
+      for (int row=y; row<y+h; row++) {
+        pixelsCovered += cover(row, x, x + w);
+      }
+      if (isComplete()) {
+        synchronized (partialBlocks) {
+          partialBlocks.clear();
+        }
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Returns the pixels of the given reduced level, building any levels
+   * that are out of date.
+   *
+   * @param level the level to retrieve, between 1 and
+   *   {@link #getLevelCount()} - 1
+   */
+  public synchronized byte[] getLevel(int level) throws FormatException {
+    if (level < 1 || level >= levels.length) {
+      throw new IllegalArgumentException("Invalid pyramid level: " + level);
+    }
+    if (!finished) {
+      for (int i=2; i<levels.length; i++) {
+        downsample(levels[i - 1], 0, 0, widths[i - 1], heights[i - 1],
+          levels[i], widths[i], heights[i], false);
+      }
+      finished = true;
+    }
+    return levels[level];
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Box-averages the given source region into the destination level,
+   * splitting the destination rows into bands across the thread pool when
+   * the region is large enough.  If partial is set, blocks that are only
+   * partly covered by the region are combined with the running sums in
+   * {@link #partialBlocks}.
+   */
+  private void downsample(final byte[] src, final int x, final int y,
+    final int w, final int h, final byte[] dest, final int destWidth,
+    final int destHeight, final boolean partial)
+    throws FormatException
+  {
+    final int firstRow = y / factor;
+    final int lastRow = Math.min((y + h - 1) / factor + 1, destHeight);
+    final int firstCol = x / factor;
+    final int lastCol = Math.min((x + w - 1) / factor + 1, destWidth);
+    int rows = lastRow - firstRow;
+    long samples = (long) rows * (lastCol - firstCol) * channels;
+
+    int bands = threadPool == null ? 1 :
+      (int) Math.min(rows, samples / PARALLEL_THRESHOLD);
+    if (bands <= 1) {
+      downsample(src, x, y, w, h, dest, destWidth, destHeight,
+        firstRow, lastRow, firstCol, lastCol, partial);
+      return;
+    }
+
+    List<Future<Object>> results = new ArrayList<Future<Object>>();
+    int bandRows = (rows + bands - 1) / bands;
+    for (int row=firstRow; row<lastRow; row+=bandRows) {
+      final int start = row;
+      final int end = Math.min(row + bandRows, lastRow);
+      results.add(threadPool.submit(new Callable<Object>() {
+        @Override
+        public Object call() {
+          downsample(src, x, y, w, h, dest, destWidth, destHeight,
+            start, end, firstCol, lastCol, partial);
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Object> result : results) {
+        result.get();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FormatException("Interrupted while downsampling", e);
+    }
+    catch (ExecutionException e) {
+      throw new FormatException("Could not downsample", e.getCause());
+    }
+  }
+
+  /**
+   * Box-averages the given source region into rows [firstRow, lastRow) and
+   * columns [firstCol, lastCol) of the destination level.  Each destination
+   * pixel is the average of the source pixels in its block that lie within
+   * the region, or within any region written so far if partial is set.
+   * Samples are converted a row at a time, so the pixel type is only checked
+   * once per row.
+   */
+  private void downsample(byte[] src, int x, int y, int w, int h,
+    byte[] dest, int destWidth, int destHeight, int firstRow, int lastRow,
+    int firstCol, int lastCol, boolean partial)
+  {
+    ByteOrder order = little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    ByteBuffer in = ByteBuffer.wrap(src).order(order);
+    ByteBuffer out = ByteBuffer.wrap(dest).order(order);
+
+    // number of region columns in each destination block
+    int cols = lastCol - firstCol;
+    int[] blockWidths = new int[cols];
+    for (int col=0; col<cols; col++) {
+      int x0 = Math.max((firstCol + col) * factor, x);
+      int x1 = Math.min((firstCol + col + 1) * factor, x + w);
+      blockWidths[col] = x1 - x0;
+    }
+    int srcX = Math.max(firstCol * factor, x) - x;
+    int srcWidth = Math.min(lastCol * factor, x + w) - x - srcX;
+
+    double[] line = new double[srcWidth * channels];
+    double[] sums = new double[cols * channels];
+    for (int row=firstRow; row<lastRow; row++) {
+      int y0 = Math.max(row * factor, y) - y;
+      int y1 = Math.min((row + 1) * factor, y + h) - y;
+      Arrays.fill(sums, 0);
+      for (int yy=y0; yy<y1; yy++) {
+        if (interleaved) {
+          getSamples(in, (yy * w + srcX) * channels, srcWidth * channels,
+            line, 0, 1);
+        }
+        else {
+          for (int c=0; c<channels; c++) {
+            getSamples(in, (c * h + yy) * w + srcX, srcWidth, line, c,
+              channels);
+          }
+        }
+        int index = 0;
+        for (int col=0; col<cols; col++) {
+          int sum = col * channels;
+          for (int px=0; px<blockWidths[col]; px++) {
+            for (int c=0; c<channels; c++) {
+              sums[sum + c] += line[index++];
+            }
+          }
+        }
+      }
+      for (int col=0; col<cols; col++) {
+        int count = blockWidths[col] * (y1 - y0);
+        if (partial) {
+          count = accumulate(row, firstCol + col, sums, col * channels, count);
+        }
+        for (int c=0; c<channels; c++) {
+          sums[col * channels + c] /= count;
+        }
+      }
+      if (interleaved) {
+        putSamples(out, (row * destWidth + firstCol) * channels,
+          cols * channels, sums, 0, 1);
+      }
+      else {
+        for (int c=0; c<channels; c++) {
+          putSamples(out, (c * destHeight + row) * destWidth + firstCol,
+            cols, sums, c, channels);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the sums for part of a level 1 block to the block's running sums,
+   * replacing the given sums with the running totals.  Blocks that are
+   * entirely covered by a single region are not recorded.
+   *
+   * @return the number of full-resolution pixels summed so far
+   */
+  private int accumulate(int row, int col, double[] sums, int offset,
+    int count)
+  {
+    int area = (Math.min((col + 1) * factor, widths[0]) - col * factor) *
+      (Math.min((row + 1) * factor, heights[0]) - row * factor);
+    if (count == area) {
+      return count;
+    }
+    Integer block = row * widths[1] + col;
+    synchronized (partialBlocks) {
+      double[] totals = partialBlocks.get(block);
+      if (totals == null || totals[channels] + count > area) {
+        // first part of the block, or a part that is being written again
+        totals = new double[channels + 1];
+        partialBlocks.put(block, totals);
+      }
+      for (int c=0; c<channels; c++) {
+        totals[c] += sums[offset + c];
+        sums[offset + c] = totals[c];
+      }
+      totals[channels] += count;
+      if (totals[channels] == area) {
+        partialBlocks.remove(block);
+      }
+      return (int) totals[channels];
+    }
+  }
+
+  /**
+   * Reads count consecutive samples, starting at the given sample index,
+   * into every stride-th element of dest.
+   */
+  private void getSamples(ByteBuffer src, int start, int count,
+    double[] dest, int offset, int stride)
+  {
+    int end = offset + count * stride;
+    switch (pixelType) {
+      case FormatTools.INT8:
+        for (int i=start, d=offset; d<end; i++, d+=stride) {
+          dest[d] = src.get(i);
+        }
+        break;
+      case FormatTools.UINT8:
+        for (int i=start, d=offset; d<end; i++, d+=stride) {
+          dest[d] = src.get(i) & 0xff;
+        }
+        break;
+      case FormatTools.INT16:
+        for (int i=start * 2, d=offset; d<end; i+=2, d+=stride) {
+          dest[d] = src.getShort(i);
+        }
+        break;
+      case FormatTools.UINT16:
+        for (int i=start * 2, d=offset; d<end; i+=2, d+=stride) {
+          dest[d] = src.getShort(i) & 0xffff;
+        }
+        break;
+      case FormatTools.INT32:
+        for (int i=start * 4, d=offset; d<end; i+=4, d+=stride) {
+          dest[d] = src.getInt(i);
+        }
+        break;
+      case FormatTools.UINT32:
+        for (int i=start * 4, d=offset; d<end; i+=4, d+=stride) {
+          dest[d] = src.getInt(i) & 0xffffffffL;
+        }
+        break;
+      case FormatTools.FLOAT:
+        for (int i=start * 4, d=offset; d<end; i+=4, d+=stride) {
+          dest[d] = src.getFloat(i);
+        }
+        break;
+      case FormatTools.DOUBLE:
+        for (int i=start * 8, d=offset; d<end; i+=8, d+=stride) {
+          dest[d] = src.getDouble(i);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Writes every stride-th element of src to count consecutive samples,
+   * starting at the given sample index.  Integer samples are rounded.
+   */
+  private void putSamples(ByteBuffer dest, int start, int count,
+    double[] src, int offset, int stride)
+  {
+    int end = offset + count * stride;
+    switch (pixelType) {
+      case FormatTools.INT8:
+      case FormatTools.UINT8:
+        for (int i=start, s=offset; s<end; i++, s+=stride) {
+          dest.put(i, (byte) Math.round(src[s]));
+        }
+        break;
+      case FormatTools.INT16:
+      case FormatTools.UINT16:
+        for (int i=start * 2, s=offset; s<end; i+=2, s+=stride) {
+          dest.putShort(i, (short) Math.round(src[s]));
+        }
+        break;
+      case FormatTools.INT32:
+      case FormatTools.UINT32:
+        for (int i=start * 4, s=offset; s<end; i+=4, s+=stride) {
+          dest.putInt(i, (int) Math.round(src[s]));
+        }
+        break;
+      case FormatTools.FLOAT:
+        for (int i=start * 4, s=offset; s<end; i+=4, s+=stride) {
+          dest.putFloat(i, (float) src[s]);
+        }
+        break;
+      case FormatTools.DOUBLE:
+        for (int i=start * 8, s=offset; s<end; i+=8, s+=stride) {
+          dest.putDouble(i, src[s]);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Marks columns [start, end) of the given full-resolution row as covered,
+   * merging them with the row's existing spans.
+   *
+   * @return the number of pixels that were not already covered
+   */
+  private long cover(int row, int start, int end) {
+    int[] spans = coverage[row];
+    if (spans == null) {
+      coverage[row] = new int[] {start, end};
+      return end - start;
+    }
+    int[] merged = new int[spans.length + 2];
+    int n = 0;
+    int i = 0;
+    while (i < spans.length && spans[i + 1] < start) {
+      merged[n++] = spans[i++];
+      merged[n++] = spans[i++];
+    }
+    long added = end - start;
+    int mergedStart = start;
+    int mergedEnd = end;
+    while (i < spans.length && spans[i] <= end) {
+      added -= Math.max(0,
+        Math.min(spans[i + 1], end) - Math.max(spans[i], start));
+      mergedStart = Math.min(mergedStart, spans[i]);
+      mergedEnd = Math.max(mergedEnd, spans[i + 1]);
+      i += 2;
+    }
+    merged[n++] = mergedStart;
+    merged[n++] = mergedEnd;
+    while (i < spans.length) {
+      merged[n++] = spans[i++];
+    }
+    coverage[row] = n == merged.length ? merged : Arrays.copyOf(merged, n);
+    return added;
+  }
+
+}
@@ -33,14 +33,28 @@
 package loci.formats.out;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import loci.common.RandomAccessInputStream;
 import loci.common.Region;
+import loci.formats.BufferTools;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.FormatWriter;
 import loci.formats.ImageTools;
 import loci.formats.codec.CompressionType;
 import loci.formats.gui.AWTImageTools;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.in.MetadataOptions;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffCompression;
@@ -80,6 +94,22 @@ public class TiffWriter extends FormatWriter {
   /** TIFF tiles must be of a height and width divisible by 16. */
   private static final int TILE_GRANULARITY = 16;
 
+  /**
+   * Option key for the total number of resolution levels to write for each
+   * plane, including the full resolution.  Levels other than the full
+   * resolution are written as SubIFDs of the full-resolution IFD.
+   */
+  public static final String PYRAMID_LEVELS_KEY = "tiff.pyramid_levels";
+
+  /** Option key for the downsampling factor between pyramid levels. */
+  public static final String PYRAMID_FACTOR_KEY = "tiff.pyramid_factor";
+
+  /** Option key for the number of threads used to build pyramid levels. */
+  public static final String PYRAMID_THREADS_KEY = "tiff.pyramid_threads";
+
+  /** Default downsampling factor between pyramid levels. */
+  public static final int DEFAULT_PYRAMID_FACTOR = 2;
+
   // -- Fields --
 
   /** Whether or not the output file is a BigTIFF file. */
@@ -100,6 +130,20 @@ public class TiffWriter extends FormatWriter {
   /** The tile height which will be used for writing. */
   protected int tileSizeY;
 
+  /**
+   * Pyramid state of each plane written to the current file, by IFD index;
+   * used to link the full-resolution IFDs in plane order when the file is
+   * closed or changed.
+   */
+  private Map<Integer, PyramidPlane> pyramids =
+    new TreeMap<Integer, PyramidPlane>();
+
+  /** Whether the header of the current file was written by this writer. */
+  private boolean wroteHeader;
+
+  /** Thread pool used to build pyramid levels; created on first use. */
+  private ExecutorService pyramidPool;
+
   /**
    * Sets the compression code for the specified IFD.
    * 
@@ -151,6 +195,11 @@ public class TiffWriter extends FormatWriter {
   /* @see loci.formats.FormatWriter#setId(String) */
   @Override
   public void setId(String id) throws FormatException, IOException {
+    if (currentId != null && !id.equals(currentId)) {
+      // the pending pyramids refer to IFDs in the current file
+      writePendingPyramids();
+      wroteHeader = false;
+    }
     super.setId(id);
 
     // if a BigTIFF extension is used, or we know that
@@ -204,6 +253,25 @@ public class TiffWriter extends FormatWriter {
     saveBytes(no, buf, ifd, 0, 0, w, h);
   }
 
+  /**
+   * Saves the remaining bytes of the given buffer as the given region of the
+   * specified plane, and advances the buffer's position.
+   *
+   * @see #saveBytes(int, byte[], IFD, int, int, int, int)
+   * @see loci.formats.BufferTools
+   */
+  public void saveBytes(int no, ByteBuffer buf, IFD ifd, int x, int y, int w,
+    int h) throws IOException, FormatException
+  {
+    byte[] bytes = BufferTools.get(buf);
+    try {
+      saveBytes(no, bytes, ifd, x, y, w, h);
+    }
+    finally {
+      BufferTools.release(buf, bytes);
+    }
+  }
+
   /**
    * Saves the given image to the specified series in the current file.
    * The IFD hashtable allows specification of TIFF parameters such as bit
@@ -226,6 +294,18 @@ public class TiffWriter extends FormatWriter {
       ifd.put(new Integer(IFD.TILE_WIDTH), new Long(currentTileSizeX));
       ifd.put(new Integer(IFD.TILE_LENGTH), new Long(currentTileSizeY));
     }
+    int pyramidLevels = getPyramidLevels();
+    if (pyramidLevels > 1 && !PyramidBuilder.isSupported(type)) {
+      throw new FormatException("Pyramids cannot be written for pixel type " +
+        FormatTools.getPixelTypeString(type));
+    }
+    if (pyramidLevels > 1) {
+      // reserve the SubIFDs entry; the offsets are filled in once the
+      // reduced resolutions have been written
+      ifd.putIFDValue(IFD.SUB_IFD, new long[pyramidLevels - 1]);
+    }
+    boolean last =
+      no == getPlaneCount() - 1 && getSeries() == retrieve.getImageCount() - 1;
     if (currentTileSizeX < w || currentTileSizeY < h) {
       int tileNo = no;
       int numTilesX = (w + (x % currentTileSizeX) + currentTileSizeX - 1) / currentTileSizeX;
@@ -247,11 +327,18 @@ public class TiffWriter extends FormatWriter {
               if (index == -1) {
                 return;
               }
+              if (pyramidLevels > 1) {
+                checkPyramid(index);
+              }
             }
           }
 
           tiffSaver.writeImage(tileBuf, ifd, index, type, tileParams.x, tileParams.y, tileParams.width, tileParams.height,
-          no == getPlaneCount() - 1 && getSeries() == retrieve.getImageCount() - 1);
+          last);
+          if (pyramidLevels > 1) {
+            addToPyramid(index, tileBuf, ifd, type, tileParams.x, tileParams.y,
+              tileParams.width, tileParams.height);
+          }
         }
       }
     }
@@ -264,11 +351,16 @@ public class TiffWriter extends FormatWriter {
           if (index == -1) {
             return;
           }
+          if (pyramidLevels > 1) {
+            checkPyramid(index);
+          }
         }
       }
 
-      tiffSaver.writeImage(buf, ifd, index, type, x, y, w, h,
-      no == getPlaneCount() -1 && getSeries() == retrieve.getImageCount() - 1);
+      tiffSaver.writeImage(buf, ifd, index, type, x, y, w, h, last);
+      if (pyramidLevels > 1) {
+        addToPyramid(index, buf, ifd, type, x, y, w, h);
+      }
     }
   }
 
@@ -301,6 +393,7 @@ public class TiffWriter extends FormatWriter {
             // write TIFF header
             tiffSaver.writeHeader();
           }
+          wroteHeader = true;
         }
         tmp.close();
       }
@@ -430,6 +523,17 @@ public class TiffWriter extends FormatWriter {
    */
   @Override
   public void close() throws IOException {
+    try {
+      writePendingPyramids();
+    }
+    catch (FormatException e) {
+      throw new IOException(e);
+    }
+    wroteHeader = false;
+    if (pyramidPool != null) {
+      pyramidPool.shutdown();
+      pyramidPool = null;
+    }
     super.close();
     if (in != null) {
       in.close();
@@ -522,8 +626,285 @@ public class TiffWriter extends FormatWriter {
     isBigTiff = bigTiff;
   }
 
+  /**
+   * Gets the total number of resolution levels written for each plane,
+   * including the full resolution.  The default is 1, i.e. no pyramid.
+   */
+  public int getPyramidLevels() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return Math.max(1,
+        ((DynamicMetadataOptions) options).getInteger(PYRAMID_LEVELS_KEY, 1));
+    }
+    return 1;
+  }
+
+  /** Gets the downsampling factor between consecutive pyramid levels. */
+  public int getPyramidFactor() {
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      return Math.max(2, ((DynamicMetadataOptions) options).getInteger(
+        PYRAMID_FACTOR_KEY, DEFAULT_PYRAMID_FACTOR));
+    }
+    return DEFAULT_PYRAMID_FACTOR;
+  }
+
+  /**
+   * Gets the number of threads used to downsample and compress pyramid
+   * levels.  The default is the number of available processors.
+   */
+  public int getPyramidThreadCount() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    MetadataOptions options = getMetadataOptions();
+    if (options instanceof DynamicMetadataOptions) {
+      threads = ((DynamicMetadataOptions) options).getInteger(
+        PYRAMID_THREADS_KEY, threads);
+    }
+    return Math.max(1, threads);
+  }
+
   // -- Helper methods --
 
+  /**
+   * Writes the pyramid levels of any planes that have not been completely
+   * written, so that no SubIFDs entry is left pointing at offset 0.
+   * Missing regions are left blank.  The full-resolution IFDs are then
+   * relinked in plane order.
+   */
+  protected void writePendingPyramids() throws FormatException, IOException {
+    List<PyramidPlane> pending = new ArrayList<PyramidPlane>();
+    synchronized (this) {
+      for (PyramidPlane plane : pyramids.values()) {
+        if (!plane.writing) {
+          plane.writing = true;
+          pending.add(plane);
+        }
+      }
+    }
+    try {
+      if (tiffSaver == null) {
+        return;
+      }
+      for (PyramidPlane plane : pending) {
+        writePyramid(plane);
+      }
+      linkIFDs();
+    }
+    finally {
+      synchronized (this) {
+        pyramids.clear();
+      }
+    }
+  }
+
+  /**
+   * Throws an exception if the pyramid of the plane with the given IFD
+   * index has already been written, as its reduced resolutions could no
+   * longer be updated.
+   */
+  private synchronized void checkPyramid(int index) throws FormatException {
+    PyramidPlane plane = pyramids.get(index);
+    if (plane != null && plane.writing) {
+      throw new FormatException("Plane " + index +
+        " is complete and its pyramid has already been written");
+    }
+  }
+
+  /**
+   * Downsamples a region that has just been written at full resolution into
+   * the pyramid for its plane, writing the reduced resolutions once every
+   * pixel of the plane has been received.
+   */
+  private void addToPyramid(int index, byte[] buf, IFD ifd, int type,
+    int x, int y, int w, int h)
+    throws FormatException, IOException
+  {
+    PyramidPlane plane;
+    PyramidBuilder builder;
+    synchronized (this) {
+      checkPyramid(index);
+      plane = pyramids.get(index);
+      if (plane == null) {
+        MetadataRetrieve retrieve = getMetadataRetrieve();
+        int width = retrieve.getPixelsSizeX(series).getValue().intValue();
+        int height = retrieve.getPixelsSizeY(series).getValue().intValue();
+        int channels = buf.length / (w * h * FormatTools.getBytesPerPixel(type));
+        if (pyramidPool == null && getPyramidThreadCount() > 1) {
+          pyramidPool = Executors.newFixedThreadPool(getPyramidThreadCount());
+        }
+        Object little = ifd.get(IFD.LITTLE_ENDIAN);
+        plane = new PyramidPlane(index, currentId, new PyramidBuilder(width,
+          height, channels, type,
+          little != null && ((Boolean) little).booleanValue(),
+          ifd.getPlanarConfiguration() == 1, getPyramidLevels(),
+          getPyramidFactor(), pyramidPool), type);
+        pyramids.put(index, plane);
+      }
+      plane.ifd = ifd;
+      plane.ifdOffset = (Long) ifd.get(IFD.REUSE);
+      builder = plane.builder;
+    }
+    if (builder.addRegion(buf, x, y, w, h)) {
+      synchronized (this) {
+        if (plane.writing) {
+          return;
+        }
+        plane.writing = true;
+      }
+      writePyramid(plane);
+    }
+  }
+
+  /**
+   * Writes the reduced resolutions of the given plane as SubIFDs, then
+   * rewrites the plane's full-resolution IFD to point at them.
+   */
+  private void writePyramid(final PyramidPlane plane)
+    throws FormatException, IOException
+  {
+    final PyramidBuilder builder = plane.builder;
+    int levelCount = builder.getLevelCount();
+    final IFD[] subIFDs = new IFD[levelCount];
+    for (int level=1; level<levelCount; level++) {
+      // builds all of the levels on the first call
+      builder.getLevel(level);
+      subIFDs[level] = makeSubIFD(plane.ifd, builder, level);
+    }
+
+    // levels are compressed in parallel and appended in completion order
+    long[] subOffsets = new long[levelCount - 1];
+    if (pyramidPool == null) {
+      for (int level=1; level<levelCount; level++) {
+        subOffsets[level - 1] = tiffSaver.writeSubIFD(
+          builder.getLevel(level), subIFDs[level], plane.pixelType);
+      }
+    }
+    else {
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      for (int level=1; level<levelCount; level++) {
+        final int l = level;
+        results.add(pyramidPool.submit(new Callable<Long>() {
+          @Override
+          public Long call() throws FormatException, IOException {
+            return tiffSaver.writeSubIFD(
+              builder.getLevel(l), subIFDs[l], plane.pixelType);
+          }
+        }));
+      }
+      try {
+        for (int i=0; i<results.size(); i++) {
+          subOffsets[i] = results.get(i).get();
+        }
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new FormatException("Interrupted while writing pyramid", e);
+      }
+      catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        throw new FormatException("Could not write pyramid", cause);
+      }
+    }
+
+    // the IFD is rewritten in place so that the chain stays traversable
+    // while writing continues: only the SubIFDs values and the next IFD
+    // offset change, so its size is unaffected.  The next IFD is assumed to
+    // follow the pyramid unless it has already been written; the chain is
+    // relinked in plane order by linkIFDs() on close
+    long next = -1;
+    synchronized (this) {
+      plane.ifd.putIFDValue(IFD.SUB_IFD, subOffsets);
+      plane.builder = null;
+      PyramidPlane following = pyramids.get(plane.index + 1);
+      if (following != null) {
+        next = following.ifdOffset;
+      }
+    }
+    synchronized (tiffSaver) {
+      long end = out.length();
+      out.seek(plane.ifdOffset);
+      tiffSaver.writeIFD(plane.ifd, next < 0 ? end : next);
+      out.seek(end);
+    }
+  }
+
+  /**
+   * Rewrites the full-resolution IFD of each plane written to the current
+   * file in place, pointing it at the next plane's IFD, or at 0 for the
+   * last plane, and points the header at the first plane's IFD if the file
+   * was created by this writer.  Pyramids are appended as planes complete,
+   * in any order, so the next IFD offsets written while the planes were
+   * being written cannot be relied upon.
+   */
+  private void linkIFDs() throws FormatException, IOException {
+    List<PyramidPlane> planes = new ArrayList<PyramidPlane>();
+    synchronized (this) {
+      for (PyramidPlane plane : pyramids.values()) {
+        if (plane.file.equals(currentId)) {
+          planes.add(plane);
+        }
+      }
+    }
+    if (planes.isEmpty()) {
+      return;
+    }
+    synchronized (tiffSaver) {
+      long end = out.length();
+      if (wroteHeader) {
+        tiffSaver.writeFirstIFDOffset(planes.get(0).ifdOffset);
+      }
+      for (int i=0; i<planes.size(); i++) {
+        PyramidPlane plane = planes.get(i);
+        long next = i < planes.size() - 1 ? planes.get(i + 1).ifdOffset : 0;
+        out.seek(plane.ifdOffset);
+        tiffSaver.writeIFD(plane.ifd, next);
+      }
+      out.seek(end);
+    }
+  }
+
+  /** Creates the IFD for a reduced resolution of the given plane. */
+  private IFD makeSubIFD(IFD ifd, PyramidBuilder builder, int level)
+    throws FormatException
+  {
+    IFD sub = new IFD();
+    sub.putIFDValue(IFD.NEW_SUBFILE_TYPE, 1L);
+    if (ifd.containsKey(IFD.LITTLE_ENDIAN)) {
+      sub.put(new Integer(IFD.LITTLE_ENDIAN), ifd.get(IFD.LITTLE_ENDIAN));
+    }
+    sub.put(new Integer(IFD.IMAGE_WIDTH), new Long(builder.getWidth(level)));
+    sub.put(new Integer(IFD.IMAGE_LENGTH), new Long(builder.getHeight(level)));
+    if (ifd.isTiled()) {
+      sub.put(new Integer(IFD.TILE_WIDTH), new Long(ifd.getTileWidth()));
+      sub.put(new Integer(IFD.TILE_LENGTH), new Long(ifd.getTileLength()));
+    }
+    int[] copied = {IFD.COMPRESSION, IFD.PLANAR_CONFIGURATION,
+      IFD.SAMPLE_FORMAT, IFD.COLOR_MAP, IFD.RESOLUTION_UNIT,
+      IFD.PREDICTOR};
+    for (int tag : copied) {
+      Object value = ifd.getIFDValue(tag);
+      if (value != null) {
+        sub.putIFDValue(tag, value);
+      }
+    }
+
+    long scale = 1;
+    for (int i=0; i<level; i++) {
+      scale *= builder.getFactor();
+    }
+    int[] resolutions = {IFD.X_RESOLUTION, IFD.Y_RESOLUTION};
+    for (int tag : resolutions) {
+      Object value = ifd.getIFDValue(tag);
+      if (value instanceof TiffRational) {
+        TiffRational r = (TiffRational) value;
+        sub.putIFDValue(tag,
+          new TiffRational(r.getNumerator(), r.getDenominator() * scale));
+      }
+    }
+    return sub;
+  }
+
   protected void setupTiffSaver() throws IOException {
     out.close();
     out = createOutputStream();
@@ -619,4 +1000,29 @@ public class TiffWriter extends FormatWriter {
     return new TiffSaver(out, currentId);
   }
 
+  // -- Helper classes --
+
+  /** The reduced resolutions of a single plane, and where its IFD is. */
+  private static class PyramidPlane {
+    final int index;
+    /** The file to which the plane is written. */
+    final String file;
+    final int pixelType;
+    /** Null once the reduced resolutions have been written. */
+    PyramidBuilder builder;
+    IFD ifd;
+    long ifdOffset;
+    /** Whether or not the reduced resolutions are being written. */
+    boolean writing;
+
+    PyramidPlane(int index, String file, PyramidBuilder builder,
+      int pixelType)
+    {
+      this.index = index;
+      this.file = file;
+      this.builder = builder;
+      this.pixelType = pixelType;
+    }
+  }
+
 }
@@ -33,7 +33,10 @@
 package loci.formats.tiff;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 
@@ -43,8 +46,11 @@ import loci.common.DataTools;
 import loci.common.RandomAccessInputStream;
 import loci.common.Region;
 import loci.common.enumeration.EnumException;
+import loci.formats.BufferPool;
+import loci.formats.BufferTools;
 import loci.formats.FormatException;
 import loci.formats.ImageTools;
+import loci.formats.Metrics;
 import loci.formats.codec.CodecOptions;
 
 import org.slf4j.Logger;
@@ -70,8 +76,11 @@ public class TiffParser {
   /** Input source from which to parse TIFF data. */
   protected transient RandomAccessInputStream in;
 
-  /** Cached tile buffer to avoid re-allocations when reading tiles. */
-  private byte[] cachedTileBuffer;
+  /**
+   * Channel from which pixel data is read using positional reads,
+   * or null if pixel data is read from {@link #in}.
+   */
+  private volatile FileChannel channel;
 
   /** Whether or not the TIFF file contains BigTIFF data. */
   private boolean bigTiff;
@@ -160,6 +169,33 @@ public class TiffParser {
     return in;
   }
 
+  /**
+   * Sets a channel for the same file as the stream, from which tile and
+   * strip data are read using positional reads.  Positional reads do not
+   * move a shared file pointer, so with a channel set, any number of threads
+   * may read tiles concurrently through {@link #getTile}, {@link #getRawTile}
+   * and {@link #getSamples}, sharing this parser, its IFDs and the open
+   * file.  Without a channel those methods are still thread-safe, but their
+   * reads are serialized on the stream.
+   *
+   * IFDs may also be shared by parsers on different streams of the same
+   * file, as they are by cloned readers; the on-demand offsets and byte
+   * counts of an IFD are only accessed while holding its lock.
+   *
+   * IFD parsing always uses the stream, and is not thread-safe.  The
+   * channel is not closed by this parser.
+   *
+   * @param channel the channel, or null to read pixel data from the stream
+   */
+  public void setFileChannel(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /** Gets the channel from which pixel data is read, or null if not set. */
+  public FileChannel getFileChannel() {
+    return channel;
+  }
+
   /** Tests this stream to see if it represents a TIFF file. */
   public boolean isValidHeader() {
     try {
@@ -219,30 +255,42 @@ public class TiffParser {
 
     for (long offset : offsets) {
       IFD ifd = getIFD(offset);
-      if (ifd == null) continue;
-      if (ifd.containsKey(IFD.IMAGE_WIDTH)) ifds.add(ifd);
-      long[] subOffsets = null;
-      try {
-        if (!doCaching && ifd.containsKey(IFD.SUB_IFD)) {
-          fillInIFD(ifd);
-        }
-        subOffsets = ifd.getIFDLongArray(IFD.SUB_IFD);
-      }
-      catch (FormatException e) { }
-      if (subOffsets != null) {
-        for (long subOffset : subOffsets) {
-          IFD sub = getIFD(subOffset);
-          if (sub != null) {
-            ifds.add(sub);
-          }
-        }
-      }
+      // SubIFDs are only listed after an IFD that was kept, so that each
+      // IFD is still followed by its own SubIFDs
+      if (ifd == null || !ifd.containsKey(IFD.IMAGE_WIDTH)) continue;
+      ifds.add(ifd);
+      ifds.addAll(getSubIFDs(ifd));
     }
     if (doCaching) ifdList = ifds;
 
     return ifds;
   }
 
+  /**
+   * Returns the IFDs referenced by the given IFD's SubIFDs tag, in the order
+   * in which they are listed.  The list is empty if there are no SubIFDs.
+   */
+  public IFDList getSubIFDs(IFD ifd) throws IOException {
+    IFDList subIFDs = new IFDList();
+    long[] subOffsets = null;
+    try {
+      if (!doCaching && ifd.containsKey(IFD.SUB_IFD)) {
+        fillInIFD(ifd);
+      }
+      subOffsets = ifd.getIFDLongArray(IFD.SUB_IFD);
+    }
+    catch (FormatException e) { }
+    if (subOffsets != null) {
+      for (long subOffset : subOffsets) {
+        IFD sub = getIFD(subOffset);
+        if (sub != null) {
+          subIFDs.add(sub);
+        }
+      }
+    }
+    return subIFDs;
+  }
+
   /** Returns thumbnail IFDs. */
   public IFDList getThumbnailIFDs() throws IOException {
     IFDList ifds = getIFDs();
@@ -648,83 +696,92 @@ public class TiffParser {
 
   // -- TiffParser methods - image reading --
 
-  public byte[] getTile(IFD ifd, byte[] buf, int row, int col)
+  /**
+   * Reads the compressed bytes of the given tile or strip, without
+   * decompressing them.  If the IFD has a JPEGTables entry, the tables are
+   * merged into the returned JPEG stream so that it can be decoded on its
+   * own; if the FillOrder is reversed, the bits of each byte are reversed.
+   * The returned tile can therefore be written to a new TIFF file with the
+   * same dimensions, tiling and compression, minus the FillOrder and
+   * JPEGTables entries.
+   *
+   * @param ifd the IFD containing the tile
+   * @param row the row index of the tile (or the strip index)
+   * @param col the column index of the tile
+   * @return the compressed tile, or null if the tile is not present in the
+   *   file
+   */
+  public byte[] getRawTile(IFD ifd, int row, int col)
     throws FormatException, IOException
   {
-    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
-
-    codecOptions.interleaved = true;
-    codecOptions.littleEndian = ifd.isLittleEndian();
-
     long tileWidth = ifd.getTileWidth();
-    long tileLength = ifd.getTileLength();
-    int samplesPerPixel = ifd.getSamplesPerPixel();
-    int planarConfig = ifd.getPlanarConfiguration();
-    TiffCompression compression = ifd.getCompression();
-
     long numTileCols = ifd.getTilesPerRow();
-
     int pixel = ifd.getBytesPerSample()[0];
-    int effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
 
-    if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
-      if (counts != null) {
-        counts.setStream(in);
-      }
-    }
-    if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
-      if (counts != null) {
-        counts.setStream(in);
-      }
-    }
-
-    long[] stripByteCounts = ifd.getStripByteCounts();
-    long[] rowsPerStrip = ifd.getRowsPerStrip();
+    // on-demand offsets and byte counts are read from the shared stream,
+    // and the byte counts may be corrected in place; the IFD may also be
+    // shared with parsers on other streams
+    long stripOffset = 0;
+    long byteCount = 0;
+    synchronized (ifd) {
+      synchronized (in) {
+        if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
+          OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
+          if (counts != null) {
+            counts.setStream(in);
+          }
+        }
+        if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
+          OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
+          if (counts != null) {
+            counts.setStream(in);
+          }
+        }
 
-    int offsetIndex = (int) (row * numTileCols + col);
-    int countIndex = offsetIndex;
-    if (equalStrips) {
-      countIndex = 0;
-    }
-    if (stripByteCounts[countIndex] == (rowsPerStrip[0] * tileWidth) &&
-      pixel > 1)
-    {
-      stripByteCounts[countIndex] *= pixel;
-    }
-    else if (stripByteCounts[countIndex] < 0 && countIndex > 0) {
-      LOGGER.debug("byte count #{} was {}; correcting to {}", countIndex,
-        stripByteCounts[countIndex], stripByteCounts[countIndex - 1]);
-      stripByteCounts[countIndex] = stripByteCounts[countIndex - 1];
-    }
+        long[] stripByteCounts = ifd.getStripByteCounts();
+        long[] rowsPerStrip = ifd.getRowsPerStrip();
 
-    long stripOffset = 0;
-    long nStrips = 0;
+        int offsetIndex = (int) (row * numTileCols + col);
+        int countIndex = offsetIndex;
+        if (equalStrips) {
+          countIndex = 0;
+        }
+        if (stripByteCounts[countIndex] == (rowsPerStrip[0] * tileWidth) &&
+          pixel > 1)
+        {
+          stripByteCounts[countIndex] *= pixel;
+        }
+        else if (stripByteCounts[countIndex] < 0 && countIndex > 0) {
+          LOGGER.debug("byte count #{} was {}; correcting to {}", countIndex,
+            stripByteCounts[countIndex], stripByteCounts[countIndex - 1]);
+          stripByteCounts[countIndex] = stripByteCounts[countIndex - 1];
+        }
 
-    if (ifd.getOnDemandStripOffsets() != null) {
-      OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
-      stripOffsets.setStream(in);
-      stripOffset = stripOffsets.get(offsetIndex);
-      nStrips = stripOffsets.size();
-    }
-    else {
-      long[] stripOffsets = ifd.getStripOffsets();
-      stripOffset = stripOffsets[offsetIndex];
-      nStrips = stripOffsets.length;
+        if (ifd.getOnDemandStripOffsets() != null) {
+          OnDemandLongArray stripOffsets = ifd.getOnDemandStripOffsets();
+          stripOffsets.setStream(in);
+          stripOffset = stripOffsets.get(offsetIndex);
+        }
+        else {
+          stripOffset = ifd.getStripOffsets()[offsetIndex];
+        }
+        byteCount = stripByteCounts[countIndex];
+      }
     }
 
-    int size = (int) (tileWidth * tileLength * pixel * effectiveChannels);
-
-    if (buf == null) buf = new byte[size];
-    if (stripByteCounts[countIndex] == 0 || stripOffset >= in.length()) {
-      return buf;
+    if (byteCount == 0 || stripOffset >= length()) {
+      return null;
     }
-    byte[] tile = new byte[(int) stripByteCounts[countIndex]];
+    // compressed sizes vary from tile to tile, so the array is not pooled;
+    // a fresh array also leaves zeros after a short read at the end of a
+    // truncated file
+    byte[] tile = new byte[(int) byteCount];
 
     LOGGER.debug("Reading tile Length {} Offset {}", tile.length, stripOffset);
-    in.seek(stripOffset);
-    in.read(tile);
+    long start = Metrics.startTimer();
+    read(stripOffset, tile, 0, tile.length);
+    Metrics.stopTimer(Metrics.TIFF_READ_TIME, start);
+    Metrics.increment(Metrics.TIFF_BYTES_READ, tile.length);
 
     // reverse bits in each byte if FillOrder == 2
 
@@ -734,22 +791,81 @@ public class TiffParser {
       }
     }
 
-    codecOptions.maxBytes = (int) Math.max(size, tile.length);
-    codecOptions.ycbcr =
-      ifd.getPhotometricInterpretation() == PhotoInterp.Y_CB_CR &&
-      ifd.getIFDIntValue(IFD.Y_CB_CR_SUB_SAMPLING) == 1 && ycbcrCorrection;
-
+    byte[] jpegTable = (byte[]) ifd.getIFDValue(IFD.JPEG_TABLES);
     if (jpegTable != null) {
       byte[] q = new byte[jpegTable.length + tile.length - 4];
       System.arraycopy(jpegTable, 0, q, 0, jpegTable.length - 2);
       System.arraycopy(tile, 2, q, jpegTable.length - 2, tile.length - 2);
-      tile = compression.decompress(q, codecOptions);
+      tile = q;
     }
-    else tile = compression.decompress(tile, codecOptions);
+    return tile;
+  }
+
+  /**
+   * Reads and decodes the given tile or strip into the given buffer.  A tile
+   * that is not present in the file reads as zeros.
+   *
+   * @param ifd the IFD containing the tile
+   * @param buf the buffer into which the tile is decoded, or null to
+   *   allocate a new buffer
+   * @param row the row index of the tile (or the strip index)
+   * @param col the column index of the tile
+   * @return the decoded tile
+   */
+  public byte[] getTile(IFD ifd, byte[] buf, int row, int col)
+    throws FormatException, IOException
+  {
+    return getTile(ifd, buf, row, col, createCodecOptions(ifd));
+  }
+
+  /**
+   * Reads and decodes the given tile or strip using the given codec
+   * options, which are modified.  The buffer is only cleared if the decoded
+   * tile might not cover it.
+   */
+  private byte[] getTile(IFD ifd, byte[] buf, int row, int col,
+    CodecOptions options) throws FormatException, IOException
+  {
+    long tileWidth = ifd.getTileWidth();
+    long tileLength = ifd.getTileLength();
+    int samplesPerPixel = ifd.getSamplesPerPixel();
+    int planarConfig = ifd.getPlanarConfiguration();
+    TiffCompression compression = ifd.getCompression();
+
+    int pixel = ifd.getBytesPerSample()[0];
+    int effectiveChannels = planarConfig == 2 ? 1 : samplesPerPixel;
+
+    int size = (int) (tileWidth * tileLength * pixel * effectiveChannels);
+
+    if (buf == null) buf = new byte[size];
+    byte[] tile = getRawTile(ifd, row, col);
+    if (tile == null) {
+      Arrays.fill(buf, (byte) 0);
+      return buf;
+    }
+
+    options.maxBytes = (int) Math.max(size, tile.length);
+    options.ycbcr =
+      ifd.getPhotometricInterpretation() == PhotoInterp.Y_CB_CR &&
+      ifd.getIFDIntValue(IFD.Y_CB_CR_SUB_SAMPLING) == 1 && ycbcrCorrection;
+
+    long start = Metrics.startTimer();
+    tile = compression.decompress(tile, options);
+    Metrics.stopTimer(Metrics.TIFF_DECOMPRESS_TIME, start);
+    Metrics.increment(Metrics.TIFF_TILES_DECODED, 1);
+
+    start = Metrics.startTimer();
     TiffCompression.undifference(tile, ifd);
+    if (tile.length < size) {
+      // short or bit-packed tiles do not overwrite the whole buffer
+      Arrays.fill(buf, (byte) 0);
+    }
     unpackBytes(buf, 0, tile, ifd);
+    Metrics.stopTimer(Metrics.TIFF_UNPACK_TIME, start);
 
     if (planarConfig == 2 && !ifd.isTiled() && ifd.getSamplesPerPixel() > 1) {
+      long nStrips = ifd.getOnDemandStripOffsets() != null ?
+        ifd.getOnDemandStripOffsets().size() : ifd.getStripOffsets().length;
       int channel = (int) (row % nStrips);
       if (channel < ifd.getBytesPerSample().length) {
         int realBytes = ifd.getBytesPerSample()[channel];
@@ -788,16 +904,48 @@ public class TiffParser {
     return getSamples(ifd, buf, x, y, width, height, 0, 0);
   }
 
+  /**
+   * Reads the given region of the image into the given buffer, starting at
+   * the buffer's position, and advances the position past the samples.
+   * If a channel has been set, full-width regions of uncompressed strips
+   * are read straight into the buffer; otherwise the samples are copied
+   * through an intermediate array.
+   *
+   * @see loci.formats.BufferTools
+   * @see #setFileChannel(FileChannel)
+   */
+  public ByteBuffer getSamples(IFD ifd, ByteBuffer buf, int x, int y,
+    long width, long height) throws FormatException, IOException
+  {
+    int size = (int) (width * height * ifd.getSamplesPerPixel() *
+      ifd.getBytesPerSample()[0]);
+    FileChannel fc = channel;
+    if (fc != null && buf.remaining() >= size &&
+      isUncompressedRows(ifd, x, width))
+    {
+      readStrips(fc, ifd, buf, y, (int) height, size);
+      return buf;
+    }
+    byte[] bytes = BufferTools.getArray(buf, size);
+    boolean read = false;
+    try {
+      getSamples(ifd, bytes, x, y, width, height);
+      read = true;
+    }
+    finally {
+      if (!read) {
+        BufferTools.release(buf, bytes);
+      }
+    }
+    return BufferTools.put(buf, bytes, size);
+  }
+
   public byte[] getSamples(IFD ifd, byte[] buf, int x, int y,
     long width, long height, int overlapX, int overlapY)
     throws FormatException, IOException
   {
     LOGGER.trace("parsing IFD entries");
 
-    // get internal non-IFD entries
-    boolean littleEndian = ifd.isLittleEndian();
-    in.order(littleEndian);
-
     // get relevant IFD entries
     int samplesPerPixel = ifd.getSamplesPerPixel();
     long tileWidth = ifd.getTileWidth();
@@ -840,42 +988,43 @@ public class TiffParser {
       samplesPerPixel, numSamples);
 
     TiffCompression compression = ifd.getCompression();
-
-    if (compression == TiffCompression.JPEG_2000 ||
-      compression == TiffCompression.JPEG_2000_LOSSY)
-    {
-      codecOptions = compression.getCompressionCodecOptions(ifd, codecOptions);
-    }
-    else codecOptions = compression.getCompressionCodecOptions(ifd);
-    codecOptions.interleaved = true;
-    codecOptions.littleEndian = ifd.isLittleEndian();
+    CodecOptions options = createCodecOptions(ifd);
     long imageLength = ifd.getImageLength();
 
+    // on-demand offsets and byte counts are read from the shared stream,
+    // and the IFD may also be shared with parsers on other streams
     long[] stripOffsets = null;
+    long[] stripByteCounts = null;
+    synchronized (ifd) {
+      synchronized (in) {
+        in.order(ifd.isLittleEndian());
+
+        if (ifd.getOnDemandStripOffsets() != null) {
+          OnDemandLongArray offsets = ifd.getOnDemandStripOffsets();
+          offsets.setStream(in);
+          stripOffsets = offsets.toArray();
+        }
+        else {
+          stripOffsets = ifd.getStripOffsets();
+        }
 
-    if (ifd.getOnDemandStripOffsets() != null) {
-      OnDemandLongArray offsets = ifd.getOnDemandStripOffsets();
-      offsets.setStream(in);
-      stripOffsets = offsets.toArray();
-    }
-    else {
-      stripOffsets = ifd.getStripOffsets();
-    }
+        if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
+          OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
+          if (counts != null) {
+            counts.setStream(in);
+          }
+        }
+        if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
+          OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
+          if (counts != null) {
+            counts.setStream(in);
+          }
+        }
 
-    if (ifd.get(IFD.STRIP_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.STRIP_BYTE_COUNTS);
-      if (counts != null) {
-        counts.setStream(in);
+        stripByteCounts = ifd.getStripByteCounts();
       }
     }
-    if (ifd.get(IFD.TILE_BYTE_COUNTS) instanceof OnDemandLongArray) {
-      OnDemandLongArray counts = (OnDemandLongArray) ifd.get(IFD.TILE_BYTE_COUNTS);
-      if (counts != null) {
-        counts.setStream(in);
-      }
-    }
-
-    long[] stripByteCounts = ifd.getStripByteCounts();
+    long length = length();
 
     // special case: if we only need one tile, and that tile doesn't need
     // any special handling, then we can just read it directly and return
@@ -885,7 +1034,7 @@ public class TiffParser {
       compression == TiffCompression.UNCOMPRESSED &&
       ifd.getIFDIntValue(IFD.FILL_ORDER) != 2 &&
       numTileRows * numTileCols == 1 && stripOffsets != null && stripByteCounts != null &&
-      in.length() >= stripOffsets[0] + stripByteCounts[0])
+      length >= stripOffsets[0] + stripByteCounts[0])
     {
       long column = x / tileWidth;
       int firstTile = (int) ((y / tileLength) * numTileCols + column);
@@ -905,33 +1054,36 @@ public class TiffParser {
           byteCount *= pixel;
         }
 
-        if (stripOffsets[tile] < in.length()) {
-          in.seek(stripOffsets[tile]);
-        }
-        else {
+        long pos = stripOffsets[tile];
+        if (pos >= length) {
           continue;
         }
 
         if (width == tileWidth && height == imageLength) {
           // we want to entire tile, so just read the whole thing directly
           int len = (int) Math.min(buf.length - offset, byteCount);
-          in.read(buf, offset, len);
+          long start = Metrics.startTimer();
+          read(pos, buf, offset, len);
+          Metrics.stopTimer(Metrics.TIFF_READ_TIME, start);
+          Metrics.increment(Metrics.TIFF_BYTES_READ, len);
           offset += len;
         }
         else {
           // we only want a piece of the tile, so read each row separately
           // this is especially necessary for large single-tile images
           int bpp = bytes * effectiveChannels;
-          in.skipBytes((int) (y * bpp * tileWidth));
+          pos += (int) (y * bpp * tileWidth);
           for (int row=0; row<height; row++) {
-            in.skipBytes(x * bpp);
+            pos += x * bpp;
             int len = (int) Math.min(buf.length - offset, width * bpp);
             if (len > 0) {
-              in.read(buf, offset, len);
+              read(pos, buf, offset, len);
+              Metrics.increment(Metrics.TIFF_BYTES_READ, len);
+              pos += len;
               offset += len;
               int skip = (int) (bpp * (tileWidth - x - width));
-              if (skip + in.getFilePointer() < in.length()) {
-                in.skipBytes(skip);
+              if (skip + pos < length) {
+                pos += skip;
               }
             }
             else {
@@ -974,7 +1126,10 @@ public class TiffParser {
     int bufferSize = (int) tileWidth * (int) tileLength *
       bufferSizeSamplesPerPixel * bpp;
 
-    cachedTileBuffer = new byte[bufferSize];
+    // a pooled buffer is not cleared; getTile clears it only if the tile
+    // is missing from the file or does not cover the whole buffer
+    BufferPool pool = BufferPool.getDefault();
+    byte[] tileBuffer = pool.borrow(bufferSize);
 
     Region tileBounds = new Region(0, 0, (int) tileWidth, (int) tileLength);
 
@@ -999,7 +1154,7 @@ public class TiffParser {
 
         if (!imageBounds.intersects(tileBounds)) continue;
 
-        getTile(ifd, cachedTileBuffer, row, col);
+        getTile(ifd, tileBuffer, row, col, options);
 
         // adjust tile bounds, if necessary
 
@@ -1034,11 +1189,11 @@ public class TiffParser {
           // otherwise, we may be overwriting a previous tile
           // (or the current tile may be overwritten by a subsequent tile)
           if (rowLen == outputRowLen && overlapX == 0 && overlapY == 0) {
-            System.arraycopy(cachedTileBuffer, src, buf, dest, copy * theight);
+            System.arraycopy(tileBuffer, src, buf, dest, copy * theight);
           }
           else {
             for (int tileRow=0; tileRow<theight; tileRow++) {
-              System.arraycopy(cachedTileBuffer, src, buf, dest, copy);
+              System.arraycopy(tileBuffer, src, buf, dest, copy);
               src += rowLen;
               dest += outputRowLen;
             }
@@ -1047,9 +1202,128 @@ public class TiffParser {
       }
     }
 
+    pool.release(tileBuffer);
     return buf;
   }
 
+  /**
+   * Creates a copy of the codec options for decoding the given IFD, so that
+   * concurrent reads do not share mutable options.
+   */
+  private CodecOptions createCodecOptions(IFD ifd) throws FormatException {
+    TiffCompression compression = ifd.getCompression();
+    CodecOptions options;
+    if (compression == TiffCompression.JPEG_2000 ||
+      compression == TiffCompression.JPEG_2000_LOSSY)
+    {
+      options = compression.getCompressionCodecOptions(ifd, codecOptions);
+    }
+    else options = compression.getCompressionCodecOptions(ifd);
+    options.interleaved = true;
+    options.littleEndian = ifd.isLittleEndian();
+    return options;
+  }
+
+  /**
+   * Returns true if the given full-width region of the image is stored as
+   * uncompressed rows that can be copied without conversion.
+   */
+  private boolean isUncompressedRows(IFD ifd, int x, long width)
+    throws FormatException
+  {
+    PhotoInterp photoInterp = ifd.getPhotometricInterpretation();
+    return x == 0 && width == ifd.getImageWidth() && !ifd.isTiled() &&
+      ifd.getCompression() == TiffCompression.UNCOMPRESSED &&
+      (ifd.getSamplesPerPixel() == 1 || ifd.getPlanarConfiguration() == 1) &&
+      ifd.getBitsPerSample()[0] % 8 == 0 &&
+      photoInterp != PhotoInterp.WHITE_IS_ZERO &&
+      photoInterp != PhotoInterp.CMYK && photoInterp != PhotoInterp.Y_CB_CR &&
+      ifd.getIFDIntValue(IFD.FILL_ORDER) != 2 &&
+      ifd.getIFDIntValue(IFD.PREDICTOR, 1) == 1;
+  }
+
+  /**
+   * Reads rows [y, y + height) of an image accepted by
+   * {@link #isUncompressedRows(IFD, int, long)} from the given channel
+   * straight into the buffer, and advances the buffer's position.  Rows
+   * that are missing from the file read as zeros.
+   */
+  private void readStrips(FileChannel fc, IFD ifd, ByteBuffer buf, int y,
+    int height, int size) throws FormatException, IOException
+  {
+    long[] stripOffsets;
+    long rowsPerStrip;
+    synchronized (ifd) {
+      synchronized (in) {
+        in.order(ifd.isLittleEndian());
+        OnDemandLongArray offsets = ifd.getOnDemandStripOffsets();
+        if (offsets != null) {
+          offsets.setStream(in);
+        }
+        stripOffsets = ifd.getStripOffsets();
+        rowsPerStrip = ifd.getRowsPerStrip()[0];
+      }
+    }
+    if (rowsPerStrip <= 0) {
+      rowsPerStrip = ifd.getImageLength();
+    }
+    long rowBytes = size / height;
+    long length = fc.size();
+
+    long start = Metrics.startTimer();
+    long bytesRead = 0;
+    int row = y;
+    while (row < y + height) {
+      int strip = (int) (row / rowsPerStrip);
+      int stripEnd = (int) Math.min((strip + 1) * rowsPerStrip, y + height);
+      ByteBuffer dest = buf.duplicate();
+      dest.limit(dest.position() + (int) ((stripEnd - row) * rowBytes));
+      if (strip < stripOffsets.length) {
+        long pos = stripOffsets[strip] +
+          (row - strip * rowsPerStrip) * rowBytes - dest.position();
+        while (dest.hasRemaining() && pos + dest.position() < length) {
+          int n = fc.read(dest, pos + dest.position());
+          if (n < 0) break;
+          bytesRead += n;
+        }
+      }
+      while (dest.hasRemaining()) {
+        dest.put((byte) 0);
+      }
+      buf.position(dest.position());
+      row = stripEnd;
+    }
+    Metrics.stopTimer(Metrics.TIFF_READ_TIME, start);
+    Metrics.increment(Metrics.TIFF_BYTES_READ, bytesRead);
+  }
+
+  /** Gets the length of the file from which pixel data is read. */
+  private long length() throws IOException {
+    FileChannel fc = channel;
+    return fc == null ? in.length() : fc.size();
+  }
+
+  /**
+   * Reads up to len bytes of pixel data from the given file offset; fewer
+   * bytes are read only if the end of the file is reached.
+   */
+  private void read(long offset, byte[] buf, int off, int len)
+    throws IOException
+  {
+    FileChannel fc = channel;
+    if (fc == null) {
+      synchronized (in) {
+        in.seek(offset);
+        in.read(buf, off, len);
+      }
+      return;
+    }
+    ByteBuffer dest = ByteBuffer.wrap(buf, off, len);
+    while (dest.hasRemaining()) {
+      if (fc.read(dest, offset + dest.position() - off) < 0) break;
+    }
+  }
+
   // -- Utility methods - byte stream decoding --
 
   /**
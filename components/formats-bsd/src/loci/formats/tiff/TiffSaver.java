@@ -35,6 +35,7 @@ package loci.formats.tiff;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,8 +46,10 @@ import loci.common.ByteArrayHandle;
 import loci.common.Constants;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
+import loci.formats.BufferTools;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
+import loci.formats.Metrics;
 import loci.formats.codec.CodecOptions;
 
 import org.slf4j.Logger;
@@ -222,6 +225,15 @@ public class TiffSaver {
     }
   }
 
+  /**
+   * Overwrites the offset of the first IFD in the header written by
+   * {@link #writeHeader()}.
+   */
+  public void writeFirstIFDOffset(long offset) throws IOException {
+    out.seek(bigTiff ? 8 : 4);
+    writeIntValue(out, offset);
+  }
+
   /**
    */
   public void writeImage(byte[][] buf, IFDList ifds, int pixelType)
@@ -292,6 +304,174 @@ public class TiffSaver {
       throw new FormatException("IFD cannot be null");
     }
 
+    if (nChannels == null) {
+      int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+      nChannels = buf.length / (w * h * bytesPerPixel);
+    }
+    byte[][] strips =
+      compressStrips(buf, ifd, pixelType, w, h, nChannels, copyDirectly);
+
+    // This operation is synchronized
+    synchronized (this) {
+      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
+    }
+  }
+
+  /**
+   * Writes the remaining bytes of the given buffer to any rectangle, and
+   * advances the buffer's position.
+   *
+   * @see #writeImage(byte[], IFD, int, int, int, int, int, int, boolean)
+   * @see loci.formats.BufferTools
+   */
+  public void writeImage(ByteBuffer buf, IFD ifd, int no, int pixelType,
+    int x, int y, int w, int h, boolean last)
+    throws FormatException, IOException
+  {
+    if (buf == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    byte[] bytes = BufferTools.get(buf);
+    try {
+      writeImage(bytes, ifd, no, pixelType, x, y, w, h, last);
+    }
+    finally {
+      BufferTools.release(buf, bytes);
+    }
+  }
+
+  /**
+   * Writes a complete image and its IFD to the end of the file, without
+   * linking the IFD into the main IFD chain.  This is intended for
+   * reduced-resolution images that are referenced from a full-resolution
+   * IFD's SubIFDs tag.
+   *
+   * @param buf The image that is to be written.
+   * @param ifd The IFD describing the image. Mustn't be <code>null</code>.
+   * @param pixelType The type of pixels.
+   * @return the offset of the written IFD
+   * @throws FormatException
+   * @throws IOException
+   */
+  public long writeSubIFD(byte[] buf, IFD ifd, int pixelType)
+    throws FormatException, IOException
+  {
+    if (buf == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    if (ifd == null) {
+      throw new FormatException("IFD cannot be null");
+    }
+    int w = (int) ifd.getImageWidth();
+    int h = (int) ifd.getImageLength();
+    int nChannels =
+      buf.length / (w * h * FormatTools.getBytesPerPixel(pixelType));
+    byte[][] strips =
+      compressStrips(buf, ifd, pixelType, w, h, nChannels, false);
+
+    synchronized (this) {
+      long[] offsets = new long[strips.length];
+      long[] byteCounts = new long[strips.length];
+      out.seek(out.length());
+      for (int i=0; i<strips.length; i++) {
+        offsets[i] = out.getFilePointer();
+        byteCounts[i] = strips[i].length;
+        out.write(strips[i]);
+        Metrics.increment(Metrics.TIFF_BYTES_WRITTEN, strips[i].length);
+      }
+      if (ifd.isTiled()) {
+        ifd.putIFDValue(IFD.TILE_BYTE_COUNTS, byteCounts);
+        ifd.putIFDValue(IFD.TILE_OFFSETS, offsets);
+      }
+      else {
+        ifd.putIFDValue(IFD.STRIP_BYTE_COUNTS, byteCounts);
+        ifd.putIFDValue(IFD.STRIP_OFFSETS, offsets);
+      }
+      long ifdOffset = out.getFilePointer();
+      LOGGER.debug("Writing SubIFD at {}", ifdOffset);
+      writeIFD(ifd, 0);
+      return ifdOffset;
+    }
+  }
+
+  /**
+   * Writes an image whose tiles or strips have already been compressed,
+   * such as those returned by {@link TiffParser#getRawTile(IFD, int, int)},
+   * without decoding or recompressing them.  The image and its IFD are
+   * appended to the end of the file, and the IFD is linked into the main
+   * IFD chain in the same way as by {@link #writeImage}.
+   *
+   * The IFD must fully describe the compressed data: its dimensions, tile
+   * size or RowsPerStrip, BitsPerSample, SamplesPerPixel, planar
+   * configuration, photometric interpretation and compression.  The tile or
+   * strip offsets and byte counts are filled in by this method.
+   *
+   * @param tiles The compressed tiles or strips, in the order in which
+   *              they are listed in the IFD.
+   * @param ifd The IFD describing the image. Mustn't be <code>null</code>.
+   * @param last Pass <code>true</code> if it is the last image,
+   *             <code>false</code> otherwise.
+   * @return the offset of the written IFD
+   * @throws FormatException
+   * @throws IOException
+   */
+  public long writeCompressedImage(byte[][] tiles, IFD ifd, boolean last)
+    throws FormatException, IOException
+  {
+    if (tiles == null) {
+      throw new FormatException("Image data cannot be null");
+    }
+    if (ifd == null) {
+      throw new FormatException("IFD cannot be null");
+    }
+    boolean tiled = ifd.isTiled();
+    long tileCount = ifd.getTilesPerRow() * ifd.getTilesPerColumn();
+    if (ifd.getPlanarConfiguration() == 2) {
+      tileCount *= ifd.getSamplesPerPixel();
+    }
+    if (tiles.length != tileCount) {
+      throw new FormatException("Expected " + tileCount + " tiles; got " +
+        tiles.length);
+    }
+
+    long[] offsets = new long[tiles.length];
+    long[] byteCounts = new long[tiles.length];
+    for (int i=0; i<tiles.length; i++) {
+      byteCounts[i] = tiles[i].length;
+    }
+    ifd.putIFDValue(tiled ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS, offsets);
+    ifd.putIFDValue(tiled ? IFD.TILE_BYTE_COUNTS : IFD.STRIP_BYTE_COUNTS,
+      byteCounts);
+
+    synchronized (this) {
+      // the IFD is written first so that the previous IFD, which points at
+      // the end of the file, links to it; it is rewritten in place once the
+      // offsets are known, which does not change its size
+      long ifdOffset = out.length();
+      out.seek(ifdOffset);
+      writeIFD(ifd, 0);
+      for (int i=0; i<tiles.length; i++) {
+        offsets[i] = out.getFilePointer();
+        out.write(tiles[i]);
+        Metrics.increment(Metrics.TIFF_BYTES_WRITTEN, tiles[i].length);
+      }
+      long end = out.getFilePointer();
+      ifd.putIFDValue(tiled ? IFD.TILE_OFFSETS : IFD.STRIP_OFFSETS, offsets);
+      out.seek(ifdOffset);
+      writeIFD(ifd, last ? 0 : end);
+      out.seek(end);
+      return ifdOffset;
+    }
+  }
+
+  /**
+   * Splits the given image into strips or tiles according to the IFD, then
+   * applies the IFD's differencing and compression schemes to each one.
+   */
+  private byte[][] compressStrips(byte[] buf, IFD ifd, int pixelType, int w,
+      int h, int nChannels, boolean copyDirectly)
+  throws FormatException, IOException
+  {
     // These operations are synchronized
     TiffCompression compression;
     int tileWidth, tileHeight, nStrips;
@@ -300,9 +480,6 @@ public class TiffSaver {
     synchronized (this) {
       int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
       int blockSize = w * h * bytesPerPixel;
-      if (nChannels == null) {
-        nChannels = buf.length / (w * h * bytesPerPixel);
-      }
       interleaved = ifd.getPlanarConfiguration() == 1;
 
       makeValidIFD(ifd, pixelType, nChannels);
@@ -389,17 +566,17 @@ public class TiffSaver {
       codecOptions.width = tileWidth;
       codecOptions.channels = interleaved ? nChannels : 1;
 
+      long start = Metrics.startTimer();
       strips[strip] = compression.compress(strips[strip], codecOptions);
+      Metrics.stopTimer(Metrics.TIFF_COMPRESS_TIME, start);
+      Metrics.increment(Metrics.TIFF_TILES_ENCODED, 1);
       if (LOGGER.isDebugEnabled()) {
         LOGGER.debug(String.format("Compressed strip %d/%d length %d",
             strip + 1, nStrips, strips[strip].length));
       }
     }
 
-    // This operation is synchronized
-    synchronized (this) {
-      writeImageIFD(ifd, no, strips, nChannels, last, x ,y);
-    }
+    return strips;
   }
 
   /**
@@ -659,6 +836,29 @@ public class TiffSaver {
     writeIntValue(out, 0);
   }
 
+  /**
+   * Sets the next IFD offset of the IFD at the given offset to 0, making it
+   * the last IFD in the file.  Unlike {@link
+   * #overwriteLastIFDOffset(RandomAccessInputStream)}, the IFD chain is not
+   * traversed, so the offset of the last IFD must already be known.
+   */
+  public void overwriteLastIFDOffset(RandomAccessInputStream raf,
+    long ifdOffset) throws FormatException, IOException
+  {
+    if (raf == null)
+      throw new FormatException("Output cannot be null");
+    TiffParser parser = new TiffParser(raf);
+    if (parser.checkHeader() == null) {
+      throw new FormatException("Invalid TIFF header");
+    }
+    int bytesPerEntry = bigTiff ?
+      TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
+    raf.seek(ifdOffset);
+    long num = bigTiff ? raf.readLong() : raf.readUnsignedShort();
+    out.seek(ifdOffset + (bigTiff ? 8 : 2) + bytesPerEntry * num);
+    writeIntValue(out, 0);
+  }
+
   /**
    * Surgically overwrites an existing IFD value with the given one. This
    * method requires that the IFD directory entry already exist. It
@@ -683,18 +883,8 @@ public class TiffSaver {
       throw new FormatException("Invalid TIFF header");
     }
 
-    boolean little = valid.booleanValue();
-    boolean bigTiff = parser.isBigTiff();
-
-    setLittleEndian(little);
-    setBigTiff(bigTiff);
-
-    long offset = bigTiff ? 8 : 4; // offset to the IFD
-
-    int bytesPerEntry = bigTiff ?
-      TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
-
-    raf.seek(offset);
+    setLittleEndian(valid.booleanValue());
+    setBigTiff(parser.isBigTiff());
 
     // skip to the correct IFD
     long[] offsets = parser.getIFDOffsets();
@@ -702,14 +892,32 @@ public class TiffSaver {
       throw new FormatException(
         "No such IFD (" + ifd + " of " + offsets.length + ")");
     }
-    raf.seek(offsets[ifd]);
+    overwriteIFDValue(parser, raf, offsets[ifd], tag, value);
+  }
+
+  /**
+   * Overwrites a value in the IFD at the given offset, as described in
+   * {@link #overwriteIFDValue(RandomAccessInputStream, int, int, Object)}.
+   * The byte order and BigTIFF flag must already match the file.
+   */
+  private void overwriteIFDValue(TiffParser parser,
+    RandomAccessInputStream raf, long ifdOffset, int tag, Object value)
+    throws FormatException, IOException
+  {
+    boolean little = isLittleEndian();
+    boolean bigTiff = parser.isBigTiff();
+
+    int bytesPerEntry = bigTiff ?
+      TiffConstants.BIG_TIFF_BYTES_PER_ENTRY : TiffConstants.BYTES_PER_ENTRY;
+
+    raf.seek(ifdOffset);
 
     // get the number of directory entries
     long num = bigTiff ? raf.readLong() : raf.readUnsignedShort();
 
     // search directory entries for proper tag
     for (int i=0; i<num; i++) {
-      raf.seek(offsets[ifd] + (bigTiff ? 8 : 2) + bytesPerEntry * i);
+      raf.seek(ifdOffset + (bigTiff ? 8 : 2) + bytesPerEntry * i);
 
       TiffIFDEntry entry = parser.readTiffIFDEntry();
       if (entry.getTag() == tag) {
@@ -773,7 +981,7 @@ public class TiffSaver {
         }
 
         // overwrite old entry
-        out.seek(offsets[ifd] + (bigTiff ? 8 : 2) + bytesPerEntry * i + 2);
+        out.seek(ifdOffset + (bigTiff ? 8 : 2) + bytesPerEntry * i + 2);
         out.writeShort(newType);
         writeIntValue(out, newCount);
         writeIntValue(out, newOffset);
@@ -788,11 +996,24 @@ public class TiffSaver {
     throw new FormatException("Tag not found (" + IFD.getIFDTagName(tag) + ")");
   }
 
-  /** Convenience method for overwriting a file's first ImageDescription. */
+  /**
+   * Convenience method for overwriting a file's first ImageDescription.
+   * Only the first IFD is read; the rest of the IFD chain is not traversed.
+   */
   public void overwriteComment(RandomAccessInputStream in, Object value)
     throws FormatException, IOException
   {
-    overwriteIFDValue(in, 0, IFD.IMAGE_DESCRIPTION, value);
+    if (in == null)
+      throw new FormatException("Output cannot be null");
+    TiffParser parser = new TiffParser(in);
+    Boolean valid = parser.checkHeader();
+    if (valid == null) {
+      throw new FormatException("Invalid TIFF header");
+    }
+    setLittleEndian(valid.booleanValue());
+    setBigTiff(parser.isBigTiff());
+    overwriteIFDValue(parser, in, parser.getFirstOffset(),
+      IFD.IMAGE_DESCRIPTION, value);
   }
 
   // -- Helper methods --
@@ -981,6 +1202,7 @@ public class TiffSaver {
             offsets.get(thisOffset)));
       }
       out.write(strips[i]);
+      Metrics.increment(Metrics.TIFF_BYTES_WRITTEN, strips[i].length);
     }
     if (isTiled) {
       ifd.putIFDValue(IFD.TILE_BYTE_COUNTS, toPrimitiveArray(byteCounts));
@@ -0,0 +1,558 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import loci.common.DebugTools;
+import loci.formats.FilePattern;
+import loci.formats.FileStitcher;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.UnknownFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates or refreshes the memo files of every dataset below one or more
+ * directories, so that the first {@link Memoizer#setId(String)} call made
+ * by a client is as fast as later ones.
+ *
+ * Each file is opened with a {@link Memoizer} wrapping an
+ * {@link ImageReader} (optionally inside a {@link FileStitcher}), and all
+ * files used by the resulting dataset are skipped afterwards. Memo files
+ * that are newer than the file they describe are loaded rather than
+ * regenerated, following the same rule as {@link Memoizer#loadMemo()}.
+ *
+ * Files are processed on a fixed-size thread pool. A file is claimed
+ * before it is opened, so no file is opened twice. Each directory is listed
+ * once, and its files are grouped into likely datasets: files matching the
+ * same file pattern if files are stitched, and otherwise all files that may
+ * belong to a dataset of several files according to
+ * {@link IFormatReader#isSingleFile(String)}. Since the files of a dataset
+ * are only known once one of them has been opened, the files of each group
+ * are opened one at a time by a single task, so that each dataset claims
+ * all of its files before the next file of the group is opened. Groups are
+ * processed concurrently, and before all single-file datasets.
+ */
+public class MemoPrewarm {
+
+  private static final Logger LOGGER =
+    LoggerFactory.getLogger(MemoPrewarm.class);
+
+  // -- Fields --
+
+  /** Directory in which memo files are stored; null for in-place memos. */
+  private File cacheDirectory;
+
+  /** Number of threads used to process files. */
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /** Whether files should be grouped using a {@link FileStitcher}. */
+  private boolean stitch = false;
+
+  /** Whether existing memo files should be deleted and regenerated. */
+  private boolean force = false;
+
+  /** Whether new memo files should be compressed. */
+  private boolean compress = false;
+
+  /**
+   * Absolute paths of all files that have been opened, or that belong to a
+   * processed dataset.
+   */
+  private final Set<String> claimedFiles =
+    Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final AtomicInteger datasets = new AtomicInteger();
+  private final AtomicInteger saved = new AtomicInteger();
+  private final AtomicInteger upToDate = new AtomicInteger();
+  private final AtomicInteger unsaved = new AtomicInteger();
+  private final AtomicInteger unknown = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicLong totalTime = new AtomicLong();
+  private final AtomicLong maxTime = new AtomicLong();
+  private volatile String slowest;
+
+  // -- MemoPrewarm API methods --
+
+  /**
+   * Sets the directory in which memo files are stored, or null to store
+   * them next to each dataset.
+   */
+  public void setCacheDirectory(File directory) {
+    cacheDirectory = directory;
+  }
+
+  /** Sets the number of threads used to process files. */
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    this.threads = threads;
+  }
+
+  /** Sets whether files are grouped using a {@link FileStitcher}. */
+  public void setStitch(boolean stitch) {
+    this.stitch = stitch;
+  }
+
+  /** Sets whether existing memo files are deleted and regenerated. */
+  public void setForce(boolean force) {
+    this.force = force;
+  }
+
+  /** Sets whether new memo files are compressed. */
+  public void setCompress(boolean compress) {
+    this.compress = compress;
+  }
+
+  /**
+   * Generates or refreshes the memo files of all datasets below the given
+   * directories.
+   *
+   * @return the number of datasets that could not be processed
+   */
+  public int process(File... roots) throws InterruptedException {
+    Map<File, List<File>> directories = new LinkedHashMap<File, List<File>>();
+    for (File root : roots) {
+      listFiles(root.getAbsoluteFile(), directories);
+    }
+    int fileCount = 0;
+    for (List<File> files : directories.values()) {
+      fileCount += files.size();
+    }
+    LOGGER.info("Found {} files in {} directories", fileCount,
+      directories.size());
+
+    long start = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      // group the files of each directory by file pattern, and find the
+      // remaining files that may belong to multi-file datasets
+      List<List<File>> multiFile = new ArrayList<List<File>>();
+      Map<File, Future<Boolean>> candidates =
+        new LinkedHashMap<File, Future<Boolean>>();
+      for (List<File> files : directories.values()) {
+        Set<File> grouped = stitch ?
+          groupByPattern(files, multiFile) : Collections.<File>emptySet();
+        for (final File file : files) {
+          if (grouped.contains(file)) {
+            continue;
+          }
+          candidates.put(file, pool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+              return isMultiFile(file.getAbsolutePath());
+            }
+          }));
+        }
+      }
+
+      // datasets that are not described by a pattern are only known once one
+      // of their files has been opened, so each directory's multi-file
+      // candidates are opened by a single task
+      List<List<File>> singleFiles = new ArrayList<List<File>>();
+      List<File> group = null;
+      for (Map.Entry<File, Future<Boolean>> candidate : candidates.entrySet()) {
+        File file = candidate.getKey();
+        boolean multi;
+        try {
+          multi = candidate.getValue().get();
+        }
+        catch (ExecutionException e) {
+          multi = false;
+        }
+        if (!multi) {
+          singleFiles.add(Collections.singletonList(file));
+          continue;
+        }
+        if (group == null ||
+          !group.get(0).getParentFile().equals(file.getParentFile()))
+        {
+          group = new ArrayList<File>();
+          multiFile.add(group);
+        }
+        group.add(file);
+      }
+
+      // each group claims its datasets' files before single files are opened
+      processGroups(pool, multiFile);
+      processGroups(pool, singleFiles);
+    }
+    finally {
+      pool.shutdown();
+    }
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    long elapsed = System.currentTimeMillis() - start;
+
+    printSummary(fileCount, elapsed);
+    return failed.get();
+  }
+
+  /** Gets the number of datasets processed by {@link #process}. */
+  public int getDatasetCount() {
+    return datasets.get();
+  }
+
+  /** Gets the number of memo files written by {@link #process}. */
+  public int getSavedCount() {
+    return saved.get();
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Processes each group of files as a single task, opening the files of a
+   * group in order, and waits for all of the groups to complete.
+   */
+  private void processGroups(ExecutorService pool, List<List<File>> groups)
+    throws InterruptedException
+  {
+    List<Future<?>> results = new ArrayList<Future<?>>();
+    for (final List<File> group : groups) {
+      results.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (File file : group) {
+            processFile(file);
+          }
+        }
+      }));
+    }
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      }
+      catch (ExecutionException e) {
+        failed.incrementAndGet();
+        LOGGER.warn("Could not process file", e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Adds a group for each file pattern that matches several of the given
+   * files, which must all be in the same directory.  Each pattern is only
+   * expanded for the first file that it matches.
+   *
+   * @return the files that were added to a group
+   */
+  private Set<File> groupByPattern(List<File> files, List<List<File>> groups) {
+    Set<File> grouped = new HashSet<File>();
+    if (files.size() < 2) {
+      return grouped;
+    }
+    String dir = files.get(0).getParent();
+    String[] names = new String[files.size()];
+    for (int i=0; i<names.length; i++) {
+      names[i] = files.get(i).getName();
+    }
+    for (File file : files) {
+      if (grouped.contains(file)) {
+        continue;
+      }
+      String pattern = FilePattern.findPattern(file.getName(), dir, names);
+      if (pattern == null) {
+        continue;
+      }
+      String[] patternFiles = new FilePattern(pattern).getFiles();
+      if (patternFiles == null || patternFiles.length < 2) {
+        continue;
+      }
+      Set<String> patternNames = new HashSet<String>();
+      for (String f : patternFiles) {
+        patternNames.add(new File(f).getName());
+      }
+      List<File> group = new ArrayList<File>();
+      for (File f : files) {
+        if (patternNames.contains(f.getName()) && grouped.add(f)) {
+          group.add(f);
+        }
+      }
+      groups.add(group);
+    }
+    return grouped;
+  }
+
+  /**
+   * Returns true if the given file may belong to a dataset of several
+   * files. Files that cannot be read are treated as single files.
+   */
+  private boolean isMultiFile(String path) {
+    ImageReader reader = new ImageReader();
+    try {
+      return !reader.getReader(path).isSingleFile(path);
+    }
+    catch (FormatException e) {
+      return false;
+    }
+    catch (IOException e) {
+      return false;
+    }
+    finally {
+      try {
+        reader.close();
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not close {}", path, e);
+      }
+    }
+  }
+
+  /**
+   * Recursively collects all non-memo files below the given directory,
+   * grouped by the directory that contains them.
+   */
+  private void listFiles(File dir, Map<File, List<File>> directories) {
+    if (!dir.isDirectory()) {
+      if (dir.exists()) {
+        getFiles(directories, dir.getParentFile()).add(dir);
+      }
+      return;
+    }
+    File[] children = dir.listFiles();
+    if (children == null) {
+      LOGGER.warn("Could not list directory: {}", dir);
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        listFiles(child, directories);
+      }
+      else if (!child.getName().endsWith(".bfmemo")) {
+        getFiles(directories, dir).add(child);
+      }
+    }
+  }
+
+  private static List<File> getFiles(Map<File, List<File>> directories,
+    File dir)
+  {
+    List<File> files = directories.get(dir);
+    if (files == null) {
+      files = new ArrayList<File>();
+      directories.put(dir, files);
+    }
+    return files;
+  }
+
+  /** Opens a single file, unless it belongs to an already processed dataset. */
+  private void processFile(File file) {
+    String path = file.getAbsolutePath();
+    if (!claimedFiles.add(path)) {
+      return;
+    }
+
+    IFormatReader reader = stitch ?
+      new FileStitcher(new ImageReader()) : new ImageReader();
+    Memoizer memoizer = cacheDirectory == null ?
+      new Memoizer(reader, 0) : new Memoizer(reader, 0, cacheDirectory);
+    memoizer.setMemoCompression(compress);
+
+    if (force) {
+      File memoFile = memoizer.getMemoFile(path);
+      if (memoFile != null && memoFile.exists() && !memoFile.delete()) {
+        LOGGER.warn("Could not delete memo file: {}", memoFile);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    try {
+      memoizer.setId(path);
+      long elapsed = System.currentTimeMillis() - start;
+
+      String[] used = memoizer.getUsedFiles();
+      if (used != null) {
+        for (String f : used) {
+          claimedFiles.add(new File(f).getAbsolutePath());
+        }
+      }
+
+      datasets.incrementAndGet();
+      totalTime.addAndGet(elapsed);
+      if (memoizer.isLoadedFromMemo()) {
+        upToDate.incrementAndGet();
+      }
+      else if (memoizer.isSavedToMemo()) {
+        saved.incrementAndGet();
+      }
+      else {
+        unsaved.incrementAndGet();
+      }
+      updateSlowest(path, elapsed);
+      LOGGER.info("{}: {} ms ({})", path, elapsed,
+        memoizer.isLoadedFromMemo() ? "up to date" : "generated");
+    }
+    catch (UnknownFormatException e) {
+      unknown.incrementAndGet();
+      LOGGER.debug("Unrecognized file: {}", path);
+    }
+    catch (FormatException e) {
+      failed.incrementAndGet();
+      LOGGER.warn("Could not initialize {}", path, e);
+    }
+    catch (IOException e) {
+      failed.incrementAndGet();
+      LOGGER.warn("Could not initialize {}", path, e);
+    }
+    catch (RuntimeException e) {
+      failed.incrementAndGet();
+      LOGGER.warn("Could not initialize {}", path, e);
+    }
+    finally {
+      try {
+        memoizer.close();
+      }
+      catch (IOException e) {
+        LOGGER.debug("Could not close {}", path, e);
+      }
+    }
+  }
+
+  private synchronized void updateSlowest(String path, long elapsed) {
+    if (elapsed >= maxTime.get()) {
+      maxTime.set(elapsed);
+      slowest = path;
+    }
+  }
+
+  private void printSummary(int fileCount, long elapsed) {
+    int count = datasets.get();
+    System.out.println("Files scanned:        " + fileCount);
+    System.out.println("Datasets:             " + count);
+    System.out.println("  memo generated:     " + saved.get());
+    System.out.println("  memo up to date:    " + upToDate.get());
+    System.out.println("  memo not written:   " + unsaved.get());
+    System.out.println("Unrecognized files:   " + unknown.get());
+    System.out.println("Failed:               " + failed.get());
+    System.out.println("Wall time:            " + elapsed + " ms");
+    System.out.println("Total setId time:     " + totalTime.get() + " ms");
+    if (count > 0) {
+      System.out.println("Mean setId time:      " +
+        (totalTime.get() / count) + " ms");
+      System.out.println("Slowest dataset:      " + slowest +
+        " (" + maxTime.get() + " ms)");
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Usage:");
+    System.out.println("  java MemoPrewarm [-threads N] [-cache dir] " +
+      "[-stitch] [-force] [-compress] [-debug] directory ...");
+    System.out.println();
+    System.out.println("    Generates or refreshes the memo file of every");
+    System.out.println("    dataset below the given directories.");
+    System.out.println("    -threads   number of files to open concurrently");
+    System.out.println("    -cache     directory in which to store memo");
+    System.out.println("               files (default: next to each dataset)");
+    System.out.println("    -stitch    group files by file pattern");
+    System.out.println("    -force     regenerate memo files that are up");
+    System.out.println("               to date");
+    System.out.println("    -compress  write compressed memo files");
+    System.out.println("    -debug     enable debug logging");
+  }
+
+  // -- Main method --
+
+  public static void main(String[] args) throws Exception {
+    MemoPrewarm prewarm = new MemoPrewarm();
+    List<File> roots = new ArrayList<File>();
+    boolean debug = false;
+
+    for (int i=0; i<args.length; i++) {
+      if (args[i].equals("-help") || args[i].equals("-h")) {
+        printUsage();
+        System.exit(0);
+      }
+      else if (args[i].equals("-threads") && i < args.length - 1) {
+        prewarm.setThreads(Integer.parseInt(args[++i]));
+      }
+      else if (args[i].equals("-cache") && i < args.length - 1) {
+        prewarm.setCacheDirectory(new File(args[++i]));
+      }
+      else if (args[i].equals("-stitch")) {
+        prewarm.setStitch(true);
+      }
+      else if (args[i].equals("-force")) {
+        prewarm.setForce(true);
+      }
+      else if (args[i].equals("-compress")) {
+        prewarm.setCompress(true);
+      }
+      else if (args[i].equals("-debug")) {
+        debug = true;
+      }
+      else if (args[i].startsWith("-")) {
+        System.err.println("Unknown option: " + args[i]);
+        printUsage();
+        System.exit(2);
+      }
+      else {
+        roots.add(new File(args[i]));
+      }
+    }
+
+    if (roots.size() == 0) {
+      printUsage();
+      System.exit(2);
+    }
+
+    DebugTools.enableLogging(debug ? "DEBUG" : "INFO");
+    int failures = prewarm.process(roots.toArray(new File[roots.size()]));
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+}
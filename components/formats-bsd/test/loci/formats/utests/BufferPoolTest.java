@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+
+import loci.formats.BufferPool;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link BufferPool}.
+ */
+public class BufferPoolTest {
+
+  private static final int SIZE = BufferPool.MIN_POOLED_SIZE * 2;
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(SIZE * 4);
+    byte[] first = pool.borrow(SIZE);
+    assertEquals(SIZE, first.length);
+    pool.release(first);
+    assertEquals(SIZE, pool.getRetainedBytes());
+
+    assertSame(first, pool.borrow(SIZE));
+    assertNotSame(first, pool.borrow(SIZE));
+    assertEquals(0, pool.getRetainedBytes());
+    assertEquals(3, pool.getBorrowCount());
+    assertEquals(1, pool.getHitCount());
+    assertEquals(2, pool.getMissCount());
+    assertEquals(1.0 / 3, pool.getHitRate(), 1e-9);
+  }
+
+  @Test
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(SIZE * 4);
+    byte[] small = pool.borrow(SIZE);
+    pool.release(small);
+    byte[] large = pool.borrow(SIZE + 1);
+    assertEquals(SIZE + 1, large.length);
+    assertEquals(0, pool.getHitCount());
+    assertSame(small, pool.borrow(SIZE));
+  }
+
+  @Test
+  public void testLimit() {
+    BufferPool pool = new BufferPool(SIZE);
+    byte[] a = pool.borrow(SIZE);
+    byte[] b = pool.borrow(SIZE);
+    pool.release(a);
+    pool.release(b);
+    assertEquals(SIZE, pool.getRetainedBytes());
+    assertEquals(2, pool.getReleaseCount());
+    assertEquals(1, pool.getDiscardCount());
+
+    pool.clear();
+    assertEquals(0, pool.getRetainedBytes());
+    assertNotSame(a, pool.borrow(SIZE));
+  }
+
+  @Test
+  public void testSmallArraysBypassPool() {
+    BufferPool pool = new BufferPool(SIZE);
+    byte[] tiny = pool.borrow(16);
+    assertEquals(16, tiny.length);
+    pool.release(tiny);
+    pool.release(null);
+    assertEquals(0, pool.getBorrowCount());
+    assertEquals(0, pool.getReleaseCount());
+    assertEquals(0, pool.getRetainedBytes());
+  }
+
+  @Test
+  public void testDisabled() {
+    BufferPool pool = new BufferPool(0);
+    byte[] buf = pool.borrow(SIZE);
+    pool.release(buf);
+    assertNotSame(buf, pool.borrow(SIZE));
+    assertEquals(1, pool.getDiscardCount());
+  }
+
+}
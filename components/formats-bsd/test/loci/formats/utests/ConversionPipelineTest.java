@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import loci.common.Location;
+import loci.formats.ConversionPipeline;
+import loci.formats.IFormatReader;
+import loci.formats.in.FakeReader;
+import loci.formats.in.TiffReader;
+import loci.formats.tiff.TiffCompression;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests that ConversionPipeline writes the same pixels that it reads.
+ */
+public class ConversionPipelineTest {
+
+  private static final String TEST_FILE =
+    "pipeline&pixelType=uint16&sizeX=300&sizeY=200&sizeZ=3&sizeC=3&rgb=3" +
+    "&series=2.fake";
+
+  private IFormatReader[] createReaders(int count) throws Exception {
+    Location.mapId(TEST_FILE, TEST_FILE);
+    IFormatReader[] readers = new IFormatReader[count];
+    for (int i=0; i<count; i++) {
+      readers[i] = new FakeReader();
+      readers[i].setId(TEST_FILE);
+    }
+    return readers;
+  }
+
+  private void checkConversion(ConversionPipeline pipeline,
+    IFormatReader[] readers) throws Exception
+  {
+    File tmp = File.createTempFile("conversionPipelineTest", ".tif");
+    tmp.deleteOnExit();
+    pipeline.convert(tmp.getAbsolutePath());
+
+    IFormatReader source = readers[0];
+    TiffReader reader = new TiffReader();
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      int plane = 0;
+      for (int s=0; s<source.getSeriesCount(); s++) {
+        source.setSeries(s);
+        for (int i=0; i<source.getImageCount(); i++, plane++) {
+          byte[] expected = source.openBytes(i);
+          if (!source.isInterleaved()) {
+            // the TIFF is written with chunky pixels
+            expected = interleave(expected, source.getRGBChannelCount(), 2);
+          }
+          assertTrue(Arrays.equals(expected, reader.openBytes(plane)));
+        }
+      }
+      assertEquals(plane, reader.getImageCount());
+    }
+    finally {
+      reader.close();
+      for (IFormatReader r : readers) {
+        r.close();
+      }
+    }
+    tmp.delete();
+  }
+
+  private byte[] interleave(byte[] planar, int channels, int bpp) {
+    byte[] chunky = new byte[planar.length];
+    int pixels = planar.length / (channels * bpp);
+    for (int p=0; p<pixels; p++) {
+      for (int c=0; c<channels; c++) {
+        System.arraycopy(planar, (c * pixels + p) * bpp,
+          chunky, (p * channels + c) * bpp, bpp);
+      }
+    }
+    return chunky;
+  }
+
+  @Test
+  public void testStrips() throws Exception {
+    IFormatReader[] readers = createReaders(1);
+    ConversionPipeline pipeline = new ConversionPipeline(readers);
+    pipeline.setCompressionThreads(2);
+    checkConversion(pipeline, readers);
+  }
+
+  @Test
+  public void testCompressedTiles() throws Exception {
+    IFormatReader[] readers = createReaders(3);
+    ConversionPipeline pipeline = new ConversionPipeline(readers);
+    pipeline.setTileSize(128, 64);
+    pipeline.setCompression(TiffCompression.LZW);
+    pipeline.setCompressionThreads(4);
+    pipeline.setQueueDepth(2);
+    checkConversion(pipeline, readers);
+  }
+
+}
@@ -50,8 +50,12 @@ import loci.formats.ImageReader;
 import loci.formats.ImageWriter;
 import loci.formats.MetadataTools;
 import loci.formats.codec.CompressionType;
+import loci.formats.in.DynamicMetadataOptions;
 import loci.formats.meta.IMetadata;
+import loci.formats.out.APNGWriter;
+import loci.formats.out.ICSWriter;
 import loci.formats.services.OMEXMLService;
+import ome.xml.model.primitives.PositiveInteger;
 
 import org.testng.annotations.Test;
 
@@ -252,6 +256,43 @@ public class ConversionTest {
     }
   }
 
+  @Test
+  public void testAPNGParallelDeflate() throws Exception {
+    // large enough to be compressed in several blocks
+    int width = 512;
+    int height = 768;
+    File tmp = File.createTempFile("conversionTest", ".png");
+    tmp.deleteOnExit();
+    IMetadata metadata = createMetadata("uint16", 1, 1, false);
+    metadata.setPixelsSizeX(new PositiveInteger(width), 0);
+    metadata.setPixelsSizeY(new PositiveInteger(height), 0);
+
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(APNGWriter.DEFLATE_THREADS_KEY, "4");
+    options.set(APNGWriter.COMPRESSION_LEVEL_KEY, "9");
+    APNGWriter writer = new APNGWriter();
+    writer.setMetadataOptions(options);
+    writer.setMetadataRetrieve(metadata);
+    writer.setId(tmp.getAbsolutePath());
+    byte[] plane = getPlane(width, height, 2);
+    writer.saveBytes(0, plane);
+    writer.close();
+
+    ImageReader reader = new ImageReader();
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      assertEquals(reader.getSizeX(), width);
+      assertEquals(reader.getSizeY(), height);
+      Plane originalPlane = new Plane(plane, false, false, 1, "uint16");
+      Plane newPlane = new Plane(reader.openBytes(0), reader.isLittleEndian(),
+        !reader.isInterleaved(), 1, "uint16");
+      assertTrue(originalPlane.equals(newPlane));
+    }
+    finally {
+      reader.close();
+    }
+  }
+
   @Test
   public void testAVI() throws Exception {
     String ext = ".avi";
@@ -281,6 +322,36 @@ public class ConversionTest {
     }
   }
 
+  @Test
+  public void testICSGzip() throws Exception {
+    for (String ext : new String[] {".ics", ".ids"}) {
+      for (boolean interleaved : new boolean[] {true, false}) {
+        File tmp = File.createTempFile("conversionTest", ext);
+        tmp.deleteOnExit();
+        ICSWriter writer = new ICSWriter();
+        writer.setMetadataRetrieve(createMetadata("uint16", 3, 1, true));
+        writer.setCompression(ICSWriter.COMPRESSION_GZIP);
+        writer.setInterleaved(interleaved);
+        writer.setId(tmp.getAbsolutePath());
+
+        byte[] plane = getPlane(WIDTH, HEIGHT, 6);
+        Plane originalPlane =
+          new Plane(plane, true, !interleaved, 3, "uint16");
+        writer.saveBytes(0, plane);
+        writer.close();
+
+        ImageReader reader = new ImageReader();
+        reader.setId(tmp.getAbsolutePath());
+        byte[] readPlane = reader.openBytes(0);
+        Plane newPlane = new Plane(readPlane, reader.isLittleEndian(),
+          !reader.isInterleaved(), reader.getRGBChannelCount(),
+          FormatTools.getPixelTypeString(reader.getPixelType()));
+        reader.close();
+        assertTrue(originalPlane.equals(newPlane), tmp.getAbsolutePath());
+      }
+    }
+  }
+
   @Test
   public void testJPEG2000() throws Exception {
     String ext = ".jp2";
@@ -292,6 +292,32 @@ public class FilePatternTest {
     );
   }
 
+  @Test
+  public void testFindSeriesPatternLargeList() {
+    // large enough that matching blocks are cached and reused
+    int sizeS = 3, sizeC = 4, sizeZ = 250;
+    List<String> names = new ArrayList<String>();
+    for (int s = 0; s < sizeS; s++) {
+      for (int c = 0; c < sizeC; c++) {
+        for (int z = 0; z < sizeZ; z++) {
+          names.add(String.format("img_s%d_c%d_z%04d.tif", s, c, z));
+        }
+      }
+    }
+    names.add("img_s0_c0_thumb.tif");
+    String[] namesA = names.toArray(new String[names.size()]);
+
+    assertEquals(FilePattern.findPattern(namesA[0], null, namesA),
+                 "img_s<0-2>_c<0-3>_z0<000-249>.tif");
+    String[] patterns = new String[sizeS];
+    for (int s = 0; s < sizeS; s++) {
+      patterns[s] = String.format("img_s%d_c<0-3>_z0<000-249>.tif", s);
+    }
+    assertEqualsNoOrder(
+        FilePattern.findSeriesPatterns(namesA[0], null, namesA), patterns
+    );
+  }
+
   @Test(dataProvider = "badPatterns")
   public void testBadPatterns(String pattern) {
     FilePattern fp = new FilePattern(pattern);
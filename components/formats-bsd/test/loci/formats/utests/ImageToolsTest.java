@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.DataTools;
+import loci.formats.ImageTools;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link ImageTools}.
+ */
+public class ImageToolsTest {
+
+  private static final int[] RGGB = {0, 1, 1, 2};
+
+  /**
+   * Creates Bayer planes sampling a linear ramp, which both interpolation
+   * methods reproduce exactly away from the edges.
+   */
+  private static short[] createRamp(int[] pattern, int width, int height) {
+    int plane = width * height;
+    short[] s = new short[plane * 3];
+    for (int row=0; row<height; row++) {
+      for (int col=0; col<width; col++) {
+        int c = pattern[(row % 2) * 2 + (col % 2)];
+        s[c * plane + row * width + col] = (short) ramp(c, row, col);
+      }
+    }
+    return s;
+  }
+
+  private static int ramp(int c, int row, int col) {
+    return 1000 + 8 * col + 4 * row + 100 * c;
+  }
+
+  private static int getSample(byte[] buf, int width, int row, int col,
+    int c)
+  {
+    return DataTools.bytesToInt(buf, (row * width + col) * 6 + c * 2, 2,
+      false);
+  }
+
+  @Test
+  public void testBilinear() {
+    int width = 6, height = 4;
+    byte[] buf = new byte[width * height * 6];
+    ImageTools.interpolate(createRamp(RGGB, width, height), buf, RGGB,
+      width, height, false);
+    for (int row=1; row<height-1; row++) {
+      for (int col=1; col<width-1; col++) {
+        for (int c=0; c<3; c++) {
+          assertEquals(ramp(c, row, col), getSample(buf, width, row, col, c));
+        }
+      }
+    }
+    // the red pixel in the corner averages its two green neighbors
+    assertEquals((ramp(1, 0, 1) + ramp(1, 1, 0)) / 2,
+      getSample(buf, width, 0, 0, 1));
+  }
+
+  @Test
+  public void testMalvarHeCutler() throws Exception {
+    int width = 12, height = 10;
+    byte[] buf = new byte[width * height * 6];
+    ImageTools.interpolate(createRamp(RGGB, width, height), buf, RGGB,
+      width, height, false, ImageTools.MALVAR_HE_CUTLER, null);
+    for (int row=2; row<height-2; row++) {
+      for (int col=2; col<width-2; col++) {
+        for (int c=0; c<3; c++) {
+          assertEquals(ramp(c, row, col), getSample(buf, width, row, col, c));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    int width = 512, height = 600;
+    int[] pattern = {1, 2, 0, 1};
+    short[] s = createRamp(pattern, width, height);
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      for (int method : new int[] {ImageTools.BILINEAR,
+        ImageTools.MALVAR_HE_CUTLER})
+      {
+        byte[] serial = new byte[width * height * 6];
+        byte[] parallel = new byte[serial.length];
+        ImageTools.interpolate(s, serial, pattern, width, height, true,
+          method, null);
+        ImageTools.interpolate(s, parallel, pattern, width, height, true,
+          method, pool);
+        assertTrue(Arrays.equals(serial, parallel));
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidMethod() throws Exception {
+    ImageTools.interpolate(new short[12], new byte[24], RGGB, 2, 2, true,
+      -1, null);
+  }
+
+}
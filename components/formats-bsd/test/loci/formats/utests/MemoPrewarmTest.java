@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import loci.formats.tools.MemoPrewarm;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MemoPrewarmTest {
+
+  private File dir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory(
+      MemoPrewarmTest.class.getName() + ".").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    delete(dir);
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private void createFile(String name, String contents) throws Exception {
+    File file = new File(dir, name);
+    file.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(contents.getBytes("UTF-8"));
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private int countMemoFiles() {
+    return countMemoFiles(dir);
+  }
+
+  private int countMemoFiles(File directory) {
+    int count = 0;
+    for (File child : directory.listFiles()) {
+      if (child.isDirectory()) count += countMemoFiles(child);
+      else if (child.getName().endsWith(".bfmemo")) count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testMultiFileDataset() throws Exception {
+    // a.fake and a.fake.ini form a single dataset
+    createFile("a&sizeZ=2.fake", "");
+    createFile("a&sizeZ=2.fake.ini", "[GlobalMetadata]\nkey=value\n");
+    createFile("b.fake", "");
+    createFile("c.fake", "");
+
+    MemoPrewarm prewarm = new MemoPrewarm();
+    prewarm.setThreads(4);
+    assertEquals(prewarm.process(dir), 0);
+    assertEquals(prewarm.getDatasetCount(), 3);
+    assertEquals(prewarm.getSavedCount(), 3);
+    assertEquals(countMemoFiles(), 3);
+
+    // the second run loads every memo file
+    MemoPrewarm again = new MemoPrewarm();
+    again.setThreads(4);
+    assertEquals(again.process(dir), 0);
+    assertEquals(again.getDatasetCount(), 3);
+    assertEquals(again.getSavedCount(), 0);
+  }
+
+  @Test
+  public void testStitchedDataset() throws Exception {
+    for (int z=1; z<=4; z++) {
+      createFile("plane_z" + z + ".fake", "");
+    }
+
+    MemoPrewarm prewarm = new MemoPrewarm();
+    prewarm.setThreads(4);
+    prewarm.setStitch(true);
+    assertEquals(prewarm.process(dir), 0);
+    assertEquals(prewarm.getDatasetCount(), 1);
+    assertEquals(countMemoFiles(), 1);
+  }
+
+  @Test
+  public void testStitchedDatasetsInSubdirectories() throws Exception {
+    String[] subdirs = {"first", "second"};
+    for (String subdir : subdirs) {
+      for (int t=1; t<=3; t++) {
+        createFile(subdir + File.separator + "plane_t" + t + ".fake", "");
+      }
+    }
+    createFile("single.fake", "");
+
+    MemoPrewarm prewarm = new MemoPrewarm();
+    prewarm.setThreads(4);
+    prewarm.setStitch(true);
+    assertEquals(prewarm.process(dir), 0);
+    assertEquals(prewarm.getDatasetCount(), 3);
+    assertEquals(prewarm.getSavedCount(), 3);
+    for (String subdir : subdirs) {
+      assertEquals(countMemoFiles(new File(dir, subdir)), 1);
+    }
+    assertEquals(countMemoFiles(), 3);
+  }
+
+}
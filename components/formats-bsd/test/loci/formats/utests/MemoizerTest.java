@@ -34,14 +34,35 @@ package loci.formats.utests;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.assertNull;
 
 import java.io.File;
 import java.nio.file.Files;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.IFormatWriter;
+import loci.formats.ImageReader;
 import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.MinMaxCalculator;
 import loci.formats.in.FakeReader;
+import loci.formats.in.ICSReader;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.ICSWriter;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
 
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -96,6 +117,78 @@ public class MemoizerTest {
     memoizer.close();
   }
 
+  /** Writes planes of 64x64 pixels, in which every plane is different. */
+  private static byte[][] writeImage(IFormatWriter writer, File file)
+      throws Exception {
+    int size = 64;
+    byte[][] planes = new byte[12][size * size];
+    ServiceFactory factory = new ServiceFactory();
+    OMEXMLService service = factory.getInstance(OMEXMLService.class);
+    IMetadata metadata = service.createOMEXMLMetadata();
+    MetadataTools.populateMetadata(metadata, 0, "clone", false, "XYZCT",
+      "uint8", size, size, 1, 1, planes.length, 1);
+    writer.setMetadataRetrieve(metadata);
+    writer.setId(file.getAbsolutePath());
+    for (int p=0; p<planes.length; p++) {
+      for (int i=0; i<planes[p].length; i++) {
+        planes[p][i] = (byte) (p * 37 + i % size + i / size * 3);
+      }
+      writer.saveBytes(p, planes[p]);
+    }
+    writer.close();
+    return planes;
+  }
+
+  /**
+   * Reads every plane repeatedly from several clones at once, closing the
+   * original reader part way through.
+   */
+  private static void checkConcurrentReads(Memoizer memoizer,
+      final byte[][] planes) throws Exception {
+    final int threads = 4;
+    List<Memoizer> clones = new ArrayList<Memoizer>();
+    for (int t=0; t<threads; t++) {
+      clones.add(memoizer.openClone());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round=0; round<2; round++) {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t=0; t<threads; t++) {
+          final Memoizer clone = clones.get(t);
+          final int start = t * 5;
+          results.add(executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              for (int i=0; i<planes.length * 4; i++) {
+                int no = (start + i * 7) % planes.length;
+                if (!Arrays.equals(clone.openBytes(no), planes[no])) {
+                  return false;
+                }
+              }
+              return true;
+            }
+          }));
+        }
+        // the original is read alongside the clones in the first round,
+        // and closed before the second
+        for (int no=0; round == 0 && no<planes.length; no++) {
+          assertEquals(memoizer.openBytes(no), planes[no]);
+        }
+        for (Future<Boolean> result : results) {
+          assertTrue(result.get());
+        }
+        memoizer.close();
+      }
+    }
+    finally {
+      executor.shutdown();
+      for (Memoizer clone : clones) {
+        clone.close();
+      }
+    }
+  }
+
   private void checkMemoFile(File memoFile) {
     checkMemoFile(memoFile, idDir);
   }
@@ -250,4 +343,181 @@ public class MemoizerTest {
     checkMemo(memoizer, id);
   }
 
+  @Test
+  public void testMemoCache() throws Exception {
+    Memoizer.MemoCache cache = new Memoizer.MemoCache(1024 * 1024);
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setMemoCache(cache);
+    File memoFile = memoizer.getMemoFile(id);
+
+    // First load creates the memo file
+    memoizer.setId(id);
+    memoizer.close();
+    assertTrue(memoizer.isSavedToMemo());
+    assertEquals(cache.size(), 0);
+
+    // Second load reads the memo file from disk and caches it
+    memoizer.setId(id);
+    memoizer.close();
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(cache.size(), 1);
+    assertEquals(cache.getMissCount(), 1);
+    assertEquals(cache.getTotalBytes(), memoFile.length());
+
+    // Third load is served from memory
+    memoizer.setId(id);
+    memoizer.close();
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(cache.getHitCount(), 1);
+
+    // A second memoizer can share the same cache
+    Memoizer other = new Memoizer(new FakeReader(), 0);
+    other.setMemoCache(cache);
+    other.setId(id);
+    other.close();
+    assertTrue(other.isLoadedFromMemo());
+    assertEquals(cache.getHitCount(), 2);
+  }
+
+  @Test
+  public void testMemoCacheModified() throws Exception {
+    Memoizer.MemoCache cache = new Memoizer.MemoCache(1024 * 1024);
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setMemoCache(cache);
+    File memoFile = memoizer.getMemoFile(id);
+    memoizer.setId(id);
+    memoizer.close();
+    memoizer.setId(id);
+    memoizer.close();
+    assertEquals(cache.size(), 1);
+
+    // A changed memo file must not be served from memory
+    memoFile.setLastModified(memoFile.lastModified() + 1000);
+    assertNull(cache.get(memoFile));
+    assertEquals(cache.size(), 0);
+  }
+
+  @Test
+  public void testMemoCacheTooSmall() throws Exception {
+    Memoizer.MemoCache cache = new Memoizer.MemoCache(1);
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setMemoCache(cache);
+    memoizer.setId(id);
+    memoizer.close();
+    memoizer.setId(id);
+    memoizer.close();
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(cache.size(), 0);
+    assertEquals(cache.getTotalBytes(), 0);
+  }
+
+  @Test
+  public void testCompressedMemo() throws Exception {
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setMemoCompression(true);
+    checkMemo(memoizer, id);
+
+    // Compressed memo files are readable without compression enabled
+    Memoizer other = new Memoizer(new FakeReader(), 0);
+    other.setId(id);
+    other.close();
+    assertTrue(other.isLoadedFromMemo());
+  }
+
+  @Test
+  public void testBackgroundSave() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setSaveExecutor(executor);
+    File memoFile = memoizer.getMemoFile(id);
+
+    memoizer.setId(id);
+    assertTrue(memoizer.isSavedToMemo());
+    // the reader must remain usable while the memo file is written
+    memoizer.openBytes(0);
+    memoizer.close();
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(memoFile.exists());
+
+    memoizer.setId(id);
+    assertTrue(memoizer.isLoadedFromMemo());
+    memoizer.close();
+  }
+
+  @Test
+  public void testCompressedBackgroundSave() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Memoizer.MemoCache cache = new Memoizer.MemoCache(1024 * 1024);
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setSaveExecutor(executor);
+    memoizer.setMemoCompression(true);
+    memoizer.setMemoCache(cache);
+
+    memoizer.setId(id);
+    memoizer.close();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    // the written memo is cached directly
+    assertEquals(cache.size(), 1);
+
+    memoizer.setId(id);
+    assertTrue(memoizer.isLoadedFromMemo());
+    assertEquals(cache.getHitCount(), 1);
+    memoizer.close();
+  }
+
+  @Test
+  public void testOpenClone() throws Exception {
+    Memoizer memoizer = new Memoizer(reader, 0);
+    memoizer.setId(id);
+    byte[] plane = memoizer.openBytes(0);
+
+    Memoizer clone = memoizer.openClone();
+    assertEquals(clone.getCurrentFile(), memoizer.getCurrentFile());
+    assertNotSame(clone.getReader(), memoizer.getReader());
+    // the parsed metadata is shared rather than copied
+    assertSame(clone.getMetadataStore(), memoizer.getMetadataStore());
+    assertEquals(clone.getImageCount(), memoizer.getImageCount());
+    assertEquals(clone.openBytes(0), plane);
+
+    // closing the clone leaves the original open
+    clone.close();
+    assertEquals(memoizer.openBytes(0), plane);
+    memoizer.close();
+  }
+
+  @Test
+  public void testOpenCloneConcurrentReads() throws Exception {
+    // a chain of shareable readers, whose metadata is shared by the clones
+    File file = new File(idDir, "clone.tif");
+    TiffWriter writer = new TiffWriter();
+    writer.setCompression(TiffWriter.COMPRESSION_LZW);
+    writer.setTileSizeX(32);
+    writer.setTileSizeY(32);
+    byte[][] planes = writeImage(writer, file);
+
+    Memoizer memoizer = new Memoizer(
+      new MinMaxCalculator(new ChannelSeparator(new ImageReader())), 0);
+    memoizer.setId(file.getAbsolutePath());
+    checkConcurrentReads(memoizer, planes);
+  }
+
+  @Test
+  public void testOpenCloneConcurrentReadsCopied() throws Exception {
+    // the ICS reader caches pixels, so its clones are copied in full
+    File file = new File(idDir, "clone.ics");
+    byte[][] planes = writeImage(new ICSWriter(), file);
+
+    Memoizer memoizer = new Memoizer(new ICSReader(), 0);
+    memoizer.setId(file.getAbsolutePath());
+    Memoizer clone = memoizer.openClone();
+    assertSame(clone.getMetadataStore(), memoizer.getMetadataStore());
+    assertNotSame(clone.getCoreMetadataList(),
+      memoizer.getCoreMetadataList());
+    clone.close();
+    checkConcurrentReads(memoizer, planes);
+  }
+
 }
@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import loci.formats.BufferPool;
+import loci.formats.Metrics;
+import loci.formats.SimpleMetricsRecorder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link Metrics} and {@link SimpleMetricsRecorder}.
+ */
+public class MetricsTest {
+
+  @AfterMethod
+  public void tearDown() {
+    Metrics.setRecorder(null);
+  }
+
+  @Test
+  public void testDisabled() {
+    assertFalse(Metrics.isEnabled());
+    assertEquals(0, Metrics.startTimer());
+    SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+    Metrics.increment("counter", 1);
+    Metrics.stopTimer("timer", 0);
+
+    // a timer started while disabled records nothing
+    Metrics.setRecorder(recorder);
+    Metrics.stopTimer("timer", 0);
+    assertNull(recorder.getHistogram("timer"));
+    assertEquals(0, recorder.getCount("counter"));
+  }
+
+  @Test
+  public void testCounters() {
+    SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+    Metrics.setRecorder(recorder);
+    assertTrue(Metrics.isEnabled());
+    Metrics.increment("b", 3);
+    Metrics.increment("b", 4);
+    Metrics.increment("a", 1);
+    assertEquals(7, recorder.getCount("b"));
+    assertEquals(1, recorder.getCount("a"));
+    assertEquals("a", recorder.getCounterNames().get(0));
+    assertTrue(recorder.report().startsWith("a: 1\nb: 7\n"));
+
+    recorder.reset();
+    assertEquals(0, recorder.getCount("b"));
+  }
+
+  @Test
+  public void testHistogram() {
+    SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+    for (int i=1; i<=100; i++) {
+      recorder.record("h", i);
+    }
+    SimpleMetricsRecorder.Histogram h = recorder.getHistogram("h");
+    assertEquals(100, h.getCount());
+    assertEquals(5050, h.getSum());
+    assertEquals(1, h.getMin());
+    assertEquals(100, h.getMax());
+    assertEquals(50.5, h.getMean(), 1e-9);
+
+    // percentiles are rounded up to the end of a power-of-two bucket
+    long p50 = h.getPercentile(50);
+    assertTrue(p50 >= 50 && p50 < 100);
+    assertEquals(100, h.getPercentile(100));
+    assertEquals(1, h.getPercentile(0));
+  }
+
+  @Test
+  public void testTimer() {
+    SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+    Metrics.setRecorder(recorder);
+    long start = Metrics.startTimer();
+    Metrics.stopTimer(Metrics.TIFF_DECOMPRESS_TIME, start);
+    assertEquals(1,
+      recorder.getHistogram(Metrics.TIFF_DECOMPRESS_TIME).getCount());
+  }
+
+  @Test
+  public void testBufferPool() {
+    SimpleMetricsRecorder recorder = new SimpleMetricsRecorder();
+    Metrics.setRecorder(recorder);
+    int size = BufferPool.MIN_POOLED_SIZE;
+    BufferPool pool = new BufferPool(size * 2);
+    pool.release(pool.borrow(size));
+    pool.borrow(size);
+    assertEquals(size, recorder.getCount(Metrics.POOL_ALLOCATED_BYTES));
+    assertEquals(1, recorder.getCount(Metrics.POOL_HITS));
+  }
+
+}
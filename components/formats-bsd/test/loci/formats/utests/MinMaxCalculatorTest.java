@@ -39,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import loci.common.DataTools;
 import loci.common.Location;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
@@ -198,6 +199,56 @@ public class MinMaxCalculatorTest {
     assertMinMax(-2.0, 2.0);
   }
 
+  @Test
+  public void testParallelMinMax() throws Exception {
+    String id =
+      "parallel&pixelType=uint16&sizeX=2048&sizeY=1024&sizeC=3&rgb=3.fake";
+    Location.mapId(id, id);
+    MinMaxCalculator serial = new MinMaxCalculator(new FakeReader());
+    MinMaxCalculator parallel = new MinMaxCalculator(new FakeReader());
+    parallel.setThreadCount(4);
+    try {
+      serial.setId(id);
+      parallel.setId(id);
+      serial.openBytes(0);
+      parallel.openBytes(0);
+      Double[] min = serial.getPlaneMinimum(0);
+      Double[] max = serial.getPlaneMaximum(0);
+      assertEquals(3, min.length);
+      assertTrue(Arrays.equals(min, parallel.getPlaneMinimum(0)));
+      assertTrue(Arrays.equals(max, parallel.getPlaneMaximum(0)));
+    }
+    finally {
+      serial.close();
+      parallel.close();
+    }
+  }
+
+  @Test
+  public void testParallelKnownMinMax() throws Exception {
+    String id = "known&pixelType=int16&sizeX=2048&sizeY=1024.fake";
+    Location.mapId(id, id);
+    MinMaxCalculator parallel = new MinMaxCalculator(new KnownValuesReader());
+    parallel.setThreadCount(4);
+    try {
+      parallel.setId(id);
+      parallel.openBytes(0);
+      // the extremes are in the first and last of the four chunks
+      assertEquals(-1234.0, parallel.getPlaneMinimum(0)[0]);
+      assertEquals(4321.0, parallel.getPlaneMaximum(0)[0]);
+      assertEquals(-1234.0, parallel.getChannelGlobalMinimum(0));
+      assertEquals(4321.0, parallel.getChannelGlobalMaximum(0));
+    }
+    finally {
+      parallel.close();
+    }
+  }
+
+  @Test(expectedExceptions={IllegalArgumentException.class})
+  public void testInvalidThreadCount() {
+    minMaxCalculator.setThreadCount(0);
+  }
+
   /**
    * A testing implementation of {@link loci.formats.meta.IMinMaxStore} that
    * we'll use to ensure that the various methods are called with the correct
@@ -231,6 +282,28 @@ public class MinMaxCalculatorTest {
     }
   }
 
+  /**
+   * A 16-bit {@link loci.formats.in.FakeReader} whose planes are 7 except
+   * for a minimum of -1234 near the end and a maximum of 4321 near the
+   * start.
+   */
+  static class KnownValuesReader extends FakeReader {
+
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+        throws FormatException, IOException {
+      FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+      int pixels = w * h;
+      for (int i=0; i<pixels; i++) {
+        short value = 7;
+        if (i == 5) value = 4321;
+        else if (i == pixels - 3) value = -1234;
+        DataTools.unpackBytes(value, buf, i * 2, 2, isLittleEndian());
+      }
+      return buf;
+    }
+  }
+
   /**
    * An extension of {@link loci.formats.in.FakeReader} that allows us to
    * control exactly what is in the data returned by the <code>openBytes</code>
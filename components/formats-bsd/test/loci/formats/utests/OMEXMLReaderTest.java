@@ -0,0 +1,212 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import loci.common.Constants;
+import loci.formats.codec.Base64Codec;
+import loci.formats.in.OMEXMLReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link OMEXMLReader}.
+ */
+public class OMEXMLReaderTest {
+
+  private static final int SIZE_X = 5;
+  private static final int SIZE_Y = 2;
+
+  /**
+   * bzip2-compressed, Base64-encoded plane #0 of series 2; the encoder is
+   * not available to the tests.
+   */
+  private static final String BZIP2_PLANE =
+    "QlpoOTFBWSZTWfdB4FcAAAAPgAABAgQIECBAgQIgACIBpphADBVeaOPpi7kinChIe6DwK4A=";
+
+  private static final String NS = "http://www.openmicroscopy.org/Schemas/";
+
+  private File file;
+
+  private OMEXMLReader reader;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    xml.append("<OME xmlns=\"").append(NS).append("OME/2016-06\">\n");
+    // uncompressed, with the text wrapped and indented
+    appendImage(xml, 0, 2, "", new String[] {
+      wrap(encode(plane(0, 0))), wrap(encode(plane(0, 1)))});
+    appendImage(xml, 1, 1, "zlib",
+      new String[] {wrap(encode(zlib(plane(1, 0))))});
+    appendImage(xml, 2, 1, "bzip2", new String[] {BZIP2_PLANE});
+    xml.append("</OME>\n");
+
+    file = File.createTempFile("OMEXMLReaderTest", ".ome.xml");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(xml.toString().getBytes(Constants.ENCODING));
+    }
+    finally {
+      out.close();
+    }
+    reader = new OMEXMLReader();
+    reader.setId(file.getAbsolutePath());
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  // -- Helper methods --
+
+  private static byte[] plane(int series, int no) {
+    byte[] plane = new byte[SIZE_X * SIZE_Y];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (series * 31 + no * 17 + i * 7);
+    }
+    return plane;
+  }
+
+  private static String encode(byte[] b) throws Exception {
+    return new String(new Base64Codec().compress(b, null), Constants.ENCODING);
+  }
+
+  private static byte[] zlib(byte[] b) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+    out.write(b);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /** Splits Base64 text across indented lines. */
+  private static String wrap(String text) {
+    StringBuilder wrapped = new StringBuilder("\n");
+    for (int i=0; i<text.length(); i+=6) {
+      wrapped.append("\t  ");
+      wrapped.append(text, i, Math.min(i + 6, text.length()));
+      wrapped.append("\r\n");
+    }
+    return wrapped.toString();
+  }
+
+  private static void appendImage(StringBuilder xml, int series, int sizeZ,
+    String compression, String[] planes)
+  {
+    xml.append("<Image ID=\"Image:").append(series).append("\">");
+    xml.append("<Pixels ID=\"Pixels:").append(series);
+    xml.append("\" DimensionOrder=\"XYZCT\" Type=\"uint8\" SizeX=\"");
+    xml.append(SIZE_X).append("\" SizeY=\"").append(SIZE_Y);
+    xml.append("\" SizeZ=\"").append(sizeZ);
+    xml.append("\" SizeC=\"1\" SizeT=\"1\" BigEndian=\"false\">");
+    xml.append("<Channel ID=\"Channel:").append(series);
+    xml.append(":0\" SamplesPerPixel=\"1\"/>\n");
+    for (String plane : planes) {
+      xml.append("<BinData xmlns=\"").append(NS);
+      xml.append("BinaryFile/2016-06\" BigEndian=\"false\" Length=\"");
+      xml.append(plane.length()).append('"');
+      if (compression.length() > 0) {
+        xml.append(" Compression=\"").append(compression).append('"');
+      }
+      xml.append('>').append(plane).append("</BinData>\n");
+    }
+    xml.append("</Pixels></Image>\n");
+  }
+
+  private void checkPlanes(int series, int planes) throws Exception {
+    reader.setSeries(series);
+    assertEquals(SIZE_X, reader.getSizeX());
+    assertEquals(SIZE_Y, reader.getSizeY());
+    assertEquals(planes, reader.getImageCount());
+    for (int no=0; no<planes; no++) {
+      byte[] expected = plane(series, no);
+      byte[] plane = reader.openBytes(no);
+      assertEquals(expected.length, plane.length);
+      for (int i=0; i<expected.length; i++) {
+        assertEquals(expected[i], plane[i]);
+      }
+
+      // a region that skips the first row and column
+      byte[] region = reader.openBytes(no, 1, 1, 3, 1);
+      for (int x=0; x<region.length; x++) {
+        assertEquals(expected[SIZE_X + 1 + x], region[x]);
+      }
+    }
+  }
+
+  // -- Tests --
+
+  @Test
+  public void testSeriesCount() {
+    assertEquals(3, reader.getSeriesCount());
+  }
+
+  @Test
+  public void testUncompressed() throws Exception {
+    // ten bytes per plane, so the Base64 text ends with "=="
+    assertTrue(encode(plane(0, 0)).endsWith("=="));
+    checkPlanes(0, 2);
+  }
+
+  @Test
+  public void testZlib() throws Exception {
+    checkPlanes(1, 1);
+  }
+
+  @Test
+  public void testBzip2() throws Exception {
+    checkPlanes(2, 1);
+  }
+
+  @Test
+  public void testReadOutOfOrder() throws Exception {
+    // each BinData element is located independently of the others
+    checkPlanes(2, 1);
+    checkPlanes(0, 2);
+    checkPlanes(1, 1);
+  }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import loci.common.Constants;
+import loci.formats.FormatException;
+import loci.formats.in.TextReader;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link TextReader}.
+ */
+public class TextReaderTest {
+
+  private static final int SIZE_X = 7;
+  private static final int SIZE_Y = 5;
+
+  private File file;
+
+  /** Contents of the file. */
+  private byte[] table;
+
+  private TextReader reader;
+
+  /** Line numbers of the rows reported as ignored, in order. */
+  private List<Integer> nonNumericRows = new ArrayList<Integer>();
+  private List<Integer> deviantRows = new ArrayList<Integer>();
+
+  /** Line numbers of the rows that should be ignored. */
+  private int nonNumericRow, deviantRow;
+
+  /** Line number of the last row. */
+  private int lastRow;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    StringBuilder table = new StringBuilder();
+    table.append("Exported table\n\n");
+    table.append("x,y,intensity,ratio\n");
+    int line = 3;
+    for (int y=0; y<SIZE_Y; y++) {
+      for (int x=0; x<SIZE_X; x++) {
+        if (x == 3 && y == 2) {
+          // missing pixel, and rows that are ignored
+          table.append("3,2,oops,1\r\n");
+          nonNumericRow = ++line;
+          table.append("3,2,1\n");
+          deviantRow = ++line;
+          continue;
+        }
+        table.append(x).append(',').append(y).append(',');
+        table.append(value(x, y)).append(',').append(x * 0.25e-3);
+        table.append(y == 1 ? "\r\n" : "\n");
+        line++;
+      }
+    }
+    lastRow = line;
+    this.table = table.toString().getBytes(Constants.ENCODING);
+    file = File.createTempFile("TextReaderTest", ".csv");
+    write(this.table);
+    reader = new TextReader() {
+      @Override
+      protected void warnIgnoredRow(int row, boolean deviant) {
+        (deviant ? deviantRows : nonNumericRows).add(row);
+      }
+    };
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    reader.close();
+    file.delete();
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static double value(int x, int y) {
+    return (y * SIZE_X + x) * 1.5 - 10;
+  }
+
+  private void checkTable() throws Exception {
+    nonNumericRows.clear();
+    deviantRows.clear();
+    reader.setId(file.getAbsolutePath());
+    assertEquals(Arrays.asList(nonNumericRow), nonNumericRows);
+    assertEquals(Arrays.asList(deviantRow), deviantRows);
+    assertEquals(SIZE_X, reader.getSizeX());
+    assertEquals(SIZE_Y, reader.getSizeY());
+    assertEquals(2, reader.getSizeC());
+    assertEquals("intensity", reader.getChannelLabel(0));
+    assertEquals("ratio", reader.getChannelLabel(1));
+
+    ByteBuffer intensity = ByteBuffer.wrap(reader.openBytes(0));
+    ByteBuffer ratio = ByteBuffer.wrap(reader.openBytes(1));
+    for (int y=0; y<SIZE_Y; y++) {
+      for (int x=0; x<SIZE_X; x++) {
+        float i = intensity.getFloat();
+        float r = ratio.getFloat();
+        if (x == 3 && y == 2) {
+          assertTrue(Float.isNaN(i));
+          assertTrue(Float.isNaN(r));
+        }
+        else {
+          assertEquals((float) value(x, y), i, 0f);
+          assertEquals((float) (x * 0.25e-3), r, 0f);
+        }
+      }
+    }
+
+    // sub-regions are copied row by row
+    ByteBuffer region = ByteBuffer.wrap(reader.openBytes(0, 2, 1, 3, 2));
+    for (int y=1; y<3; y++) {
+      for (int x=2; x<5; x++) {
+        float i = region.getFloat();
+        if (x == 3 && y == 2) assertTrue(Float.isNaN(i));
+        else assertEquals((float) value(x, y), i, 0f);
+      }
+    }
+  }
+
+  @Test
+  public void testSingleThread() throws Exception {
+    reader.setThreadCount(1);
+    checkTable();
+  }
+
+  @Test
+  public void testMultipleThreads() throws Exception {
+    reader.setThreadCount(4);
+    checkTable();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidThreadCount() {
+    reader.setThreadCount(0);
+  }
+
+  /**
+   * Reads the table with every block size up to the length of the file,
+   * so that every line is split across blocks at every position, including
+   * between the '\r' and '\n' of a line terminator, and lines are longer
+   * than a block.
+   */
+  private void checkBlockSizes(int maxBlockSize) throws Exception {
+    for (int size=1; size<=maxBlockSize; size++) {
+      reader.setBlockSize(size);
+      try {
+        checkTable();
+      }
+      catch (AssertionError e) {
+        throw new AssertionError("Block size " + size + ": " + e.getMessage());
+      }
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testBlockBoundaries() throws Exception {
+    reader.setThreadCount(1);
+    checkBlockSizes(table.length);
+  }
+
+  @Test
+  public void testBlockBoundariesMultipleThreads() throws Exception {
+    // small blocks keep more tasks pending than there are threads
+    reader.setThreadCount(3);
+    checkBlockSizes(64);
+  }
+
+  @Test
+  public void testInvalidRowAcrossBlocks() throws Exception {
+    // a negative coordinate on the last line
+    String last = "1,-4,0.5,0.5\n";
+    byte[] invalid = Arrays.copyOf(table, table.length + last.length());
+    System.arraycopy(last.getBytes(Constants.ENCODING), 0, invalid,
+      table.length, last.length());
+    write(invalid);
+    int row = lastRow + 1;
+
+    for (int size=1; size<=invalid.length; size+=7) {
+      reader.setBlockSize(size);
+      reader.setThreadCount(size % 2 == 0 ? 1 : 4);
+      try {
+        reader.setId(file.getAbsolutePath());
+        fail("Block size " + size + ": no exception");
+      }
+      catch (FormatException e) {
+        assertEquals("Row #" + row + ": invalid Y: -4", e.getMessage());
+      }
+      reader.close();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testInvalidBlockSize() {
+    reader.setBlockSize(0);
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import loci.formats.in.VideoFrameCache;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link VideoFrameCache}.
+ */
+public class VideoFrameCacheTest {
+
+  private VideoFrameCache cache;
+
+  private CountingDecoder decoder;
+
+  @BeforeMethod
+  public void setUp() {
+    cache = new VideoFrameCache(new int[] {0, 50});
+    cache.setSnapshotInterval(10);
+    decoder = new CountingDecoder();
+  }
+
+  /**
+   * Decodes each frame as the previous frame plus one, so that the value
+   * of a decoded frame is the distance from the nearest keyframe.
+   */
+  private static class CountingDecoder
+    implements VideoFrameCache.FrameDecoder
+  {
+    List<Integer> decoded = new ArrayList<Integer>();
+
+    @Override
+    public byte[] decode(int no, byte[] previous) {
+      decoded.add(no);
+      return new byte[] {(byte) (previous == null ? 0 : previous[0] + 1)};
+    }
+  }
+
+  @Test
+  public void testKeyframeLookup() {
+    assertTrue(cache.isKeyframe(0));
+    assertTrue(cache.isKeyframe(50));
+    assertFalse(cache.isKeyframe(49));
+    assertEquals(0, cache.getKeyframe(49));
+    assertEquals(50, cache.getKeyframe(50));
+    assertEquals(50, cache.getKeyframe(99));
+  }
+
+  @Test
+  public void testDefaultKeyframe() {
+    cache = new VideoFrameCache();
+    assertTrue(cache.isKeyframe(0));
+    assertFalse(cache.isKeyframe(1));
+    assertEquals(0, cache.getKeyframe(1000));
+  }
+
+  @Test
+  public void testSequentialDecode() throws Exception {
+    for (int i=0; i<5; i++) {
+      assertEquals(i, cache.getFrame(i, decoder)[0]);
+    }
+    assertEquals(5, decoder.decoded.size());
+  }
+
+  @Test
+  public void testRepeatedFrame() throws Exception {
+    cache.getFrame(3, decoder);
+    int count = decoder.decoded.size();
+    cache.getFrame(3, decoder);
+    assertEquals(count, decoder.decoded.size());
+  }
+
+  @Test
+  public void testSeekFromKeyframe() throws Exception {
+    assertEquals(2, cache.getFrame(52, decoder)[0]);
+    assertEquals(3, decoder.decoded.size());
+    assertEquals(50, decoder.decoded.get(0).intValue());
+  }
+
+  @Test
+  public void testSeekFromSnapshot() throws Exception {
+    assertEquals(45, cache.getFrame(45, decoder)[0]);
+    assertEquals(4, cache.getSnapshotCount());
+
+    decoder.decoded.clear();
+    assertEquals(23, cache.getFrame(23, decoder)[0]);
+    assertEquals(3, decoder.decoded.size());
+    assertEquals(21, decoder.decoded.get(0).intValue());
+
+    decoder.decoded.clear();
+    assertEquals(30, cache.getFrame(30, decoder)[0]);
+    assertEquals(0, decoder.decoded.size());
+  }
+
+  @Test
+  public void testSnapshotsDisabled() throws Exception {
+    cache.setSnapshotInterval(0);
+    cache.getFrame(45, decoder);
+    assertEquals(0, cache.getSnapshotCount());
+    decoder.decoded.clear();
+    assertEquals(23, cache.getFrame(23, decoder)[0]);
+    assertEquals(24, decoder.decoded.size());
+  }
+
+  @Test
+  public void testSnapshotLimit() throws Exception {
+    cache.setMaxSnapshotBytes(2);
+    assertEquals(45, cache.getFrame(45, decoder)[0]);
+    // only the snapshots closest to frame 40 are kept
+    assertEquals(2, cache.getSnapshotCount());
+
+    decoder.decoded.clear();
+    assertEquals(30, cache.getFrame(30, decoder)[0]);
+    assertEquals(0, decoder.decoded.size());
+    assertEquals(13, cache.getFrame(13, decoder)[0]);
+    assertEquals(14, decoder.decoded.size());
+    assertEquals(2, cache.getSnapshotCount());
+
+    cache.setMaxSnapshotBytes(0);
+    assertEquals(0, cache.getSnapshotCount());
+  }
+
+  @Test(expectedExceptions={IllegalArgumentException.class})
+  public void testNegativeInterval() {
+    cache.setSnapshotInterval(-1);
+  }
+
+  @Test(expectedExceptions={IllegalArgumentException.class})
+  public void testNegativeSnapshotLimit() {
+    cache.setMaxSnapshotBytes(-1);
+  }
+
+}
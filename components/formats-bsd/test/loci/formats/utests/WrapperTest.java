@@ -34,11 +34,16 @@ package loci.formats.utests;
 
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
+import loci.common.DataTools;
 import loci.common.Location;
+import loci.formats.BufferTools;
 import loci.formats.ChannelFiller;
 import loci.formats.ChannelMerger;
 import loci.formats.ChannelSeparator;
@@ -46,10 +51,13 @@ import loci.formats.CoreMetadata;
 import loci.formats.DimensionSwapper;
 import loci.formats.FileStitcher;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
+import loci.formats.ImageTools;
 import loci.formats.Memoizer;
 import loci.formats.MinMaxCalculator;
+import loci.formats.gui.BufferedImageReader;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -72,7 +80,8 @@ public class WrapperTest {
       {new FileStitcher()},
       {new ImageReader()},
       {new MinMaxCalculator()},
-      {new Memoizer()}
+      {new Memoizer()},
+      {new BufferedImageReader()}
     };
     for (int i=0; i<wrappers.length; i++) {
       IFormatReader reader = (IFormatReader) wrappers[i][0];
@@ -107,4 +116,144 @@ public class WrapperTest {
       assertEquals(core.indexed, reader.isIndexed());
     }
   }
+
+  @Test(dataProvider = "wrappers")
+  public void testByteBufferOpenBytes(IFormatReader reader) throws Exception {
+    reader.setSeries(0);
+    byte[] expected = reader.openBytes(1);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(expected.length + 3);
+    direct.position(3);
+    BufferTools.openBytes(reader, 1, direct);
+    assertEquals(direct.position(), direct.limit());
+    byte[] actual = new byte[expected.length];
+    direct.position(3);
+    direct.get(actual);
+    assertTrue(Arrays.equals(expected, actual));
+
+    ByteBuffer heap = ByteBuffer.wrap(new byte[expected.length]);
+    BufferTools.openBytes(reader, 1, heap);
+    assertEquals(heap.position(), expected.length);
+    assertTrue(Arrays.equals(expected, heap.array()));
+    // a region of a different size reuses the same direct buffer
+    byte[] region = reader.openBytes(1, 5, 7, 16, 8);
+    direct.clear();
+    BufferTools.openBytes(reader, 1, direct, 5, 7, 16, 8);
+    assertEquals(region.length, direct.position());
+    actual = new byte[region.length];
+    direct.flip();
+    direct.get(actual);
+    assertTrue(Arrays.equals(region, actual));
+  }
+
+  @DataProvider(name = "indexed")
+  public Object[][] createIndexedFiles() {
+    return new Object[][] {
+      {"indexed&pixelType=uint8&indexed=true&sizeX=32&sizeY=16.fake"},
+      {"indexed&pixelType=uint8&indexed=true&interleaved=true&lutLength=4" +
+        "&sizeX=32&sizeY=16.fake"},
+      {"indexed&pixelType=uint16&indexed=true&little=true" +
+        "&sizeX=32&sizeY=16.fake"},
+      {"indexed&pixelType=uint16&indexed=true&little=false&interleaved=true" +
+        "&sizeX=32&sizeY=16.fake"}
+    };
+  }
+
+  @Test(dataProvider = "indexed")
+  public void testChannelFillerExpansion(String file) throws Exception {
+    Location.mapId(file, file);
+    ChannelFiller filler = new ChannelFiller();
+    filler.setId(file);
+    IFormatReader reader = filler.getReader();
+    assertTrue(filler.isFilled());
+
+    int x = 3, y = 2, w = 20, h = 9;
+    byte[] indices = reader.openBytes(0, x, y, w, h);
+    byte[] actual = filler.openBytes(0, x, y, w, h);
+
+    int c = filler.getRGBChannelCount();
+    int bpp = FormatTools.getBytesPerPixel(filler.getPixelType());
+    boolean little = filler.isLittleEndian();
+    assertEquals(w * h * c * bpp, actual.length);
+    byte[][] expected8 = bpp == 1 ?
+      ImageTools.indexedToRGB(reader.get8BitLookupTable(), indices) : null;
+    short[][] expected16 = bpp == 2 ?
+      ImageTools.indexedToRGB(reader.get16BitLookupTable(), indices, little) :
+      null;
+    for (int ch=0; ch<c; ch++) {
+      for (int i=0; i<w*h; i++) {
+        int index = filler.isInterleaved() ? i * c + ch : ch * w * h + i;
+        if (bpp == 1) {
+          assertEquals(expected8[ch][i], actual[index]);
+        }
+        else {
+          short value = (short) DataTools.bytesToInt(actual, 2 * index, 2,
+            little);
+          assertEquals(expected16[ch][i], value);
+        }
+      }
+    }
+    filler.close();
+  }
+
+  @DataProvider(name = "rgb")
+  public Object[][] createRGBFiles() {
+    return new Object[][] {
+      {"rgb&pixelType=uint8&sizeC=3&rgb=3&interleaved=true" +
+        "&sizeX=40&sizeY=30&sizeZ=2.fake"},
+      {"rgb&pixelType=uint16&sizeC=3&rgb=3&interleaved=false" +
+        "&sizeX=40&sizeY=30&sizeZ=2.fake"},
+      {"rgb&pixelType=uint16&sizeC=4&rgb=4&interleaved=true" +
+        "&sizeX=40&sizeY=30&sizeZ=2.fake"}
+    };
+  }
+
+  @Test(dataProvider = "rgb")
+  public void testChannelSeparatorModes(String file) throws Exception {
+    Location.mapId(file, file);
+    ChannelSeparator reference = new ChannelSeparator();
+    reference.setId(file);
+    ChannelSeparator split = new ChannelSeparator();
+    split.setSplitCache(true);
+    split.setId(file);
+    ChannelSeparator strips = new ChannelSeparator();
+    // a few rows of the region at a time
+    strips.setMemoryBudget(4 * 40 * 8 * 3);
+    strips.setId(file);
+
+    int x = 5, y = 3, w = 30, h = 25;
+    for (int i=0; i<reference.getImageCount(); i++) {
+      byte[] expected = reference.openBytes(i, x, y, w, h);
+      assertTrue(Arrays.equals(expected, split.openBytes(i, x, y, w, h)));
+      assertTrue(Arrays.equals(expected, strips.openBytes(i, x, y, w, h)));
+      assertTrue(Arrays.equals(reference.openBytes(i),
+        split.openBytes(i)));
+    }
+    reference.close();
+    split.close();
+    strips.close();
+  }
+
+  @Test
+  public void testDimensionSwapperOutputOrder() throws Exception {
+    String file = "orders&sizeZ=2&sizeC=3&sizeT=4.fake";
+    Location.mapId(file, file);
+    ImageReader reference = new ImageReader();
+    reference.setId(file);
+    DimensionSwapper swapper = new DimensionSwapper();
+    swapper.setId(file);
+
+    String[] orders = {"XYTCZ", "XYCZT", "XYZTC"};
+    for (String order : orders) {
+      swapper.setOutputOrder(order);
+      for (int i=0; i<swapper.getImageCount(); i++) {
+        int[] zct = swapper.getZCTCoords(i);
+        int index = reference.getIndex(zct[0], zct[1], zct[2]);
+        assertTrue(Arrays.equals(reference.openBytes(index),
+          swapper.openBytes(i)));
+      }
+    }
+    reference.close();
+    swapper.close();
+  }
 }
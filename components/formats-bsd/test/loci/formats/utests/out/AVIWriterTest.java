@@ -0,0 +1,178 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.out;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import loci.common.DataTools;
+import loci.formats.in.AVIReader;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.out.AVIWriter;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the functionality of AVIWriter
+ */
+public class AVIWriterTest {
+
+  private static final int FRAMES = 20;
+
+  private byte[] getFrame(int frame) {
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+    for (int i=0; i<plane.length; i++) {
+      plane[i] += frame;
+    }
+    return plane;
+  }
+
+  private File writeMovie(DynamicMetadataOptions options, boolean openDML)
+    throws Exception
+  {
+    File tmp = File.createTempFile("aviWriterTest", ".avi");
+    tmp.deleteOnExit();
+    tmp.delete();
+
+    AVIWriter writer = new AVIWriter();
+    if (options != null) {
+      writer.setMetadataOptions(options);
+    }
+    writer.setMetadataRetrieve(
+      WriterUtilities.createMetadata("uint8", 1, 1, true, FRAMES));
+    writer.setId(tmp.getAbsolutePath());
+    assertEquals(writer.isOpenDML(), openDML);
+    for (int t=0; t<FRAMES; t++) {
+      writer.saveBytes(t, getFrame(t));
+    }
+    writer.close();
+    return tmp;
+  }
+
+  private void checkMovie(File file) throws Exception {
+    AVIReader reader = new AVIReader();
+    reader.setId(file.getAbsolutePath());
+    try {
+      assertEquals(reader.getImageCount(), FRAMES);
+      assertEquals(reader.getSizeX(), WriterUtilities.PLANE_WIDTH);
+      assertEquals(reader.getSizeY(), WriterUtilities.PLANE_HEIGHT);
+      for (int t=0; t<FRAMES; t++) {
+        assertTrue(Arrays.equals(getFrame(t), reader.openBytes(t)));
+      }
+    }
+    finally {
+      reader.close();
+    }
+    file.delete();
+  }
+
+  private boolean matches(byte[] buf, int offset, String fourCC) {
+    for (int i=0; i<4; i++) {
+      if (buf[offset + i] != fourCC.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test
+  public void testSingleSegment() throws Exception {
+    checkMovie(writeMovie(null, false));
+  }
+
+  @Test
+  public void testOpenDML() throws Exception {
+    // small enough that each RIFF segment holds only three frames
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(AVIWriter.RIFF_SIZE_KEY, "100000");
+    File file = writeMovie(options, true);
+    assertTrue(file.length() > 100000);
+    checkMovie(file);
+  }
+
+  @Test
+  public void testKeyframes() throws Exception {
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(AVIWriter.RIFF_SIZE_KEY, "100000");
+    File file = writeMovie(options, true);
+    byte[] avi = Files.readAllBytes(file.toPath());
+    int idx1Entries = 0;
+    int standardEntries = 0;
+    for (int i=0; i<avi.length - 32; i++) {
+      if (matches(avi, i, "idx1")) {
+        int size = DataTools.bytesToInt(avi, i + 4, 4, true);
+        for (int entry=i + 8; entry<i + 8 + size; entry+=16) {
+          assertEquals(DataTools.bytesToInt(avi, entry + 4, 4, true), 0x10);
+          idx1Entries++;
+        }
+      }
+      else if (matches(avi, i, "ix00") && matches(avi, i + 16, "00db")) {
+        int count = DataTools.bytesToInt(avi, i + 12, 4, true);
+        for (int entry=0; entry<count; entry++) {
+          // the high bit of each size marks a delta frame
+          assertTrue(DataTools.bytesToInt(avi, i + 32 + entry * 8 + 4, 4,
+            true) > 0);
+          standardEntries++;
+        }
+      }
+    }
+    assertTrue(idx1Entries > 0);
+    assertEquals(standardEntries, FRAMES);
+    checkMovie(file);
+  }
+
+  @Test
+  public void testAppend() throws Exception {
+    File tmp = File.createTempFile("aviWriterTest_Append", ".avi");
+    tmp.deleteOnExit();
+    tmp.delete();
+
+    for (int t=0; t<FRAMES; t++) {
+      AVIWriter writer = new AVIWriter();
+      writer.setMetadataRetrieve(
+        WriterUtilities.createMetadata("uint8", 1, 1, true, FRAMES));
+      writer.setId(tmp.getAbsolutePath());
+      assertFalse(writer.isOpenDML());
+      writer.saveBytes(t, getFrame(t));
+      writer.close();
+    }
+    checkMovie(tmp);
+  }
+
+}
@@ -33,18 +33,24 @@
 package loci.formats.utests.out;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.in.TiffReader;
 import loci.formats.in.OMETiffReader;
 import loci.formats.in.DynamicMetadataOptions;
 import loci.formats.meta.IMetadata;
 import loci.formats.out.OMETiffWriter;
+import loci.formats.out.PyramidBuilder;
+import loci.formats.out.TiffWriter;
 import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffParser;
 import ome.xml.model.enums.PixelType;
 import ome.xml.model.primitives.PositiveInteger;
 import org.testng.annotations.AfterMethod;
@@ -222,4 +228,154 @@ public class OMETiffWriterTest {
     cFile.deleteOnExit();
     wd.toFile().deleteOnExit();
   }
+
+  @Test
+  public void testPyramidResolutions() throws Exception {
+    File tmp = File.createTempFile("omeTiffWriterTest_Pyramid", ".ome.tiff");
+    tmp.deleteOnExit();
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "3");
+
+    OMETiffWriter pyramidWriter = new OMETiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, 2));
+    pyramidWriter.setTileSizeX(64);
+    pyramidWriter.setTileSizeY(64);
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+    for (int t=0; t<2; t++) {
+      pyramidWriter.saveBytes(t, plane);
+    }
+    pyramidWriter.close();
+
+    PyramidBuilder expected = new PyramidBuilder(WriterUtilities.PLANE_WIDTH,
+      WriterUtilities.PLANE_HEIGHT, 1, FormatTools.UINT8, false, true, 3, 2,
+      null);
+    expected.addRegion(plane, 0, 0,
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT);
+
+    OMETiffReader reader = new OMETiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      assertEquals(reader.getSeriesCount(), 1);
+      assertEquals(reader.getImageCount(), 2);
+      assertEquals(reader.getResolutionCount(), 3);
+      for (int level=1; level<3; level++) {
+        reader.setResolution(level);
+        assertEquals(reader.getSizeX(), expected.getWidth(level));
+        assertEquals(reader.getSizeY(), expected.getHeight(level));
+        assertTrue(Arrays.equals(reader.openBytes(1), expected.getLevel(level)));
+      }
+      reader.setResolution(0);
+      assertTrue(Arrays.equals(reader.openBytes(0), plane));
+    }
+    finally {
+      reader.close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidPlanesOutOfOrder() throws Exception {
+    File tmp = File.createTempFile("omeTiffWriterTest_Pyramid", ".ome.tiff");
+    tmp.deleteOnExit();
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "2");
+
+    OMETiffWriter pyramidWriter = new OMETiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, 2));
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[][] planes = new byte[2][];
+    for (int t=0; t<planes.length; t++) {
+      planes[t] = WriterUtilities.getPlane(
+        WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+      planes[t][0] = (byte) t;
+    }
+    // the last plane's IFD is written first, so the IFD that ends the
+    // chain does not have the largest offset
+    for (int t=planes.length-1; t>=0; t--) {
+      pyramidWriter.saveBytes(t, planes[t]);
+    }
+    pyramidWriter.close();
+
+    TiffParser parser = new TiffParser(tmp.getAbsolutePath());
+    try {
+      assertEquals(parser.getIFDOffsets().length, planes.length);
+      assertTrue(parser.getComment().contains("<OME"));
+    }
+    finally {
+      parser.getStream().close();
+    }
+
+    OMETiffReader reader = new OMETiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      assertEquals(reader.getImageCount(), planes.length);
+      assertEquals(reader.getResolutionCount(), 2);
+      for (int t=0; t<planes.length; t++) {
+        assertTrue(Arrays.equals(reader.openBytes(t), planes[t]));
+      }
+    }
+    finally {
+      reader.close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testMultiFileComments() throws Exception {
+    Path wd = Files.createTempDirectory(this.getClass().getName());
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(OMETiffWriter.COMMENT_THREADS_KEY, "2");
+    int sizeT = 4;
+
+    OMETiffWriter multiWriter = new OMETiffWriter();
+    multiWriter.setMetadataOptions(options);
+    multiWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, sizeT));
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+    File[] files = new File[sizeT];
+    for (int t=0; t<sizeT; t++) {
+      files[t] = wd.resolve("t" + t + ".ome.tif").toFile();
+      files[t].deleteOnExit();
+      multiWriter.setId(files[t].getAbsolutePath());
+      multiWriter.saveBytes(t, plane);
+    }
+    multiWriter.close();
+
+    String[] comments = new String[sizeT];
+    for (int t=0; t<sizeT; t++) {
+      TiffParser parser = new TiffParser(files[t].getAbsolutePath());
+      try {
+        assertEquals(parser.getIFDOffsets().length, 1);
+        comments[t] = parser.getComment();
+      }
+      finally {
+        parser.getStream().close();
+      }
+      for (int prev=0; prev<t; prev++) {
+        assertEquals(comments[t].length(), comments[prev].length());
+        assertFalse(comments[t].equals(comments[prev]));
+      }
+    }
+
+    OMETiffReader reader = new OMETiffReader();
+    reader.setId(files[0].getAbsolutePath());
+    try {
+      assertEquals(reader.getSizeT(), sizeT);
+      assertEquals(reader.getUsedFiles().length, sizeT);
+      assertTrue(Arrays.equals(reader.openBytes(sizeT - 1), plane));
+    }
+    finally {
+      reader.close();
+    }
+    wd.toFile().deleteOnExit();
+  }
 }
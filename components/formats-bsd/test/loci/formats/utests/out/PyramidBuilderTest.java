@@ -0,0 +1,309 @@
+/*
+ * #%L
+ * BSD implementations of Bio-Formats readers and writers
+ * %%
+ * Copyright (C) 2005 - 2017 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package loci.formats.utests.out;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import loci.common.DataTools;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.out.PyramidBuilder;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link PyramidBuilder}.
+ */
+public class PyramidBuilderTest {
+
+  private ExecutorService threadPool;
+
+  @BeforeMethod
+  public void setUp() {
+    threadPool = Executors.newFixedThreadPool(4);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    threadPool.shutdown();
+  }
+
+  @Test
+  public void testLevelSizes() throws FormatException {
+    PyramidBuilder builder = new PyramidBuilder(100, 50, 1,
+      FormatTools.UINT8, false, true, 4, 2, null);
+    assertEquals(4, builder.getLevelCount());
+    assertEquals(100, builder.getWidth(0));
+    assertEquals(50, builder.getHeight(0));
+    assertEquals(50, builder.getWidth(1));
+    assertEquals(25, builder.getHeight(1));
+    assertEquals(25, builder.getWidth(2));
+    assertEquals(13, builder.getHeight(2));
+    assertEquals(13, builder.getWidth(3));
+    assertEquals(7, builder.getHeight(3));
+    assertEquals(13 * 7, builder.getLevel(3).length);
+  }
+
+  @Test
+  public void testTiledAverage() throws FormatException {
+    // 8x8 plane with value (x + 8 * y), written as four 4x4 tiles
+    PyramidBuilder builder = new PyramidBuilder(8, 8, 1,
+      FormatTools.UINT8, false, true, 3, 2, null);
+    for (int ty=0; ty<8; ty+=4) {
+      for (int tx=0; tx<8; tx+=4) {
+        assertFalse(builder.isComplete());
+        byte[] tile = new byte[16];
+        for (int y=0; y<4; y++) {
+          for (int x=0; x<4; x++) {
+            tile[y * 4 + x] = (byte) ((tx + x) + 8 * (ty + y));
+          }
+        }
+        builder.addRegion(tile, tx, ty, 4, 4);
+      }
+    }
+    assertTrue(builder.isComplete());
+
+    // each 2x2 block averages to 2 * x + 16 * y + 4.5, rounded up
+    byte[] level1 = builder.getLevel(1);
+    for (int y=0; y<4; y++) {
+      for (int x=0; x<4; x++) {
+        assertEquals(2 * x + 16 * y + 5, level1[y * 4 + x] & 0xff);
+      }
+    }
+    byte[] level2 = builder.getLevel(2);
+    assertEquals(4, level2.length);
+    assertEquals(14, level2[0] & 0xff);
+    assertEquals(18, level2[1] & 0xff);
+    assertEquals(46, level2[2] & 0xff);
+    assertEquals(50, level2[3] & 0xff);
+  }
+
+  @Test
+  public void testPartialEdgeBlocks() throws FormatException {
+    // 3x3 plane; the right and bottom blocks only cover one pixel
+    PyramidBuilder builder = new PyramidBuilder(3, 3, 1,
+      FormatTools.INT16, true, true, 2, 2, null);
+    byte[] plane = new byte[18];
+    short[] values = {-4, -2, 10, 0, 2, 20, 7, 9, 30};
+    for (int i=0; i<values.length; i++) {
+      DataTools.unpackBytes(values[i], plane, i * 2, 2, true);
+    }
+    assertTrue(builder.addRegion(plane, 0, 0, 3, 3));
+    byte[] level1 = builder.getLevel(1);
+    assertEquals(-1, DataTools.bytesToShort(level1, 0, 2, true));
+    assertEquals(15, DataTools.bytesToShort(level1, 2, 2, true));
+    assertEquals(8, DataTools.bytesToShort(level1, 4, 2, true));
+    assertEquals(30, DataTools.bytesToShort(level1, 6, 2, true));
+  }
+
+  @Test
+  public void testChannelLayouts() throws FormatException {
+    // 2x2 RGB plane with channel values c * 100 + pixel index
+    byte[] interleaved = new byte[12];
+    byte[] planar = new byte[12];
+    for (int p=0; p<4; p++) {
+      for (int c=0; c<3; c++) {
+        interleaved[p * 3 + c] = (byte) (c * 100 + p);
+        planar[c * 4 + p] = (byte) (c * 100 + p);
+      }
+    }
+    PyramidBuilder chunky = new PyramidBuilder(2, 2, 3,
+      FormatTools.UINT8, false, true, 2, 2, null);
+    chunky.addRegion(interleaved, 0, 0, 2, 2);
+    PyramidBuilder separate = new PyramidBuilder(2, 2, 3,
+      FormatTools.UINT8, false, false, 2, 2, null);
+    separate.addRegion(planar, 0, 0, 2, 2);
+
+    byte[] expected = {2, 102, (byte) 202};
+    assertTrue(Arrays.equals(expected, chunky.getLevel(1)));
+    assertTrue(Arrays.equals(expected, separate.getLevel(1)));
+  }
+
+  @Test
+  public void testFloatAverage() throws FormatException {
+    PyramidBuilder builder = new PyramidBuilder(2, 1, 1,
+      FormatTools.FLOAT, false, true, 2, 2, null);
+    byte[] plane = new byte[8];
+    DataTools.unpackBytes(Float.floatToIntBits(1.5f), plane, 0, 4, false);
+    DataTools.unpackBytes(Float.floatToIntBits(2.0f), plane, 4, 4, false);
+    builder.addRegion(plane, 0, 0, 2, 1);
+    float value = Float.intBitsToFloat(
+      DataTools.bytesToInt(builder.getLevel(1), 0, 4, false));
+    assertEquals(1.75f, value, 0f);
+  }
+
+  @Test
+  public void testParallelMatchesSerial() throws FormatException {
+    int width = 1024;
+    int height = 512;
+    byte[] plane = new byte[width * height * 2];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (i * 31 + (i >> 7));
+    }
+    PyramidBuilder serial = new PyramidBuilder(width, height, 1,
+      FormatTools.UINT16, false, true, 4, 2, null);
+    PyramidBuilder parallel = new PyramidBuilder(width, height, 1,
+      FormatTools.UINT16, false, true, 4, 2, threadPool);
+    assertTrue(serial.addRegion(plane, 0, 0, width, height));
+    assertTrue(parallel.addRegion(plane, 0, 0, width, height));
+    for (int level=1; level<4; level++) {
+      assertTrue(Arrays.equals(serial.getLevel(level),
+        parallel.getLevel(level)));
+    }
+  }
+
+  @Test
+  public void testOverlappingRegions() throws FormatException {
+    PyramidBuilder builder = new PyramidBuilder(8, 8, 1,
+      FormatTools.UINT8, false, true, 2, 2, null);
+    byte[] tile = new byte[32];
+    assertFalse(builder.addRegion(tile, 0, 0, 8, 4));
+    // the same region again covers no new pixels
+    assertFalse(builder.addRegion(tile, 0, 0, 8, 4));
+    assertFalse(builder.addRegion(tile, 0, 2, 4, 4));
+    assertFalse(builder.isComplete());
+    assertFalse(builder.addRegion(tile, 4, 4, 4, 4));
+    assertTrue(builder.addRegion(tile, 0, 6, 4, 2));
+    assertTrue(builder.isComplete());
+  }
+
+  @Test
+  public void testUnorderedRegions() throws FormatException {
+    // 6x2 plane with value (10 * x + 2 * y), written as 2 pixel wide strips
+    // from the right edge first
+    PyramidBuilder builder = new PyramidBuilder(6, 2, 1,
+      FormatTools.UINT16, true, false, 2, 2, null);
+    int[] order = {4, 0, 2};
+    for (int i=0; i<order.length; i++) {
+      byte[] strip = new byte[8];
+      for (int y=0; y<2; y++) {
+        for (int x=0; x<2; x++) {
+          DataTools.unpackBytes(10 * (order[i] + x) + 2 * y, strip,
+            (y * 2 + x) * 2, 2, true);
+        }
+      }
+      assertEquals(i == order.length - 1,
+        builder.addRegion(strip, order[i], 0, 2, 2));
+    }
+    byte[] level1 = builder.getLevel(1);
+    assertEquals(6, DataTools.bytesToShort(level1, 0, 2, true));
+    assertEquals(26, DataTools.bytesToShort(level1, 2, 2, true));
+    assertEquals(46, DataTools.bytesToShort(level1, 4, 2, true));
+  }
+
+  @Test
+  public void testStripsMatchTile() throws FormatException {
+    // 11x9 RGB plane, written whole and as strips and tiles whose edges do
+    // not line up with the 2x2 blocks
+    int width = 11;
+    int height = 9;
+    byte[] plane = new byte[width * height * 3];
+    for (int i=0; i<plane.length; i++) {
+      plane[i] = (byte) (i * 37 + (i >> 3));
+    }
+    PyramidBuilder tile = new PyramidBuilder(width, height, 3,
+      FormatTools.UINT8, false, true, 3, 2, null);
+    assertTrue(tile.addRegion(plane, 0, 0, width, height));
+
+    PyramidBuilder rows = new PyramidBuilder(width, height, 3,
+      FormatTools.UINT8, false, true, 3, 2, null);
+    for (int y=0; y<height; y+=3) {
+      addRegion(rows, plane, width, 0, y, width, Math.min(3, height - y));
+    }
+    PyramidBuilder tiles = new PyramidBuilder(width, height, 3,
+      FormatTools.UINT8, false, true, 3, 2, threadPool);
+    for (int y=height; y>0; y-=5) {
+      for (int x=0; x<width; x+=3) {
+        int h = Math.min(5, y);
+        addRegion(tiles, plane, width, x, y - h, Math.min(3, width - x), h);
+      }
+    }
+
+    assertTrue(rows.isComplete());
+    assertTrue(tiles.isComplete());
+    for (int level=1; level<3; level++) {
+      assertTrue(Arrays.equals(tile.getLevel(level), rows.getLevel(level)));
+      assertTrue(Arrays.equals(tile.getLevel(level), tiles.getLevel(level)));
+    }
+  }
+
+  @Test
+  public void testUnsignedAverage() throws FormatException {
+    PyramidBuilder builder = new PyramidBuilder(2, 1, 1,
+      FormatTools.UINT32, false, true, 2, 2, null);
+    byte[] plane = new byte[8];
+    DataTools.unpackBytes(0xfffffff0L, plane, 0, 4, false);
+    DataTools.unpackBytes(0xfffffffeL, plane, 4, 4, false);
+    builder.addRegion(plane, 0, 0, 2, 1);
+    assertEquals(0xfffffff7L,
+      DataTools.bytesToInt(builder.getLevel(1), 0, 4, false) & 0xffffffffL);
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testUnsupportedPixelType() throws FormatException {
+    assertFalse(PyramidBuilder.isSupported(FormatTools.BIT));
+    new PyramidBuilder(8, 8, 1, FormatTools.BIT, false, true, 2, 2, null);
+  }
+
+  @Test(expectedExceptions={FormatException.class})
+  public void testInvalidRegion() throws FormatException {
+    PyramidBuilder builder = new PyramidBuilder(8, 8, 1,
+      FormatTools.UINT8, false, true, 2, 2, null);
+    builder.addRegion(new byte[16], 6, 6, 4, 4);
+  }
+
+  @Test(expectedExceptions={IllegalArgumentException.class})
+  public void testInvalidFactor() throws FormatException {
+    new PyramidBuilder(8, 8, 1, FormatTools.UINT8, false, true, 2, 1, null);
+  }
+
+  /** Copies the given region of an interleaved plane into the builder. */
+  private void addRegion(PyramidBuilder builder, byte[] plane, int width,
+    int x, int y, int w, int h)
+    throws FormatException
+  {
+    byte[] region = new byte[w * h * 3];
+    for (int row=0; row<h; row++) {
+      System.arraycopy(plane, ((y + row) * width + x) * 3, region,
+        row * w * 3, w * 3);
+    }
+    builder.addRegion(region, x, y, w, h);
+  }
+
+}
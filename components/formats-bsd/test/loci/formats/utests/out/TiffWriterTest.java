@@ -35,14 +35,23 @@ package loci.formats.utests.out;
 import static org.testng.Assert.assertEquals;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import org.junit.Assert;
+import loci.common.RandomAccessInputStream;
+import loci.common.RandomAccessOutputStream;
 import loci.common.services.ServiceFactory;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.in.DynamicMetadataOptions;
 import loci.formats.in.TiffReader;
 import loci.formats.meta.IMetadata;
+import loci.formats.out.PyramidBuilder;
 import loci.formats.out.TiffWriter;
 import loci.formats.services.OMEXMLService;
 import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
+import loci.formats.tiff.TiffParser;
+import loci.formats.tiff.TiffSaver;
 import loci.formats.utests.tiff.TiffWriterMock;
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.PixelType;
@@ -433,4 +442,322 @@ public class TiffWriterTest {
     reader.close();
   }
 
+  @Test
+  public void testPyramid() throws Exception {
+    File tmp = File.createTempFile("tiffWriterTest_Pyramid", ".tiff");
+    tmp.deleteOnExit();
+    int sizeT = 2;
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "3");
+    options.set(TiffWriter.PYRAMID_FACTOR_KEY, "2");
+
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, sizeT));
+    pyramidWriter.setCompression(WriterUtilities.COMPRESSION_LZW);
+    pyramidWriter.setTileSizeX(64);
+    pyramidWriter.setTileSizeY(64);
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+    for (int t=0; t<sizeT; t++) {
+      pyramidWriter.saveBytes(t, plane);
+    }
+    pyramidWriter.close();
+
+    PyramidBuilder expected = new PyramidBuilder(WriterUtilities.PLANE_WIDTH,
+      WriterUtilities.PLANE_HEIGHT, 1, FormatTools.UINT8, false, true, 3, 2,
+      null);
+    expected.addRegion(plane, 0, 0,
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT);
+
+    TiffParser parser = new TiffParser(tmp.getAbsolutePath());
+    try {
+      long[] offsets = parser.getIFDOffsets();
+      assertEquals(sizeT, offsets.length);
+      for (long offset : offsets) {
+        IFD ifd = parser.getIFD(offset);
+        parser.fillInIFD(ifd);
+        long[] subIFDs = ifd.getIFDLongArray(IFD.SUB_IFD);
+        assertEquals(2, subIFDs.length);
+        for (int level=1; level<3; level++) {
+          IFD sub = parser.getIFD(subIFDs[level - 1]);
+          parser.fillInIFD(sub);
+          assertEquals(1, sub.getIFDIntValue(IFD.NEW_SUBFILE_TYPE));
+          assertEquals(expected.getWidth(level), sub.getImageWidth());
+          assertEquals(expected.getHeight(level), sub.getImageLength());
+          assertEquals(TiffCompression.LZW, sub.getCompression());
+          byte[] pixels = new byte[expected.getLevel(level).length];
+          parser.getSamples(sub, pixels);
+          assertEquals(true, Arrays.equals(expected.getLevel(level), pixels));
+        }
+      }
+    }
+    finally {
+      parser.getStream().close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidIncompletePlane() throws Exception {
+    File tmp = File.createTempFile("tiffWriterTest_PyramidPending", ".tiff");
+    tmp.deleteOnExit();
+    int sizeT = 3;
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "3");
+
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, sizeT));
+    pyramidWriter.setTileSizeX(64);
+    pyramidWriter.setTileSizeY(64);
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+    // the last plane's pyramid is only written on close, after the
+    // reduced resolutions of the first two planes
+    pyramidWriter.saveBytes(0, plane);
+    pyramidWriter.saveBytes(1, plane);
+    pyramidWriter.saveBytes(2, new byte[64 * 64], 0, 0, 64, 64);
+    pyramidWriter.close();
+
+    TiffParser parser = new TiffParser(tmp.getAbsolutePath());
+    try {
+      long[] offsets = parser.getIFDOffsets();
+      assertEquals(sizeT, offsets.length);
+      for (long offset : offsets) {
+        IFD ifd = parser.getIFD(offset);
+        assertEquals(WriterUtilities.PLANE_WIDTH, ifd.getImageWidth());
+        long[] subIFDs = ifd.getIFDLongArray(IFD.SUB_IFD);
+        assertEquals(2, subIFDs.length);
+        for (long subIFD : subIFDs) {
+          assertEquals(1,
+            parser.getIFD(subIFD).getIFDIntValue(IFD.NEW_SUBFILE_TYPE));
+        }
+      }
+    }
+    finally {
+      parser.getStream().close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidResolutions() throws Exception {
+    File tmp = File.createTempFile("tiffWriterTest_PyramidRead", ".tiff");
+    tmp.deleteOnExit();
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "2");
+    options.set(TiffWriter.PYRAMID_FACTOR_KEY, "4");
+
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint16", 1, 1, true, 1));
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[] plane = WriterUtilities.getPlane(
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 2);
+    pyramidWriter.saveBytes(0, plane);
+    pyramidWriter.close();
+
+    PyramidBuilder expected = new PyramidBuilder(WriterUtilities.PLANE_WIDTH,
+      WriterUtilities.PLANE_HEIGHT, 1, FormatTools.UINT16, true, true, 2, 4,
+      null);
+    expected.addRegion(plane, 0, 0,
+      WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT);
+
+    TiffReader reader = new TiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      assertEquals(1, reader.getSeriesCount());
+      assertEquals(1, reader.getImageCount());
+      assertEquals(2, reader.getResolutionCount());
+      assertEquals(0, reader.getThumbnailIFDs().size());
+      reader.setResolution(1);
+      assertEquals(40, reader.getSizeX());
+      assertEquals(40, reader.getSizeY());
+      assertEquals(true, Arrays.equals(expected.getLevel(1), reader.openBytes(0)));
+    }
+    finally {
+      reader.close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidPlanesOutOfOrder() throws Exception {
+    File tmp = File.createTempFile("tiffWriterTest_PyramidOrder", ".tiff");
+    tmp.deleteOnExit();
+    int sizeT = 3;
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "2");
+
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, sizeT));
+    pyramidWriter.setId(tmp.getAbsolutePath());
+    byte[][] planes = new byte[sizeT][];
+    for (int t=0; t<sizeT; t++) {
+      planes[t] = WriterUtilities.getPlane(
+        WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+      Arrays.fill(planes[t], 0, WriterUtilities.PLANE_WIDTH, (byte) (t + 1));
+    }
+    // the header is written with the last plane, but must point at the first
+    for (int t=sizeT-1; t>=0; t--) {
+      pyramidWriter.saveBytes(t, planes[t]);
+    }
+    pyramidWriter.close();
+
+    TiffReader reader = new TiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(tmp.getAbsolutePath());
+    try {
+      assertEquals(reader.getImageCount(), sizeT);
+      assertEquals(reader.getResolutionCount(), 2);
+      for (int t=0; t<sizeT; t++) {
+        assertEquals(Arrays.equals(planes[t], reader.openBytes(t)), true);
+      }
+    }
+    finally {
+      reader.close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidInvalidIFD() throws Exception {
+    File tmp = File.createTempFile("tiffWriterTest_PyramidInvalid", ".tiff");
+    tmp.deleteOnExit();
+    String path = tmp.getAbsolutePath();
+    int sizeT = 2;
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "2");
+
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 1, false, sizeT));
+    pyramidWriter.setId(path);
+    byte[][] planes = new byte[sizeT][];
+    for (int t=0; t<sizeT; t++) {
+      planes[t] = WriterUtilities.getPlane(
+        WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+      Arrays.fill(planes[t], 0, WriterUtilities.PLANE_WIDTH, (byte) (t + 1));
+    }
+    for (int t=0; t<sizeT; t++) {
+      pyramidWriter.saveBytes(t, planes[t]);
+    }
+    pyramidWriter.close();
+
+    // insert an IFD with no image, whose SubIFDs must be ignored, between
+    // the two planes
+    long[] offsets;
+    long[] subIFDs;
+    long nextPointer;
+    boolean little;
+    RandomAccessInputStream in = new RandomAccessInputStream(path);
+    try {
+      TiffParser parser = new TiffParser(in);
+      little = parser.checkHeader().booleanValue();
+      offsets = parser.getIFDOffsets();
+      subIFDs = parser.getIFD(offsets[0]).getIFDLongArray(IFD.SUB_IFD);
+      in.seek(offsets[0]);
+      nextPointer = offsets[0] + 2 + 12 * (in.readShort() & 0xffff);
+    }
+    finally {
+      in.close();
+    }
+    RandomAccessOutputStream out = new RandomAccessOutputStream(path);
+    try {
+      TiffSaver saver = new TiffSaver(out, path);
+      saver.setLittleEndian(little);
+      IFD invalid = new IFD();
+      invalid.putIFDValue(IFD.SUB_IFD, subIFDs);
+      long invalidOffset = out.length();
+      out.seek(invalidOffset);
+      saver.writeIFD(invalid, offsets[1]);
+      out.seek(nextPointer);
+      out.writeInt((int) invalidOffset);
+    }
+    finally {
+      out.close();
+    }
+
+    TiffReader reader = new TiffReader();
+    reader.setFlattenedResolutions(false);
+    reader.setId(path);
+    try {
+      assertEquals(reader.getImageCount(), sizeT);
+      assertEquals(reader.getResolutionCount(), 2);
+      for (int t=0; t<sizeT; t++) {
+        assertEquals(Arrays.equals(planes[t], reader.openBytes(t)), true);
+      }
+    }
+    finally {
+      reader.close();
+    }
+    tmp.delete();
+  }
+
+  @Test
+  public void testPyramidMultipleFiles() throws Exception {
+    File first = File.createTempFile("tiffWriterTest_PyramidFirst", ".tiff");
+    File second = File.createTempFile("tiffWriterTest_PyramidSecond", ".tiff");
+    first.deleteOnExit();
+    second.deleteOnExit();
+    DynamicMetadataOptions options = new DynamicMetadataOptions();
+    options.set(TiffWriter.PYRAMID_LEVELS_KEY, "2");
+    options.set(TiffWriter.PYRAMID_FACTOR_KEY, "2");
+
+    // one series per file, each written through the same writer
+    TiffWriter pyramidWriter = new TiffWriter();
+    pyramidWriter.setMetadataOptions(options);
+    pyramidWriter.setMetadataRetrieve(WriterUtilities.createMetadata(
+      "uint8", 1, 2, false, 1));
+    byte[][] planes = new byte[2][];
+    for (int s=0; s<planes.length; s++) {
+      planes[s] = WriterUtilities.getPlane(
+        WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT, 1);
+      Arrays.fill(planes[s], 0, WriterUtilities.PLANE_WIDTH, (byte) (s + 1));
+    }
+    pyramidWriter.setId(first.getAbsolutePath());
+    pyramidWriter.setSeries(0);
+    pyramidWriter.saveBytes(0, planes[0]);
+    pyramidWriter.changeOutputFile(second.getAbsolutePath());
+    pyramidWriter.setSeries(1);
+    pyramidWriter.saveBytes(0, planes[1]);
+    pyramidWriter.close();
+
+    File[] files = {first, second};
+    for (int s=0; s<files.length; s++) {
+      PyramidBuilder expected = new PyramidBuilder(WriterUtilities.PLANE_WIDTH,
+        WriterUtilities.PLANE_HEIGHT, 1, FormatTools.UINT8, false, true, 2, 2,
+        null);
+      expected.addRegion(planes[s], 0, 0,
+        WriterUtilities.PLANE_WIDTH, WriterUtilities.PLANE_HEIGHT);
+
+      TiffReader reader = new TiffReader();
+      reader.setFlattenedResolutions(false);
+      reader.setId(files[s].getAbsolutePath());
+      try {
+        assertEquals(reader.getSeriesCount(), 1);
+        assertEquals(reader.getImageCount(), 1);
+        assertEquals(reader.getResolutionCount(), 2);
+        assertEquals(Arrays.equals(planes[s], reader.openBytes(0)), true);
+        reader.setResolution(1);
+        assertEquals(Arrays.equals(expected.getLevel(1), reader.openBytes(0)),
+          true);
+      }
+      finally {
+        reader.close();
+      }
+      files[s].delete();
+    }
+  }
+
 }
@@ -33,12 +33,25 @@
 package loci.formats.utests.tiff;
 
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import loci.common.ByteArrayHandle;
 import loci.common.RandomAccessInputStream;
 import loci.common.RandomAccessOutputStream;
+import loci.formats.BufferPool;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.tiff.IFD;
@@ -153,6 +166,222 @@ public class TiffPixelsTest {
     }
   }
 
+  @Test
+  public void testRawTileCopy() throws FormatException, IOException {
+    ifd.remove(IFD.ROWS_PER_STRIP);
+    ifd.remove(IFD.STRIP_OFFSETS);
+    ifd.remove(IFD.STRIP_BYTE_COUNTS);
+    ifd.put(IFD.TILE_WIDTH, IMAGE_WIDTH / 2);
+    ifd.put(IFD.TILE_LENGTH, IMAGE_LENGTH / 2);
+    ifd.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+
+    ByteArrayHandle savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+
+    RandomAccessInputStream in = new RandomAccessInputStream(savedData);
+    TiffParser parser = new TiffParser(in);
+    byte[][] tiles = new byte[4][];
+    for (int i=0; i<tiles.length; i++) {
+      tiles[i] = parser.getRawTile(ifd, i / 2, i % 2);
+    }
+    in.close();
+
+    ByteArrayHandle copiedData = new ByteArrayHandle();
+    out = new RandomAccessOutputStream(copiedData);
+    saver = new TiffSaver(out, copiedData);
+    saver.setLittleEndian(true);
+    saver.writeHeader();
+    saver.writeCompressedImage(tiles, new IFD(ifd), true);
+    out.close();
+
+    in = new RandomAccessInputStream(copiedData);
+    parser = new TiffParser(in);
+    IFD copy = parser.getFirstIFD();
+    for (int i=0; i<tiles.length; i++) {
+      byte[] tile = parser.getRawTile(copy, i / 2, i % 2);
+      assertEquals(tiles[i].length, tile.length);
+      for (int j=0; j<tile.length; j++) {
+        assertEquals(tiles[i][j], tile[j]);
+      }
+    }
+    byte[] plane = new byte[data.length];
+    parser.getSamples(copy, plane);
+    in.close();
+    for (int i=0; i<plane.length; i++) {
+      assertEquals(plane[i], data[i]);
+    }
+  }
+
+  @Test
+  public void testConcurrentTileReads() throws Exception {
+    ifd.remove(IFD.ROWS_PER_STRIP);
+    ifd.remove(IFD.STRIP_OFFSETS);
+    ifd.remove(IFD.STRIP_BYTE_COUNTS);
+    ifd.put(IFD.TILE_WIDTH, IMAGE_WIDTH / 4);
+    ifd.put(IFD.TILE_LENGTH, IMAGE_LENGTH / 4);
+    ifd.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+
+    File file = File.createTempFile("TiffPixelsTest", ".tif");
+    file.deleteOnExit();
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(file.getAbsolutePath());
+    TiffSaver saver = new TiffSaver(out, file.getAbsolutePath());
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(file.getAbsolutePath());
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    final TiffParser parser = new TiffParser(in);
+    final IFD saved = parser.getFirstIFD();
+    final byte[][] expected = new byte[16][];
+    for (int i=0; i<expected.length; i++) {
+      expected[i] = parser.getTile(saved, null, i / 4, i % 4);
+    }
+
+    // the same parser and IFD are shared by every thread, both with and
+    // without a channel for positional reads
+    ExecutorService threadPool = Executors.newFixedThreadPool(4);
+    try {
+      for (FileChannel channel : new FileChannel[] {null, raf.getChannel()}) {
+        parser.setFileChannel(channel);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int task=0; task<8; task++) {
+          results.add(threadPool.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              boolean match = true;
+              for (int i=0; i<expected.length * 4; i++) {
+                int index = i % expected.length;
+                byte[] tile = parser.getTile(saved, null, index / 4, index % 4);
+                match &= Arrays.equals(expected[index], tile);
+                byte[] plane = new byte[data.length];
+                parser.getSamples(saved, plane);
+                match &= Arrays.equals(data, plane);
+              }
+              return match;
+            }
+          }));
+        }
+        for (Future<Boolean> result : results) {
+          assertTrue(result.get());
+        }
+      }
+    }
+    finally {
+      threadPool.shutdown();
+      in.close();
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testMissingTileReadsAsZeros() throws Exception {
+    ifd.remove(IFD.ROWS_PER_STRIP);
+    ifd.remove(IFD.STRIP_OFFSETS);
+    ifd.remove(IFD.STRIP_BYTE_COUNTS);
+    ifd.put(IFD.TILE_WIDTH, IMAGE_WIDTH);
+    ifd.put(IFD.TILE_LENGTH, IMAGE_LENGTH / 2);
+    ifd.put(IFD.COMPRESSION, TiffCompression.LZW.getCode());
+
+    ByteArrayHandle savedData = new ByteArrayHandle();
+    RandomAccessOutputStream out = new RandomAccessOutputStream(savedData);
+    TiffSaver saver = new TiffSaver(out, savedData);
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+
+    RandomAccessInputStream in = new RandomAccessInputStream(savedData);
+    TiffParser parser = new TiffParser(in);
+    IFD saved = parser.getFirstIFD();
+    parser.fillInIFD(saved);
+    long[] counts = saved.getIFDLongArray(IFD.TILE_BYTE_COUNTS).clone();
+    counts[1] = 0;
+    saved.putIFDValue(IFD.TILE_BYTE_COUNTS, counts);
+
+    // the pooled tile buffer starts out holding another image's pixels
+    int tileSize = data.length / 2;
+    BufferPool defaultPool = BufferPool.getDefault();
+    BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_BYTES);
+    BufferPool.setDefault(pool);
+    try {
+      byte[] stale = pool.borrow(tileSize);
+      Arrays.fill(stale, (byte) 0x55);
+      pool.release(stale);
+
+      byte[] plane = new byte[data.length];
+      parser.getSamples(saved, plane);
+      for (int i=0; i<tileSize; i++) {
+        assertEquals(data[i], plane[i]);
+      }
+      for (int i=tileSize; i<plane.length; i++) {
+        assertEquals(0, plane[i]);
+      }
+
+      byte[] tile = new byte[tileSize];
+      Arrays.fill(tile, (byte) 0x55);
+      parser.getTile(saved, tile, 1, 0);
+      for (int i=0; i<tile.length; i++) {
+        assertEquals(0, tile[i]);
+      }
+    }
+    finally {
+      BufferPool.setDefault(defaultPool);
+      in.close();
+    }
+  }
+
+  @Test
+  public void testUncompressedStripsIntoDirectBuffer() throws Exception {
+    // strips of 5 rows, so the region below starts and ends mid-strip
+    ifd.put(IFD.ROWS_PER_STRIP, new long[] {5});
+    ifd.put(IFD.COMPRESSION, TiffCompression.UNCOMPRESSED.getCode());
+
+    File file = File.createTempFile("TiffPixelsTest", ".tif");
+    file.deleteOnExit();
+    RandomAccessOutputStream out =
+      new RandomAccessOutputStream(file.getAbsolutePath());
+    TiffSaver saver = new TiffSaver(out, file.getAbsolutePath());
+    saver.writeImage(data, ifd, 0, FormatTools.UINT16, true);
+    out.close();
+
+    RandomAccessInputStream in =
+      new RandomAccessInputStream(file.getAbsolutePath());
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      TiffParser parser = new TiffParser(in);
+      IFD saved = parser.getFirstIFD();
+      int rowBytes = IMAGE_WIDTH * (BITS_PER_PIXEL / 8);
+      for (FileChannel channel : new FileChannel[] {null, raf.getChannel()}) {
+        parser.setFileChannel(channel);
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length + 3);
+        buf.position(3);
+        parser.getSamples(saved, buf, 0, 0, IMAGE_WIDTH, IMAGE_LENGTH);
+        assertEquals(buf.capacity(), buf.position());
+        byte[] plane = new byte[data.length];
+        buf.position(3);
+        buf.get(plane);
+        assertTrue(Arrays.equals(data, plane));
+
+        buf.clear();
+        parser.getSamples(saved, buf, 0, 7, IMAGE_WIDTH, 20);
+        assertEquals(20 * rowBytes, buf.position());
+        byte[] region = new byte[20 * rowBytes];
+        buf.flip();
+        buf.get(region);
+        assertTrue(Arrays.equals(
+          Arrays.copyOfRange(data, 7 * rowBytes, 27 * rowBytes), region));
+      }
+    }
+    finally {
+      in.close();
+      raf.close();
+    }
+  }
+
   // -- Helper method --
 
   private byte[] readSavedPlane() throws FormatException, IOException {